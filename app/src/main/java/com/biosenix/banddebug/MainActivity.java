@@ -14,19 +14,14 @@ import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
-import android.bluetooth.BluetoothProfile;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanResult;
+import android.bluetooth.BluetoothManager;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.Network;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
@@ -34,60 +29,141 @@ import android.widget.EditText;
 import android.widget.TextView;
 
 import com.biosenix.banddebug.aws.Kinesis;
-import com.biosenix.banddebug.models.Acceleration;
+import com.biosenix.banddebug.ble.AndroidBandGatt;
+import com.biosenix.banddebug.ble.AndroidBandScanner;
+import com.biosenix.banddebug.ble.BandAddressCache;
+import com.biosenix.banddebug.ble.BandGatt;
+import com.biosenix.banddebug.ble.BleTimer;
+import com.biosenix.banddebug.ble.HandlerTimer;
+import com.biosenix.banddebug.ble.ReconnectingBandGatt;
+import com.biosenix.banddebug.decode.DecoderRegistry;
+import com.biosenix.banddebug.features.FeatureExtractor;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+import com.biosenix.banddebug.metrics.MetricsReporter;
+import com.biosenix.banddebug.plot.WaveformBuffer;
+import com.biosenix.banddebug.session.BandSession;
+import com.biosenix.banddebug.session.SessionManager;
+import com.biosenix.banddebug.sink.FileSink;
+import com.biosenix.banddebug.sink.KinesisSink;
+import com.biosenix.banddebug.sink.SinkFanOut;
+import com.biosenix.banddebug.sink.SocketSink;
+import com.biosenix.banddebug.storage.SampleWriter;
+import com.biosenix.banddebug.storage.SegmentedSessionWriter;
+import com.biosenix.banddebug.ui.MainThreadScheduler;
+import com.biosenix.banddebug.ui.StatusPublisher;
+import com.biosenix.banddebug.ui.WaveformView;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MainActivity extends AppCompatActivity {
 
-    private BluetoothLeScanner bluetoothLeScanner;
-    private boolean bleScanning = false;
-    private boolean bleConnected = false;
-    private String deviceId = "00";
-    private BluetoothDevice bleDevice = null;
-    private BluetoothGatt bluetoothGatt = null;
-    private BluetoothGattService biosenixService = null;
-
-    // Service UUID for Biosenix custom service.
-    private final String serviceUUID = "f3641400-00b0-4240-ba50-05ca45bf8abc";  // Custom Service
-    private final String accCharUUID = "f3641404-00b0-4240-ba50-05ca45bf8abc";  // Acc characteristic
-    private final String ppgCharUUID = "f3641403-00b0-4240-ba50-05ca45bf8abc";  // PPG characteristic
-
-    // BLE Descriptors of acc and PPG notifications. They are currently the same.
-    private final String notificationDesciptors = "00002902-0000-1000-8000-00805f9b34fb";
+    // Written from the band listener threads.
+    private volatile boolean bleConnected = false;
+    // Bands to collect from, e.g. "01, 02" in the device ID field.
+    private final Set<String> deviceIds = new LinkedHashSet<>();
 
     // This activity context so we can use it to run UI thread updates.
     private Activity activity;
 
     // UI elements that need to be changed with the state of the activity.
     Button btnConnect = null;
+    TextView txtStatus = null;
+    TextView txtSample = null;
+
+    // Coalesces status and sample updates so the UI is refreshed at most once per display frame.
+    StatusPublisher statusPublisher = null;
+
+    // Live plot of the last two minutes of the first band that streams, at 50 Hz.
+    private static final int WAVEFORM_WINDOW_SAMPLES = 2 * 60 * 50;
+    private final WaveformBuffer waveform = new WaveformBuffer(WAVEFORM_WINDOW_SAMPLES);
+    private final AtomicReference<BandSession> plottedSession = new AtomicReference<>();
+    WaveformView waveformView = null;
 
     // Store if external storage permission as given.
     boolean hasStoragePermission = false;
-    // Stores the file descriptor.
-    File dataFile = null;
-    BufferedOutputStream ofStream = null;
 
-    // The start timestamp always stores the first timestamp of the BLE entry that comes in.
-    int startDataTimestamp = -1;
-    int lastTimeStamp = -1; // To avoid duplicate values.
+    // High throughput mode asks for the largest MTU, the 2M PHY and a short connection interval
+    // right after connecting, so the band can pack several samples into each notification.
+    private static final boolean HIGH_THROUGHPUT_MODE = true;
+
+    // PPG is decoded but nothing consumes it yet. Subscribing to it costs radio time and frame ring
+    // slots that ACC frames could lose to, so it stays off until it gets a consumer or a file sink.
+    private static final boolean SUBSCRIBE_PPG = false;
+
+    // Bands are connected directly to their last known MAC address and reconnected the same way
+    // after a link loss. Scanning, with hardware filters, is only the fallback.
+    private final ReconnectingBandGatt.Config reconnectConfig = new ReconnectingBandGatt.Config();
+    private BluetoothAdapter bluetoothAdapter = null;
+    private AndroidBandScanner bandScanner = null;
+    private BandAddressCache bandAddresses = null;
+
+    // One session per connected band. All of them share a small worker pool for disk and network work.
+    private static final int MAX_BANDS = 8;
+    private static final int SESSION_WORKERS = 2;
+    SessionManager sessionManager = null;
+
+    // Session files are cut into hourly segments of at most 64 MB and fsynced every second, also
+    // when a band goes quiet. The file sink hands over a batch at most one and a half lingers after
+    // its first sample, also when the band goes quiet mid-batch, so a crash loses at most about
+    // 1.5 s of samples. Closed segments are finalized off the sample path, the second thread keeps the timed
+    // commits going while a closed segment is compressed.
+    private static final long FILE_SINK_LINGER_MILLIS = 250;
+    private final SegmentedSessionWriter.Config segmentConfig = new SegmentedSessionWriter.Config();
+    private final ScheduledExecutorService segmentFinisher = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "segment-finisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // The decoded samples of all bands go to the session files, Kinesis and optionally a local
+    // TCP listener, each through its own queue and thread so a slow sink only drops its own batches.
+    // Set LOCAL_SINK_PORT to stream CSV lines to 127.0.0.1, e.g. through "adb reverse tcp:PORT tcp:PORT".
+    private static final int LOCAL_SINK_PORT = 0;
+    private final SinkFanOut sinks = new SinkFanOut();
+
+    // Refreshes the per band counters on screen while bands are connected.
+    private static final long STATS_INTERVAL_MILLIS = 1000;
+    private final Handler statsHandler = new Handler(Looper.getMainLooper());
 
     enum Button_state {
         BUTT_CONNECT,
         BUTT_DISCONNECT
     }
 
-    // AWS Kinesis Wrappers.
+    // What is uploaded to Kinesis: every raw sample, or only the features extracted on the phone,
+    // once per FeatureExtractor.Config.hopSamples samples. The session files always keep the raw samples.
+    enum UploadMode {
+        RAW,
+        FEATURES
+    }
+    private static final UploadMode UPLOAD_MODE = UploadMode.RAW;
+    private final FeatureExtractor.Config featureConfig = new FeatureExtractor.Config();
+    private final Map<BandSession, FeatureExtractor> featureExtractors = new ConcurrentHashMap<>();
+
+    // AWS Kinesis Wrappers. The client is built and the upload spool opened in the background when
+    // bands start streaming, the main thread time it costs to set up Kinesis is recorded as
+    // "startup.kinesis_main_thread_ms".
     Kinesis kinesis;
+    private final Kinesis.ClientConfig kinesisClientConfig = new Kinesis.ClientConfig();
+    ConnectivityManager connectivityManager;
+
+    // Pipeline metrics are dumped to files/metrics.jsonl, rotated at 16 MB.
+    private static final long METRICS_INTERVAL_MILLIS = 10_000;
+    private static final long METRICS_MAX_FILE_BYTES = 16 * 1024 * 1024;
+    MetricsReporter metricsReporter = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -95,7 +171,21 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
         EditText numDeviceId = findViewById(R.id.numDeviceID);
         btnConnect = findViewById(R.id.btnConnect);
+        txtStatus = findViewById(R.id.txtStatus);
+        txtSample = findViewById(R.id.txtSample);
+        waveformView = findViewById(R.id.waveform);
+        waveformView.setBuffer(waveform);
         activity = this;
+        statusPublisher = new StatusPublisher(new MainThreadScheduler(true), statusRenderer, 0);
+        SinkFanOut.Config fileSinkConfig = new SinkFanOut.Config();
+        fileSinkConfig.lingerMillis = FILE_SINK_LINGER_MILLIS;
+        sinks.add("file", new FileSink(segmentFactory), fileSinkConfig);
+        if(LOCAL_SINK_PORT > 0) {
+            sinks.add("socket", new SocketSink("127.0.0.1", LOCAL_SINK_PORT), new SinkFanOut.Config());
+        }
+        sessionManager = new SessionManager(MAX_BANDS, SESSION_WORKERS, sinks::open, sessionListener);
+        sessionManager.getDecoders().setSubscribed(DecoderRegistry.PPG_CHARACTERISTIC, SUBSCRIBE_PPG);
+        bluetoothAdapter = getSystemService(BluetoothManager.class).getAdapter();
 
         ArrayList<String> permissions = new ArrayList<>();
 
@@ -126,24 +216,84 @@ public class MainActivity extends AppCompatActivity {
             @Override
             public void onClick(View view) {
                 if(!bleConnected) {
-                    String _deviceId = numDeviceId.getText().toString();
-                    deviceId = _deviceId;
-                    updateStatus("Looking for BP" + deviceId);
-                    // Scan the BLE scanning.
-                    scanBLEDevices();
+                    // One or more device IDs, separated by commas or spaces.
+                    deviceIds.clear();
+                    for(String _deviceId : numDeviceId.getText().toString().split("[,\\s]+")) {
+                        if(!_deviceId.isEmpty()) {
+                            deviceIds.add(_deviceId);
+                        }
+                    }
+                    if(deviceIds.isEmpty()) {
+                        deviceIds.add("00");
+                    }
+                    updateStatus("Looking for BP" + String.join(", BP", deviceIds));
+                    connectBands();
                 }
                 else {
-                    if(bluetoothGatt != null) {
-                        bluetoothGatt.disconnect();
-                    }
+                    sessionManager.disconnectAll();
+                    bleConnected = false;
+                    updateButton(Button_state.BUTT_CONNECT);
                 }
             }
         });
 
-        // Create a new Kinesis stream that we can connect to.
-        kinesis = new Kinesis("acceleration", "us-east-1");
+        // Create a new Kinesis stream that we can connect to. Records that cannot be sent from memory,
+        // e.g. while offline, are spooled to disk until uploaded. The spool's backlog is replayed
+        // once the client is built.
+        File externalFiles = getExternalFilesDir(null);
+        long kinesisStart = System.nanoTime();
+        kinesis = new Kinesis("acceleration", "us-east-1",
+                externalFiles != null ? new File(externalFiles, "spool") : null, kinesisClientConfig);
+        long kinesisMillis = (System.nanoTime() - kinesisStart) / 1_000_000;
+        MetricsRegistry.getDefault().histogram("startup.kinesis_main_thread_ms").record(kinesisMillis);
+        Log.i("Startup", "Kinesis set up in " + kinesisMillis + " ms on the main thread" +
+                (kinesisClientConfig.lazy ? ", client and spool deferred" : ""));
+        if(UPLOAD_MODE == UploadMode.RAW) {
+            sinks.add("kinesis", new KinesisSink(kinesis), new SinkFanOut.Config());
+        }
+
+        if(externalFiles != null) {
+            metricsReporter = new MetricsReporter(MetricsRegistry.getDefault(), new File(externalFiles, "metrics.jsonl"),
+                    METRICS_INTERVAL_MILLIS, METRICS_MAX_FILE_BYTES);
+            metricsReporter.start();
+        }
+
+        // Replay the spooled backlog as soon as we are back online.
+        connectivityManager = getSystemService(ConnectivityManager.class);
+        connectivityManager.registerDefaultNetworkCallback(networkCallback);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        connectivityManager.unregisterNetworkCallback(networkCallback);
+        statsHandler.removeCallbacks(statsTask);
+        try {
+            sessionManager.shutdown(2000);
+            sinks.close(2000);
+            kinesis.close();
+            // Let the last segments get their final names. Segments still open after this are
+            // readable as they are, see SessionReader.isTruncated().
+            segmentFinisher.shutdown();
+            if(!segmentFinisher.awaitTermination(2, TimeUnit.SECONDS)) {
+                Log.w("Session", "Segments still being finalized at exit");
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if(metricsReporter != null) {
+            metricsReporter.stop();
+        }
     }
 
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onAvailable(@NonNull Network network) {
+            kinesis.onNetworkAvailable();
+        }
+    };
+
     // Permission results callback.
 
     @Override
@@ -155,7 +305,7 @@ public class MainActivity extends AppCompatActivity {
             // All good nothing to do here.
         }
         else {
-            updateStatus("BLE Permission Denied.");
+            updateState("BLE Permission Denied.");
         }
 
         // External storage permission.
@@ -190,283 +340,183 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
-    // Run this on the main UI thread.
+    // Informational status. Coalesced, only the latest message is shown.
     private void updateStatus(String message) {
-        activity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                TextView txtStatus = findViewById(R.id.txtStatus);
-                txtStatus.setText(message);
-            }
-        });
-    }
-
-    // Method which creates a new file to write data into named on the current data and time.
-    private void createFile() {
-        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH:mm:ss");
-        LocalDateTime now = LocalDateTime.now();
-        String filename = dtf.format(now) + ".csv";
-
-        // Check if external storage is present.
-        String state = Environment.getExternalStorageState();
-        if(Environment.MEDIA_MOUNTED.equals(state)) {
-            try {
-                File[] externalStorageVolumes = ContextCompat.getExternalFilesDirs(getApplicationContext(), null);
-                if(externalStorageVolumes.length > 0) {
-                    this.dataFile = new File(externalStorageVolumes[0] + "/" + filename);
-                    this.dataFile.createNewFile();
-                    this.ofStream = new BufferedOutputStream(new FileOutputStream(this.dataFile));
-                    // Also reset the start timestamp.
-                    startDataTimestamp = -1;
-                    lastTimeStamp = -1;
-                }
-            }
-            catch (IOException ex) {
-                // Cannot create the new file.
-                Log.e("FILE", "Cannot create file", ex);
-            }
-        }
+        statusPublisher.publishStatus(message);
     }
 
-    // Method to do BLE scanning.
-    @SuppressLint("MissingPermission")
-    private void scanBLEDevices() {
-        if(!bleScanning) {
-            bluetoothLeScanner = BluetoothAdapter.getDefaultAdapter().getBluetoothLeScanner();
-
-            // Automatically stop scanning after a certain time.
-            new Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    bluetoothLeScanner.stopScan(leScanCallback);
-                    bleScanning = false;
-                }
-            }, 10 * 1000);  // Run for 10 seconds.
-
-            bluetoothLeScanner.startScan(leScanCallback);
-            bleScanning = true;
-        }
-        else {
-            // Stop BLE Scanning. We the same method for it.
-            bluetoothLeScanner.stopScan(leScanCallback);
-            bleScanning = false;
-        }
+    // Connection state changes. These are never coalesced away.
+    private void updateState(String message) {
+        statusPublisher.publishState(message);
     }
 
-    @SuppressLint("MissingPermission")
-    private ScanCallback leScanCallback =
-            new ScanCallback() {
-                @Override
-                public void onScanResult(int callbackType, ScanResult result) {
-                    super.onScanResult(callbackType, result);
-                    BluetoothDevice device = result.getDevice();
-                    String name = device.getName();
-                    if(name != null) {
-                        // Note - We do a string search here since direct string matching was not working.
-                        if(name.indexOf("BP"+deviceId) >= 0 && bleScanning) {
-                            bleScanning = false;    // We don't want to come back here again.
-                            updateStatus("Found BP"+deviceId+". Connecting ..");
-                            bleDevice = device;
-                            // Attempt to connect to the GATT server.
-                            bluetoothGatt = bleDevice.connectGatt(getApplicationContext(), true, bluetoothGattCallback);
-                        }
-                    }
-                }
-
-                @Override
-                public void onBatchScanResults(List<ScanResult> results) {
-                    super.onBatchScanResults(results);
-                }
-
-                @Override
-                public void onScanFailed(int errorCode) {
-                    super.onScanFailed(errorCode);
-                    updateStatus("BLE scan failed");
-                }
-            };
+    // Applies the published status to the cached views, always on the UI thread.
+    private final StatusPublisher.Renderer statusRenderer = new StatusPublisher.Renderer() {
+        private final StringBuilder sampleText = new StringBuilder();
 
-    // Inline class that handles GATT connection callbacks.
-    private final BluetoothGattCallback bluetoothGattCallback = new BluetoothGattCallback() {
         @Override
-        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
-            super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+        public void renderState(String message) {
+            Log.i("Status", message);
+            txtStatus.setText(message);
         }
 
         @Override
-        public void onPhyRead(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
-            super.onPhyRead(gatt, txPhy, rxPhy, status);
+        public void renderStatus(String message) {
+            txtStatus.setText(message);
         }
 
-        @SuppressLint("MissingPermission")
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            super.onConnectionStateChange(gatt, status, newState);
-            switch(newState) {
-                case BluetoothProfile.STATE_CONNECTED:
-                    updateStatus("Connected to BP"+deviceId);
-                    updateButton(Button_state.BUTT_DISCONNECT); // Change the text on the button to say disconnect.
-                    bleConnected = true;
-
-                    // We create file where data can be stored.
-                    createFile();
-
-                    // We start discovering services.
-                    if(gatt.discoverServices()) {
-                        updateStatus("Discovering Services");
-                    }
-
-                    break;
-                case BluetoothProfile.STATE_DISCONNECTED:
-                    // Run these on the UI thread.
-                    updateStatus("BLE Disconnected");
-                    updateButton(Button_state.BUTT_CONNECT);    // Change the state of the button.
-                    bleConnected = false;
-
-                    // Close the file if it is open.
-                    if(dataFile != null && ofStream != null) {
-                        try {
-                            ofStream.flush();
-                            ofStream.close();
-                            ofStream = null;
-                            dataFile = null;
-                        }
-                        catch (IOException ex) {
-
-                        }
-                    }
-
-                    break;
-                default:
-                    break;
-            };
+        public void renderSample(long timestamp, int x, int y, int z, long sampleCount) {
+            sampleText.setLength(0);
+            sampleText.append(timestamp).append(',').append(x).append(',').append(y).append(',').append(z)
+                    .append("  (").append(sampleCount).append(" samples)");
+            txtSample.setText(sampleText);
+            waveformView.invalidate();
         }
+    };
 
-        @SuppressLint("MissingPermission")
+    // Creates a new file for a band's session, named on the current date and time and the band.
+    private final SessionManager.SegmentFactory segmentFactory = new SessionManager.SegmentFactory() {
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            super.onServicesDiscovered(gatt, status);
-
-            // Get a list of all the services.
-            List<BluetoothGattService> services = gatt.getServices();
-            for(BluetoothGattService service : services) {
-                if(service.getUuid().toString().indexOf(serviceUUID) >= 0) {
-                    biosenixService = service;
-                    break;
-                }
-            }
-
-            if(biosenixService != null) {
-                // Get all the characteristics from this service.
-                updateStatus("Retrieving Characteristics");
-                List<BluetoothGattCharacteristic> characteristics = biosenixService.getCharacteristics();
-
-                // Search for the characteristics we want to attach a notification handler to.
-                for(BluetoothGattCharacteristic characteristic : characteristics) {
-                    // Subscribe to notifications for ACC and PPG characteristics.
-                    if(characteristic.getUuid().toString().indexOf(accCharUUID) >= 0) {
-                        // Make sure it supports notification.
-                        if((characteristic.getProperties() &
-                                BluetoothGattCharacteristic.PROPERTY_NOTIFY) ==
-                                BluetoothGattCharacteristic.PROPERTY_NOTIFY) {
-                            updateStatus("Notification supported");
-                            gatt.setCharacteristicNotification(characteristic, true);
-                            BluetoothGattDescriptor descriptor =
-                                    characteristic.getDescriptor(UUID.fromString(notificationDesciptors));
-                            // Some GATT servers uses indication while others use notifications.
-                            descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                            gatt.writeDescriptor(descriptor);
-                            updateStatus("Notification subscribed");
-                        }
-                        else {
-                            updateStatus("Notification Not Supported");
-                        }
-                    }
+        public SampleWriter open(String deviceId, long startEpochMillis) throws IOException {
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH:mm:ss");
+            LocalDateTime now = LocalDateTime.now();
+            String filename = dtf.format(now) + "-BP" + deviceId;
+
+            // Check if external storage is present.
+            String state = Environment.getExternalStorageState();
+            if(Environment.MEDIA_MOUNTED.equals(state)) {
+                File[] externalStorageVolumes = ContextCompat.getExternalFilesDirs(getApplicationContext(), null);
+                if(externalStorageVolumes.length > 0) {
+                    return new SegmentedSessionWriter(externalStorageVolumes[0], filename, startEpochMillis,
+                            segmentConfig, segmentFinisher);
                 }
             }
+            return null;
         }
+    };
 
+    // Session events of all bands. Samples arrive on the session worker threads.
+    private final SessionManager.Listener sessionListener = new SessionManager.Listener() {
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicRead(gatt, characteristic, status);
+        public void onSample(BandSession session, long timestamp, int x, int y, int z) {
+            // Show the latest sample, and plot the first band.
+            statusPublisher.publishSample(timestamp, x, y, z);
+            if(plottedSession.get() == session || plottedSession.compareAndSet(null, session)) {
+                waveform.add(x, y, z);
+            }
+
+            // Raw samples reach Kinesis through its sink.
+            if(UPLOAD_MODE == UploadMode.FEATURES) {
+                featureExtractor(session).add(timestamp, x, y, z);
+            }
         }
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            super.onCharacteristicWrite(gatt, characteristic, status);
+        // Samples of one session are delivered one at a time, so each extractor has a single feeder.
+        private FeatureExtractor featureExtractor(BandSession session) {
+            FeatureExtractor extractor = featureExtractors.get(session);
+            if(extractor == null) {
+                extractor = new FeatureExtractor(session.getDeviceId(), featureConfig, features -> {
+                    features.epochMillis = session.toEpochMillis(features.timestamp);
+                    kinesis.writeFeaturesToStream(features);
+                });
+                featureExtractors.put(session, extractor);
+            }
+            return extractor;
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            super.onCharacteristicChanged(gatt, characteristic);
-            byte[] data = characteristic.getValue();
-            if(data.length == 10) {
-                // LSB comes first, then MSB
-                int x = data[0] | (data[1] << 8);
-                int y = data[2] | (data[3] << 8);
-                int z = data[4] | (data[5] << 8);
-
-                int timestamp = (data[6] & 0xFF) |
-                        (data[7] & 0xFF) << 8 |
-                        (data[8] & 0xFF) << 16 |
-                        (data[9] & 0xFF) << 24;
-
-                // Convert the timestamp into milliseconds.
-                timestamp = (timestamp * 1000) / 1024;
-                // This is the first record we saw, make all timestamps relative to this.
-                if (startDataTimestamp < 0) {
-                    startDataTimestamp = timestamp;
-                }
-                // Only write to the file if it is not a duplicate.
-                if (timestamp > lastTimeStamp) {
-                    timestamp = timestamp - startDataTimestamp;
-                    // Write the output to a file and also update the UI thread to show this.
-                    String line = String.format("%d,%d,%d,%d\n", timestamp, x, y, z);
-                    // Also update the status field.
-                    updateStatus(line);
-                    try {
-                        ofStream.write(line.getBytes(StandardCharsets.UTF_8));
-
-                        // Also create an Acceleration object which will be passed to the Kinesis layer.
-                        Acceleration acceleration = new Acceleration(deviceId, x, y, z, timestamp);
-                        // Write the data onto the kinesis stream
-                        kinesis.writeAccelToStream(acceleration);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                    lastTimeStamp = timestamp;
-                }
+        public void onSessionClosed(BandSession session) {
+            featureExtractors.remove(session);
+            if(plottedSession.compareAndSet(session, null)) {
+                waveform.clear();
             }
+            if(UPLOAD_MODE == UploadMode.FEATURES) {
+                // Push out whatever is still waiting in the upload batch.
+                kinesis.flush();
+            }
+            BandSession.Stats stats = session.getStats();
+            Log.i("Session", "BP" + stats.deviceId + " closed: " + stats.samples + " samples, " +
+                    stats.ringOverflows + " dropped, " + stats.duplicates + " duplicates");
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorRead(gatt, descriptor, status);
+        public void onStatus(String deviceId, String message) {
+            updateStatus("BP" + deviceId + ": " + message);
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            super.onDescriptorWrite(gatt, descriptor, status);
+        public void onConnected(String deviceId) {
+            updateState("Connected to BP" + deviceId);
+            updateButton(Button_state.BUTT_DISCONNECT); // Change the text on the button to say disconnect.
+            bleConnected = true;
+            // Have the upload connection ready by the time the first batch is.
+            kinesis.warmUp();
+            statsHandler.removeCallbacks(statsTask);
+            statsHandler.postDelayed(statsTask, STATS_INTERVAL_MILLIS);
         }
 
         @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-            super.onReliableWriteCompleted(gatt, status);
+        public void onDisconnected(String deviceId) {
+            updateState("BLE Disconnected BP" + deviceId);
+            if(sessionManager.getBandCount() == 0) {
+                updateButton(Button_state.BUTT_CONNECT);    // Change the state of the button.
+                bleConnected = false;
+            }
         }
+    };
+
+    // Shows the throughput and drop counters of every session.
+    private final Runnable statsTask = new Runnable() {
+        private final StringBuilder text = new StringBuilder();
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            super.onReadRemoteRssi(gatt, rssi, status);
+        public void run() {
+            List<BandSession.Stats> allStats = sessionManager.getStats();
+            if(allStats.isEmpty()) {
+                return;
+            }
+            text.setLength(0);
+            for(BandSession.Stats stats : allStats) {
+                if(text.length() > 0) {
+                    text.append('\n');
+                }
+                text.append("BP").append(stats.deviceId).append(' ')
+                        .append(Math.round(stats.samplesPerSecond)).append("/s, dropped ")
+                        .append(stats.ringOverflows + stats.rejectedFrames);
+            }
+            updateStatus(text.toString());
+            statsHandler.postDelayed(this, STATS_INTERVAL_MILLIS);
         }
+    };
 
-        @Override
-        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-            super.onMtuChanged(gatt, mtu, status);
+    // Starts a reconnecting connection to every band that is not connected yet.
+    @SuppressLint("MissingPermission")
+    private void connectBands() {
+        if(bandScanner == null) {
+            bandScanner = new AndroidBandScanner(bluetoothAdapter);
+            bandAddresses = new BandAddressCache(new File(getFilesDir(), "band_addresses.properties"));
+        }
+        for(String deviceId : deviceIds) {
+            if(sessionManager.hasBand(deviceId)) {
+                continue;
+            }
+            if(!sessionManager.addBand(new ReconnectingBandGatt(deviceId, reconnectConfig, bandScanner,
+                    bandConnector, bandAddresses, reconnectTimer))) {
+                updateState("Too many bands, BP" + deviceId + " not connected");
+            }
         }
+    }
 
+    // Direct connections without autoConnect, the reconnecting wrapper retries them itself.
+    private final ReconnectingBandGatt.Connector bandConnector = new ReconnectingBandGatt.Connector() {
         @Override
-        public void onServiceChanged(@NonNull BluetoothGatt gatt) {
-            super.onServiceChanged(gatt);
+        public BandGatt open(String deviceId, String address) {
+            BluetoothDevice device = bluetoothAdapter.getRemoteDevice(address);
+            return new AndroidBandGatt(getApplicationContext(), device, deviceId, HIGH_THROUGHPUT_MODE, false,
+                    sessionManager.getDecoders().getSubscribedCharacteristics());
         }
     };
-}
\ No newline at end of file
+
+    private final BleTimer reconnectTimer = new HandlerTimer();
+}
@@ -0,0 +1,109 @@
+package com.biosenix.banddebug.aws;
+
+/**
+ * Adaptive cap on the number and size of requests in flight.
+ *
+ * The request limit grows by one per round of successful requests (additive increase) and is
+ * cut by a factor when Kinesis throttles or a request is slower than the latency target
+ * (multiplicative decrease). A decrease happens at most once per request latency, so one burst
+ * of throttled responses to requests sent together only counts once.
+ *
+ * The byte cap is fixed. A single request larger than it is still let through when nothing else
+ * is in flight, so an oversized batch cannot stall the producer.
+ *
+ * Not thread safe, callers hold their own lock. The getters can be read from any thread.
+ */
+public class AimdLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxBytes;
+    private final long latencyTargetMillis;
+    private final double decreaseFactor;
+
+    private volatile double limit;
+    private volatile int inFlight = 0;
+    private volatile long inFlightBytes = 0;
+    private long lastDecreaseNanos = 0;
+    private volatile long decreases = 0;
+
+    /**
+     * @param initialLimit request limit to start with.
+     * @param minLimit the limit never drops below this, at least 1.
+     * @param maxLimit the limit never grows above this.
+     * @param maxBytes cap on the bytes of all requests in flight.
+     * @param latencyTargetMillis requests slower than this shrink the limit, 0 to ignore latency.
+     * @param decreaseFactor factor applied to the limit on congestion, e.g. 0.5.
+     */
+    public AimdLimiter(int initialLimit, int minLimit, int maxLimit, long maxBytes,
+                       long latencyTargetMillis, double decreaseFactor) {
+        if(minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits " + minLimit + ".." + maxLimit);
+        }
+        if(decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("Decrease factor must be between 0 and 1: " + decreaseFactor);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxBytes = maxBytes;
+        this.latencyTargetMillis = latencyTargetMillis;
+        this.decreaseFactor = decreaseFactor;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Reserves room for a request.
+     * @param bytes size of the request.
+     * @return true if the request may be sent, it must then be passed to {@link #onComplete}.
+     */
+    public boolean tryAcquire(long bytes) {
+        if(inFlight > 0 && (inFlight >= (int) limit || inFlightBytes + bytes > maxBytes)) {
+            return false;
+        }
+        inFlight++;
+        inFlightBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Releases a request and adapts the limit.
+     * @param bytes size passed to {@link #tryAcquire}.
+     * @param latencyMillis time the request took.
+     * @param congested true if the request failed or Kinesis throttled any of its records.
+     */
+    public void onComplete(long bytes, long latencyMillis, boolean congested) {
+        inFlight--;
+        inFlightBytes -= bytes;
+
+        long now = System.nanoTime();
+        if(congested || (latencyTargetMillis > 0 && latencyMillis > latencyTargetMillis)) {
+            // Requests sent before the last decrease saw the old limit, do not punish them again.
+            if(decreases == 0 || now - lastDecreaseNanos >= latencyMillis * 1_000_000L) {
+                limit = Math.max(minLimit, limit * decreaseFactor);
+                lastDecreaseNanos = now;
+                decreases++;
+            }
+        }
+        else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * @return the current request limit, rounded down.
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes;
+    }
+
+    public long getDecreases() {
+        return decreases;
+    }
+}
@@ -0,0 +1,18 @@
+package com.biosenix.banddebug.aws;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Uses the device ID as partition key, so every band sticks to the shard its ID hashes to.
+ * Keeps Kinesis' per-shard ordering of a band's records, but short IDs can hash several busy
+ * bands onto one shard.
+ */
+public class DevicePartitionStrategy implements PartitionStrategy {
+    private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<>();
+
+    @Override
+    public Key partition(String deviceId, long sequence, long nowMillis) {
+        Key key = keys.get(deviceId);
+        return key != null ? key : keys.computeIfAbsent(deviceId, id -> new Key(id, null));
+    }
+}
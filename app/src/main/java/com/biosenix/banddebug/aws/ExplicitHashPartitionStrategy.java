@@ -0,0 +1,51 @@
+package com.biosenix.banddebug.aws;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Places bands on shards explicitly instead of trusting the hash of their IDs.
+ *
+ * Bands are assigned shards round robin in the order they first send, so N bands on M shards
+ * put at most ceil(N / M) bands on any shard. With shardsPerDevice above 1, the records of
+ * each band rotate over that many consecutive shards, for bands too busy for one shard.
+ *
+ * Records keep the device ID as partition key, the explicit hash key in the middle of the chosen
+ * shard's range decides the shard.
+ */
+public class ExplicitHashPartitionStrategy implements PartitionStrategy {
+    private final ShardMap shards;
+    private final int shardsPerDevice;
+    // Keys of each band, one per shard it rotates over.
+    private final Map<String, Key[]> keys = new HashMap<>();
+    private int nextSlot = 0;
+
+    /**
+     * @param shards shard map of the stream.
+     * @param shardsPerDevice number of shards the records of one band are spread over.
+     */
+    public ExplicitHashPartitionStrategy(ShardMap shards, int shardsPerDevice) {
+        if(shardsPerDevice < 1 || shardsPerDevice > shards.getShardCount()) {
+            throw new IllegalArgumentException("Cannot spread over " + shardsPerDevice + " of " +
+                    shards.getShardCount() + " shards");
+        }
+        this.shards = shards;
+        this.shardsPerDevice = shardsPerDevice;
+    }
+
+    @Override
+    public synchronized Key partition(String deviceId, long sequence, long nowMillis) {
+        Key[] deviceKeys = keys.get(deviceId);
+        if(deviceKeys == null) {
+            deviceKeys = new Key[shardsPerDevice];
+            int first = nextSlot;
+            nextSlot = (nextSlot + shardsPerDevice) % shards.getShardCount();
+            for(int i = 0; i < shardsPerDevice; i++) {
+                int shard = (first + i) % shards.getShardCount();
+                deviceKeys[i] = new Key(deviceId, shards.midpointOf(shard).toString());
+            }
+            keys.put(deviceId, deviceKeys);
+        }
+        return deviceKeys[(int) (sequence % shardsPerDevice)];
+    }
+}
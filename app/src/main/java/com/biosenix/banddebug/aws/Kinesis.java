@@ -1,22 +1,30 @@
 package com.biosenix.banddebug.aws;
 
-import android.util.Log;
-
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.features.Features;
+import com.biosenix.banddebug.metrics.Gauge;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
 import com.biosenix.banddebug.models.Acceleration;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
 import java.util.concurrent.ExecutionException;
 
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
-import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.urlconnection.UrlConnectionHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.KinesisClient;
 import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
 import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
-import software.amazon.awssdk.services.kinesis.model.PutRecordRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryRequest;
 
 public class Kinesis {
     private static ObjectMapper JSON = new ObjectMapper();
@@ -27,12 +35,65 @@ public class Kinesis {
     private String streamName;
     private Region region;
     private KinesisAsyncClient client;
+    private KinesisBatchProducer producer;
+    // Set once the spool is open, which is on the client's build thread with a lazy client.
+    // Guarded by spoolLock.
+    private final Object spoolLock = new Object();
+    private UploadSpool spool = null;
+    private volatile SpoolDrainer drainer = null;
+    private Gauge spoolBytesGauge = null;
+    private boolean closed = false;
+    private long lastWarmUpMillis = 0;
+
+    /**
+     * HTTP stack of the client. URL_CONNECTION uses the platform's HttpURLConnection, which is
+     * much smaller than Netty and runs no event loop threads, at the cost of a thread per request
+     * in flight.
+     */
+    public enum HttpClientType {
+        NETTY,
+        URL_CONNECTION
+    }
+
+    public static class ClientConfig {
+        // Build the client on a background thread when it is first needed instead of in the constructor.
+        public boolean lazy = true;
+        public HttpClientType httpClient = HttpClientType.NETTY;
+        // Threads of the URL_CONNECTION client: the producer's in-flight limit plus the spool drainer.
+        public int urlConnectionThreads = new KinesisBatchProducer.Config().maxInFlightRequests + 1;
+    }
+
+    // Spool limits: segment size, total disk quota and the record rate a backlog is replayed at,
+    // on top of the live records. Live records themselves are never held back.
+    public static final long SPOOL_SEGMENT_BYTES = 4 * 1024 * 1024;
+    public static final long SPOOL_QUOTA_BYTES = 256 * 1024 * 1024;
+    public static final double SPOOL_BACKLOG_RECORDS_PER_SECOND = 500;
+    // A warm up keeps the connection open for about this long, later calls within it do nothing.
+    public static final long WARM_UP_INTERVAL_MILLIS = 30_000;
 
     // TODO : Use your own AWS credentials.
     private final String accessKey = "";
     private final String secretAccessKey = "";
 
     public Kinesis(String streamName, String region) {
+        this(streamName, region, null);
+    }
+
+    /**
+     * @param spoolDirectory directory for the durable upload spool, or null to upload from memory only.
+     */
+    public Kinesis(String streamName, String region, File spoolDirectory) {
+        this(streamName, region, spoolDirectory, new ClientConfig());
+    }
+
+    /**
+     * Uploads with {@link #defaultProducerConfig()}.
+     * @param spoolDirectory directory for the durable upload spool, or null to upload from memory only.
+     * @param clientConfig how and when the client is built. With a lazy client, the spool is
+     *                     opened on the thread that builds the client, and samples queue up in the
+     *                     producer until both are ready.
+     */
+    public Kinesis(String streamName, String region, File spoolDirectory, ClientConfig clientConfig) {
         this.streamName = streamName;
         this.region = Region.of(region);
 
@@ -44,11 +105,108 @@ public class Kinesis {
         StaticCredentialsProvider credentialsProvider = StaticCredentialsProvider.create(
                 AwsBasicCredentials.create(accessKey, secretAccessKey));
 
-        this.client = KinesisAsyncClient.builder()
-                .credentialsProvider(credentialsProvider)
-                .region(this.region)
-                .build();
+        if(clientConfig.lazy) {
+            // Opening the spool reads and fsyncs its checkpoint, keep that off the caller's thread too.
+            this.client = new LazyKinesisClient(() -> {
+                openSpool(spoolDirectory);
+                return buildClient(credentialsProvider, clientConfig);
+            });
+            this.producer = new KinesisBatchProducer(client, streamName, JSON, defaultProducerConfig(), null);
+        }
+        else {
+            this.client = buildClient(credentialsProvider, clientConfig);
+            createProducer(defaultProducerConfig(), spoolDirectory);
+        }
+    }
 
+    /**
+     * Producer settings of the app. Records are sent from memory, so the in-flight requests adapt
+     * to throttling and latency, and the spool only takes what overflows the memory buffer or runs
+     * out of attempts, e.g. while offline. Records still in memory are lost if the app is killed,
+     * the session files keep the raw samples.
+     */
+    public static KinesisBatchProducer.Config defaultProducerConfig() {
+        KinesisBatchProducer.Config config = new KinesisBatchProducer.Config();
+        config.overflowPolicy = KinesisBatchProducer.OverflowPolicy.SPILL;
+        return config;
+    }
+
+    // Builds the SDK client, timed as "kinesis.client_build_ms".
+    private KinesisAsyncClient buildClient(StaticCredentialsProvider credentialsProvider, ClientConfig config) {
+        long start = System.nanoTime();
+        KinesisAsyncClient client;
+        if(config.httpClient == HttpClientType.URL_CONNECTION) {
+            KinesisClient syncClient = KinesisClient.builder()
+                    .credentialsProvider(credentialsProvider)
+                    .region(region)
+                    .httpClientBuilder(UrlConnectionHttpClient.builder()
+                            .connectionTimeout(Duration.ofSeconds(10))
+                            .socketTimeout(Duration.ofSeconds(30)))
+                    .build();
+            client = new SyncKinesisClientAdapter(syncClient, config.urlConnectionThreads);
+        }
+        else {
+            client = KinesisAsyncClient.builder()
+                    .credentialsProvider(credentialsProvider)
+                    .region(region)
+                    .httpClientBuilder(NettyNioAsyncHttpClient.builder())
+                    .build();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        MetricsRegistry.getDefault().histogram("kinesis.client_build_ms").record(millis);
+        System.out.println("Built " + config.httpClient + " client in " + millis + " ms" +
+                (config.lazy ? " in the background" : ""));
+        return client;
+    }
+
+    /**
+     * Creates a wrapper around an already built client, e.g. a local fake in tests.
+     */
+    public Kinesis(String streamName, KinesisAsyncClient client, KinesisBatchProducer.Config config) {
+        this(streamName, client, config, null);
+    }
+
+    /**
+     * @param spoolDirectory directory for the durable upload spool, or null to upload from memory only.
+     *                       With {@link KinesisBatchProducer.OverflowPolicy#SPILL} the spool only
+     *                       takes the records that overflow the producer's memory buffer.
+     */
+    public Kinesis(String streamName, KinesisAsyncClient client, KinesisBatchProducer.Config config,
+                   File spoolDirectory) {
+        this.streamName = streamName;
+        this.client = client;
+        createProducer(config, spoolDirectory);
+    }
+
+    private void createProducer(KinesisBatchProducer.Config config, File spoolDirectory) {
+        this.producer = new KinesisBatchProducer(client, streamName, JSON, config, null);
+        openSpool(spoolDirectory);
+    }
+
+    // Opens the spool, starts its drainer and hands it to the producer, unless closed meanwhile.
+    private void openSpool(File spoolDirectory) {
+        if(spoolDirectory == null) {
+            return;
+        }
+        synchronized (spoolLock) {
+            if(closed) {
+                return;
+            }
+            try {
+                UploadSpool openSpool = new UploadSpool(spoolDirectory, SPOOL_SEGMENT_BYTES,
+                        SPOOL_QUOTA_BYTES, false);
+                spool = openSpool;
+                drainer = new SpoolDrainer(openSpool, client, streamName, SPOOL_BACKLOG_RECORDS_PER_SECOND);
+                drainer.start();
+                spoolBytesGauge = openSpool::getTotalBytes;
+                MetricsRegistry.getDefault().gauge("spool.bytes", spoolBytesGauge);
+                producer.attachSpool(openSpool);
+            }
+            catch (IOException ex) {
+                // Still upload, just without surviving being offline.
+                System.out.println("Cannot open upload spool, uploading from memory " + ex);
+            }
+        }
     }
 
     /**
@@ -73,7 +231,8 @@ public class Kinesis {
     }
 
     /**
-     * Method which writes the acceleration object to the kinesis stream.
+     * Method which queues the acceleration object to be written to the kinesis stream.
+     * Samples are batched and sent through PutRecords, see {@link KinesisBatchProducer}.
      * Does not guarantee that the data will be written.
      * @param acceleration the acceleration object to serialize onto the stream.
      * @return true if the packet was scheduled to be written. False otherwise.
@@ -92,23 +251,120 @@ public class Kinesis {
         }
         */
 
-        String jsonString;
+        return producer.add(acceleration);
+    }
+
+    /**
+     * Queues a block of decoded samples to be written to the kinesis stream, like
+     * {@link #writeAccelToStream(Acceleration)} for each of them but without an object per sample.
+     * @param deviceId device the samples belong to.
+     * @param samples the samples, they may be reused once this returns.
+     * @return true if all samples were scheduled to be written. False otherwise.
+     */
+    public boolean writeSamplesToStream(String deviceId, SampleBlock samples) {
+        if(deviceId == null || samples == null) {
+            return false;
+        }
+        return producer.add(deviceId, samples);
+    }
+
+    /**
+     * Queues extracted features to be written to the kinesis stream, as one JSON record.
+     * Consumers tell them from sample records by the leading '{' and the "deviceID" and
+     * "bandPower" fields.
+     * @param features the features to serialize, they may be reused once this returns.
+     * @return true if the record was scheduled to be written. False otherwise.
+     */
+    public boolean writeFeaturesToStream(Features features) {
+        if(features == null) {
+            return false;
+        }
         try {
-            jsonString = JSON.writeValueAsString(acceleration);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
+            return producer.addRecord(features.deviceID, JSON.writeValueAsBytes(features));
+        }
+        catch (JsonProcessingException ex) {
+            ex.printStackTrace();
             return false;
         }
+    }
 
-        PutRecordRequest request = PutRecordRequest.builder()
-                .partitionKey(acceleration.deviceID)
-                .streamName(streamName)
-                .data(SdkBytes.fromUtf8String(jsonString))
-                .build();
+    /**
+     * Sends all the samples that are still waiting in the batch.
+     */
+    public void flush() {
+        producer.flush();
+        SpoolDrainer drainer = this.drainer;
+        if(drainer != null) {
+            drainer.wake();
+        }
+    }
 
-        // Async send the packets out. If they fail, then they fail. Not mission critical.
-        client.putRecord(request);
+    /**
+     * Builds the client, if it is lazy and not built yet, and opens a connection to Kinesis ahead
+     * of the first upload, so the first batch does not pay for DNS, TLS and client startup. Call
+     * this when bands start streaming. Calls within {@link #WARM_UP_INTERVAL_MILLIS} of the last
+     * one do nothing. The round trip is recorded as "kinesis.warmup_ms".
+     */
+    public void warmUp() {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if(lastWarmUpMillis != 0 && now - lastWarmUpMillis < WARM_UP_INTERVAL_MILLIS) {
+                return;
+            }
+            lastWarmUpMillis = now;
+        }
+        long start = System.nanoTime();
+        Histogram warmUpMetric = MetricsRegistry.getDefault().histogram("kinesis.warmup_ms");
+        // Any signed request opens the connection, the answer does not matter.
+        client.describeStreamSummary(DescribeStreamSummaryRequest.builder().streamName(streamName).build())
+                .whenComplete((response, error) -> {
+                    warmUpMetric.record((System.nanoTime() - start) / 1_000_000);
+                    if(error != null) {
+                        System.out.println("Kinesis warm up failed " + error);
+                    }
+                });
+    }
+
+    /**
+     * Lets the spool drainer retry right away instead of waiting out its backoff.
+     * Call this when the phone gets network connectivity back.
+     */
+    public void onNetworkAvailable() {
+        SpoolDrainer drainer = this.drainer;
+        if(drainer != null) {
+            drainer.wake();
+        }
+    }
+
+    /**
+     * Flushes pending samples and stops the spool drainer. Spooled records are uploaded next time.
+     */
+    public void close() {
+        producer.close();
+        synchronized (spoolLock) {
+            closed = true;
+            if(drainer == null) {
+                return;
+            }
+            MetricsRegistry.getDefault().removeGauge("spool.bytes", spoolBytesGauge);
+            try {
+                drainer.stop();
+                spool.close();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    public KinesisBatchProducer getProducer() {
+        return producer;
+    }
 
-        return true;
+    public SpoolDrainer getDrainer() {
+        return drainer;
     }
 }
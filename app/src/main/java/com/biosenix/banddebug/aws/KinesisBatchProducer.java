@@ -0,0 +1,786 @@
+package com.biosenix.banddebug.aws;
+
+import com.biosenix.banddebug.codec.AccelerationCodec;
+import com.biosenix.banddebug.codec.RecordCompressor;
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.metrics.Counter;
+import com.biosenix.banddebug.metrics.Gauge;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+import com.biosenix.banddebug.models.Acceleration;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * Collects acceleration samples and writes them to a Kinesis stream through PutRecords.
+ *
+ * Samples are first aggregated per device into Kinesis records, encoded with
+ * {@link AccelerationCodec} or, in {@link Encoding#JSON} mode, as a JSON array of samples (a
+ * single JSON object when aggregation is off). Records are then batched into one PutRecords
+ * request, which is sent as soon as the record count limit, the byte limit or the linger time
+ * is reached. Records rejected inside a partially failed request are retried on their own,
+ * after an exponential backoff with jitter.
+ *
+ * The requests in flight are capped by an {@link AimdLimiter}: throttled records, failed and
+ * slow requests shrink the cap, successful requests grow it back. Records that cannot be sent
+ * yet wait in memory up to {@link Config#maxBufferedBytes}, beyond which the
+ * {@link OverflowPolicy} applies.
+ *
+ * With an {@link UploadSpool} the sealed records are appended to the spool instead, and the
+ * {@link SpoolDrainer} takes care of sending, retrying and checkpointing them. Under
+ * {@link OverflowPolicy#SPILL} records are sent from memory as above, and only those that do not
+ * fit in memory or run out of attempts go to the spool.
+ */
+public class KinesisBatchProducer {
+    // Kinesis service limits for PutRecords.
+    public static final int MAX_RECORDS_PER_REQUEST = 500;
+    public static final int MAX_BYTES_PER_REQUEST = 5 * 1024 * 1024;
+    public static final int MAX_BYTES_PER_RECORD = 1024 * 1024;
+
+    /**
+     * Wire format of the records.
+     */
+    public enum Encoding {
+        // Versioned binary records, see AccelerationCodec.
+        BINARY,
+        // Jackson serialized Acceleration objects, for consumers that still read JSON.
+        JSON
+    }
+
+    /**
+     * What to do with a new record when the memory buffer is full.
+     */
+    public enum OverflowPolicy {
+        // Block the caller until requests complete, drop the record after blockTimeoutMillis.
+        BLOCK,
+        // Drop the oldest buffered records to make room, fresh data matters most for live views.
+        SHED_OLDEST,
+        // Append the record to the spool, uploaded later by the SpoolDrainer, as well as records that
+        // ran out of attempts. Drops them without a spool.
+        SPILL
+    }
+
+    /**
+     * Tuning knobs of the producer. The defaults favour fewer, larger requests.
+     */
+    public static class Config {
+        // Flush once this many records are pending.
+        public int maxRecordsPerRequest = MAX_RECORDS_PER_REQUEST;
+        // Flush once the pending records (data and partition keys) reach this many bytes.
+        public int maxBytesPerRequest = MAX_BYTES_PER_REQUEST;
+        // Flush pending records at the latest this long after the first one was added.
+        public long lingerMillis = 1000;
+        // Number of samples packed into one Kinesis record, one linger's worth of a band at 50 Hz.
+        // Shards cap records per second, so packing keeps many bands within one shard, and packed
+        // binary records are large enough to be compressed. With 1 every sample is its own record,
+        // a single JSON object in JSON mode.
+        public int samplesPerRecord = 50;
+        // Number of times a rejected record is resent before it is dropped.
+        public int maxAttempts = 5;
+        // Wire format of the records. Only binary records carry per-device sequence numbers.
+        public Encoding encoding = Encoding.BINARY;
+        // Deflate level of binary records, 0 sends them uncompressed. See RecordCompressor.
+        public int compressionLevel = Deflater.BEST_SPEED;
+        // Shard placement of the records.
+        public PartitionStrategy partitionStrategy = new DevicePartitionStrategy();
+        // Backoff before the first retry of a rejected record, doubled for each further attempt.
+        public long retryBackoffMillis = 100;
+        public long maxRetryBackoffMillis = 10_000;
+        // Requests in flight, adapted between min and max with AIMD.
+        public int initialInFlightRequests = 2;
+        public int minInFlightRequests = 1;
+        public int maxInFlightRequests = 8;
+        // Bytes of all requests in flight.
+        public long maxInFlightBytes = 2L * MAX_BYTES_PER_REQUEST;
+        // Requests slower than this shrink the in-flight limit like throttling does, 0 to ignore latency.
+        public long latencyTargetMillis = 5000;
+        // Bytes of sealed records waiting to be sent or retried.
+        public long maxBufferedBytes = 16 * 1024 * 1024;
+        public OverflowPolicy overflowPolicy = OverflowPolicy.SHED_OLDEST;
+        // Longest time add() blocks under OverflowPolicy.BLOCK.
+        public long blockTimeoutMillis = 1000;
+    }
+
+    private final ObjectMapper json;
+    private final KinesisAsyncClient client;
+    private final String streamName;
+    private final Config config;
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledFuture<?> lingerTask;
+    // Write-ahead spool, or the overflow spool under OverflowPolicy.SPILL. Guarded by the lock.
+    private UploadSpool spool;
+    private UploadSpool spill;
+    private final AimdLimiter limiter;
+    private final RecordCompressor compressor;
+
+    // Samples waiting to be packed into a record, per device.
+    private final Map<String, List<Acceleration>> aggregates = new HashMap<>();
+    // Samples added in blocks waiting to be packed into a record, per device, never empty. Sealed
+    // blocks are cleared and reused.
+    private final Map<String, SampleBlock> blockAggregates = new HashMap<>();
+    private final ArrayDeque<SampleBlock> spareBlocks = new ArrayDeque<>();
+    // Records of block aggregates are encoded here first, grown as needed.
+    private byte[] encodeBuffer = new byte[0];
+    // Sequence number of the next record, per device.
+    private final Map<String, Long> sequences = new HashMap<>();
+    // Sealed records waiting to be sent.
+    private final ArrayDeque<PendingRecord> pending = new ArrayDeque<>();
+    private int pendingBytes = 0;
+    // Rejected records waiting out their backoff.
+    private final ArrayDeque<PendingRecord> retries = new ArrayDeque<>();
+    private int retryBytes = 0;
+    // Time the retry timer fires next, Long.MAX_VALUE if it is not scheduled.
+    private long retryTimerMillis = Long.MAX_VALUE;
+    // Time the oldest pending sample or record was added, -1 if there is nothing pending.
+    private long oldestPendingMillis = -1;
+    // Set by flush, the last batch goes out even if it is not full.
+    private boolean drainAll = false;
+    // True while sendPending is on the stack, responses completing inline must not reenter it.
+    private boolean sending = false;
+
+    private final AtomicLong sentRecords = new AtomicLong();
+    private final AtomicLong retriedRecords = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private final AtomicLong throttledRecords = new AtomicLong();
+    private final AtomicLong shedRecords = new AtomicLong();
+    private final AtomicLong spilledRecords = new AtomicLong();
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Counter requestsMetric = metrics.counter("kinesis.requests");
+    private final Counter failedRequestsMetric = metrics.counter("kinesis.request_failures");
+    private final Counter sentRecordsMetric = metrics.counter("kinesis.records_sent");
+    private final Counter sentBytesMetric = metrics.counter("kinesis.bytes_sent");
+    private final Counter retriedRecordsMetric = metrics.counter("kinesis.records_retried");
+    private final Counter droppedRecordsMetric = metrics.counter("kinesis.records_dropped");
+    private final Counter throttledRecordsMetric = metrics.counter("kinesis.records_throttled");
+    private final Counter shedRecordsMetric = metrics.counter("kinesis.records_shed");
+    private final Counter spilledRecordsMetric = metrics.counter("kinesis.records_spilled");
+    private final Counter spooledRecordsMetric = metrics.counter("spool.records_written");
+    private final Counter encodedBytesMetric = metrics.counter("kinesis.encoded_bytes");
+    private final Counter compressedBytesMetric = metrics.counter("kinesis.compressed_bytes");
+    private final Histogram latencyMetric = metrics.histogram("kinesis.upload_latency_ms");
+    private final Gauge inFlightGauge = this::getInFlightRequests;
+    private final Gauge inFlightLimitGauge = this::getInFlightLimit;
+
+    private static class PendingRecord {
+        final PutRecordsRequestEntry entry;
+        final int size;
+        int attempts = 0;
+        // Earliest time a retry may go out.
+        long retryAtMillis = 0;
+
+        PendingRecord(PutRecordsRequestEntry entry) {
+            this.entry = entry;
+            this.size = entry.data().asByteArrayUnsafe().length +
+                    entry.partitionKey().getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+
+    public KinesisBatchProducer(KinesisAsyncClient client, String streamName, ObjectMapper json, Config config) {
+        this(client, streamName, json, config, null);
+    }
+
+    /**
+     * @param spool if not null, records are written to this spool instead of being sent directly.
+     *              Under {@link OverflowPolicy#SPILL} only records that overflow the buffer are.
+     *              See also {@link #attachSpool(UploadSpool)}.
+     */
+    public KinesisBatchProducer(KinesisAsyncClient client, String streamName, ObjectMapper json, Config config,
+                                UploadSpool spool) {
+        this.client = client;
+        this.streamName = streamName;
+        this.json = json;
+        this.config = config;
+        attachSpool(spool);
+        this.limiter = new AimdLimiter(config.initialInFlightRequests, config.minInFlightRequests,
+                config.maxInFlightRequests, config.maxInFlightBytes, config.latencyTargetMillis, 0.5);
+        this.compressor = config.encoding == Encoding.BINARY && config.compressionLevel > 0 ?
+                new RecordCompressor(config.compressionLevel) : null;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kinesis-linger");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, config.lingerMillis / 2);
+        this.lingerTask = scheduler.scheduleWithFixedDelay(this::flushIfLingered,
+                period, period, TimeUnit.MILLISECONDS);
+        metrics.gauge("kinesis.in_flight", inFlightGauge);
+        metrics.gauge("kinesis.in_flight_limit", inFlightLimitGauge);
+    }
+
+    /**
+     * Queues a sample for upload. Never blocks on the network, but blocks up to
+     * {@link Config#blockTimeoutMillis} under {@link OverflowPolicy#BLOCK} when the buffer is full.
+     * @param acceleration the sample to upload.
+     * @return true if the sample was queued, false if it could not be serialized or was dropped.
+     */
+    public synchronized boolean add(Acceleration acceleration) {
+        if(acceleration == null) {
+            return false;
+        }
+        if(oldestPendingMillis < 0) {
+            oldestPendingMillis = System.currentTimeMillis();
+        }
+
+        List<Acceleration> aggregate = aggregates.get(acceleration.deviceID);
+        if(aggregate == null) {
+            aggregate = new ArrayList<>(config.samplesPerRecord);
+            aggregates.put(acceleration.deviceID, aggregate);
+        }
+        aggregate.add(acceleration);
+        if(aggregate.size() >= config.samplesPerRecord) {
+            aggregates.remove(acceleration.deviceID);
+            return seal(acceleration.deviceID, aggregate);
+        }
+        return true;
+    }
+
+    /**
+     * Queues the samples of a decoded block for upload, like {@link #add(Acceleration)} but without
+     * an object per sample. The samples are copied, the block can be reused once this returns.
+     * A device's samples should all be added one way or the other, the two are packed separately.
+     * @param deviceId device the samples belong to.
+     * @param block the samples to upload.
+     * @return true if all samples were queued, false if any of them was dropped.
+     */
+    public synchronized boolean add(String deviceId, SampleBlock block) {
+        boolean queued = true;
+        if(config.encoding == Encoding.JSON) {
+            // The legacy format is made of Acceleration objects anyway.
+            for(int i = 0; i < block.size(); i++) {
+                queued &= add(new Acceleration(deviceId, block.x[i], block.y[i], block.z[i],
+                        (int) block.timestamps[i]));
+            }
+            return queued;
+        }
+        if(block.isEmpty()) {
+            return true;
+        }
+        if(oldestPendingMillis < 0) {
+            oldestPendingMillis = System.currentTimeMillis();
+        }
+
+        SampleBlock aggregate = null;
+        for(int i = 0; i < block.size(); i++) {
+            if(aggregate == null) {
+                aggregate = blockAggregates.get(deviceId);
+                if(aggregate == null) {
+                    aggregate = spareBlocks.isEmpty() ? new SampleBlock(config.samplesPerRecord) : spareBlocks.pop();
+                    blockAggregates.put(deviceId, aggregate);
+                }
+            }
+            // Timestamps wrap to int as in an Acceleration, so the records match those of add(Acceleration).
+            aggregate.append((int) block.timestamps[i], block.x[i], block.y[i], block.z[i]);
+            if(aggregate.isFull()) {
+                blockAggregates.remove(deviceId);
+                queued &= seal(deviceId, aggregate);
+                aggregate = null;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Sends everything that is queued, including partially filled aggregates and retries still
+     * waiting out their backoff. Records beyond the in-flight limit go out as requests complete.
+     */
+    public synchronized void flush() {
+        // Sealing may wait under OverflowPolicy.BLOCK, letting add() change the aggregates meanwhile.
+        Map<String, List<Acceleration>> sealing = new HashMap<>(aggregates);
+        aggregates.clear();
+        for(Map.Entry<String, List<Acceleration>> aggregate : sealing.entrySet()) {
+            seal(aggregate.getKey(), aggregate.getValue());
+        }
+        Map<String, SampleBlock> sealingBlocks = new HashMap<>(blockAggregates);
+        blockAggregates.clear();
+        for(Map.Entry<String, SampleBlock> aggregate : sealingBlocks.entrySet()) {
+            seal(aggregate.getKey(), aggregate.getValue());
+        }
+        promoteRetries(Long.MAX_VALUE);
+        drainAll = true;
+        sendPending();
+        if(spool != null) {
+            try {
+                spool.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            oldestPendingMillis = -1;
+        }
+        else if(spill != null) {
+            // Makes the spilled records readable by the drainer.
+            try {
+                spill.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Flushes the queued samples and stops the linger timer. Requests already handed to the
+     * client are not cancelled.
+     */
+    public void close() {
+        lingerTask.cancel(false);
+        scheduler.shutdown();
+        flush();
+        if(compressor != null) {
+            synchronized (this) {
+                compressor.close();
+            }
+        }
+        metrics.removeGauge("kinesis.in_flight", inFlightGauge);
+        metrics.removeGauge("kinesis.in_flight_limit", inFlightLimitGauge);
+    }
+
+    /**
+     * Starts using a spool that was opened after the producer was created, e.g. on a background
+     * thread. Until then records are sent from memory only, and records the spool would have
+     * taken are dropped.
+     * @param spool the spool, as in the constructor.
+     */
+    public synchronized void attachSpool(UploadSpool spool) {
+        boolean spillOnly = config.overflowPolicy == OverflowPolicy.SPILL;
+        this.spool = spillOnly ? null : spool;
+        this.spill = spillOnly ? spool : null;
+    }
+
+    /**
+     * Queues an already serialized record, e.g. extracted features, for upload. It is partitioned
+     * like the samples of the device and goes through the same batching, spool and overflow policy.
+     * @param deviceId device the record belongs to.
+     * @param data the record payload.
+     * @return true if the record was queued, false if it was too large or dropped.
+     */
+    public synchronized boolean addRecord(String deviceId, byte[] data) {
+        if(data == null) {
+            return false;
+        }
+        if(oldestPendingMillis < 0) {
+            oldestPendingMillis = System.currentTimeMillis();
+        }
+        return enqueue(partition(deviceId, nextSequence(deviceId)), data);
+    }
+
+    private long nextSequence(String deviceId) {
+        Long next = sequences.get(deviceId);
+        long sequence = next != null ? next : 0;
+        sequences.put(deviceId, sequence + 1);
+        return sequence;
+    }
+
+    private PartitionStrategy.Key partition(String deviceId, long sequence) {
+        return config.partitionStrategy.partition(deviceId, sequence, System.currentTimeMillis());
+    }
+
+    // Serializes an aggregate into a record and sends the batch if a limit was reached.
+    private boolean seal(String deviceId, List<Acceleration> aggregate) {
+        long sequence = nextSequence(deviceId);
+        PartitionStrategy.Key key = partition(deviceId, sequence);
+
+        byte[] data;
+        try {
+            if(config.encoding == Encoding.BINARY) {
+                // Sized exactly, so the array is wrapped below without another copy.
+                data = AccelerationCodec.encode(aggregate, sequence);
+                if(compressor != null) {
+                    encodedBytesMetric.add(data.length);
+                    data = compressor.compress(data);
+                    compressedBytesMetric.add(data.length);
+                }
+            }
+            else if(aggregate.size() == 1) {
+                data = json.writeValueAsBytes(aggregate.get(0));
+            }
+            else {
+                data = json.writeValueAsBytes(aggregate);
+            }
+        } catch (JsonProcessingException e) {
+            e.printStackTrace();
+            dropRecord();
+            return false;
+        }
+        return enqueue(key, data);
+    }
+
+    // Encodes a block aggregate into a binary record, recycles the block and sends the batch if a
+    // limit was reached.
+    private boolean seal(String deviceId, SampleBlock aggregate) {
+        long sequence = nextSequence(deviceId);
+        PartitionStrategy.Key key = partition(deviceId, sequence);
+
+        int maxSize = AccelerationCodec.maxEncodedSize(deviceId, aggregate.size());
+        if(encodeBuffer.length < maxSize) {
+            encodeBuffer = new byte[maxSize];
+        }
+        int length = AccelerationCodec.encode(deviceId, sequence, aggregate, 0, aggregate.size(), encodeBuffer, 0);
+        aggregate.clear();
+        spareBlocks.push(aggregate);
+        byte[] data = Arrays.copyOf(encodeBuffer, length);
+        if(compressor != null) {
+            encodedBytesMetric.add(data.length);
+            data = compressor.compress(data);
+            compressedBytesMetric.add(data.length);
+        }
+        return enqueue(key, data);
+    }
+
+    // Spools or buffers a serialized record and sends the batch if a limit was reached.
+    private boolean enqueue(PartitionStrategy.Key key, byte[] data) {
+        PendingRecord record = new PendingRecord(PutRecordsRequestEntry.builder()
+                .partitionKey(key.partitionKey)
+                .explicitHashKey(key.explicitHashKey)
+                .data(SdkBytes.fromByteArrayUnsafe(data))
+                .build());
+        if(record.size > MAX_BYTES_PER_RECORD) {
+            dropRecord();
+            return false;
+        }
+
+        if(spool != null) {
+            try {
+                spool.append(key.partitionKey, key.explicitHashKey, data);
+                spooledRecordsMetric.increment();
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                dropRecord();
+                return false;
+            }
+        }
+
+        if(!makeRoom(record.size)) {
+            if(spillRecord(key.partitionKey, key.explicitHashKey, data)) {
+                return true;
+            }
+            dropRecord();
+            return false;
+        }
+
+        pending.addLast(record);
+        pendingBytes += record.size;
+        if(pending.size() >= config.maxRecordsPerRequest || pendingBytes >= config.maxBytesPerRequest) {
+            sendPending();
+        }
+        return true;
+    }
+
+    // Appends a record to the overflow spool, if there is one. Must hold the lock.
+    private boolean spillRecord(String partitionKey, String explicitHashKey, byte[] data) {
+        if(spill == null) {
+            return false;
+        }
+        try {
+            spill.append(partitionKey, explicitHashKey, data);
+            spilledRecords.incrementAndGet();
+            spilledRecordsMetric.increment();
+            spooledRecordsMetric.increment();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Applies the overflow policy until size more bytes fit in the buffer. Must hold the lock.
+    private boolean makeRoom(int size) {
+        if(pendingBytes + retryBytes + size <= config.maxBufferedBytes) {
+            return true;
+        }
+        switch(config.overflowPolicy) {
+            case BLOCK:
+                long deadline = System.currentTimeMillis() + config.blockTimeoutMillis;
+                while(pendingBytes + retryBytes + size > config.maxBufferedBytes) {
+                    // Retries are sent early rather than waiting for the backoff while the caller waits.
+                    promoteRetries(Long.MAX_VALUE);
+                    drainAll = true;
+                    sendPending();
+                    long wait = deadline - System.currentTimeMillis();
+                    if(wait <= 0 || pendingBytes + retryBytes + size <= config.maxBufferedBytes) {
+                        break;
+                    }
+                    try {
+                        // Released by onResponse.
+                        wait(wait);
+                    }
+                    catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+                return pendingBytes + retryBytes + size <= config.maxBufferedBytes;
+            case SHED_OLDEST:
+                // Retries are the oldest records.
+                while(pendingBytes + retryBytes + size > config.maxBufferedBytes &&
+                        (!retries.isEmpty() || !pending.isEmpty())) {
+                    PendingRecord shed;
+                    if(!retries.isEmpty()) {
+                        shed = retries.pollFirst();
+                        retryBytes -= shed.size;
+                    }
+                    else {
+                        shed = pending.pollFirst();
+                        pendingBytes -= shed.size;
+                    }
+                    shedRecords.incrementAndGet();
+                    shedRecordsMetric.increment();
+                    dropRecord();
+                }
+                return pendingBytes + retryBytes + size <= config.maxBufferedBytes;
+            default:
+                return false;
+        }
+    }
+
+    private synchronized void flushIfLingered() {
+        if(oldestPendingMillis >= 0 &&
+                System.currentTimeMillis() - oldestPendingMillis >= config.lingerMillis) {
+            flush();
+        }
+    }
+
+    // Sends the retries whose backoff is over.
+    private synchronized void sendDueRetries() {
+        long now = System.currentTimeMillis();
+        retryTimerMillis = Long.MAX_VALUE;
+        if(promoteRetries(now) > 0) {
+            drainAll = true;
+            sendPending();
+        }
+        scheduleRetries(now);
+    }
+
+    // Arms the retry timer for the earliest retry, unless it already fires before. Must hold the lock.
+    private void scheduleRetries(long nowMillis) {
+        long first = Long.MAX_VALUE;
+        for(PendingRecord record : retries) {
+            first = Math.min(first, record.retryAtMillis);
+        }
+        if(first >= retryTimerMillis) {
+            return;
+        }
+        try {
+            scheduler.schedule(this::sendDueRetries, first - nowMillis, TimeUnit.MILLISECONDS);
+            retryTimerMillis = first;
+        }
+        catch (RejectedExecutionException ex) {
+            // Closed, the retries stay pending.
+        }
+    }
+
+    // Moves the retries due at the given time to the pending records. Must hold the lock.
+    private int promoteRetries(long nowMillis) {
+        int promoted = 0;
+        for(int i = retries.size(); i > 0; i--) {
+            PendingRecord record = retries.pollFirst();
+            if(record.retryAtMillis <= nowMillis) {
+                pending.addLast(record);
+                pendingBytes += record.size;
+                retryBytes -= record.size;
+                promoted++;
+            }
+            else {
+                retries.addLast(record);
+            }
+        }
+        return promoted;
+    }
+
+    // Sends the pending records as PutRecords requests while the in-flight limit allows. A last
+    // batch that is not full only goes out after a flush. Must hold the lock.
+    // Records rejected by a response that completes while we are sending wait for their backoff.
+    private void sendPending() {
+        if(sending) {
+            return;
+        }
+        sending = true;
+        boolean sent = false;
+        try {
+            while(!pending.isEmpty()) {
+                // Size the next batch before taking it off the queue, the limiter may refuse it.
+                int count = 0;
+                int batchBytes = 0;
+                for(PendingRecord record : pending) {
+                    if(count >= config.maxRecordsPerRequest ||
+                            (count > 0 && batchBytes + record.size > config.maxBytesPerRequest)) {
+                        break;
+                    }
+                    count++;
+                    batchBytes += record.size;
+                }
+                boolean full = count < pending.size() || count >= config.maxRecordsPerRequest;
+                if((!full && !drainAll) || !limiter.tryAcquire(batchBytes)) {
+                    break;
+                }
+
+                List<PendingRecord> batch = new ArrayList<>(count);
+                List<PutRecordsRequestEntry> entries = new ArrayList<>(count);
+                for(int i = 0; i < count; i++) {
+                    PendingRecord record = pending.pollFirst();
+                    record.attempts++;
+                    batch.add(record);
+                    entries.add(record.entry);
+                }
+                pendingBytes -= batchBytes;
+                send(batch, entries, batchBytes);
+                sent = true;
+            }
+        }
+        finally {
+            sending = false;
+        }
+        if(pending.isEmpty()) {
+            drainAll = false;
+        }
+        if(aggregates.isEmpty() && blockAggregates.isEmpty() && pending.isEmpty()) {
+            oldestPendingMillis = -1;
+        }
+        else if(sent || oldestPendingMillis < 0) {
+            oldestPendingMillis = System.currentTimeMillis();
+        }
+    }
+
+    private void send(List<PendingRecord> batch, List<PutRecordsRequestEntry> entries, int batchBytes) {
+        PutRecordsRequest request = PutRecordsRequest.builder()
+                .streamName(streamName)
+                .records(entries)
+                .build();
+        requestsMetric.increment();
+        long sentMillis = System.currentTimeMillis();
+        client.putRecords(request).whenComplete((response, error) -> {
+            long latency = System.currentTimeMillis() - sentMillis;
+            latencyMetric.record(latency);
+            if(error != null) {
+                failedRequestsMetric.increment();
+            }
+            onResponse(batch, batchBytes, latency, response, error);
+        });
+    }
+
+    // Schedules the records that Kinesis did not accept for a retry, adapts the in-flight limit
+    // and sends what the freed capacity allows.
+    private synchronized void onResponse(List<PendingRecord> batch, int batchBytes, long latency,
+                                         PutRecordsResponse response, Throwable error) {
+        List<PutRecordsResultEntry> results = (error == null && response != null) ? response.records() : null;
+        long now = System.currentTimeMillis();
+        int throttled = 0;
+        for(int i = 0; i < batch.size(); i++) {
+            PendingRecord record = batch.get(i);
+            String errorCode = (results != null && i < results.size()) ? results.get(i).errorCode() : null;
+            boolean failed = results == null || i >= results.size() || errorCode != null;
+            if("ProvisionedThroughputExceededException".equals(errorCode)) {
+                throttled++;
+            }
+            if(!failed) {
+                sentRecords.incrementAndGet();
+                sentRecordsMetric.increment();
+                sentBytesMetric.add(record.size);
+            }
+            else if(record.attempts < config.maxAttempts) {
+                retriedRecords.incrementAndGet();
+                retriedRecordsMetric.increment();
+                record.retryAtMillis = now + backoff(record.attempts);
+                retries.addLast(record);
+                retryBytes += record.size;
+            }
+            else if(!spillRecord(record.entry.partitionKey(), record.entry.explicitHashKey(),
+                    record.entry.data().asByteArrayUnsafe())) {
+                // Out of attempts. Under SPILL the drainer keeps trying, e.g. until the phone is back online.
+                dropRecord();
+            }
+        }
+        throttledRecords.addAndGet(throttled);
+        throttledRecordsMetric.add(throttled);
+        limiter.onComplete(batchBytes, latency, error != null || throttled > 0);
+
+        scheduleRetries(now);
+        sendPending();
+        // Wakes callers blocked in makeRoom.
+        notifyAll();
+    }
+
+    // Exponential backoff with equal jitter: half the window fixed, half random, so retries of
+    // records throttled together spread out but never go out immediately.
+    private long backoff(int attempts) {
+        long window = config.retryBackoffMillis << Math.min(attempts - 1, 20);
+        window = Math.min(config.maxRetryBackoffMillis, window);
+        return window / 2 + ThreadLocalRandom.current().nextLong(window / 2 + 1);
+    }
+
+    private void dropRecord() {
+        droppedRecords.incrementAndGet();
+        droppedRecordsMetric.increment();
+    }
+
+    public int getInFlightRequests() {
+        return limiter.getInFlight();
+    }
+
+    public int getInFlightLimit() {
+        return limiter.getLimit();
+    }
+
+    public long getSentRecords() {
+        return sentRecords.get();
+    }
+
+    public long getRetriedRecords() {
+        return retriedRecords.get();
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public long getThrottledRecords() {
+        return throttledRecords.get();
+    }
+
+    public long getShedRecords() {
+        return shedRecords.get();
+    }
+
+    public long getSpilledRecords() {
+        return spilledRecords.get();
+    }
+
+    /**
+     * @return sealed records waiting to be sent, including retries waiting out their backoff.
+     */
+    public synchronized int getPendingRecords() {
+        return pending.size() + retries.size();
+    }
+
+    /**
+     * @return bytes of the records counted by {@link #getPendingRecords()}.
+     */
+    public synchronized int getBufferedBytes() {
+        return pendingBytes + retryBytes;
+    }
+}
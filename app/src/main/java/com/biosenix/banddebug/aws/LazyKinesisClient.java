@@ -0,0 +1,127 @@
+package com.biosenix.banddebug.aws;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryResponse;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+
+/**
+ * Kinesis client that is only built, on a background thread, when it is first used or
+ * {@link #start()}ed. Building the SDK client and its HTTP stack takes long enough to delay the
+ * app's first frame on older phones.
+ *
+ * Requests made before the client is ready wait for it and go out once it is. If building fails,
+ * the waiting requests fail and the next request tries again.
+ */
+public class LazyKinesisClient implements KinesisAsyncClient {
+    private final Supplier<KinesisAsyncClient> factory;
+    // The client once built, read without locking on the request path.
+    private volatile KinesisAsyncClient client = null;
+    private CompletableFuture<KinesisAsyncClient> pending = null;
+    private boolean closed = false;
+
+    /**
+     * @param factory builds the real client, called on the background thread.
+     */
+    public LazyKinesisClient(Supplier<KinesisAsyncClient> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Starts building the client if it is not built or being built yet. Does not block.
+     * @return completes with the client once it is built.
+     */
+    public synchronized CompletableFuture<KinesisAsyncClient> start() {
+        if(pending != null && !pending.isCompletedExceptionally()) {
+            return pending;
+        }
+        CompletableFuture<KinesisAsyncClient> building = new CompletableFuture<>();
+        pending = building;
+        Thread thread = new Thread(() -> build(building), "kinesis-client-init");
+        thread.setDaemon(true);
+        thread.start();
+        return building;
+    }
+
+    public boolean isReady() {
+        return client != null;
+    }
+
+    @Override
+    public CompletableFuture<PutRecordsResponse> putRecords(PutRecordsRequest request) {
+        return call(client -> client.putRecords(request));
+    }
+
+    @Override
+    public CompletableFuture<ListShardsResponse> listShards(ListShardsRequest request) {
+        return call(client -> client.listShards(request));
+    }
+
+    @Override
+    public CompletableFuture<DescribeStreamResponse> describeStream(DescribeStreamRequest request) {
+        return call(client -> client.describeStream(request));
+    }
+
+    @Override
+    public CompletableFuture<DescribeStreamSummaryResponse> describeStreamSummary(DescribeStreamSummaryRequest request) {
+        return call(client -> client.describeStreamSummary(request));
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    /**
+     * Closes the client, also if it is only built after this.
+     */
+    @Override
+    public void close() {
+        KinesisAsyncClient built;
+        synchronized (this) {
+            closed = true;
+            built = client;
+        }
+        if(built != null) {
+            built.close();
+        }
+    }
+
+    private <T> CompletableFuture<T> call(Function<KinesisAsyncClient, CompletableFuture<T>> request) {
+        KinesisAsyncClient built = client;
+        if(built != null) {
+            return request.apply(built);
+        }
+        return start().thenCompose(request);
+    }
+
+    private void build(CompletableFuture<KinesisAsyncClient> building) {
+        KinesisAsyncClient built;
+        try {
+            built = factory.get();
+        }
+        catch (RuntimeException ex) {
+            System.out.println("Cannot build the Kinesis client " + ex);
+            building.completeExceptionally(ex);
+            return;
+        }
+        boolean close;
+        synchronized (this) {
+            client = built;
+            close = closed;
+        }
+        if(close) {
+            built.close();
+        }
+        building.complete(built);
+    }
+}
@@ -0,0 +1,33 @@
+package com.biosenix.banddebug.aws;
+
+/**
+ * Chooses the shard of each Kinesis record, see {@link KinesisBatchProducer.Config#partitionStrategy}.
+ *
+ * Spreading the records of one band over several shards gives up the per-shard ordering Kinesis
+ * provides, so every binary record carries a per-device sequence number for consumers to
+ * restore the order.
+ */
+public interface PartitionStrategy {
+
+    /**
+     * Partition key and optional explicit hash key of a record.
+     */
+    class Key {
+        public final String partitionKey;
+        // Decimal 128-bit hash key overriding the MD5 of the partition key, or null.
+        public final String explicitHashKey;
+
+        public Key(String partitionKey, String explicitHashKey) {
+            this.partitionKey = partitionKey;
+            this.explicitHashKey = explicitHashKey;
+        }
+    }
+
+    /**
+     * Called with the producer lock held, but an instance may be shared by several producers.
+     * @param deviceId band the record belongs to.
+     * @param sequence sequence number of the record among the records of the band.
+     * @param nowMillis time the record is sealed.
+     */
+    Key partition(String deviceId, long sequence, long nowMillis);
+}
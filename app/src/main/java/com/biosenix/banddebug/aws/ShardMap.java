@@ -0,0 +1,108 @@
+package com.biosenix.banddebug.aws;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+/**
+ * Hash key ranges of the open shards of a stream.
+ *
+ * Kinesis maps every record to a 128-bit hash key, the MD5 of its partition key unless an
+ * explicit hash key is given, and stores it in the shard whose range holds that key.
+ */
+public class ShardMap {
+    public static final BigInteger MAX_HASH_KEY = BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE);
+
+    // Sorted, the first one is 0.
+    private final BigInteger[] startingHashKeys;
+
+    /**
+     * @param startingHashKeys first hash key of every shard, the ranges are assumed to cover the
+     *                         whole key space without gaps.
+     */
+    public ShardMap(List<BigInteger> startingHashKeys) {
+        if(startingHashKeys.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        List<BigInteger> sorted = new ArrayList<>(startingHashKeys);
+        Collections.sort(sorted);
+        this.startingHashKeys = sorted.toArray(new BigInteger[0]);
+        this.startingHashKeys[0] = BigInteger.ZERO;
+    }
+
+    /**
+     * @return a map of shards splitting the key space evenly, like a newly created stream.
+     */
+    public static ShardMap uniform(int shardCount) {
+        List<BigInteger> starts = new ArrayList<>(shardCount);
+        BigInteger size = MAX_HASH_KEY.add(BigInteger.ONE).divide(BigInteger.valueOf(shardCount));
+        for(int i = 0; i < shardCount; i++) {
+            starts.add(size.multiply(BigInteger.valueOf(i)));
+        }
+        return new ShardMap(starts);
+    }
+
+    /**
+     * @param shards result of ListShards. Closed shards, left behind by resharding, are skipped.
+     */
+    public static ShardMap fromShards(List<Shard> shards) {
+        List<BigInteger> starts = new ArrayList<>(shards.size());
+        for(Shard shard : shards) {
+            if(shard.sequenceNumberRange() == null || shard.sequenceNumberRange().endingSequenceNumber() == null) {
+                starts.add(new BigInteger(shard.hashKeyRange().startingHashKey()));
+            }
+        }
+        return new ShardMap(starts);
+    }
+
+    public int getShardCount() {
+        return startingHashKeys.length;
+    }
+
+    /**
+     * @return the index of the shard holding the hash key.
+     */
+    public int shardOf(BigInteger hashKey) {
+        int low = 0;
+        int high = startingHashKeys.length - 1;
+        while(low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if(startingHashKeys[middle].compareTo(hashKey) <= 0) {
+                low = middle;
+            }
+            else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the hash key in the middle of a shard's range, safe from small range changes.
+     */
+    public BigInteger midpointOf(int shard) {
+        BigInteger start = startingHashKeys[shard];
+        BigInteger end = shard + 1 < startingHashKeys.length ? startingHashKeys[shard + 1].subtract(BigInteger.ONE)
+                : MAX_HASH_KEY;
+        return start.add(end).shiftRight(1);
+    }
+
+    /**
+     * @return the hash key Kinesis derives from a partition key.
+     */
+    public static BigInteger hashKeyOf(String partitionKey) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(partitionKey.getBytes(StandardCharsets.UTF_8));
+            return new BigInteger(1, digest);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available", ex);
+        }
+    }
+}
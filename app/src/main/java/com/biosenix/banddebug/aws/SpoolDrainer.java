@@ -0,0 +1,251 @@
+package com.biosenix.banddebug.aws;
+
+import com.biosenix.banddebug.metrics.Counter;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+
+/**
+ * Background thread that uploads the records of an {@link UploadSpool} and checkpoints them once
+ * Kinesis acknowledged them.
+ *
+ * One PutRecords request is in flight at a time. Rejected records are resent until accepted,
+ * and failed requests back off exponentially. {@link #wake()} cuts a backoff short, e.g. when
+ * the phone gets connectivity back.
+ *
+ * Records that were just appended go out as soon as they are read. Only while the drainer is
+ * behind the spool's write position, replaying a backlog, is it held to a record rate: the
+ * configured backlog rate on top of the rate records are being appended. Live records keep
+ * flowing, the backlog shrinks at about the backlog rate, and a long outage is not replayed in
+ * one burst that takes the shard's whole capacity.
+ */
+public class SpoolDrainer {
+    private static final long IDLE_WAIT_MILLIS = 1000;
+    private static final long MIN_BACKOFF_MILLIS = 200;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+    private static final long REQUEST_TIMEOUT_SECONDS = 30;
+    // The append rate is measured over windows of at least this long.
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final UploadSpool spool;
+    private final KinesisAsyncClient client;
+    private final String streamName;
+    private final double backlogRecordsPerSecond;
+    private final Thread thread;
+    private final Object signal = new Object();
+
+    private volatile boolean running = false;
+    private boolean woken = false;
+
+    // Earliest time the next backlog batch may go out under the rate cap.
+    private long nextSendNanos = 0;
+    // Rate records are appended to the spool, measured from the start of the current window.
+    private double appendedRecordsPerSecond = 0;
+    private long rateWindowNanos = System.nanoTime();
+    private long rateWindowRecords = 0;
+
+    private final AtomicLong uploadedRecords = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong retriedRecords = new AtomicLong();
+
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    private final Counter requestsMetric = metrics.counter("spool.requests");
+    private final Counter failedRequestsMetric = metrics.counter("spool.request_failures");
+    private final Counter uploadedRecordsMetric = metrics.counter("spool.records_uploaded");
+    private final Counter retriedRecordsMetric = metrics.counter("spool.records_retried");
+    private final Counter readErrorsMetric = metrics.counter("spool.read_errors");
+    private final Histogram latencyMetric = metrics.histogram("spool.upload_latency_ms");
+
+    /**
+     * @param backlogRecordsPerSecond rate a backlog is replayed at, on top of the append rate. 0
+     *                                for no cap.
+     */
+    public SpoolDrainer(UploadSpool spool, KinesisAsyncClient client, String streamName,
+                        double backlogRecordsPerSecond) {
+        this.spool = spool;
+        this.client = client;
+        this.streamName = streamName;
+        this.backlogRecordsPerSecond = backlogRecordsPerSecond;
+        this.rateWindowRecords = spool.getAppendedRecords();
+        this.thread = new Thread(this::run, "kinesis-spool");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops the drainer after the request in flight, if any, completes.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        wake();
+        thread.join();
+    }
+
+    /**
+     * Ends any idle wait or backoff so the drainer retries right away.
+     */
+    public void wake() {
+        synchronized (signal) {
+            woken = true;
+            signal.notifyAll();
+        }
+    }
+
+    public long getUploadedRecords() {
+        return uploadedRecords.get();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    public long getRetriedRecords() {
+        return retriedRecords.get();
+    }
+
+    private void run() {
+        List<PutRecordsRequestEntry> batch = new ArrayList<>();
+        long backoff = MIN_BACKOFF_MILLIS;
+        while(running) {
+            measureAppendRate();
+            try {
+                if(batch.isEmpty()) {
+                    spool.read(batch, KinesisBatchProducer.MAX_RECORDS_PER_REQUEST,
+                            KinesisBatchProducer.MAX_BYTES_PER_REQUEST);
+                    if(batch.isEmpty()) {
+                        sleep(IDLE_WAIT_MILLIS);
+                        continue;
+                    }
+                }
+
+                // Records are left behind the batch: a backlog.
+                if(spool.hasUnread()) {
+                    throttle(batch.size());
+                }
+                int sent = batch.size();
+                send(batch);
+                uploadedRecords.addAndGet(sent - batch.size());
+                uploadedRecordsMetric.add(sent - batch.size());
+                if(batch.isEmpty()) {
+                    // Everything read so far is in Kinesis.
+                    spool.commit();
+                    backoff = MIN_BACKOFF_MILLIS;
+                }
+                else {
+                    retriedRecords.addAndGet(batch.size());
+                    retriedRecordsMetric.add(batch.size());
+                    sleep(jitter(backoff));
+                    backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+                }
+            }
+            catch (IOException ex) {
+                readErrorsMetric.increment();
+                ex.printStackTrace();
+                sleep(IDLE_WAIT_MILLIS);
+            }
+        }
+    }
+
+    // Sends the batch and removes the records Kinesis accepted from it.
+    private void send(List<PutRecordsRequestEntry> batch) {
+        PutRecordsRequest request = PutRecordsRequest.builder()
+                .streamName(streamName)
+                .records(batch)
+                .build();
+        PutRecordsResponse response;
+        requestsMetric.increment();
+        long sentMillis = System.currentTimeMillis();
+        try {
+            response = client.putRecords(request).get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (Exception ex) {
+            // Offline, timed out or rejected as a whole. Keep the whole batch.
+            failedRequests.incrementAndGet();
+            failedRequestsMetric.increment();
+            return;
+        }
+        finally {
+            latencyMetric.record(System.currentTimeMillis() - sentMillis);
+        }
+
+        List<PutRecordsRequestEntry> rejected = new ArrayList<>();
+        for(int i = 0; i < batch.size(); i++) {
+            if(i >= response.records().size() || response.records().get(i).errorCode() != null) {
+                rejected.add(batch.get(i));
+            }
+        }
+        batch.clear();
+        batch.addAll(rejected);
+    }
+
+    // Updates the append rate once the current window is over.
+    private void measureAppendRate() {
+        long now = System.nanoTime();
+        if(now - rateWindowNanos >= RATE_WINDOW_NANOS) {
+            long appended = spool.getAppendedRecords();
+            appendedRecordsPerSecond = (appended - rateWindowRecords) * 1e9 / (now - rateWindowNanos);
+            rateWindowNanos = now;
+            rateWindowRecords = appended;
+        }
+    }
+
+    // Waits until sending count backlog records stays within the backlog rate above the append rate.
+    private void throttle(int count) {
+        if(backlogRecordsPerSecond <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        double maxRecordsPerSecond = backlogRecordsPerSecond + appendedRecordsPerSecond;
+        if(nextSendNanos > now) {
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(nextSendNanos - now);
+            if(waitMillis > 0) {
+                try {
+                    Thread.sleep(waitMillis);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            now = Math.max(now, nextSendNanos);
+        }
+        nextSendNanos = now + (long) (count * 1_000_000_000L / maxRecordsPerSecond);
+    }
+
+    // Full jitter spreads retries of many phones coming back online at once.
+    private static long jitter(long backoff) {
+        return MIN_BACKOFF_MILLIS / 2 + (long) (Math.random() * backoff);
+    }
+
+    private void sleep(long millis) {
+        synchronized (signal) {
+            if(!woken && running) {
+                try {
+                    signal.wait(millis);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    running = false;
+                }
+            }
+            woken = false;
+        }
+    }
+}
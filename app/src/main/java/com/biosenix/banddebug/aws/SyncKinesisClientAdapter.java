@@ -0,0 +1,75 @@
+package com.biosenix.banddebug.aws;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.KinesisClient;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamResponse;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryRequest;
+import software.amazon.awssdk.services.kinesis.model.DescribeStreamSummaryResponse;
+import software.amazon.awssdk.services.kinesis.model.ListShardsRequest;
+import software.amazon.awssdk.services.kinesis.model.ListShardsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+
+/**
+ * Runs a blocking Kinesis client on a small thread pool behind the async client interface, so
+ * the uploads can use the light URL connection HTTP client instead of Netty.
+ *
+ * Each request in flight holds a thread, so the pool should be at least as large as the
+ * producer's in-flight limit plus one for the spool drainer.
+ */
+public class SyncKinesisClientAdapter implements KinesisAsyncClient {
+    private final KinesisClient client;
+    private final ExecutorService executor;
+
+    public SyncKinesisClientAdapter(KinesisClient client, int threads) {
+        this.client = client;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "kinesis-http-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<PutRecordsResponse> putRecords(PutRecordsRequest request) {
+        return call(() -> client.putRecords(request));
+    }
+
+    @Override
+    public CompletableFuture<ListShardsResponse> listShards(ListShardsRequest request) {
+        return call(() -> client.listShards(request));
+    }
+
+    @Override
+    public CompletableFuture<DescribeStreamResponse> describeStream(DescribeStreamRequest request) {
+        return call(() -> client.describeStream(request));
+    }
+
+    @Override
+    public CompletableFuture<DescribeStreamSummaryResponse> describeStreamSummary(DescribeStreamSummaryRequest request) {
+        return call(() -> client.describeStreamSummary(request));
+    }
+
+    @Override
+    public String serviceName() {
+        return SERVICE_NAME;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        client.close();
+    }
+
+    private <T> CompletableFuture<T> call(Supplier<T> request) {
+        return CompletableFuture.supplyAsync(request, executor);
+    }
+}
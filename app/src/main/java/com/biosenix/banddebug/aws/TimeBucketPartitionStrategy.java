@@ -0,0 +1,34 @@
+package com.biosenix.banddebug.aws;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Appends a time bucket to the device ID, "01/27834512", so each band moves to another,
+ * pseudo-random shard every bucket. No shard map is needed and over time every band loads all
+ * shards evenly, while the records of one bucket still share a shard.
+ */
+public class TimeBucketPartitionStrategy implements PartitionStrategy {
+    private final long bucketMillis;
+    // Key of the current bucket, per band.
+    private final Map<String, Key> keys = new HashMap<>();
+    private final Map<String, Long> buckets = new HashMap<>();
+
+    public TimeBucketPartitionStrategy(long bucketMillis) {
+        if(bucketMillis <= 0) {
+            throw new IllegalArgumentException("Bucket must be positive: " + bucketMillis);
+        }
+        this.bucketMillis = bucketMillis;
+    }
+
+    @Override
+    public synchronized Key partition(String deviceId, long sequence, long nowMillis) {
+        long bucket = Math.floorDiv(nowMillis, bucketMillis);
+        Long current = buckets.get(deviceId);
+        if(current == null || current != bucket) {
+            keys.put(deviceId, new Key(deviceId + "/" + bucket, null));
+            buckets.put(deviceId, bucket);
+        }
+        return keys.get(deviceId);
+    }
+}
@@ -0,0 +1,458 @@
+package com.biosenix.banddebug.aws;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+
+/**
+ * Write-ahead spool of Kinesis records, so data survives being offline, throttled or killed.
+ *
+ * Records are appended to bounded-size segment files in a directory and are read back in order
+ * by the {@link SpoolDrainer}. Once Kinesis acknowledged everything that was read, the read
+ * position is written to a checkpoint file and fully uploaded segments are deleted. When the
+ * spool grows past its quota the oldest segments are evicted, uploaded or not.
+ *
+ * Record layout: length of the rest (4) | CRC32 of the rest (4) | key length (2) | key | data.
+ * The top bit of the key length flags an explicit hash key, stored after the partition key as
+ * length (1) | decimal digits. A record cut short by a crash fails its length or CRC check and
+ * ends its segment.
+ */
+public class UploadSpool {
+    static final String SEGMENT_SUFFIX = ".spool";
+    static final String CHECKPOINT_FILE = "checkpoint";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int HASH_KEY_FLAG = 0x8000;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long quotaBytes;
+    private final boolean syncOnFlush;
+
+    // Size of every segment on disk, by sequence number.
+    private final TreeMap<Long, Long> segments = new TreeMap<>();
+    private long totalBytes = 0;
+
+    // Segment currently appended to.
+    private long writeSegment;
+    private FileOutputStream writeFile;
+    private DataOutputStream writeStream;
+    private long writeLength = 0;
+    // Bytes of the write segment that were flushed and may be read.
+    private long committedLength = 0;
+
+    // Position of the next record to hand to the drainer.
+    private long readSegment;
+    private long readOffset;
+    private RandomAccessFile readFile = null;
+    private long readFileSegment = -1;
+
+    // Everything before this position was acknowledged by Kinesis.
+    private long checkpointSegment;
+    private long checkpointOffset;
+
+    private final CRC32 crc = new CRC32();
+    private byte[] recordBuffer = new byte[1024];
+
+    private long evictedSegments = 0;
+    private long evictedBytes = 0;
+    // Records appended since the spool was opened.
+    private long appendedRecords = 0;
+
+    /**
+     * Opens the spool, recovering the segments and checkpoint left by a previous run.
+     * @param segmentBytes size after which a new segment is started.
+     * @param quotaBytes total size of all segments after which the oldest ones are evicted.
+     * @param syncOnFlush fsync the write segment on every flush, not just on segment rollover.
+     */
+    public UploadSpool(File directory, long segmentBytes, long quotaBytes, boolean syncOnFlush) throws IOException {
+        if(segmentBytes <= 0 || quotaBytes < segmentBytes) {
+            throw new IllegalArgumentException("Quota must hold at least one segment");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.quotaBytes = quotaBytes;
+        this.syncOnFlush = syncOnFlush;
+
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                String name = file.getName();
+                if(name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        segments.put(sequence, file.length());
+                        totalBytes += file.length();
+                    }
+                    catch (NumberFormatException ex) {
+                        // Not one of ours.
+                    }
+                }
+            }
+        }
+
+        readCheckpoint();
+        // Segments before the checkpoint were fully uploaded, but may not have been deleted yet.
+        while(!segments.isEmpty() && segments.firstKey() < checkpointSegment) {
+            deleteSegment(segments.firstKey());
+        }
+        if(segments.isEmpty() && checkpointOffset != 0) {
+            // Everything was uploaded. Keep counting from the checkpoint so it never points ahead.
+            checkpointOffset = 0;
+            writeCheckpoint();
+        }
+        else if(!segments.isEmpty() && segments.firstKey() > checkpointSegment) {
+            // The checkpointed segment is gone (evicted), start from the oldest one left.
+            checkpointSegment = segments.firstKey();
+            checkpointOffset = 0;
+            writeCheckpoint();
+        }
+        readSegment = checkpointSegment;
+        readOffset = checkpointOffset;
+
+        // Never append behind a possibly torn record, always start a fresh segment.
+        openWriteSegment(segments.isEmpty() ? checkpointSegment : segments.lastKey() + 1);
+    }
+
+    /**
+     * Appends a record. It becomes visible to the drainer after the next {@link #flush()}.
+     */
+    public void append(String partitionKey, byte[] data) throws IOException {
+        append(partitionKey, null, data);
+    }
+
+    /**
+     * @param explicitHashKey explicit hash key of the record, or null.
+     */
+    public synchronized void append(String partitionKey, String explicitHashKey, byte[] data) throws IOException {
+        byte[] key = partitionKey.getBytes(StandardCharsets.UTF_8);
+        byte[] hashKey = explicitHashKey != null ? explicitHashKey.getBytes(StandardCharsets.US_ASCII) : null;
+        int keyField = hashKey != null ? key.length | HASH_KEY_FLAG : key.length;
+        int length = 2 + key.length + (hashKey != null ? 1 + hashKey.length : 0) + data.length;
+        if(writeLength > 0 && writeLength + RECORD_HEADER_SIZE + length > segmentBytes) {
+            rollWriteSegment();
+        }
+
+        crc.reset();
+        crc.update(keyField >> 8);
+        crc.update(keyField);
+        crc.update(key, 0, key.length);
+        if(hashKey != null) {
+            crc.update(hashKey.length);
+            crc.update(hashKey, 0, hashKey.length);
+        }
+        crc.update(data, 0, data.length);
+
+        writeStream.writeInt(length);
+        writeStream.writeInt((int) crc.getValue());
+        writeStream.writeShort(keyField);
+        writeStream.write(key);
+        if(hashKey != null) {
+            writeStream.writeByte(hashKey.length);
+            writeStream.write(hashKey);
+        }
+        writeStream.write(data);
+        writeLength += RECORD_HEADER_SIZE + length;
+        totalBytes += RECORD_HEADER_SIZE + length;
+        appendedRecords++;
+
+        enforceQuota();
+    }
+
+    /**
+     * Pushes the appended records to the file so they survive an app crash and can be read.
+     */
+    public synchronized void flush() throws IOException {
+        writeStream.flush();
+        if(syncOnFlush) {
+            writeFile.getFD().sync();
+        }
+        committedLength = writeLength;
+        segments.put(writeSegment, writeLength);
+    }
+
+    /**
+     * Reads the records following the last one read into out.
+     * @return the number of records read.
+     */
+    public synchronized int read(List<PutRecordsRequestEntry> out, int maxRecords, int maxBytes) throws IOException {
+        int count = 0;
+        int bytes = 0;
+        while(count < maxRecords) {
+            long limit = readSegment == writeSegment ? committedLength : segments.containsKey(readSegment) ?
+                    segments.get(readSegment) : -1;
+            if(limit < 0) {
+                // Read segment was evicted.
+                if(!advanceReadSegment()) {
+                    break;
+                }
+                continue;
+            }
+            if(readOffset + RECORD_HEADER_SIZE > limit) {
+                if(readSegment == writeSegment || !advanceReadSegment()) {
+                    break;
+                }
+                continue;
+            }
+
+            RandomAccessFile file = openReadFile();
+            file.seek(readOffset);
+            int length = file.readInt();
+            int checksum = file.readInt();
+            if(length < 2 || readOffset + RECORD_HEADER_SIZE + length > limit) {
+                // Torn record at the end of a segment from an earlier run.
+                if(readSegment == writeSegment || !advanceReadSegment()) {
+                    break;
+                }
+                continue;
+            }
+            if(count > 0 && bytes + length > maxBytes) {
+                break;
+            }
+            if(recordBuffer.length < length) {
+                recordBuffer = new byte[Math.max(length, recordBuffer.length * 2)];
+            }
+            file.readFully(recordBuffer, 0, length);
+            crc.reset();
+            crc.update(recordBuffer, 0, length);
+            int keyField = (recordBuffer[0] & 0xFF) << 8 | (recordBuffer[1] & 0xFF);
+            int keyLength = keyField & ~HASH_KEY_FLAG;
+            int dataOffset = 2 + keyLength;
+            String hashKey = null;
+            if((keyField & HASH_KEY_FLAG) != 0 && dataOffset < length) {
+                int hashKeyLength = recordBuffer[dataOffset] & 0xFF;
+                hashKey = new String(recordBuffer, dataOffset + 1, Math.min(hashKeyLength, length - dataOffset - 1),
+                        StandardCharsets.US_ASCII);
+                dataOffset += 1 + hashKeyLength;
+            }
+            if((int) crc.getValue() != checksum || dataOffset > length) {
+                if(readSegment == writeSegment || !advanceReadSegment()) {
+                    break;
+                }
+                continue;
+            }
+
+            out.add(PutRecordsRequestEntry.builder()
+                    .partitionKey(new String(recordBuffer, 2, keyLength, StandardCharsets.UTF_8))
+                    .explicitHashKey(hashKey)
+                    .data(SdkBytes.fromByteArrayUnsafe(Arrays.copyOfRange(recordBuffer, dataOffset, length)))
+                    .build());
+            readOffset += RECORD_HEADER_SIZE + length;
+            count++;
+            bytes += length;
+        }
+        return count;
+    }
+
+    /**
+     * Marks everything read so far as uploaded. Persists the checkpoint and deletes the segments
+     * that no longer hold any pending record.
+     */
+    public synchronized void commit() throws IOException {
+        if(checkpointSegment == readSegment && checkpointOffset == readOffset) {
+            return;
+        }
+        checkpointSegment = readSegment;
+        checkpointOffset = readOffset;
+        writeCheckpoint();
+        while(!segments.isEmpty() && segments.firstKey() < checkpointSegment) {
+            deleteSegment(segments.firstKey());
+        }
+    }
+
+    /**
+     * Moves the read position back to the checkpoint, so unacknowledged records are read again.
+     */
+    public synchronized void rewind() {
+        readSegment = checkpointSegment;
+        readOffset = checkpointOffset;
+    }
+
+    /**
+     * Flushes and closes the files. Records read but not committed are read again next time.
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        writeStream.close();
+        closeReadFile();
+    }
+
+    /**
+     * @return true if there may be records that were not read yet.
+     */
+    public synchronized boolean hasUnread() {
+        return readSegment < writeSegment || readOffset < committedLength;
+    }
+
+    /**
+     * @return the records appended since the spool was opened, e.g. to measure the live rate.
+     */
+    public synchronized long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getEvictedSegments() {
+        return evictedSegments;
+    }
+
+    public synchronized long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    private void enforceQuota() throws IOException {
+        while(totalBytes > quotaBytes && segments.size() > 1) {
+            long oldest = segments.firstKey();
+            if(oldest == writeSegment) {
+                break;
+            }
+            long size = segments.get(oldest);
+            deleteSegment(oldest);
+            evictedSegments++;
+            evictedBytes += size;
+            if(checkpointSegment <= oldest) {
+                checkpointSegment = segments.firstKey();
+                checkpointOffset = 0;
+                writeCheckpoint();
+            }
+            if(readSegment <= oldest) {
+                readSegment = segments.firstKey();
+                readOffset = 0;
+            }
+        }
+    }
+
+    private void rollWriteSegment() throws IOException {
+        flush();
+        writeFile.getFD().sync();
+        writeStream.close();
+        openWriteSegment(writeSegment + 1);
+    }
+
+    private void openWriteSegment(long sequence) throws IOException {
+        writeSegment = sequence;
+        writeFile = new FileOutputStream(segmentFile(sequence), true);
+        writeStream = new DataOutputStream(new BufferedOutputStream(writeFile, 64 * 1024));
+        writeLength = segmentFile(sequence).length();
+        committedLength = writeLength;
+        if(!segments.containsKey(sequence)) {
+            segments.put(sequence, writeLength);
+        }
+    }
+
+    private boolean advanceReadSegment() {
+        Long next = segments.higherKey(readSegment);
+        if(next == null) {
+            return false;
+        }
+        readSegment = next;
+        readOffset = 0;
+        return true;
+    }
+
+    private RandomAccessFile openReadFile() throws IOException {
+        if(readFile == null || readFileSegment != readSegment) {
+            closeReadFile();
+            readFile = new RandomAccessFile(segmentFile(readSegment), "r");
+            readFileSegment = readSegment;
+        }
+        return readFile;
+    }
+
+    private void closeReadFile() throws IOException {
+        if(readFile != null) {
+            readFile.close();
+            readFile = null;
+            readFileSegment = -1;
+        }
+    }
+
+    private void deleteSegment(long sequence) throws IOException {
+        if(sequence == readFileSegment) {
+            closeReadFile();
+        }
+        Long size = segments.remove(sequence);
+        if(size != null) {
+            totalBytes -= size;
+        }
+        File file = segmentFile(sequence);
+        if(file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete spool segment " + file);
+        }
+    }
+
+    private File segmentFile(long sequence) {
+        return new File(directory, String.format("%016d%s", sequence, SEGMENT_SUFFIX));
+    }
+
+    private void readCheckpoint() {
+        File file = new File(directory, CHECKPOINT_FILE);
+        checkpointSegment = 0;
+        checkpointOffset = 0;
+        if(!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            long segment = in.readLong();
+            long offset = in.readLong();
+            long check = in.readLong();
+            if((segment ^ offset ^ 0x5B001L) == check) {
+                checkpointSegment = segment;
+                checkpointOffset = offset;
+            }
+        }
+        catch (IOException ex) {
+            // Unreadable checkpoint, replay everything that is left. Duplicates beat data loss.
+        }
+    }
+
+    // Written to a temporary file and renamed, so a crash leaves either the old or the new checkpoint.
+    private void writeCheckpoint() throws IOException {
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(file)) {
+            out.writeLong(checkpointSegment);
+            out.writeLong(checkpointOffset);
+            out.writeLong(checkpointSegment ^ checkpointOffset ^ 0x5B001L);
+            out.flush();
+            file.getFD().sync();
+        }
+        if(!tmp.renameTo(new File(directory, CHECKPOINT_FILE))) {
+            throw new IOException("Cannot write spool checkpoint");
+        }
+    }
+
+    /**
+     * @return the segment files currently in the spool, oldest first. For tests and diagnostics.
+     */
+    synchronized List<File> listSegments() {
+        List<File> files = new ArrayList<>();
+        for(long sequence : segments.keySet()) {
+            files.add(segmentFile(sequence));
+        }
+        return files;
+    }
+}
@@ -0,0 +1,309 @@
+package com.biosenix.banddebug.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.biosenix.banddebug.decode.AccelDecoder;
+import com.biosenix.banddebug.decode.DecoderRegistry;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link BandGatt} backed by the Android Bluetooth stack. Handles the connection setup of a band:
+ * throughput negotiation, service discovery and subscribing to the notifications of the data
+ * characteristics, ACC and whatever else is subscribed in the registry, e.g. PPG.
+ *
+ * All GATT requests go through a {@link GattOperationQueue}, as Android only allows one at a
+ * time. The setup is pipelined: at link-up the connection priority and PHY requests (link layer,
+ * not GATT operations) go out at once, the MTU exchange and service discovery are queued back to
+ * back, and the subscriptions are queued as soon as the services are known. The band counts as
+ * streaming once the band acknowledged the ACC descriptor write. Notifications are passed on with
+ * the UUID of their characteristic, as Android parsed it, for the session to route them.
+ */
+@SuppressLint("MissingPermission")
+public class AndroidBandGatt implements BandGatt {
+    // Service UUID for Biosenix custom service.
+    public static final String serviceUUID = "f3641400-00b0-4240-ba50-05ca45bf8abc";  // Custom Service
+    public static final String accCharUUID = "f3641404-00b0-4240-ba50-05ca45bf8abc";  // Acc characteristic
+    public static final String ppgCharUUID = "f3641403-00b0-4240-ba50-05ca45bf8abc";  // PPG characteristic
+
+    // BLE Descriptors of acc and PPG notifications. They are currently the same.
+    public static final String notificationDesciptors = "00002902-0000-1000-8000-00805f9b34fb";
+
+    private static final UUID SERVICE = UUID.fromString(serviceUUID);
+    private static final UUID ACC_CHARACTERISTIC = DecoderRegistry.ACC_CHARACTERISTIC;
+    private static final UUID NOTIFICATION_DESCRIPTOR = UUID.fromString(notificationDesciptors);
+
+    // A GATT operation without its callback after this long is retried, up to the attempt count.
+    private static final long OPERATION_TIMEOUT_MILLIS = 3000;
+    private static final int OPERATION_ATTEMPTS = 3;
+    private static final long OPERATION_RETRY_DELAY_MILLIS = 100;
+
+    private final Context context;
+    private final BluetoothDevice device;
+    private final String deviceId;
+    // Ask for the largest MTU, the 2M PHY and a short connection interval right after connecting,
+    // so the band can pack several samples into each notification.
+    private final boolean highThroughput;
+    // With autoConnect Android keeps trying in the background, and reconnects after a link loss.
+    // Without, the connection is made right away or fails after about 30 s, and a lost link stays
+    // lost. ReconnectingBandGatt uses the latter.
+    private final boolean autoConnect;
+    // Characteristics to subscribe to. ACC is required, the others are skipped if the band lacks them.
+    private final List<UUID> characteristics;
+
+    private final GattOperationQueue operations =
+            new GattOperationQueue(new HandlerTimer(), OPERATION_TIMEOUT_MILLIS, OPERATION_ATTEMPTS, OPERATION_RETRY_DELAY_MILLIS);
+    private final Histogram setupLatencyMetric = MetricsRegistry.getDefault().histogram("ble.setup_latency_ms");
+
+    private BandGatt.Listener listener = null;
+    private volatile BluetoothGatt bluetoothGatt = null;
+    private volatile boolean disconnectRequested = false;
+    private volatile boolean connected = false;
+    private volatile int negotiatedMtu = 23;
+    private long linkUpMillis = 0;
+
+    public AndroidBandGatt(Context context, BluetoothDevice device, String deviceId, boolean highThroughput) {
+        this(context, device, deviceId, highThroughput, true);
+    }
+
+    public AndroidBandGatt(Context context, BluetoothDevice device, String deviceId, boolean highThroughput,
+                           boolean autoConnect) {
+        this(context, device, deviceId, highThroughput, autoConnect, Collections.singletonList(ACC_CHARACTERISTIC));
+    }
+
+    /**
+     * @param characteristics data characteristics to subscribe to, e.g. the subscribed ones of the
+     *                        session's {@link DecoderRegistry}.
+     */
+    public AndroidBandGatt(Context context, BluetoothDevice device, String deviceId, boolean highThroughput,
+                           boolean autoConnect, List<UUID> characteristics) {
+        this.context = context.getApplicationContext();
+        this.device = device;
+        this.deviceId = deviceId;
+        this.highThroughput = highThroughput;
+        this.autoConnect = autoConnect;
+        this.characteristics = new ArrayList<>(characteristics);
+    }
+
+    @Override
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public int getNegotiatedMtu() {
+        return negotiatedMtu;
+    }
+
+    @Override
+    public void connect(BandGatt.Listener listener) {
+        this.listener = listener;
+        disconnectRequested = false;
+        // Attempt to connect to the GATT server.
+        bluetoothGatt = device.connectGatt(context, autoConnect, bluetoothGattCallback, BluetoothDevice.TRANSPORT_LE);
+    }
+
+    @Override
+    public void disconnect() {
+        disconnectRequested = true;
+        operations.clear();
+        BluetoothGatt gatt = bluetoothGatt;
+        if(gatt != null) {
+            gatt.disconnect();
+            if(!connected) {
+                // A pending connection attempt reports nothing once cancelled, release it now.
+                gatt.close();
+                bluetoothGatt = null;
+            }
+        }
+    }
+
+    // Queues the GATT part of the setup, right after link-up.
+    private void startSetup(BluetoothGatt gatt) {
+        linkUpMillis = System.currentTimeMillis();
+        if(highThroughput) {
+            // Link layer requests, they do not hold up the GATT operations.
+            gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK,
+                    BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            // First, so the discovery and everything after it already uses the larger MTU.
+            operations.enqueue(new GattOperationQueue.Operation(GattOperationQueue.Type.REQUEST_MTU, "Negotiating MTU") {
+                @Override
+                protected boolean start() {
+                    return gatt.requestMtu(AccelDecoder.MAX_MTU);
+                }
+
+                @Override
+                protected void onFailure(int status) {
+                    // Carry on with the default MTU.
+                    Log.w("BLE", "BP" + deviceId + " MTU exchange failed: " + status);
+                }
+            });
+        }
+        operations.enqueue(new GattOperationQueue.Operation(GattOperationQueue.Type.DISCOVER_SERVICES, "Discovering Services") {
+            @Override
+            protected boolean start() {
+                listener.onStatus(AndroidBandGatt.this, getName());
+                return gatt.discoverServices();
+            }
+
+            @Override
+            protected void onSuccess() {
+                subscribe(gatt);
+            }
+
+            @Override
+            protected void onFailure(int status) {
+                listener.onStatus(AndroidBandGatt.this, "Service discovery failed: " + status);
+            }
+        });
+    }
+
+    private void subscribe(BluetoothGatt gatt) {
+        BluetoothGattService service = gatt.getService(SERVICE);
+        if(service == null) {
+            listener.onStatus(this, "Biosenix service not found");
+            return;
+        }
+        if(service.getCharacteristic(ACC_CHARACTERISTIC) == null) {
+            listener.onStatus(this, "ACC characteristic not found");
+            return;
+        }
+        listener.onStatus(this, "Retrieving Characteristics");
+        for(UUID uuid : characteristics) {
+            BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+            if(characteristic == null) {
+                Log.i("BLE", "BP" + deviceId + " has no characteristic " + uuid);
+                continue;
+            }
+            boolean acc = uuid.equals(ACC_CHARACTERISTIC);
+            operations.enqueue(new GattOperationQueue.Operation(GattOperationQueue.Type.WRITE_DESCRIPTOR, "Subscribe " + uuid) {
+                @Override
+                protected boolean start() {
+                    return enableNotifications(gatt, characteristic);
+                }
+
+                @Override
+                protected void onSuccess() {
+                    if(acc) {
+                        setupLatencyMetric.record(System.currentTimeMillis() - linkUpMillis);
+                        listener.onStreaming(AndroidBandGatt.this);
+                    }
+                }
+
+                @Override
+                protected void onFailure(int status) {
+                    listener.onStatus(AndroidBandGatt.this, acc ? "Notification Not Supported" :
+                            "Cannot subscribe to " + uuid + ": " + status);
+                }
+            });
+        }
+    }
+
+    // Writes the client configuration descriptor. Some GATT servers use indications, others notifications.
+    private static boolean enableNotifications(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        int properties = characteristic.getProperties();
+        byte[] value;
+        if((properties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
+            value = BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+        }
+        else if((properties & BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0) {
+            value = BluetoothGattDescriptor.ENABLE_INDICATION_VALUE;
+        }
+        else {
+            return false;
+        }
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(NOTIFICATION_DESCRIPTOR);
+        if(descriptor == null || !gatt.setCharacteristicNotification(characteristic, true)) {
+            return false;
+        }
+        descriptor.setValue(value);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    // Inline class that handles GATT connection callbacks.
+    private final BluetoothGattCallback bluetoothGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            super.onPhyUpdate(gatt, txPhy, rxPhy, status);
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                Log.i("BLE", "BP" + deviceId + " PHY tx " + txPhy + " rx " + rxPhy);
+            }
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            super.onConnectionStateChange(gatt, status, newState);
+            switch(newState) {
+                case BluetoothProfile.STATE_CONNECTED:
+                    connected = true;
+                    listener.onConnected(AndroidBandGatt.this);
+                    startSetup(gatt);
+                    break;
+                case BluetoothProfile.STATE_DISCONNECTED:
+                    connected = false;
+                    // Operations of the lost link never complete.
+                    operations.clear();
+                    listener.onDisconnected(AndroidBandGatt.this);
+                    // Unless asked to disconnect, leave the client open so autoConnect brings the band back.
+                    if(disconnectRequested || !autoConnect) {
+                        gatt.close();
+                        bluetoothGatt = null;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            super.onServicesDiscovered(gatt, status);
+            operations.complete(GattOperationQueue.Type.DISCOVER_SERVICES, status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            super.onDescriptorWrite(gatt, descriptor, status);
+            operations.complete(GattOperationQueue.Type.WRITE_DESCRIPTOR, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            super.onCharacteristicChanged(gatt, characteristic);
+            // Only copy the frame here, it is decoded and stored on the session's worker.
+            listener.onNotification(AndroidBandGatt.this, characteristic.getUuid(), characteristic.getValue());
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            super.onMtuChanged(gatt, mtu, status);
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                negotiatedMtu = mtu;
+                Log.i("BLE", "BP" + deviceId + " MTU " + mtu + ", up to " +
+                        AccelDecoder.maxSamplesPerNotification(mtu) + " samples per notification");
+            }
+            operations.complete(GattOperationQueue.Type.REQUEST_MTU, status);
+        }
+
+        @Override
+        public void onServiceChanged(@NonNull BluetoothGatt gatt) {
+            super.onServiceChanged(gatt);
+        }
+    };
+}
@@ -0,0 +1,120 @@
+package com.biosenix.banddebug.ble;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link BandScanner} backed by the Android BLE scanner. All wanted bands share one scan.
+ *
+ * The scan uses hardware filters, by band name and by the Biosenix service UUID, so the
+ * controller only wakes the phone for band advertisements, and low latency settings, so a band
+ * is usually found within one advertising interval. The scan is restarted when the set of wanted
+ * bands changes. Android blocks apps that start more than 5 scans in 30 s, so callers should
+ * only scan as a fallback, see {@link ReconnectingBandGatt}.
+ *
+ * Scan results are delivered on the main thread.
+ */
+@SuppressLint("MissingPermission")
+public class AndroidBandScanner implements BandScanner {
+    private static final String NAME_PREFIX = "BP";
+
+    private final BluetoothAdapter adapter;
+    private final Map<String, Listener> wanted = new LinkedHashMap<>();
+    private BluetoothLeScanner scanner = null;
+    private boolean scanning = false;
+
+    public AndroidBandScanner(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    @Override
+    public synchronized void startScan(String deviceId, Listener listener) {
+        if(wanted.put(deviceId, listener) == null) {
+            restart();
+        }
+    }
+
+    @Override
+    public synchronized void stopScan(String deviceId) {
+        if(wanted.remove(deviceId) != null) {
+            restart();
+        }
+    }
+
+    private void restart() {
+        if(scanner == null) {
+            scanner = adapter.getBluetoothLeScanner();
+            if(scanner == null) {
+                // Bluetooth is off. The callers' scan timeouts try again later.
+                return;
+            }
+        }
+        if(scanning) {
+            scanner.stopScan(scanCallback);
+            scanning = false;
+        }
+        if(wanted.isEmpty()) {
+            return;
+        }
+
+        List<ScanFilter> filters = new ArrayList<>();
+        for(String deviceId : wanted.keySet()) {
+            filters.add(new ScanFilter.Builder().setDeviceName(NAME_PREFIX + deviceId).build());
+        }
+        // Catches bands whose advertised name carries more than "BPxx", the name is checked below.
+        filters.add(new ScanFilter.Builder()
+                .setServiceUuid(ParcelUuid.fromString(AndroidBandGatt.serviceUUID)).build());
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                .setReportDelay(0)
+                .build();
+        scanner.startScan(filters, settings, scanCallback);
+        scanning = true;
+    }
+
+    // Copied, so the listeners can start and stop scans while being called.
+    private synchronized List<Map.Entry<String, Listener>> wanted() {
+        return new ArrayList<>(wanted.entrySet());
+    }
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            String name = result.getScanRecord() != null ? result.getScanRecord().getDeviceName() : null;
+            if(name == null) {
+                name = result.getDevice().getName();
+            }
+            if(name == null) {
+                return;
+            }
+            for(Map.Entry<String, Listener> band : wanted()) {
+                // Some bands pad their name, so match on the "BPxx" part only.
+                if(name.contains(NAME_PREFIX + band.getKey())) {
+                    band.getValue().onFound(band.getKey(), result.getDevice().getAddress());
+                }
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            synchronized (AndroidBandScanner.this) {
+                scanning = false;
+            }
+            for(Map.Entry<String, Listener> band : wanted()) {
+                band.getValue().onScanFailed(band.getKey(), errorCode);
+            }
+        }
+    };
+}
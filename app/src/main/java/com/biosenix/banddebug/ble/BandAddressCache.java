@@ -0,0 +1,75 @@
+package com.biosenix.banddebug.ble;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Remembers the MAC address of every band seen, in a small properties file, so a band can be
+ * connected to directly after a restart of the app without scanning for it first.
+ */
+public class BandAddressCache {
+    private final File file;
+    private final Properties addresses = new Properties();
+
+    /**
+     * Loads the cache. A missing or unreadable file starts an empty cache.
+     */
+    public BandAddressCache(File file) {
+        this.file = file;
+        if(file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                addresses.load(in);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return the last known address of the band, or null if it was never seen.
+     */
+    public synchronized String get(String deviceId) {
+        return addresses.getProperty(deviceId);
+    }
+
+    /**
+     * Stores the band's address, writing the file only if it changed.
+     */
+    public synchronized void put(String deviceId, String address) {
+        if(address.equals(addresses.getProperty(deviceId))) {
+            return;
+        }
+        addresses.setProperty(deviceId, address);
+        save();
+    }
+
+    /**
+     * Forgets the band's address, e.g. after it was replaced by a band with the same ID.
+     */
+    public synchronized void remove(String deviceId) {
+        if(addresses.remove(deviceId) != null) {
+            save();
+        }
+    }
+
+    // Written to a temporary file first, so a crash never leaves a half written cache.
+    private void save() {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporary)) {
+            addresses.store(out, "Band MAC addresses by device ID");
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        if(!temporary.renameTo(file)) {
+            temporary.delete();
+        }
+    }
+}
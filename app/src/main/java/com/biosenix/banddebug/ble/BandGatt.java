@@ -0,0 +1,46 @@
+package com.biosenix.banddebug.ble;
+
+import java.util.UUID;
+
+/**
+ * Minimal view of a GATT connection to one band, so the session code does not depend on the
+ * Android Bluetooth stack and can be driven by simulated bands on the JVM.
+ */
+public interface BandGatt {
+
+    /**
+     * Connection events. Called on the Bluetooth callback thread of the connection.
+     */
+    interface Listener {
+        void onConnected(BandGatt gatt);
+
+        /**
+         * The band is subscribed and about to stream notifications.
+         */
+        void onStreaming(BandGatt gatt);
+
+        void onDisconnected(BandGatt gatt);
+
+        /**
+         * A notification of one of the band's data characteristics. The array is owned by the
+         * caller and must be copied if kept.
+         * @param characteristic the characteristic that changed, e.g.
+         *                       {@link com.biosenix.banddebug.decode.DecoderRegistry#ACC_CHARACTERISTIC}.
+         */
+        void onNotification(BandGatt gatt, UUID characteristic, byte[] value);
+
+        /**
+         * Progress messages worth showing to the user.
+         */
+        void onStatus(BandGatt gatt, String message);
+    }
+
+    /**
+     * @return the band's ID, e.g. "01" for BP01.
+     */
+    String getDeviceId();
+
+    void connect(Listener listener);
+
+    void disconnect();
+}
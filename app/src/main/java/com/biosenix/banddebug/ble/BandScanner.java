@@ -0,0 +1,27 @@
+package com.biosenix.banddebug.ble;
+
+/**
+ * Finds bands by their advertisements, so the reconnect logic does not depend on the Android
+ * scanner and can be driven by a fake on the JVM.
+ */
+public interface BandScanner {
+
+    /**
+     * Scan results. Called on the scanner's callback thread.
+     */
+    interface Listener {
+        /**
+         * @param address the band's Bluetooth MAC address, e.g. "C4:7F:51:00:12:34".
+         */
+        void onFound(String deviceId, String address);
+
+        void onScanFailed(String deviceId, int errorCode);
+    }
+
+    /**
+     * Starts looking for a band, until it is found or {@link #stopScan} is called.
+     */
+    void startScan(String deviceId, Listener listener);
+
+    void stopScan(String deviceId);
+}
@@ -0,0 +1,11 @@
+package com.biosenix.banddebug.ble;
+
+/**
+ * Clock and delayed tasks of the Bluetooth code, e.g. {@link HandlerTimer} on the main looper,
+ * or a fake driven by the tests.
+ */
+public interface BleTimer {
+    long uptimeMillis();
+
+    void schedule(Runnable task, long delayMillis);
+}
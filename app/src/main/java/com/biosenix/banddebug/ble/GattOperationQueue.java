@@ -0,0 +1,266 @@
+package com.biosenix.banddebug.ble;
+
+import com.biosenix.banddebug.metrics.Counter;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+
+import java.util.ArrayDeque;
+
+/**
+ * Runs GATT operations one at a time. Android allows a single outstanding GATT operation per
+ * connection and silently drops a request issued while another is pending, so every request goes
+ * through this queue and the next one is only issued once the GATT callback of the previous one
+ * (onMtuChanged, onServicesDiscovered, onDescriptorWrite, ...) reported it done.
+ *
+ * An operation that the stack refuses, that fails or that gets no callback within the timeout is
+ * retried, up to a number of attempts, then reported as failed and the queue moves on. A callback
+ * only counts while an attempt is waiting for it: one that arrives after its attempt timed out,
+ * while the retry is still pending, is dropped. GATT callbacks carry no request id, so a late
+ * callback that arrives once the retry was issued is taken as the retry's.
+ *
+ * Thread safe. Operations are started on the thread that enqueued them or that completed the
+ * previous one, never while holding the queue's lock, so a callback may complete them right away.
+ */
+public class GattOperationQueue {
+    public static final int SUCCESS = 0;
+    // Status reported for an operation the stack refused to start or that got no callback in time.
+    public static final int REFUSED = -1;
+    public static final int TIMED_OUT = -2;
+
+    /**
+     * Kind of GATT callback that completes an operation, so late or unrelated callbacks, e.g. an
+     * MTU exchange started by the band, do not complete the wrong operation.
+     */
+    public enum Type {
+        REQUEST_MTU,
+        DISCOVER_SERVICES,
+        WRITE_DESCRIPTOR,
+        READ_CHARACTERISTIC,
+        WRITE_CHARACTERISTIC
+    }
+
+    /**
+     * One GATT request and what to do once it is done.
+     */
+    public abstract static class Operation {
+        final Type type;
+        final String name;
+        int attempts = 0;
+
+        /**
+         * @param name shown in logs and status messages, e.g. "Subscribe ACC".
+         */
+        protected Operation(Type type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Issues the request to the stack.
+         * @return false if the stack refused it.
+         */
+        protected abstract boolean start();
+
+        /**
+         * Called once the operation succeeded, before the next one starts. May enqueue more.
+         */
+        protected void onSuccess() {
+        }
+
+        /**
+         * Called once the operation failed all its attempts.
+         * @param status the GATT status of the last attempt, {@link #REFUSED} or {@link #TIMED_OUT}.
+         */
+        protected void onFailure(int status) {
+        }
+    }
+
+    private final BleTimer timer;
+    private final long timeoutMillis;
+    private final int maxAttempts;
+    private final long retryDelayMillis;
+
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    private Operation current = null;
+    // Bumped whenever an attempt starts or ends, so the timeout of an earlier attempt does nothing.
+    private long generation = 0;
+    // Generation of the attempt waiting for its callback, the current one while an attempt is in flight.
+    private long inFlight = -1;
+
+    private final Counter retriesMetric;
+    private final Counter timeoutsMetric;
+    private final Counter failuresMetric;
+
+    /**
+     * @param timeoutMillis time an attempt may take before it is given up on.
+     * @param maxAttempts attempts per operation, at least 1.
+     * @param retryDelayMillis wait before retrying, gives a busy stack time to settle.
+     */
+    public GattOperationQueue(BleTimer timer, long timeoutMillis, int maxAttempts, long retryDelayMillis) {
+        if(maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed: " + maxAttempts);
+        }
+        this.timer = timer;
+        this.timeoutMillis = timeoutMillis;
+        this.maxAttempts = maxAttempts;
+        this.retryDelayMillis = retryDelayMillis;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.retriesMetric = metrics.counter("ble.gatt_retries");
+        this.timeoutsMetric = metrics.counter("ble.gatt_timeouts");
+        this.failuresMetric = metrics.counter("ble.gatt_failures");
+    }
+
+    /**
+     * Queues an operation, starting it right away if the queue is idle.
+     */
+    public void enqueue(Operation operation) {
+        synchronized (this) {
+            pending.addLast(operation);
+            if(current != null) {
+                return;
+            }
+        }
+        next();
+    }
+
+    /**
+     * Reports the GATT callback of an operation. Does nothing unless an attempt of the current
+     * operation is in flight and of that type.
+     * @param status the callback's GATT status, {@link #SUCCESS} (BluetoothGatt.GATT_SUCCESS) if it worked.
+     */
+    public void complete(Type type, int status) {
+        Operation done;
+        synchronized (this) {
+            if(current == null || current.type != type || inFlight != generation) {
+                // No attempt of this kind is waiting, e.g. a late reply to one that timed out.
+                return;
+            }
+            done = current;
+            generation++;
+            if(status != SUCCESS && done.attempts < maxAttempts) {
+                retryLater(done);
+                return;
+            }
+            current = null;
+        }
+        finish(done, status);
+        next();
+    }
+
+    /**
+     * Drops the current and queued operations without calling them back, e.g. on disconnect.
+     */
+    public synchronized void clear() {
+        pending.clear();
+        current = null;
+        generation++;
+    }
+
+    public synchronized boolean isIdle() {
+        return current == null && pending.isEmpty();
+    }
+
+    /**
+     * @return queued operations, including the one in progress.
+     */
+    public synchronized int size() {
+        return pending.size() + (current != null ? 1 : 0);
+    }
+
+    // Starts queued operations until one is in progress or the queue is empty.
+    private void next() {
+        while(true) {
+            Operation operation;
+            long attempt;
+            synchronized (this) {
+                if(current != null || pending.isEmpty()) {
+                    return;
+                }
+                operation = pending.pollFirst();
+                current = operation;
+                attempt = startAttempt(operation);
+            }
+            if(run(operation, attempt)) {
+                return;
+            }
+        }
+    }
+
+    // Returns the attempt's generation and arms its timeout. Must hold the lock.
+    private long startAttempt(Operation operation) {
+        operation.attempts++;
+        long attempt = ++generation;
+        inFlight = attempt;
+        timer.schedule(() -> onTimeout(operation, attempt), timeoutMillis);
+        return attempt;
+    }
+
+    // Starts an attempt. Returns false if the operation was given up on and the next may start.
+    private boolean run(Operation operation, long attempt) {
+        if(operation.start()) {
+            return true;
+        }
+        synchronized (this) {
+            if(current != operation || generation != attempt) {
+                // Completed or cleared meanwhile.
+                return current != null;
+            }
+            generation++;
+            if(operation.attempts < maxAttempts) {
+                retryLater(operation);
+                return true;
+            }
+            current = null;
+        }
+        finish(operation, REFUSED);
+        return false;
+    }
+
+    // Must hold the lock, with operation still current.
+    private void retryLater(Operation operation) {
+        retriesMetric.increment();
+        long waiting = generation;
+        timer.schedule(() -> {
+            long attempt;
+            synchronized (GattOperationQueue.this) {
+                if(current != operation || generation != waiting) {
+                    return;
+                }
+                attempt = startAttempt(operation);
+            }
+            if(!run(operation, attempt)) {
+                next();
+            }
+        }, retryDelayMillis);
+    }
+
+    private void onTimeout(Operation operation, long attempt) {
+        synchronized (this) {
+            if(current != operation || generation != attempt) {
+                return;
+            }
+            timeoutsMetric.increment();
+            generation++;
+            if(operation.attempts < maxAttempts) {
+                retryLater(operation);
+                return;
+            }
+            current = null;
+        }
+        finish(operation, TIMED_OUT);
+        next();
+    }
+
+    private void finish(Operation operation, int status) {
+        if(status == SUCCESS) {
+            operation.onSuccess();
+        }
+        else {
+            failuresMetric.increment();
+            operation.onFailure(status);
+        }
+    }
+}
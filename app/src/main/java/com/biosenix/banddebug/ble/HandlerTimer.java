@@ -0,0 +1,22 @@
+package com.biosenix.banddebug.ble;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * {@link BleTimer} running its tasks on the main looper.
+ */
+public class HandlerTimer implements BleTimer {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        handler.postDelayed(task, delayMillis);
+    }
+}
@@ -0,0 +1,320 @@
+package com.biosenix.banddebug.ble;
+
+import com.biosenix.banddebug.metrics.Counter;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+
+import java.util.UUID;
+
+/**
+ * {@link BandGatt} that keeps a band connected, reconnecting on its own after a link loss.
+ *
+ * Android's autoConnect reconnects slowly, it scans at a low duty cycle in the background. This
+ * connects directly (autoConnect off) to the band's cached MAC address instead, retrying on a
+ * backoff schedule. Scanning is only the fallback: when no address is cached or the direct
+ * attempts keep failing, the band is looked up with a {@link BandScanner} and its address is
+ * cached for the next time.
+ * <pre>
+ *   CONNECTING --connected--> CONNECTED --link loss--> CONNECTING
+ *       |  ^ failed/timeout                              (no address or
+ *       v  |                                              too many failures)
+ *     WAITING (backoff) --------------------------------> SCANNING --found--> CONNECTING
+ * </pre>
+ * Each attempt goes through a new connection from the {@link Connector}. The listener sees one
+ * band: connected and disconnected once per link, whatever happened in between.
+ *
+ * Reconnect latency (from the link loss, or connect(), to the band being connected) and the time
+ * to the first notification after it are recorded as "ble.reconnect_latency_ms" and
+ * "ble.first_sample_latency_ms".
+ */
+public class ReconnectingBandGatt implements BandGatt {
+
+    /**
+     * Opens direct connections, e.g. {@link AndroidBandGatt} with autoConnect off.
+     */
+    public interface Connector {
+        BandGatt open(String deviceId, String address);
+    }
+
+    public static class Config {
+        // Wait before each attempt after a failure, the last value repeats.
+        public long[] backoffMillis = {0, 250, 1000, 2000, 5000};
+        // Give up on a direct connection attempt after this long. Android's own timeout is 30 s.
+        public long connectTimeoutMillis = 5000;
+        // Failed direct attempts after which the band is scanned for, in case its address changed.
+        public int directAttemptsBeforeScan = 3;
+        public long scanTimeoutMillis = 10_000;
+    }
+
+    enum State {
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        WAITING,
+        SCANNING
+    }
+
+    private final String deviceId;
+    private final Config config;
+    private final BandScanner scanner;
+    private final Connector connector;
+    private final BandAddressCache cache;
+    private final BleTimer timer;
+
+    private final Histogram reconnectLatencyMetric;
+    private final Histogram firstSampleLatencyMetric;
+    private final Counter attemptsMetric;
+    private final Counter scansMetric;
+
+    private BandGatt.Listener listener = null;
+    private State state = State.IDLE;
+    // Written under the lock, read without it to drop the notifications of links given up on.
+    private volatile BandGatt link = null;
+    // True between the link's connected and disconnected events, also while disconnecting on request.
+    private boolean linkUp = false;
+    private String address = null;
+    // Consecutive failures, for the backoff, and direct attempts since the last scan.
+    private int failures = 0;
+    private int directAttempts = 0;
+    // Bumped whenever the state changes, so timer tasks of an earlier state do nothing.
+    private long generation = 0;
+    private long lostMillis = 0;
+    private long connectedMillis = 0;
+    // Set when connected, cleared by the first notification. Checked on every notification.
+    private volatile boolean awaitingFirstSample = false;
+
+    public ReconnectingBandGatt(String deviceId, Config config, BandScanner scanner, Connector connector,
+                                BandAddressCache cache, BleTimer timer) {
+        this.deviceId = deviceId;
+        this.config = config;
+        this.scanner = scanner;
+        this.connector = connector;
+        this.cache = cache;
+        this.timer = timer;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.reconnectLatencyMetric = metrics.histogram("ble.reconnect_latency_ms");
+        this.firstSampleLatencyMetric = metrics.histogram("ble.first_sample_latency_ms");
+        this.attemptsMetric = metrics.counter("ble.connect_attempts");
+        this.scansMetric = metrics.counter("ble.scans");
+    }
+
+    @Override
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    @Override
+    public synchronized void connect(BandGatt.Listener listener) {
+        if(state != State.IDLE) {
+            return;
+        }
+        this.listener = listener;
+        address = cache.get(deviceId);
+        failures = 0;
+        directAttempts = 0;
+        lostMillis = timer.uptimeMillis();
+        attempt();
+    }
+
+    @Override
+    public void disconnect() {
+        BandGatt connected = null;
+        BandGatt pending = null;
+        synchronized (this) {
+            if(state == State.CONNECTED) {
+                // The link reports the disconnection, it is forwarded then.
+                connected = link;
+            }
+            else {
+                if(state == State.SCANNING) {
+                    scanner.stopScan(deviceId);
+                }
+                pending = link;
+                link = null;
+            }
+            state = State.IDLE;
+            generation++;
+        }
+        if(connected != null) {
+            connected.disconnect();
+        }
+        if(pending != null) {
+            pending.disconnect();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    // Tries the cached address, or scans for the band if there is none or it keeps failing.
+    private void attempt() {
+        generation++;
+        if(address != null && directAttempts < config.directAttemptsBeforeScan) {
+            state = State.CONNECTING;
+            directAttempts++;
+            attemptsMetric.increment();
+            link = connector.open(deviceId, address);
+            scheduleTimeout(config.connectTimeoutMillis);
+            link.connect(linkListener);
+        }
+        else {
+            state = State.SCANNING;
+            scansMetric.increment();
+            scheduleTimeout(config.scanTimeoutMillis);
+            scanner.startScan(deviceId, scanListener);
+        }
+    }
+
+    // The current attempt failed: drop its connection and wait out the backoff.
+    private void retry() {
+        BandGatt failed = link;
+        link = null;
+        if(state == State.SCANNING) {
+            scanner.stopScan(deviceId);
+            // The band was not found by its name either, try the last address again.
+            directAttempts = 0;
+        }
+        long delay = config.backoffMillis[Math.min(failures, config.backoffMillis.length - 1)];
+        failures++;
+        state = State.WAITING;
+        long waiting = ++generation;
+        timer.schedule(() -> {
+            synchronized (ReconnectingBandGatt.this) {
+                if(generation == waiting) {
+                    attempt();
+                }
+            }
+        }, delay);
+        if(failed != null) {
+            failed.disconnect();
+        }
+    }
+
+    private void scheduleTimeout(long delayMillis) {
+        long attempt = generation;
+        timer.schedule(() -> {
+            synchronized (ReconnectingBandGatt.this) {
+                if(generation == attempt) {
+                    retry();
+                }
+            }
+        }, delayMillis);
+    }
+
+    private final BandScanner.Listener scanListener = new BandScanner.Listener() {
+        @Override
+        public void onFound(String foundId, String foundAddress) {
+            synchronized (ReconnectingBandGatt.this) {
+                if(state != State.SCANNING || !deviceId.equals(foundId)) {
+                    return;
+                }
+                scanner.stopScan(deviceId);
+                address = foundAddress;
+                cache.put(deviceId, foundAddress);
+                directAttempts = 0;
+                attempt();
+            }
+        }
+
+        @Override
+        public void onScanFailed(String failedId, int errorCode) {
+            synchronized (ReconnectingBandGatt.this) {
+                if(state == State.SCANNING) {
+                    retry();
+                }
+            }
+        }
+    };
+
+    // Events of the current link. Events of links given up on are ignored.
+    private final BandGatt.Listener linkListener = new BandGatt.Listener() {
+        @Override
+        public void onConnected(BandGatt gatt) {
+            synchronized (ReconnectingBandGatt.this) {
+                if(gatt != link || state != State.CONNECTING) {
+                    return;
+                }
+                state = State.CONNECTED;
+                linkUp = true;
+                generation++;
+                failures = 0;
+                directAttempts = 0;
+                connectedMillis = timer.uptimeMillis();
+                reconnectLatencyMetric.record(connectedMillis - lostMillis);
+                awaitingFirstSample = true;
+            }
+            listener.onConnected(ReconnectingBandGatt.this);
+        }
+
+        @Override
+        public void onStreaming(BandGatt gatt) {
+            if(gatt != link) {
+                return;
+            }
+            listener.onStreaming(ReconnectingBandGatt.this);
+        }
+
+        @Override
+        public void onDisconnected(BandGatt gatt) {
+            boolean wasConnected;
+            long reconnect = -1;
+            synchronized (ReconnectingBandGatt.this) {
+                if(gatt != link) {
+                    return;
+                }
+                wasConnected = linkUp;
+                linkUp = false;
+                awaitingFirstSample = false;
+                if(state == State.IDLE) {
+                    // Asked to disconnect.
+                    link = null;
+                }
+                else if(wasConnected) {
+                    // Link loss, the band is most likely still around: reconnect right away, once the
+                    // listener was told, so the new link's connected event cannot overtake it.
+                    lostMillis = timer.uptimeMillis();
+                    failures = 0;
+                    link = null;
+                    state = State.WAITING;
+                    reconnect = ++generation;
+                    gatt.disconnect();
+                }
+                else {
+                    retry();
+                }
+            }
+            if(wasConnected) {
+                listener.onDisconnected(ReconnectingBandGatt.this);
+            }
+            if(reconnect >= 0) {
+                synchronized (ReconnectingBandGatt.this) {
+                    // Unless disconnect() was called meanwhile.
+                    if(generation == reconnect) {
+                        attempt();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onNotification(BandGatt gatt, UUID characteristic, byte[] value) {
+            if(gatt != link) {
+                return;
+            }
+            if(awaitingFirstSample) {
+                awaitingFirstSample = false;
+                firstSampleLatencyMetric.record(timer.uptimeMillis() - connectedMillis);
+            }
+            listener.onNotification(ReconnectingBandGatt.this, characteristic, value);
+        }
+
+        @Override
+        public void onStatus(BandGatt gatt, String message) {
+            if(gatt != link) {
+                return;
+            }
+            listener.onStatus(ReconnectingBandGatt.this, message);
+        }
+    };
+}
@@ -0,0 +1,306 @@
+package com.biosenix.banddebug.codec;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.models.Acceleration;
+import com.biosenix.banddebug.storage.Varint;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of Kinesis records holding one or more samples of one band.
+ *
+ * Version 2 layout:
+ * <pre>
+ *   [0]     schema version (uint8, 2)
+ *   varint  sample count (unsigned)
+ *   varint  device ID length (unsigned), then the device ID as UTF-8
+ *   varint  sequence number of the record among the records of the device (unsigned)
+ *   per sample: timestamp, x, y, z as ZigZag varints. The first sample holds absolute values,
+ *   every following sample the difference to the previous one.
+ * </pre>
+ * Version 1 records, which lack the sequence number, are still decoded. The sequence number lets
+ * consumers restore the order of a band's records when they are spread over several shards.
+ * Records compressed by {@link RecordCompressor} are decoded transparently.
+ * The device ID is sent once per record instead of once per sample, and consecutive samples
+ * usually differ by a few counts, so a sample takes around 5 bytes against 60 for JSON.
+ *
+ * JSON records always start with '{' or '[', which lets consumers reading a stream with both
+ * encodings tell them apart with {@link #isBinary(byte[])}.
+ *
+ * This class has no Android or AWS dependencies so downstream consumers can use it as is.
+ */
+public final class AccelerationCodec {
+    public static final byte VERSION = 2;
+    private static final byte VERSION_1 = 1;
+
+    // Fewest bytes a sample can take, used to reject corrupt counts before allocating.
+    private static final int MIN_SAMPLE_BYTES = 4;
+
+    private AccelerationCodec() {
+
+    }
+
+    /**
+     * @return true if the record starts with a schema version byte instead of JSON.
+     */
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length > 0 &&
+                (data[0] == VERSION || data[0] == VERSION_1 || data[0] == RecordCompressor.MARKER);
+    }
+
+    /**
+     * Encodes samples of one band into an array of exactly the encoded size, which can be
+     * wrapped by the Kinesis client without another copy.
+     * @param samples samples sharing the device ID of the first one.
+     * @param sequence sequence number of the record among the records of the device.
+     */
+    public static byte[] encode(List<Acceleration> samples, long sequence) {
+        byte[] buffer = new byte[encodedSize(samples, sequence)];
+        encode(samples, sequence, buffer, 0);
+        return buffer;
+    }
+
+    /**
+     * @return the number of bytes {@link #encode(List, long, byte[], int)} writes for the samples.
+     */
+    public static int encodedSize(List<Acceleration> samples, long sequence) {
+        int size = 1 + Varint.sizeUnsigned(samples.size());
+        size += idSize(samples.isEmpty() ? "" : samples.get(0).deviceID);
+        size += Varint.sizeUnsigned(sequence);
+        long lastTimestamp = 0;
+        int lastX = 0, lastY = 0, lastZ = 0;
+        for(int i = 0; i < samples.size(); i++) {
+            Acceleration sample = samples.get(i);
+            size += Varint.sizeSigned(sample.timestamp - lastTimestamp);
+            size += Varint.sizeSigned(sample.x - lastX);
+            size += Varint.sizeSigned(sample.y - lastY);
+            size += Varint.sizeSigned(sample.z - lastZ);
+            lastTimestamp = sample.timestamp;
+            lastX = sample.x;
+            lastY = sample.y;
+            lastZ = sample.z;
+        }
+        return size;
+    }
+
+    /**
+     * Encodes samples of one band into a caller owned buffer, e.g. a reused one.
+     * @param buffer must have at least {@link #encodedSize(List, long)} bytes left from offset.
+     * @return the position right after the record.
+     */
+    public static int encode(List<Acceleration> samples, long sequence, byte[] buffer, int offset) {
+        int pos = offset;
+        buffer[pos++] = VERSION;
+        pos = Varint.writeUnsigned(buffer, pos, samples.size());
+        pos = writeId(buffer, pos, samples.isEmpty() ? "" : samples.get(0).deviceID);
+        pos = Varint.writeUnsigned(buffer, pos, sequence);
+        long lastTimestamp = 0;
+        int lastX = 0, lastY = 0, lastZ = 0;
+        for(int i = 0; i < samples.size(); i++) {
+            Acceleration sample = samples.get(i);
+            pos = Varint.writeSigned(buffer, pos, sample.timestamp - lastTimestamp);
+            pos = Varint.writeSigned(buffer, pos, sample.x - lastX);
+            pos = Varint.writeSigned(buffer, pos, sample.y - lastY);
+            pos = Varint.writeSigned(buffer, pos, sample.z - lastZ);
+            lastTimestamp = sample.timestamp;
+            lastX = sample.x;
+            lastY = sample.y;
+            lastZ = sample.z;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the most bytes {@link #encode(String, long, SampleBlock, int, int, byte[], int)} can
+     * write for count samples, for sizing a reused buffer.
+     */
+    public static int maxEncodedSize(String deviceId, int count) {
+        // Timestamp deltas take up to 10 bytes, 16-bit axis deltas up to 3.
+        return 1 + 2 * Varint.MAX_BYTES + idSize(deviceId) + count * (Varint.MAX_BYTES + 3 * 3);
+    }
+
+    /**
+     * Encodes count samples of a decoded block, starting at from.
+     * @param buffer must have at least {@link #maxEncodedSize(String, int)} bytes left from offset.
+     * @return the position right after the record.
+     */
+    public static int encode(String deviceId, long sequence, SampleBlock block, int from, int count,
+                             byte[] buffer, int offset) {
+        int pos = offset;
+        buffer[pos++] = VERSION;
+        pos = Varint.writeUnsigned(buffer, pos, count);
+        pos = writeId(buffer, pos, deviceId);
+        pos = Varint.writeUnsigned(buffer, pos, sequence);
+        long lastTimestamp = 0;
+        int lastX = 0, lastY = 0, lastZ = 0;
+        for(int i = from; i < from + count; i++) {
+            pos = Varint.writeSigned(buffer, pos, block.timestamps[i] - lastTimestamp);
+            pos = Varint.writeSigned(buffer, pos, block.x[i] - lastX);
+            pos = Varint.writeSigned(buffer, pos, block.y[i] - lastY);
+            pos = Varint.writeSigned(buffer, pos, block.z[i] - lastZ);
+            lastTimestamp = block.timestamps[i];
+            lastX = block.x[i];
+            lastY = block.y[i];
+            lastZ = block.z[i];
+        }
+        return pos;
+    }
+
+    /**
+     * Decodes a binary record into Acceleration objects.
+     * @throws IllegalArgumentException if the record is not a supported binary record or is cut short.
+     */
+    public static List<Acceleration> decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    public static List<Acceleration> decode(byte[] data, int offset, int length) {
+        if(RecordCompressor.isCompressed(data, offset, length)) {
+            byte[] record = RecordCompressor.decompress(data, offset, length);
+            return decode(record, 0, record.length);
+        }
+        Header header = readHeader(data, offset, length);
+        int[] cursor = {header.samplesOffset};
+        List<Acceleration> samples = new ArrayList<>(header.count);
+        long timestamp = 0;
+        int x = 0, y = 0, z = 0;
+        try {
+            for(int i = 0; i < header.count; i++) {
+                timestamp += Varint.readSigned(data, cursor);
+                x += (int) Varint.readSigned(data, cursor);
+                y += (int) Varint.readSigned(data, cursor);
+                z += (int) Varint.readSigned(data, cursor);
+                Acceleration sample = new Acceleration();
+                sample.deviceID = header.deviceId;
+                sample.timestamp = timestamp;
+                sample.x = x;
+                sample.y = y;
+                sample.z = z;
+                samples.add(sample);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        checkEnd(cursor[0], offset, length);
+        return samples;
+    }
+
+    /**
+     * Decodes a binary record into a block, without creating an object per sample.
+     * @return the device ID of the record.
+     * @throws IllegalArgumentException if the record is invalid or does not fit in the block.
+     */
+    public static String decode(byte[] data, int offset, int length, SampleBlock block) {
+        if(RecordCompressor.isCompressed(data, offset, length)) {
+            byte[] record = RecordCompressor.decompress(data, offset, length);
+            return decode(record, 0, record.length, block);
+        }
+        Header header = readHeader(data, offset, length);
+        if(block.capacity() - block.size() < header.count) {
+            throw new IllegalArgumentException("Block has no room for " + header.count + " samples");
+        }
+        int[] cursor = {header.samplesOffset};
+        long timestamp = 0;
+        int x = 0, y = 0, z = 0;
+        try {
+            for(int i = 0; i < header.count; i++) {
+                timestamp += Varint.readSigned(data, cursor);
+                x += (int) Varint.readSigned(data, cursor);
+                y += (int) Varint.readSigned(data, cursor);
+                z += (int) Varint.readSigned(data, cursor);
+                block.append(timestamp, (short) x, (short) y, (short) z);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        checkEnd(cursor[0], offset, length);
+        return header.deviceId;
+    }
+
+    /**
+     * @return the sequence number of a binary record, -1 for a version 1 record, which has none.
+     * @throws IllegalArgumentException if the record is not a supported binary record or is cut short.
+     */
+    public static long sequenceOf(byte[] data, int offset, int length) {
+        if(RecordCompressor.isCompressed(data, offset, length)) {
+            byte[] record = RecordCompressor.decompress(data, offset, length);
+            return readHeader(record, 0, record.length).sequence;
+        }
+        return readHeader(data, offset, length).sequence;
+    }
+
+    private static class Header {
+        int count;
+        String deviceId;
+        long sequence = -1;
+        int samplesOffset;
+    }
+
+    private static Header readHeader(byte[] data, int offset, int length) {
+        if(length < 3 || (data[offset] != VERSION && data[offset] != VERSION_1)) {
+            throw new IllegalArgumentException("Unsupported record version " + (length > 0 ? data[offset] : -1));
+        }
+        Header header = new Header();
+        int[] cursor = {offset + 1};
+        try {
+            long count = Varint.readUnsigned(data, cursor);
+            long idLength = Varint.readUnsigned(data, cursor);
+            if(count < 0 || count > length / MIN_SAMPLE_BYTES || idLength < 0 || cursor[0] + idLength > offset + length) {
+                throw new IllegalArgumentException("Corrupt record header");
+            }
+            header.count = (int) count;
+            header.deviceId = new String(data, cursor[0], (int) idLength, StandardCharsets.UTF_8);
+            cursor[0] += (int) idLength;
+            if(data[offset] != VERSION_1) {
+                header.sequence = Varint.readUnsigned(data, cursor);
+                checkEnd(cursor[0], offset, length);
+            }
+            header.samplesOffset = cursor[0];
+        }
+        catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        return header;
+    }
+
+    private static void checkEnd(int pos, int offset, int length) {
+        if(pos > offset + length) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+    }
+
+    private static int idSize(String deviceId) {
+        int length = utf8Length(deviceId);
+        return Varint.sizeUnsigned(length) + length;
+    }
+
+    private static int utf8Length(String deviceId) {
+        for(int i = 0; i < deviceId.length(); i++) {
+            if(deviceId.charAt(i) >= 0x80) {
+                return deviceId.getBytes(StandardCharsets.UTF_8).length;
+            }
+        }
+        return deviceId.length();
+    }
+
+    // Device IDs are plain ASCII in practice, those are written without allocating.
+    private static int writeId(byte[] buffer, int pos, String deviceId) {
+        int length = utf8Length(deviceId);
+        pos = Varint.writeUnsigned(buffer, pos, length);
+        if(length == deviceId.length()) {
+            for(int i = 0; i < length; i++) {
+                buffer[pos++] = (byte) deviceId.charAt(i);
+            }
+        }
+        else {
+            byte[] bytes = deviceId.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+            pos += bytes.length;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,145 @@
+package com.biosenix.banddebug.codec;
+
+import com.biosenix.banddebug.storage.Varint;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of {@link AccelerationCodec} records, for uploads over metered links.
+ *
+ * Compressed layout:
+ * <pre>
+ *   [0]     marker (uint8, 3), never a valid record version
+ *   [1]     codec (uint8, 1 = raw Deflate)
+ *   varint  sample count (unsigned), readable without inflating
+ *   varint  length of the uncompressed record (unsigned)
+ *   the delta coded record, compressed
+ * </pre>
+ * Delta coding leaves small, repetitive varints (a steady 20 ms timestamp step, axes moving by a
+ * few counts), which Deflate squeezes further. Records that do not shrink, typically records of a
+ * few samples, are returned as they are, so a consumer gets either layout and
+ * {@link AccelerationCodec#decode(byte[])} reads both.
+ *
+ * LZ4 would be faster but needs a native library. Deflate ships with Java and Android, and at
+ * {@link Deflater#BEST_SPEED} costs around 0.1 ms per 1000 samples on a desktop JVM, see
+ * CompressionBenchmark.
+ */
+public class RecordCompressor {
+    public static final byte MARKER = 3;
+    public static final byte CODEC_DEFLATE = 1;
+    // Smaller records are sent as they are, the Deflate block overhead eats any gain.
+    public static final int MIN_COMPRESS_BYTES = 64;
+    // Cap on the inflated size, so a corrupt length cannot make the decoder allocate gigabytes.
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final int HEADER_BYTES = 2 + 2 * Varint.MAX_BYTES;
+
+    private final Deflater deflater;
+    private byte[] buffer = new byte[1024];
+
+    /**
+     * @param level Deflate level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}.
+     */
+    public RecordCompressor(int level) {
+        if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+        // Raw Deflate, the record header already says what follows.
+        this.deflater = new Deflater(level, true);
+    }
+
+    /**
+     * Compresses an encoded record. Not thread safe, the Deflater is reused.
+     * @param record a record written by {@link AccelerationCodec}.
+     * @return the compressed record, or record itself if compressing does not make it smaller.
+     */
+    public byte[] compress(byte[] record) {
+        if(record.length < MIN_COMPRESS_BYTES || record[0] != AccelerationCodec.VERSION) {
+            return record;
+        }
+        long count = Varint.readUnsigned(record, new int[] {1});
+        if(buffer.length < HEADER_BYTES + record.length) {
+            buffer = new byte[HEADER_BYTES + record.length];
+        }
+        int pos = 0;
+        buffer[pos++] = MARKER;
+        buffer[pos++] = CODEC_DEFLATE;
+        pos = Varint.writeUnsigned(buffer, pos, count);
+        pos = Varint.writeUnsigned(buffer, pos, record.length);
+
+        deflater.reset();
+        deflater.setInput(record);
+        deflater.finish();
+        // Only output shorter than the record is of any use, stop there.
+        int limit = record.length - 1;
+        while(!deflater.finished() && pos < limit) {
+            pos += deflater.deflate(buffer, pos, limit - pos);
+        }
+        if(!deflater.finished()) {
+            return record;
+        }
+        return Arrays.copyOf(buffer, pos);
+    }
+
+    /**
+     * Frees the native Deflate state. The compressor cannot be used afterwards.
+     */
+    public void close() {
+        deflater.end();
+    }
+
+    public static boolean isCompressed(byte[] data, int offset, int length) {
+        return length > 0 && data[offset] == MARKER;
+    }
+
+    /**
+     * @return the uncompressed record.
+     * @throws IllegalArgumentException if the record is corrupt or uses an unknown codec.
+     */
+    public static byte[] decompress(byte[] data, int offset, int length) {
+        if(length < 4 || data[offset] != MARKER) {
+            throw new IllegalArgumentException("Not a compressed record");
+        }
+        if(data[offset + 1] != CODEC_DEFLATE) {
+            throw new IllegalArgumentException("Unsupported compression codec " + data[offset + 1]);
+        }
+        int[] cursor = {offset + 2};
+        long rawLength;
+        try {
+            Varint.readUnsigned(data, cursor);
+            rawLength = Varint.readUnsigned(data, cursor);
+        }
+        catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        if(rawLength < 0 || rawLength > MAX_RECORD_BYTES || cursor[0] > offset + length) {
+            throw new IllegalArgumentException("Corrupt compressed record header");
+        }
+
+        byte[] record = new byte[(int) rawLength];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, cursor[0], offset + length - cursor[0]);
+            int read = 0;
+            while(read < record.length) {
+                int n = inflater.inflate(record, read, record.length - read);
+                if(n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += n;
+            }
+            if(read < record.length) {
+                throw new IllegalArgumentException("Truncated record");
+            }
+        }
+        catch (DataFormatException ex) {
+            throw new IllegalArgumentException("Corrupt compressed record", ex);
+        }
+        finally {
+            inflater.end();
+        }
+        return record;
+    }
+}
@@ -0,0 +1,151 @@
+package com.biosenix.banddebug.decode;
+
+/**
+ * Decodes accelerometer notifications from the band straight into a {@link SampleBlock}.
+ *
+ * A sample frame is 10 bytes, all little-endian (LSB first):
+ * <pre>
+ *   [0..1] x (int16)  [2..3] y (int16)  [4..5] z (int16)  [6..9] timestamp (uint32, 1/1024 s ticks)
+ * </pre>
+ * With a larger MTU one notification can carry several samples. Two layouts are understood:
+ * <ul>
+ *   <li>{@link Format#RAW}: N sample frames back to back (a plain 10-byte notification is N = 1).</li>
+ *   <li>{@link Format#PACKED}: a header of sample count (uint8) and base timestamp (uint32),
+ *   followed by count * [x, y, z (int16), timestamp delta from the base (uint16)].</li>
+ * </ul>
+ * All samples of a notification are unpacked in one pass. The decoder holds no per-frame state
+ * and does not allocate, so one instance can be reused for the lifetime of a connection.
+ */
+public class AccelDecoder {
+    public static final int FRAME_SIZE = 10;
+
+    public static final int PACKED_HEADER_SIZE = 5;
+    public static final int PACKED_SAMPLE_SIZE = 8;
+
+    // ATT notifications carry MTU - 3 bytes of payload.
+    public static final int ATT_HEADER_SIZE = 3;
+    // Largest MTU Android negotiates.
+    public static final int MAX_MTU = 517;
+
+    /**
+     * Layout of the notifications sent by the band firmware.
+     */
+    public enum Format {
+        RAW,
+        PACKED
+    }
+
+    private final Format format;
+
+    // Number of frames that were thrown away because they did not have the expected length.
+    private long rejectedFrames = 0;
+
+    public AccelDecoder() {
+        this(Format.RAW);
+    }
+
+    public AccelDecoder(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * @return the most samples a notification can carry at the given MTU, for sizing blocks.
+     */
+    public static int maxSamplesPerNotification(int mtu) {
+        return maxSamplesPerPayload(mtu - ATT_HEADER_SIZE);
+    }
+
+    /**
+     * @return the most samples a payload of the given size can carry in either format.
+     */
+    public static int maxSamplesPerPayload(int payloadSize) {
+        return Math.max(1, Math.max(payloadSize / FRAME_SIZE,
+                (payloadSize - PACKED_HEADER_SIZE) / PACKED_SAMPLE_SIZE));
+    }
+
+    /**
+     * Decodes a notification payload and appends its samples to the block.
+     * @param data the raw characteristic value.
+     * @param block the block to append the decoded samples to.
+     * @return true if the samples were appended. False if the frame was malformed or the block
+     * does not have room for all of its samples, in which case nothing is appended.
+     */
+    public boolean decode(byte[] data, SampleBlock block) {
+        return decode(data, data == null ? 0 : data.length, block);
+    }
+
+    /**
+     * Same as {@link #decode(byte[], SampleBlock)} for a frame held in the first length bytes of
+     * a reused buffer.
+     */
+    public boolean decode(byte[] data, int length, SampleBlock block) {
+        int count = data == null ? 0 : sampleCount(data, length);
+        if(count <= 0) {
+            rejectedFrames++;
+            return false;
+        }
+        if(block.capacity() - block.size() < count) {
+            return false;
+        }
+
+        if(format == Format.RAW) {
+            for(int offset = 0; offset < length; offset += FRAME_SIZE) {
+                decodeFrame(data, offset, block);
+            }
+        }
+        else {
+            long base = readUInt32(data, 1);
+            for(int offset = PACKED_HEADER_SIZE; offset < length; offset += PACKED_SAMPLE_SIZE) {
+                short x = (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+                short y = (short) ((data[offset + 2] & 0xFF) | (data[offset + 3] << 8));
+                short z = (short) ((data[offset + 4] & 0xFF) | (data[offset + 5] << 8));
+                int delta = (data[offset + 6] & 0xFF) | (data[offset + 7] & 0xFF) << 8;
+                // The band clock is 32 bits, so base + delta wraps with it.
+                block.append((base + delta) & 0xFFFFFFFFL, x, y, z);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of samples in the notification, or 0 if its length does not match the format.
+     */
+    private int sampleCount(byte[] data, int length) {
+        if(format == Format.RAW) {
+            return (length > 0 && length % FRAME_SIZE == 0) ? length / FRAME_SIZE : 0;
+        }
+        if(length < PACKED_HEADER_SIZE + PACKED_SAMPLE_SIZE) {
+            return 0;
+        }
+        int count = data[0] & 0xFF;
+        return length == PACKED_HEADER_SIZE + count * PACKED_SAMPLE_SIZE ? count : 0;
+    }
+
+    /**
+     * Decodes the frame starting at offset. The caller must make sure the frame fits in data
+     * and that the block has room for it.
+     */
+    static void decodeFrame(byte[] data, int offset, SampleBlock block) {
+        // Only the MSB carries the sign, the LSB must be masked so it is not sign extended.
+        short x = (short) ((data[offset] & 0xFF) | (data[offset + 1] << 8));
+        short y = (short) ((data[offset + 2] & 0xFF) | (data[offset + 3] << 8));
+        short z = (short) ((data[offset + 4] & 0xFF) | (data[offset + 5] << 8));
+
+        block.append(readUInt32(data, offset + 6), x, y, z);
+    }
+
+    private static long readUInt32(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) |
+                (data[offset + 1] & 0xFFL) << 8 |
+                (data[offset + 2] & 0xFFL) << 16 |
+                (data[offset + 3] & 0xFFL) << 24;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public long getRejectedFrames() {
+        return rejectedFrames;
+    }
+}
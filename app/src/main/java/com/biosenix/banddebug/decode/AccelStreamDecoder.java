@@ -0,0 +1,36 @@
+package com.biosenix.banddebug.decode;
+
+/**
+ * {@link StreamDecoder} of the ACC characteristic: an {@link AccelDecoder} filling a block of its
+ * own, sized for the largest notification.
+ */
+public class AccelStreamDecoder implements StreamDecoder {
+    private final AccelDecoder decoder;
+    private final SampleBlock block;
+
+    /**
+     * @param payloadSize largest notification payload, e.g. the frame ring's slot size.
+     */
+    public AccelStreamDecoder(AccelDecoder.Format format, int payloadSize) {
+        this.decoder = new AccelDecoder(format);
+        this.block = new SampleBlock(AccelDecoder.maxSamplesPerPayload(payloadSize));
+    }
+
+    @Override
+    public int decode(byte[] data, int length) {
+        block.clear();
+        return decoder.decode(data, length, block) ? block.size() : 0;
+    }
+
+    @Override
+    public long getRejectedFrames() {
+        return decoder.getRejectedFrames();
+    }
+
+    /**
+     * @return the samples of the last decoded notification, raw band timestamps.
+     */
+    public SampleBlock getBlock() {
+        return block;
+    }
+}
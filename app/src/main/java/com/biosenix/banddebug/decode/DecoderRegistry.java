@@ -0,0 +1,146 @@
+package com.biosenix.banddebug.decode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Table of the band characteristics the app subscribes to and the {@link StreamDecoder} of each.
+ * Supporting a new firmware payload means registering its characteristic and decoder here.
+ *
+ * Each registered characteristic gets a small stream index, in registration order. Notifications
+ * are routed by looking up the characteristic's parsed {@link UUID} once, on the Bluetooth
+ * thread, and carrying the index along with the frame, so the decode side only indexes an array.
+ *
+ * A stream is decoded whenever its notifications arrive, but the band is only asked to send
+ * those of the subscribed streams, see {@link #getSubscribedCharacteristics()}. Streams nothing
+ * consumes yet stay unsubscribed, so they cost no radio time and no frame ring slots.
+ *
+ * Register everything before the first connection, lookups are not synchronized with it.
+ */
+public class DecoderRegistry {
+    public static final UUID ACC_CHARACTERISTIC = UUID.fromString("f3641404-00b0-4240-ba50-05ca45bf8abc");
+    public static final UUID PPG_CHARACTERISTIC = UUID.fromString("f3641403-00b0-4240-ba50-05ca45bf8abc");
+
+    /**
+     * Creates the decoder of a stream for a new connection.
+     */
+    public interface Factory {
+        /**
+         * @param payloadSize largest notification payload the decoder gets.
+         */
+        StreamDecoder create(int payloadSize);
+    }
+
+    private final List<UUID> characteristics = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<Factory> factories = new ArrayList<>();
+    private final List<Boolean> subscribed = new ArrayList<>();
+    private final Map<UUID, Integer> indexes = new HashMap<>();
+
+    /**
+     * @return a registry with the ACC stream, index 0, and the PPG stream, index 1. Only ACC is
+     * subscribed, PPG has no consumer in the app yet, see {@link #setSubscribed}.
+     */
+    public static DecoderRegistry createDefault(AccelDecoder.Format format) {
+        DecoderRegistry registry = new DecoderRegistry();
+        registry.register(ACC_CHARACTERISTIC, "acc", payloadSize -> new AccelStreamDecoder(format, payloadSize));
+        registry.register(PPG_CHARACTERISTIC, "ppg", PpgDecoder::new, false);
+        return registry;
+    }
+
+    /**
+     * Registers a subscribed stream.
+     * @param name short name for the stream's metrics, e.g. "ppg".
+     * @return the stream index of the characteristic.
+     */
+    public int register(UUID characteristic, String name, Factory factory) {
+        return register(characteristic, name, factory, true);
+    }
+
+    /**
+     * @param subscribe whether bands are asked to send the stream's notifications.
+     * @return the stream index of the characteristic.
+     */
+    public int register(UUID characteristic, String name, Factory factory, boolean subscribe) {
+        if(indexes.containsKey(characteristic)) {
+            throw new IllegalArgumentException("Characteristic already registered: " + characteristic);
+        }
+        int index = characteristics.size();
+        characteristics.add(characteristic);
+        names.add(name);
+        factories.add(factory);
+        subscribed.add(subscribe);
+        indexes.put(characteristic, index);
+        return index;
+    }
+
+    /**
+     * Turns the subscription to a registered stream on or off, for the connections made after.
+     */
+    public void setSubscribed(UUID characteristic, boolean subscribe) {
+        int index = indexOf(characteristic);
+        if(index < 0) {
+            throw new IllegalArgumentException("Characteristic not registered: " + characteristic);
+        }
+        subscribed.set(index, subscribe);
+    }
+
+    public boolean isSubscribed(int index) {
+        return subscribed.get(index);
+    }
+
+    /**
+     * @return the stream index of the characteristic, or -1 if it is not registered.
+     */
+    public int indexOf(UUID characteristic) {
+        Integer index = characteristic != null ? indexes.get(characteristic) : null;
+        return index != null ? index : -1;
+    }
+
+    public int size() {
+        return characteristics.size();
+    }
+
+    public UUID getCharacteristic(int index) {
+        return characteristics.get(index);
+    }
+
+    public String getName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * @return the registered characteristics in stream index order.
+     */
+    public List<UUID> getCharacteristics() {
+        return Collections.unmodifiableList(characteristics);
+    }
+
+    /**
+     * @return the characteristics of the subscribed streams in stream index order, to subscribe to.
+     */
+    public List<UUID> getSubscribedCharacteristics() {
+        List<UUID> result = new ArrayList<>();
+        for(int i = 0; i < characteristics.size(); i++) {
+            if(subscribed.get(i)) {
+                result.add(characteristics.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return a new decoder for every stream, in stream index order.
+     */
+    public StreamDecoder[] createDecoders(int payloadSize) {
+        StreamDecoder[] decoders = new StreamDecoder[factories.size()];
+        for(int i = 0; i < decoders.length; i++) {
+            decoders[i] = factories.get(i).create(payloadSize);
+        }
+        return decoders;
+    }
+}
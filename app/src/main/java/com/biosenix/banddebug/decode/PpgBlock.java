@@ -0,0 +1,47 @@
+package com.biosenix.banddebug.decode;
+
+/**
+ * Fixed capacity block of PPG samples, in parallel primitive arrays like {@link SampleBlock}.
+ */
+public class PpgBlock {
+    // Raw band timestamps (unsigned 32-bit ticks, 1/1024 s) of each sample.
+    public final long[] timestamps;
+    // Optical sensor reading.
+    public final int[] values;
+
+    private int size = 0;
+
+    public PpgBlock(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.timestamps = new long[capacity];
+        this.values = new int[capacity];
+    }
+
+    /**
+     * Appends a sample to the end of the block.
+     * @return true if the sample was stored, false if the block is already full.
+     */
+    public boolean append(long timestamp, int value) {
+        if(size == timestamps.length) {
+            return false;
+        }
+        timestamps[size] = timestamp;
+        values[size] = value;
+        size++;
+        return true;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+}
@@ -0,0 +1,58 @@
+package com.biosenix.banddebug.decode;
+
+/**
+ * Decodes PPG notifications into a {@link PpgBlock}.
+ *
+ * A sample frame is 8 bytes, little-endian, framed like the ACC samples:
+ * <pre>
+ *   [0..3] reading (int32)  [4..7] timestamp (uint32, 1/1024 s ticks)
+ * </pre>
+ * A notification carries one or more frames back to back. Notifications of any other length are
+ * rejected and counted.
+ */
+public class PpgDecoder implements StreamDecoder {
+    public static final int FRAME_SIZE = 8;
+
+    private final PpgBlock block;
+    private long rejectedFrames = 0;
+
+    /**
+     * @param payloadSize largest notification payload, e.g. the frame ring's slot size.
+     */
+    public PpgDecoder(int payloadSize) {
+        this.block = new PpgBlock(Math.max(1, payloadSize / FRAME_SIZE));
+    }
+
+    @Override
+    public int decode(byte[] data, int length) {
+        block.clear();
+        if(data == null || length <= 0 || length % FRAME_SIZE != 0 || length / FRAME_SIZE > block.capacity()) {
+            rejectedFrames++;
+            return 0;
+        }
+        for(int offset = 0; offset < length; offset += FRAME_SIZE) {
+            int value = (data[offset] & 0xFF) |
+                    (data[offset + 1] & 0xFF) << 8 |
+                    (data[offset + 2] & 0xFF) << 16 |
+                    data[offset + 3] << 24;
+            long timestamp = (data[offset + 4] & 0xFFL) |
+                    (data[offset + 5] & 0xFFL) << 8 |
+                    (data[offset + 6] & 0xFFL) << 16 |
+                    (data[offset + 7] & 0xFFL) << 24;
+            block.append(timestamp, value);
+        }
+        return block.size();
+    }
+
+    @Override
+    public long getRejectedFrames() {
+        return rejectedFrames;
+    }
+
+    /**
+     * @return the samples of the last decoded notification, raw band timestamps.
+     */
+    public PpgBlock getBlock() {
+        return block;
+    }
+}
@@ -0,0 +1,65 @@
+package com.biosenix.banddebug.decode;
+
+/**
+ * Fixed capacity block of accelerometer samples.
+ * Samples are stored as parallel primitive arrays (struct-of-arrays) which are allocated once,
+ * so filling and draining a block never creates per-sample objects.
+ */
+public class SampleBlock {
+    // Raw band timestamps (unsigned 32-bit ticks, 1/1024 s) of each sample.
+    public final long[] timestamps;
+    public final short[] x;
+    public final short[] y;
+    public final short[] z;
+
+    private int size = 0;
+
+    public SampleBlock(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.timestamps = new long[capacity];
+        this.x = new short[capacity];
+        this.y = new short[capacity];
+        this.z = new short[capacity];
+    }
+
+    /**
+     * Appends a sample to the end of the block.
+     * @return true if the sample was stored, false if the block is already full.
+     */
+    public boolean append(long timestamp, short x, short y, short z) {
+        if(size == timestamps.length) {
+            return false;
+        }
+        this.timestamps[size] = timestamp;
+        this.x[size] = x;
+        this.y[size] = y;
+        this.z[size] = z;
+        size++;
+        return true;
+    }
+
+    /**
+     * Resets the block so it can be refilled. The backing arrays are kept.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,24 @@
+package com.biosenix.banddebug.decode;
+
+/**
+ * Decoder of the notifications of one band characteristic into a primitive sample buffer of its
+ * own type, e.g. {@link SampleBlock} for ACC or {@link PpgBlock} for PPG. Registered per
+ * characteristic in a {@link DecoderRegistry}.
+ *
+ * Each connection gets its own instances, used by one thread at a time, so a decoder may keep
+ * its buffer and counters without locking.
+ */
+public interface StreamDecoder {
+    /**
+     * Decodes one notification into the decoder's buffer, replacing the samples of the previous
+     * one.
+     * @param data buffer holding the notification in its first length bytes.
+     * @return the samples decoded, 0 if the frame was rejected.
+     */
+    int decode(byte[] data, int length);
+
+    /**
+     * @return frames that were rejected because their length or header did not match the format.
+     */
+    long getRejectedFrames();
+}
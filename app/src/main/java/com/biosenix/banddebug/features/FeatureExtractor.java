@@ -0,0 +1,221 @@
+package com.biosenix.banddebug.features;
+
+/**
+ * Incremental activity features over the sample stream of one band.
+ *
+ * The last {@link Config#windowSamples} samples are kept in preallocated rings. Per axis sums and
+ * sums of squares, and the sum of the vector magnitudes, are updated as samples enter and leave
+ * the window, so the window statistics cost O(1) per sample. Every {@link Config#hopSamples}
+ * samples the extractor fills its reused {@link Features} and hands them to the listener: window
+ * statistics, activity counts since the previous features and the band powers of the vector
+ * magnitude from a Hann windowed FFT of the window.
+ *
+ * The spectrum is the one part that is not O(1) per sample: the FFT costs O(N log N) per hop, so
+ * O(N / hop * log N) amortized per sample. With the default hop close to the window size that is
+ * O(log N). Small hops make it expensive, keep the hop at a good part of the window. Nothing is
+ * allocated after construction.
+ *
+ * Not thread safe, feed each extractor from one thread at a time.
+ */
+public class FeatureExtractor {
+
+    /**
+     * Extraction settings. The defaults fit a 50 Hz band: a 5.12 s window and features every 5 s.
+     */
+    public static class Config {
+        public double sampleRateHz = 50;
+        // Window length, a power of two as it is also the FFT size.
+        public int windowSamples = 256;
+        // Samples between two features. Each hop also costs one FFT of the window.
+        public int hopSamples = 250;
+        // Raw counts of 1 g on each axis.
+        public double countsPerG = 1024;
+        // Magnitude changes below this many g around 1 g are sensor noise, not activity.
+        public double deadBandG = 0.02;
+        // Frequency band edges, band i is [edges[i], edges[i + 1]). Bins outside all bands are ignored.
+        public double[] bandEdgesHz = {0.25, 3, 8, 25};
+    }
+
+    public interface Listener {
+        /**
+         * Called every hop on the feeding thread. The features object is reused, copy what
+         * must outlive the call.
+         */
+        void onFeatures(Features features);
+    }
+
+    private final Config config;
+    private final Listener listener;
+    private final Features features;
+
+    private final int window;
+    private final int mask;
+    private final short[][] axes = new short[3][];
+    private final double[] magnitudes;
+    private double magnitudeSum = 0;
+    private final long[] sums = new long[3];
+    private final long[] squares = new long[3];
+    private int next = 0;
+    private int filled = 0;
+    private int sinceFeatures = 0;
+    private double activity = 0;
+
+    private final Fft fft;
+    private final double[] hann;
+    private final double hannEnergy;
+    private final double[] re;
+    private final double[] im;
+    // First and last FFT bin of each band, inclusive.
+    private final int[] bandFrom;
+    private final int[] bandTo;
+
+    public FeatureExtractor(String deviceId, Config config, Listener listener) {
+        if(config.hopSamples < 1) {
+            throw new IllegalArgumentException("Hop must be at least one sample: " + config.hopSamples);
+        }
+        this.config = config;
+        this.listener = listener;
+        this.fft = new Fft(config.windowSamples);
+        this.window = config.windowSamples;
+        this.mask = window - 1;
+        for(int axis = 0; axis < 3; axis++) {
+            axes[axis] = new short[window];
+        }
+        this.magnitudes = new double[window];
+        this.re = new double[window];
+        this.im = new double[window];
+
+        this.hann = new double[window];
+        double energy = 0;
+        for(int i = 0; i < window; i++) {
+            hann[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / window);
+            energy += hann[i] * hann[i];
+        }
+        this.hannEnergy = energy;
+
+        int bands = Math.max(0, config.bandEdgesHz.length - 1);
+        this.bandFrom = new int[bands];
+        this.bandTo = new int[bands];
+        double binHz = config.sampleRateHz / window;
+        for(int band = 0; band < bands; band++) {
+            bandFrom[band] = Math.max(1, (int) Math.ceil(config.bandEdgesHz[band] / binHz));
+            bandTo[band] = Math.min(window / 2, (int) Math.ceil(config.bandEdgesHz[band + 1] / binHz) - 1);
+        }
+        this.features = new Features(bands);
+        features.deviceID = deviceId;
+    }
+
+    /**
+     * Adds a sample, calling the listener if a hop is complete.
+     * @param timestamp sample time in the session's relative milliseconds.
+     */
+    public void add(long timestamp, int x, int y, int z) {
+        if(filled == window) {
+            remove(next);
+        }
+        else {
+            filled++;
+        }
+        put(0, x);
+        put(1, y);
+        put(2, z);
+        double magnitude = Math.sqrt((double) x * x + (double) y * y + (double) z * z);
+        magnitudes[next] = magnitude;
+        magnitudeSum += magnitude;
+        next = (next + 1) & mask;
+        if(next == 0) {
+            // Once per window, sum afresh so rounding errors do not pile up over a long session.
+            magnitudeSum = 0;
+            for(int i = 0; i < filled; i++) {
+                magnitudeSum += magnitudes[i];
+            }
+        }
+
+        double excess = Math.abs(magnitude / config.countsPerG - 1) - config.deadBandG;
+        if(excess > 0) {
+            activity += excess;
+        }
+        if(++sinceFeatures >= config.hopSamples) {
+            emit(timestamp);
+        }
+    }
+
+    /**
+     * Forgets the window and the activity since the last features, e.g. after a gap in the data.
+     */
+    public void reset() {
+        for(int axis = 0; axis < 3; axis++) {
+            sums[axis] = 0;
+            squares[axis] = 0;
+        }
+        magnitudeSum = 0;
+        next = 0;
+        filled = 0;
+        sinceFeatures = 0;
+        activity = 0;
+    }
+
+    private void put(int axis, int value) {
+        // Band axes are 16 bit, the ring keeps them as such.
+        short sample = (short) value;
+        axes[axis][next] = sample;
+        sums[axis] += sample;
+        squares[axis] += sample * sample;
+    }
+
+    private void remove(int index) {
+        for(int axis = 0; axis < 3; axis++) {
+            short sample = axes[axis][index];
+            sums[axis] -= sample;
+            squares[axis] -= sample * sample;
+        }
+        magnitudeSum -= magnitudes[index];
+    }
+
+    private void emit(long timestamp) {
+        features.timestamp = timestamp;
+        features.epochMillis = 0;
+        features.samples = filled;
+        for(int axis = 0; axis < 3; axis++) {
+            double mean = (double) sums[axis] / filled;
+            features.mean[axis] = mean;
+            features.variance[axis] = Math.max(0, (double) squares[axis] / filled - mean * mean);
+        }
+        features.activityCount = Math.round(activity * 1000);
+        activity = 0;
+        sinceFeatures = 0;
+
+        // Oldest sample first. A window that is not full yet is zero padded at the end.
+        int oldest = filled == window ? next : 0;
+        double mean = magnitudeSum / filled;
+        features.magnitudeMean = mean;
+        for(int i = 0; i < window; i++) {
+            re[i] = i < filled ? (magnitudes[(oldest + i) & mask] - mean) * hann[i] : 0;
+            im[i] = 0;
+        }
+        fft.transform(re, im);
+
+        // One sided power, scaled so that all bins add up to the variance of the magnitude.
+        double scale = 1 / (window * hannEnergy);
+        int peak = 1;
+        double peakPower = -1;
+        for(int bin = 1; bin <= window / 2; bin++) {
+            double power = re[bin] * re[bin] + im[bin] * im[bin];
+            if(power > peakPower) {
+                peakPower = power;
+                peak = bin;
+            }
+        }
+        for(int band = 0; band < bandFrom.length; band++) {
+            double power = 0;
+            for(int bin = bandFrom[band]; bin <= bandTo[band]; bin++) {
+                double factor = bin == window / 2 ? 1 : 2;
+                power += factor * (re[bin] * re[bin] + im[bin] * im[bin]);
+            }
+            features.bandPower[band] = power * scale;
+        }
+        features.dominantFrequencyHz = peak * config.sampleRateHz / window;
+
+        listener.onFeatures(features);
+    }
+}
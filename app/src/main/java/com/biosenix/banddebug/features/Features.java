@@ -0,0 +1,33 @@
+package com.biosenix.banddebug.features;
+
+/**
+ * Activity features of one band over one window, as produced by {@link FeatureExtractor}.
+ * Axis values are in raw band counts.
+ */
+public class Features {
+    public String deviceID;
+    // Timestamp of the last sample of the window, in the session's relative milliseconds.
+    public long timestamp;
+    // Phone time of timestamp, filled in by the uploader, 0 if unknown.
+    public long epochMillis;
+    // Samples in the window, less than the window size right after the start.
+    public int samples;
+
+    // Mean of the vector magnitude sqrt(x^2 + y^2 + z^2).
+    public double magnitudeMean;
+    public final double[] mean = new double[3];
+    public final double[] variance = new double[3];
+
+    // Sum of |magnitude - 1 g| above the dead band, in milli-g, over the samples since the last features.
+    public long activityCount;
+
+    // Power of the vector magnitude in each frequency band of FeatureExtractor.Config.bandEdgesHz,
+    // in counts^2. Together they add up to roughly the magnitude variance.
+    public final double[] bandPower;
+    // Frequency with the most power, DC excluded.
+    public double dominantFrequencyHz;
+
+    public Features(int bands) {
+        this.bandPower = new double[bands];
+    }
+}
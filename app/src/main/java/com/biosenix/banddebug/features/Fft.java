@@ -0,0 +1,71 @@
+package com.biosenix.banddebug.features;
+
+/**
+ * In-place radix-2 FFT of a fixed size, with the twiddle factors and bit reversal table computed
+ * once. Transforms do not allocate.
+ */
+public class Fft {
+    private final int size;
+    private final int[] reversed;
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * @param size number of points, a power of two.
+     */
+    public Fft(int size) {
+        if(size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        this.size = size;
+        this.reversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for(int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        this.cos = new double[size / 2];
+        this.sin = new double[size / 2];
+        for(int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = -Math.sin(2 * Math.PI * i / size);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Replaces re and im, both of {@link #getSize()} values, with their discrete Fourier transform.
+     */
+    public void transform(double[] re, double[] im) {
+        for(int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if(j > i) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for(int half = 1; half < size; half <<= 1) {
+            int step = size / (2 * half);
+            for(int start = 0; start < size; start += 2 * half) {
+                for(int k = 0; k < half; k++) {
+                    int even = start + k;
+                    int odd = even + half;
+                    double wr = cos[k * step];
+                    double wi = sin[k * step];
+                    double tr = wr * re[odd] - wi * im[odd];
+                    double ti = wr * im[odd] + wi * re[odd];
+                    re[odd] = re[even] - tr;
+                    im[odd] = im[even] - ti;
+                    re[even] += tr;
+                    im[even] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.biosenix.banddebug.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic count of events, e.g. notifications received or records dropped.
+ * Lock-free and does not allocate.
+ */
+public class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void increment() {
+        value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        if(delta != 0) {
+            value.addAndGet(delta);
+        }
+    }
+
+    public long get() {
+        return value.get();
+    }
+}
@@ -0,0 +1,8 @@
+package com.biosenix.banddebug.metrics;
+
+/**
+ * Current value of something, read when a snapshot is taken, e.g. in-flight requests.
+ */
+public interface Gauge {
+    long get();
+}
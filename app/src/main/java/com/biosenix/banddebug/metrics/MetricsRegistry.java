@@ -0,0 +1,87 @@
+package com.biosenix.banddebug.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters, gauges and histograms of the ingest and upload pipeline.
+ *
+ * Components look their metrics up once, when they are created, and keep the returned objects.
+ * Looking up the same name again returns the same metric, so several instances of a component
+ * (e.g. one session per band) add up into one metric. Recording then never touches the registry.
+ *
+ * Names are dotted, lowercase identifiers, e.g. "ble.notifications". Latency histograms carry
+ * their unit as suffix, e.g. "kinesis.upload_latency_ms".
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @return the registry shared by the whole app.
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, key -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, key -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge, replacing any earlier one of the same name.
+     */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes the gauge if it is still the registered one, e.g. when its owner is closed.
+     */
+    public void removeGauge(String name, Gauge gauge) {
+        gauges.remove(name, gauge);
+    }
+
+    /**
+     * @return the counter values by name, sorted.
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for(Map.Entry<String, Counter> counter : counters.entrySet()) {
+            values.put(counter.getKey(), counter.getValue().get());
+        }
+        return values;
+    }
+
+    /**
+     * @return the current gauge values by name, sorted.
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for(Map.Entry<String, Gauge> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().get());
+        }
+        return values;
+    }
+
+    /**
+     * @return snapshots of the histograms by name, sorted.
+     */
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        Map<String, Histogram.Snapshot> values = new TreeMap<>();
+        for(Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            values.put(histogram.getKey(), histogram.getValue().snapshot());
+        }
+        return values;
+    }
+}
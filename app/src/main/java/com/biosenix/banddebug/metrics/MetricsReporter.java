@@ -0,0 +1,145 @@
+package com.biosenix.banddebug.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically appends a snapshot of a {@link MetricsRegistry} to a local file, one JSON object
+ * per line, so a study coordinator can pull it from the phone:
+ * <pre>
+ *   adb pull /sdcard/Android/data/com.biosenix.banddebug/files/metrics.jsonl
+ * </pre>
+ * Each line holds the counter totals and their rate per second since the previous line, the
+ * gauge values and count, mean, p50, p90, p99 and max of each histogram. Once the file reaches
+ * its size limit it is moved to "name.1" and a new one is started.
+ */
+public class MetricsReporter {
+    private final MetricsRegistry registry;
+    private final File file;
+    private final long intervalMillis;
+    private final long maxFileBytes;
+    private final ScheduledExecutorService scheduler;
+
+    // Counter totals of the previous report, to compute rates. Report thread only.
+    private final Map<String, Long> previousCounters = new HashMap<>();
+    private long previousMillis = -1;
+
+    /**
+     * @param file file to append the snapshots to.
+     * @param intervalMillis time between two snapshots.
+     * @param maxFileBytes size at which the file is rotated.
+     */
+    public MetricsReporter(MetricsRegistry registry, File file, long intervalMillis, long maxFileBytes) {
+        this.registry = registry;
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.maxFileBytes = maxFileBytes;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::reportQuietly, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the timer and writes a last snapshot.
+     */
+    public void stop() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        reportQuietly();
+    }
+
+    /**
+     * Appends a snapshot to the file now.
+     */
+    public synchronized void report() throws IOException {
+        String line = format(System.currentTimeMillis());
+        if(file.length() >= maxFileBytes) {
+            File rotated = new File(file.getPath() + ".1");
+            rotated.delete();
+            file.renameTo(rotated);
+        }
+        try (OutputStream out = new FileOutputStream(file, true)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * @return the snapshot as one JSON line, updating the rate baseline.
+     */
+    synchronized String format(long nowMillis) {
+        double seconds = previousMillis < 0 ? 0 : (nowMillis - previousMillis) / 1000.0;
+        StringBuilder json = new StringBuilder(1024);
+        json.append("{\"time\":").append(nowMillis);
+
+        json.append(",\"counters\":{");
+        boolean first = true;
+        for(Map.Entry<String, Long> counter : registry.getCounters().entrySet()) {
+            Long previous = previousCounters.put(counter.getKey(), counter.getValue());
+            double rate = seconds > 0 ? (counter.getValue() - (previous != null ? previous : 0)) / seconds : 0;
+            first = key(json, counter.getKey(), first);
+            json.append("{\"total\":").append(counter.getValue())
+                    .append(",\"rate\":").append(Math.round(rate * 100) / 100.0).append('}');
+        }
+
+        json.append("},\"gauges\":{");
+        first = true;
+        for(Map.Entry<String, Long> gauge : registry.getGauges().entrySet()) {
+            first = key(json, gauge.getKey(), first);
+            json.append(gauge.getValue());
+        }
+
+        json.append("},\"histograms\":{");
+        first = true;
+        for(Map.Entry<String, Histogram.Snapshot> entry : registry.getHistograms().entrySet()) {
+            Histogram.Snapshot histogram = entry.getValue();
+            first = key(json, entry.getKey(), first);
+            json.append("{\"count\":").append(histogram.count)
+                    .append(",\"mean\":").append(Math.round(histogram.getMean() * 100) / 100.0)
+                    .append(",\"p50\":").append(histogram.getPercentile(0.5))
+                    .append(",\"p90\":").append(histogram.getPercentile(0.9))
+                    .append(",\"p99\":").append(histogram.getPercentile(0.99))
+                    .append(",\"max\":").append(histogram.max).append('}');
+        }
+        json.append("}}\n");
+
+        previousMillis = nowMillis;
+        return json.toString();
+    }
+
+    private void reportQuietly() {
+        try {
+            report();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    // Metric names are plain identifiers, they never need escaping.
+    private static boolean key(StringBuilder json, String name, boolean first) {
+        if(!first) {
+            json.append(',');
+        }
+        json.append('"').append(name).append("\":");
+        return false;
+    }
+}
@@ -0,0 +1,268 @@
+package com.biosenix.banddebug.pipeline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring of raw notification frames.
+ *
+ * The GATT callback (producer) only copies the frame bytes into a preallocated slot, everything
+ * else happens on the consumer thread. Slots live in one flat byte array, so neither side
+ * allocates. Exactly one thread may call {@link #offer} and exactly one other thread may call
+ * {@link #poll} / {@link #await}.
+ */
+public class FrameRing {
+
+    /**
+     * What the producer does when the ring is full.
+     */
+    public enum OverflowPolicy {
+        // Discard the incoming frame.
+        DROP_NEWEST,
+        // Discard the oldest unread frame to make room for the incoming one.
+        DROP_OLDEST,
+        // Wait for the consumer to free a slot.
+        BLOCK
+    }
+
+    private final byte[] slots;
+    private final int[] lengths;
+    // Caller supplied stamp of each frame, e.g. its receive time, and tag, e.g. its stream.
+    private final long[] stamps;
+    private final int[] tags;
+    // Stamp and tag of the frame returned by the last poll, consumer thread only.
+    private long polledStamp = 0;
+    private int polledTag = 0;
+    private final int slotSize;
+    private final int mask;
+    private final OverflowPolicy policy;
+
+    // Next sequence to read. Only the consumer advances it, except for DROP_OLDEST where the
+    // producer may skip it forward, so both sides use CAS.
+    private final AtomicLong head = new AtomicLong();
+    // Next sequence to write. Only written by the producer.
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waitingConsumer = null;
+    private volatile Thread waitingProducer = null;
+    private volatile boolean closed = false;
+
+    private final AtomicLong overflows = new AtomicLong();
+    private final AtomicLong oversized = new AtomicLong();
+    private final AtomicLong producerBlocks = new AtomicLong();
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two.
+     * @param slotSize largest frame, in bytes, a slot can hold.
+     * @param policy what to do when the ring is full.
+     */
+    public FrameRing(int capacity, int slotSize, OverflowPolicy policy) {
+        if(capacity <= 0 || capacity > (1 << 24) || slotSize <= 0) {
+            throw new IllegalArgumentException("Invalid ring size " + capacity + "x" + slotSize);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        if(capacity == 1) {
+            size = 1;
+        }
+        this.slots = new byte[size * slotSize];
+        this.lengths = new int[size];
+        this.stamps = new long[size];
+        this.tags = new int[size];
+        this.slotSize = slotSize;
+        this.mask = size - 1;
+        this.policy = policy;
+    }
+
+    /**
+     * Copies a frame into the ring. Producer thread only.
+     * @return true if the frame was stored. False if it was dropped, was larger than a slot or
+     * the ring is closed.
+     */
+    public boolean offer(byte[] data, int offset, int length) {
+        return offer(data, offset, length, 0);
+    }
+
+    /**
+     * Same as {@link #offer(byte[], int, int)}, also storing a stamp with the frame that the
+     * consumer can read back with {@link #getPolledStamp()}.
+     */
+    public boolean offer(byte[] data, int offset, int length, long stamp) {
+        return offer(data, offset, length, stamp, 0);
+    }
+
+    /**
+     * Same as {@link #offer(byte[], int, int, long)}, also storing a tag with the frame that the
+     * consumer can read back with {@link #getPolledTag()}.
+     */
+    public boolean offer(byte[] data, int offset, int length, long stamp, int tag) {
+        if(length > slotSize) {
+            oversized.incrementAndGet();
+            return false;
+        }
+        if(closed) {
+            return false;
+        }
+
+        long t = tail.get();
+        while(t - head.get() > mask) {
+            switch(policy) {
+                case DROP_NEWEST:
+                    overflows.incrementAndGet();
+                    return false;
+                case DROP_OLDEST: {
+                    long h = head.get();
+                    if(t - h > mask && head.compareAndSet(h, h + 1)) {
+                        overflows.incrementAndGet();
+                    }
+                    break;
+                }
+                case BLOCK:
+                    producerBlocks.incrementAndGet();
+                    waitingProducer = Thread.currentThread();
+                    if(t - head.get() > mask && !closed) {
+                        LockSupport.parkNanos(this, 100_000);
+                    }
+                    waitingProducer = null;
+                    if(closed) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+
+        int index = (int) (t & mask);
+        System.arraycopy(data, offset, slots, index * slotSize, length);
+        lengths[index] = length;
+        stamps[index] = stamp;
+        tags[index] = tag;
+        // Ordered store publishes the slot contents before the new tail.
+        tail.lazySet(t + 1);
+
+        Thread consumer = waitingConsumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    public boolean offer(byte[] data) {
+        return offer(data, 0, data.length);
+    }
+
+    /**
+     * Copies the oldest frame into dest. Consumer thread only.
+     * @param dest buffer of at least {@link #getSlotSize()} bytes.
+     * @return the frame length, or -1 if the ring is empty.
+     */
+    public int poll(byte[] dest) {
+        while(true) {
+            long h = head.get();
+            if(h >= tail.get()) {
+                return -1;
+            }
+            int index = (int) (h & mask);
+            int length = lengths[index];
+            long stamp = stamps[index];
+            int tag = tags[index];
+            System.arraycopy(slots, index * slotSize, dest, 0, length);
+            // If the producer skipped this slot while we copied it, the copy may be torn. Retry.
+            if(head.compareAndSet(h, h + 1)) {
+                polledStamp = stamp;
+                polledTag = tag;
+                Thread producer = waitingProducer;
+                if(producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return length;
+            }
+        }
+    }
+
+    /**
+     * @return the stamp the frame returned by the last {@link #poll} was offered with.
+     * Consumer thread only.
+     */
+    public long getPolledStamp() {
+        return polledStamp;
+    }
+
+    /**
+     * @return the tag the frame returned by the last {@link #poll} was offered with.
+     * Consumer thread only.
+     */
+    public int getPolledTag() {
+        return polledTag;
+    }
+
+    /**
+     * Parks the consumer until a frame is available, the ring is closed or the timeout passes.
+     * Consumer thread only.
+     */
+    public void await(long timeoutNanos) {
+        waitingConsumer = Thread.currentThread();
+        if(isEmpty() && !closed) {
+            LockSupport.parkNanos(this, timeoutNanos);
+        }
+        waitingConsumer = null;
+    }
+
+    /**
+     * Stops accepting frames. Frames already in the ring can still be polled.
+     */
+    public void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if(consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        Thread producer = waitingProducer;
+        if(producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return frames dropped because the ring was full.
+     */
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    /**
+     * @return frames rejected because they did not fit in a slot.
+     */
+    public long getOversized() {
+        return oversized.get();
+    }
+
+    /**
+     * @return number of times the producer had to wait for space under the BLOCK policy.
+     */
+    public long getProducerBlocks() {
+        return producerBlocks.get();
+    }
+}
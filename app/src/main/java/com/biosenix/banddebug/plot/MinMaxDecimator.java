@@ -0,0 +1,143 @@
+package com.biosenix.banddebug.plot;
+
+/**
+ * Reduces a window of samples to a minimum and maximum per axis for each pixel column, updated
+ * as samples arrive instead of recomputed per frame.
+ *
+ * Each column covers a fixed number of consecutive samples. The columns form a ring: once the
+ * window is full, starting a new column drops the oldest one, so the plot scrolls by a column at
+ * a time. Drawing a vertical line from min to max per column shows every peak of the window, which
+ * plain subsampling would miss. Not thread safe, see {@link WaveformBuffer}.
+ */
+public class MinMaxDecimator {
+    private final int columns;
+    private final int samplesPerColumn;
+    // Per axis and column slot.
+    private final short[][] min;
+    private final short[][] max;
+    // Slot of the newest column and the samples it holds so far, 0 if it is not started.
+    private int current = 0;
+    private int filled = 0;
+    // Valid slots, including the newest one once started.
+    private int count = 0;
+
+    public MinMaxDecimator(int columns, int samplesPerColumn) {
+        if(columns <= 0 || samplesPerColumn <= 0) {
+            throw new IllegalArgumentException("Need at least one column of one sample: " + columns + "x" + samplesPerColumn);
+        }
+        this.columns = columns;
+        this.samplesPerColumn = samplesPerColumn;
+        this.min = new short[3][columns];
+        this.max = new short[3][columns];
+    }
+
+    /**
+     * Adds the next sample to the newest column.
+     */
+    public void add(short x, short y, short z) {
+        if(filled == 0) {
+            if(count < columns) {
+                count++;
+            }
+            min[0][current] = max[0][current] = x;
+            min[1][current] = max[1][current] = y;
+            min[2][current] = max[2][current] = z;
+        }
+        else {
+            update(0, x);
+            update(1, y);
+            update(2, z);
+        }
+        if(++filled == samplesPerColumn) {
+            filled = 0;
+            current = current + 1 == columns ? 0 : current + 1;
+        }
+    }
+
+    /**
+     * Replaces the columns with the decimation of the latest samples of the ring, as many as the
+     * window holds.
+     */
+    public void rebuild(SampleRing ring) {
+        clear();
+        int from = Math.max(0, ring.size() - getWindowSamples());
+        for(int i = from; i < ring.size(); i++) {
+            add(ring.get(i, 0), ring.get(i, 1), ring.get(i, 2));
+        }
+    }
+
+    public void clear() {
+        current = 0;
+        filled = 0;
+        count = 0;
+    }
+
+    /**
+     * @return the columns holding samples, at most {@link #getColumns()}.
+     */
+    public int size() {
+        return count;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getSamplesPerColumn() {
+        return samplesPerColumn;
+    }
+
+    public int getWindowSamples() {
+        return columns * samplesPerColumn;
+    }
+
+    /**
+     * @param column 0 for the oldest column, size() - 1 for the newest.
+     * @param axis 0, 1 or 2 for x, y or z.
+     */
+    public short getMin(int column, int axis) {
+        return min[axis][slot(column)];
+    }
+
+    public short getMax(int column, int axis) {
+        return max[axis][slot(column)];
+    }
+
+    /**
+     * Copies the columns of an axis, oldest first, to the start of the arrays.
+     * @return the columns copied, {@link #size()}.
+     */
+    public int copyTo(int axis, short[] minOut, short[] maxOut) {
+        if(count == 0) {
+            return 0;
+        }
+        // The columns wrap around the end of the slots at most once.
+        int first = slot(0);
+        int head = Math.min(count, columns - first);
+        System.arraycopy(min[axis], first, minOut, 0, head);
+        System.arraycopy(max[axis], first, maxOut, 0, head);
+        System.arraycopy(min[axis], 0, minOut, head, count - head);
+        System.arraycopy(max[axis], 0, maxOut, head, count - head);
+        return count;
+    }
+
+    // Slot of the column-th oldest column. The newest one is current, or the one before it when
+    // current is not started yet.
+    private int slot(int column) {
+        int newest = filled > 0 ? current : current - 1;
+        int slot = newest - (count - 1) + column;
+        if(slot < 0) {
+            slot += columns;
+        }
+        return slot;
+    }
+
+    private void update(int axis, short value) {
+        if(value < min[axis][current]) {
+            min[axis][current] = value;
+        }
+        else if(value > max[axis][current]) {
+            max[axis][current] = value;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.biosenix.banddebug.plot;
+
+/**
+ * Fixed capacity ring of the latest samples' axes, in primitive arrays. Appending never
+ * allocates, once full the oldest sample is overwritten. Not thread safe.
+ */
+public class SampleRing {
+    private final short[] x;
+    private final short[] y;
+    private final short[] z;
+    // Slot the next sample goes to.
+    private int head = 0;
+    private int size = 0;
+
+    public SampleRing(int capacity) {
+        if(capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.x = new short[capacity];
+        this.y = new short[capacity];
+        this.z = new short[capacity];
+    }
+
+    public void append(short x, short y, short z) {
+        this.x[head] = x;
+        this.y[head] = y;
+        this.z[head] = z;
+        head = head + 1 == this.x.length ? 0 : head + 1;
+        if(size < this.x.length) {
+            size++;
+        }
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return x.length;
+    }
+
+    /**
+     * @param index 0 for the oldest sample held, size() - 1 for the latest.
+     * @param axis 0, 1 or 2 for x, y or z.
+     */
+    public short get(int index, int axis) {
+        int slot = head - size + index;
+        if(slot < 0) {
+            slot += x.length;
+        }
+        return axis == 0 ? x[slot] : axis == 1 ? y[slot] : z[slot];
+    }
+}
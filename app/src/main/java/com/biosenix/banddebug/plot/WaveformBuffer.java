@@ -0,0 +1,110 @@
+package com.biosenix.banddebug.plot;
+
+/**
+ * Live plot data of one band: the latest window of samples and their min/max decimation to the
+ * plot's pixel columns, shared between the thread that adds samples and the UI thread.
+ *
+ * Adding a sample updates its column in place, and {@link #copyTo} copies the columns into a
+ * reused {@link Frame}, so neither side allocates while streaming. Only {@link #setColumns}, on a
+ * resize of the plot, rebuilds the columns from the raw samples.
+ */
+public class WaveformBuffer {
+
+    /**
+     * Columns of one drawn frame, oldest first. Owned by the drawing thread and reused.
+     */
+    public static class Frame {
+        public int columns = 0;
+        // Per axis (x, y, z) and column.
+        public short[][] min = new short[3][0];
+        public short[][] max = new short[3][0];
+        // Smallest and largest value over all axes and columns, for scaling.
+        public short low;
+        public short high;
+        // Version of the buffer the frame was copied at.
+        public long version = -1;
+    }
+
+    private final SampleRing samples;
+    private MinMaxDecimator decimator;
+    // Increases with every change, so unchanged frames are not copied or drawn again.
+    private long version = 0;
+
+    /**
+     * @param windowSamples samples shown across the plot's width, e.g. 2 minutes of a band.
+     */
+    public WaveformBuffer(int windowSamples) {
+        this.samples = new SampleRing(windowSamples);
+        this.decimator = new MinMaxDecimator(1, windowSamples);
+    }
+
+    public synchronized void add(int x, int y, int z) {
+        samples.append((short) x, (short) y, (short) z);
+        decimator.add((short) x, (short) y, (short) z);
+        version++;
+    }
+
+    public synchronized void clear() {
+        samples.clear();
+        decimator.clear();
+        version++;
+    }
+
+    /**
+     * Sets the number of columns the window is spread over, normally the plot's width in pixels.
+     * Each column covers the window divided by the columns, rounded up, so the whole window fits.
+     */
+    public synchronized void setColumns(int columns) {
+        columns = Math.max(1, Math.min(columns, samples.capacity()));
+        if(columns == decimator.getColumns()) {
+            return;
+        }
+        int samplesPerColumn = (samples.capacity() + columns - 1) / columns;
+        decimator = new MinMaxDecimator(columns, samplesPerColumn);
+        decimator.rebuild(samples);
+        version++;
+    }
+
+    public synchronized int getColumns() {
+        return decimator.getColumns();
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Copies the columns into the frame, growing its arrays only if the columns grew.
+     * @return false if nothing changed since the frame was last copied, the frame is left as is.
+     */
+    public synchronized boolean copyTo(Frame frame) {
+        if(frame.version == version) {
+            return false;
+        }
+        int columns = decimator.size();
+        if(frame.min[0].length < decimator.getColumns()) {
+            frame.min = new short[3][decimator.getColumns()];
+            frame.max = new short[3][decimator.getColumns()];
+        }
+        short low = Short.MAX_VALUE;
+        short high = Short.MIN_VALUE;
+        for(int axis = 0; axis < 3; axis++) {
+            short[] min = frame.min[axis];
+            short[] max = frame.max[axis];
+            decimator.copyTo(axis, min, max);
+            for(int column = 0; column < columns; column++) {
+                if(min[column] < low) {
+                    low = min[column];
+                }
+                if(max[column] > high) {
+                    high = max[column];
+                }
+            }
+        }
+        frame.columns = columns;
+        frame.low = columns > 0 ? low : 0;
+        frame.high = columns > 0 ? high : 0;
+        frame.version = version;
+        return true;
+    }
+}
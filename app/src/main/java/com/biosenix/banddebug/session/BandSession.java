@@ -0,0 +1,378 @@
+package com.biosenix.banddebug.session;
+
+import com.biosenix.banddebug.decode.AccelStreamDecoder;
+import com.biosenix.banddebug.decode.DecoderRegistry;
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.decode.StreamDecoder;
+import com.biosenix.banddebug.metrics.Counter;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+import com.biosenix.banddebug.pipeline.FrameRing;
+import com.biosenix.banddebug.storage.SampleWriter;
+import com.biosenix.banddebug.time.ClockSync;
+import com.biosenix.banddebug.time.ReorderBuffer;
+import com.biosenix.banddebug.time.TickUnwrapper;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of the connection to one band: its frame ring, decoders, duplicate filter and output
+ * segment. Sessions never share state with each other.
+ *
+ * Frames are offered on the Bluetooth thread. Draining them (decoding, writing the segment and
+ * handing samples to the listener) runs as a task on the worker pool shared by all sessions.
+ * At most one drain task per session is queued or running, which keeps the ring single-consumer.
+ *
+ * Band timestamps are extended to 64 bits, put back in order and deduplicated in a short
+ * {@link ReorderBuffer} window, and mapped to phone time with {@link ClockSync}.
+ *
+ * Each notification is tagged with the stream index of its characteristic in the
+ * {@link DecoderRegistry} when it is offered, and decoded by that stream's decoder. ACC samples
+ * go through the timestamp handling and the segment, the samples of other streams, e.g. PPG, go
+ * straight to {@link SampleListener#onStreamSamples}.
+ */
+public class BandSession {
+
+    /**
+     * Receives every accepted (not duplicate) sample in timestamp order, on a worker pool thread.
+     */
+    public interface SampleListener {
+        /**
+         * @param timestamp milliseconds since the first sample of the session, see
+         * {@link BandSession#toEpochMillis(long)} for the matching phone time.
+         */
+        void onSample(BandSession session, long timestamp, int x, int y, int z);
+
+        /**
+         * The session drained its last frame and closed its segment.
+         */
+        void onSessionClosed(BandSession session);
+
+        /**
+         * Samples of one notification of a stream other than ACC, e.g. PPG, in the decoder's
+         * buffer with raw band timestamps. The buffer is reused for the next notification.
+         * @param stream index of the stream in the session's {@link DecoderRegistry}.
+         */
+        default void onStreamSamples(BandSession session, int stream, StreamDecoder decoder) {
+        }
+    }
+
+    /**
+     * Point in time copy of the session counters.
+     */
+    public static class Stats {
+        public String deviceId;
+        public long notifications;
+        public long ringOverflows;
+        public long rejectedFrames;
+        // Notifications of characteristics without a registered decoder.
+        public long unknownFrames;
+        public long duplicates;
+        // Samples that arrived out of order and were put back in place.
+        public long reordered;
+        // Samples that arrived after newer ones were already stored, and were dropped.
+        public long late;
+        public long samples;
+        public long bytesWritten;
+        public double samplesPerSecond;
+        // Drift of the phone clock against the band clock.
+        public double clockDriftPpm;
+    }
+
+    // Frames handled per drain task before it yields the worker to other sessions.
+    private static final int DRAIN_BATCH = 64;
+
+    // Reorder window: samples are held back up to 250 ms, or 256 samples, for late ones to arrive.
+    public static final long REORDER_DELAY_TICKS = TickUnwrapper.toTicks(250);
+    public static final int REORDER_MAX_SAMPLES = 256;
+
+    private final String deviceId;
+    private final FrameRing ring;
+    private final DecoderRegistry registry;
+    // Per stream index, and the ACC one.
+    private final StreamDecoder[] decoders;
+    private final int accStream;
+    private final AccelStreamDecoder accDecoder;
+    private final byte[] frame;
+    private final SampleWriter writer;
+    private final SampleListener listener;
+    private final Executor workers;
+    private final long startNanos = System.nanoTime();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile boolean stopping = false;
+    private boolean closed = false;
+    private final Runnable drainTask = this::drain;
+
+    // Timestamp handling, only touched by the drain task.
+    private final TickUnwrapper unwrapper = new TickUnwrapper();
+    private final ReorderBuffer reorder = new ReorderBuffer(REORDER_DELAY_TICKS, REORDER_MAX_SAMPLES, this::store);
+    private final ClockSync clock = new ClockSync();
+    private long startTicks = -1;
+    private volatile long startBandMillis = 0;
+
+    // Pipeline wide metrics, shared by all sessions.
+    private static final MetricsRegistry METRICS = MetricsRegistry.getDefault();
+    private final Counter notificationsMetric = METRICS.counter("ble.notifications");
+    private final Counter droppedFramesMetric = METRICS.counter("ring.dropped_frames");
+    private final Counter rejectedFramesMetric = METRICS.counter("decode.rejected_frames");
+    private final Counter unknownFramesMetric = METRICS.counter("decode.unknown_frames");
+    // Rejected frames per stream, "decode.NAME.rejected_frames".
+    private final Counter[] streamRejectedMetrics;
+    private final Counter duplicatesMetric = METRICS.counter("session.duplicates");
+    private final Counter lateMetric = METRICS.counter("session.late");
+    private final Counter reorderedMetric = METRICS.counter("session.reordered");
+    private final Counter samplesMetric = METRICS.counter("disk.samples_written");
+    private final Counter bytesMetric = METRICS.counter("disk.bytes_written");
+    private final Counter writeErrorsMetric = METRICS.counter("disk.write_errors");
+    private final Counter rejectedDrainsMetric = METRICS.counter("session.rejected_drains");
+    // Time from a notification arriving to its samples being decoded, reordered and handed to the
+    // sinks' batches. The disk write itself shows in the file sink's "sink.file.lag_ms".
+    private final Histogram handoffLatencyMetric = METRICS.histogram("session.handoff_latency_us");
+
+    private final AtomicLong notifications = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+    private volatile long rejectedFrames = 0;
+    private final long[] streamRejected;
+    private final AtomicLong unknownFrames = new AtomicLong();
+    private volatile long duplicates = 0;
+    private volatile long reordered = 0;
+    private volatile long late = 0;
+    // Samples already added to the samples metric, drain task only.
+    private long publishedSamples = 0;
+    // Band to phone time mapping, refreshed by the drain task.
+    private volatile ClockSync.Mapping clockMapping = ClockSync.Mapping.IDENTITY;
+    private volatile long bytesWritten = 0;
+
+    /**
+     * @param registry the streams to decode, it must have the ACC stream.
+     * @param writer segment the samples are written to, or null to not keep them on disk.
+     */
+    public BandSession(String deviceId, FrameRing ring, DecoderRegistry registry, SampleWriter writer,
+                       SampleListener listener, Executor workers) {
+        this.deviceId = deviceId;
+        this.ring = ring;
+        this.registry = registry;
+        this.decoders = registry.createDecoders(ring.getSlotSize());
+        this.accStream = registry.indexOf(DecoderRegistry.ACC_CHARACTERISTIC);
+        if(accStream < 0 || !(decoders[accStream] instanceof AccelStreamDecoder)) {
+            throw new IllegalArgumentException("No ACC decoder registered");
+        }
+        this.accDecoder = (AccelStreamDecoder) decoders[accStream];
+        this.streamRejectedMetrics = new Counter[decoders.length];
+        for(int stream = 0; stream < decoders.length; stream++) {
+            streamRejectedMetrics[stream] = METRICS.counter("decode." + registry.getName(stream) + ".rejected_frames");
+        }
+        this.streamRejected = new long[decoders.length];
+        this.frame = new byte[ring.getSlotSize()];
+        this.writer = writer;
+        this.listener = listener;
+        this.workers = workers;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public DecoderRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Queues a notification for decoding. Bluetooth thread of this band only.
+     * @param characteristic the characteristic that sent it, notifications of characteristics
+     *                       that are not registered are counted and dropped.
+     */
+    public void offer(UUID characteristic, byte[] value) {
+        notifications.incrementAndGet();
+        notificationsMetric.increment();
+        int stream = registry.indexOf(characteristic);
+        if(stream < 0) {
+            unknownFrames.incrementAndGet();
+            unknownFramesMetric.increment();
+            return;
+        }
+        if(ring.offer(value, 0, value.length, System.nanoTime(), stream)) {
+            schedule();
+        }
+        else {
+            droppedFramesMetric.increment();
+        }
+    }
+
+    /**
+     * Stops accepting frames. The frames already queued are drained, then the segment is closed.
+     */
+    public void stop() {
+        stopping = true;
+        ring.close();
+        schedule();
+    }
+
+    public boolean isClosed() {
+        synchronized (this) {
+            return closed;
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.deviceId = deviceId;
+        stats.notifications = notifications.get();
+        stats.ringOverflows = ring.getOverflows() + ring.getOversized();
+        stats.rejectedFrames = rejectedFrames;
+        stats.unknownFrames = unknownFrames.get();
+        stats.duplicates = duplicates;
+        stats.reordered = reordered;
+        stats.late = late;
+        stats.clockDriftPpm = clockMapping.getDriftPpm();
+        stats.samples = samples.get();
+        stats.bytesWritten = bytesWritten;
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        stats.samplesPerSecond = seconds > 0 ? stats.samples / seconds : 0;
+        return stats;
+    }
+
+    /**
+     * @param timestamp a sample timestamp as passed to {@link SampleListener#onSample}.
+     * @return the phone time in epoch milliseconds the band sampled it at, drift corrected.
+     */
+    public long toEpochMillis(long timestamp) {
+        return clockMapping.toPhoneMillis(startBandMillis + timestamp);
+    }
+
+    private void schedule() {
+        if(scheduled.compareAndSet(false, true)) {
+            try {
+                workers.execute(drainTask);
+            }
+            catch (RejectedExecutionException ex) {
+                // E.g. the pool is shutting down. The frames stay in the ring and the next offer
+                // schedules again, a drain left marked as scheduled would never run.
+                scheduled.set(false);
+                rejectedDrainsMetric.increment();
+            }
+        }
+    }
+
+    private void drain() {
+        for(int i = 0; i < DRAIN_BATCH; i++) {
+            int length = ring.poll(frame);
+            if(length < 0) {
+                break;
+            }
+            handleFrame(length);
+            handoffLatencyMetric.record((System.nanoTime() - ring.getPolledStamp()) / 1000);
+        }
+        publishCounters();
+
+        scheduled.set(false);
+        if(!ring.isEmpty()) {
+            // Yield to the other sessions, then carry on.
+            schedule();
+        }
+        else if(stopping) {
+            finish();
+        }
+    }
+
+    private void handleFrame(int length) {
+        int stream = ring.getPolledTag();
+        StreamDecoder decoder = decoders[stream];
+        if(decoder.decode(frame, length) == 0) {
+            return;
+        }
+        if(stream != accStream) {
+            listener.onStreamSamples(this, stream, decoder);
+            return;
+        }
+        SampleBlock block = accDecoder.getBlock();
+        long newest = Long.MIN_VALUE;
+        for(int i = 0; i < block.size(); i++) {
+            long ticks = unwrapper.unwrap(block.timestamps[i]);
+            newest = Math.max(newest, ticks);
+            reorder.offer(ticks, block.x[i], block.y[i], block.z[i]);
+        }
+        // The phone time is taken when the frame is handled. Queueing delays only make it later,
+        // which ClockSync filters out by keeping the smallest offsets.
+        clock.addObservation(TickUnwrapper.toMillis(newest), System.currentTimeMillis());
+    }
+
+    // Called by the reorder buffer with each sample in order.
+    private void store(long ticks, short x, short y, short z) {
+        if(startTicks < 0) {
+            // This is the first record we saw, make all timestamps relative to this.
+            startTicks = ticks;
+            startBandMillis = TickUnwrapper.toMillis(ticks);
+        }
+        long timestamp = TickUnwrapper.toMillis(ticks - startTicks);
+        try {
+            if(writer != null) {
+                writer.append(timestamp, x, y, z);
+            }
+        }
+        catch (IOException ex) {
+            writeErrorsMetric.increment();
+            ex.printStackTrace();
+        }
+        samples.incrementAndGet();
+        listener.onSample(this, timestamp, x, y, z);
+    }
+
+    // Publishes the counters of the drain task for getStats() and adds their growth to the metrics.
+    private void publishCounters() {
+        long value = 0;
+        for(int stream = 0; stream < decoders.length; stream++) {
+            long rejected = decoders[stream].getRejectedFrames();
+            streamRejectedMetrics[stream].add(rejected - streamRejected[stream]);
+            streamRejected[stream] = rejected;
+            value += rejected;
+        }
+        rejectedFramesMetric.add(value - rejectedFrames);
+        rejectedFrames = value;
+        if(writer != null) {
+            value = writer.getBytesWritten();
+            bytesMetric.add(value - bytesWritten);
+            bytesWritten = value;
+        }
+        value = reorder.getDuplicates();
+        duplicatesMetric.add(value - duplicates);
+        duplicates = value;
+        value = reorder.getReordered();
+        reorderedMetric.add(value - reordered);
+        reordered = value;
+        value = reorder.getLate();
+        lateMetric.add(value - late);
+        late = value;
+        samplesMetric.add(samples.get() - publishedSamples);
+        publishedSamples = samples.get();
+        clockMapping = clock.getMapping();
+    }
+
+    private void finish() {
+        synchronized (this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        }
+        // Nothing more is coming, release what the reorder window still holds.
+        reorder.flush();
+        if(writer != null) {
+            try {
+                writer.close();
+            }
+            catch (IOException ex) {
+                writeErrorsMetric.increment();
+                ex.printStackTrace();
+            }
+        }
+        publishCounters();
+        listener.onSessionClosed(this);
+    }
+}
@@ -0,0 +1,270 @@
+package com.biosenix.banddebug.session;
+
+import com.biosenix.banddebug.ble.BandGatt;
+import com.biosenix.banddebug.decode.AccelDecoder;
+import com.biosenix.banddebug.decode.DecoderRegistry;
+import com.biosenix.banddebug.decode.StreamDecoder;
+import com.biosenix.banddebug.metrics.Gauge;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+import com.biosenix.banddebug.pipeline.FrameRing;
+import com.biosenix.banddebug.storage.SampleWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs one {@link BandSession} per connected band, so a single phone can collect from several
+ * bands at once.
+ *
+ * The manager listens to each band's {@link BandGatt}, creates the session (with its own output
+ * segment) on connect and closes it on disconnect. All sessions share one bounded worker pool
+ * for decoding, disk and network work.
+ */
+public class SessionManager implements BandGatt.Listener {
+
+    /**
+     * Opens the output segment of a new session.
+     */
+    public interface SegmentFactory {
+        /**
+         * @param startEpochMillis phone time the session starts at, for the file header.
+         * @return the writer to store the band's samples with, or null to not keep a file.
+         */
+        SampleWriter open(String deviceId, long startEpochMillis) throws IOException;
+    }
+
+    /**
+     * Connection events and samples of all sessions.
+     */
+    public interface Listener extends BandSession.SampleListener {
+        void onStatus(String deviceId, String message);
+
+        void onConnected(String deviceId);
+
+        void onDisconnected(String deviceId);
+    }
+
+    public static final int DEFAULT_RING_CAPACITY = 1024;
+    public static final int DEFAULT_SLOT_SIZE = AccelDecoder.MAX_MTU - AccelDecoder.ATT_HEADER_SIZE;
+
+    private final int maxSessions;
+    private final int ringCapacity;
+    private final int slotSize;
+    private final DecoderRegistry decoders;
+    private final SegmentFactory segments;
+    private final Listener listener;
+    private final ThreadPoolExecutor workers;
+
+    private final Map<String, BandGatt> bands = new ConcurrentHashMap<>();
+    private final Map<String, BandSession> sessions = new ConcurrentHashMap<>();
+
+    private final Gauge countGauge = sessions::size;
+    private final Gauge queuedTasksGauge;
+
+    /**
+     * @param maxSessions number of bands that may be connected at the same time.
+     * @param workerThreads size of the worker pool shared by all sessions.
+     */
+    public SessionManager(int maxSessions, int workerThreads, int ringCapacity, int slotSize,
+                          AccelDecoder.Format format, SegmentFactory segments, Listener listener) {
+        this(maxSessions, workerThreads, ringCapacity, slotSize, DecoderRegistry.createDefault(format),
+                segments, listener);
+    }
+
+    /**
+     * @param decoders the streams every session decodes, it must have the ACC stream.
+     */
+    public SessionManager(int maxSessions, int workerThreads, int ringCapacity, int slotSize,
+                          DecoderRegistry decoders, SegmentFactory segments, Listener listener) {
+        this.maxSessions = maxSessions;
+        this.ringCapacity = ringCapacity;
+        this.slotSize = slotSize;
+        this.decoders = decoders;
+        this.segments = segments;
+        this.listener = listener;
+
+        AtomicInteger threadCount = new AtomicInteger();
+        // Every session, including those still closing after a reconnect, has at most one drain task
+        // queued, so the queue stays short without a bound. A bound would reject the drain of a
+        // session that is still closing once a band reconnected a few times in a row.
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "session-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers.allowCoreThreadTimeOut(true);
+
+        this.queuedTasksGauge = () -> workers.getQueue().size();
+        MetricsRegistry.getDefault().gauge("session.count", countGauge);
+        MetricsRegistry.getDefault().gauge("session.queued_tasks", queuedTasksGauge);
+    }
+
+    public SessionManager(int maxSessions, int workerThreads, SegmentFactory segments, Listener listener) {
+        this(maxSessions, workerThreads, DEFAULT_RING_CAPACITY, DEFAULT_SLOT_SIZE, AccelDecoder.Format.RAW,
+                segments, listener);
+    }
+
+    /**
+     * @return the streams the sessions decode, e.g. to know which characteristics to subscribe to.
+     */
+    public DecoderRegistry getDecoders() {
+        return decoders;
+    }
+
+    /**
+     * Starts connecting to a band. Does nothing if the band is already known.
+     * @return false if the band could not be added because the session limit was reached.
+     */
+    public synchronized boolean addBand(BandGatt gatt) {
+        if(bands.containsKey(gatt.getDeviceId())) {
+            return true;
+        }
+        if(bands.size() >= maxSessions) {
+            return false;
+        }
+        bands.put(gatt.getDeviceId(), gatt);
+        gatt.connect(this);
+        return true;
+    }
+
+    /**
+     * Disconnects a band. Its session closes once the frames already received are stored.
+     */
+    public void removeBand(String deviceId) {
+        BandGatt gatt = bands.remove(deviceId);
+        if(gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    public void disconnectAll() {
+        for(String deviceId : new ArrayList<>(bands.keySet())) {
+            removeBand(deviceId);
+        }
+    }
+
+    public boolean hasBand(String deviceId) {
+        return bands.containsKey(deviceId);
+    }
+
+    public int getBandCount() {
+        return bands.size();
+    }
+
+    /**
+     * @return the counters of every open session.
+     */
+    public List<BandSession.Stats> getStats() {
+        List<BandSession.Stats> stats = new ArrayList<>();
+        for(BandSession session : sessions.values()) {
+            stats.add(session.getStats());
+        }
+        return stats;
+    }
+
+    public BandSession getSession(String deviceId) {
+        return sessions.get(deviceId);
+    }
+
+    /**
+     * Waits for the sessions to drain, stops the worker pool and unregisters the gauges.
+     */
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        disconnectAll();
+        for(BandSession session : sessions.values()) {
+            session.stop();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(!sessions.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        workers.shutdown();
+        try {
+            workers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        finally {
+            MetricsRegistry metrics = MetricsRegistry.getDefault();
+            metrics.removeGauge("session.count", countGauge);
+            metrics.removeGauge("session.queued_tasks", queuedTasksGauge);
+        }
+    }
+
+    @Override
+    public void onConnected(BandGatt gatt) {
+        String deviceId = gatt.getDeviceId();
+        // A session left over from an earlier connection finishes on its own.
+        BandSession previous = sessions.remove(deviceId);
+        if(previous != null) {
+            previous.stop();
+        }
+
+        SampleWriter writer = null;
+        try {
+            writer = segments.open(deviceId, System.currentTimeMillis());
+        }
+        catch (IOException ex) {
+            listener.onStatus(deviceId, "Cannot create file: " + ex.getMessage());
+        }
+
+        FrameRing ring = new FrameRing(ringCapacity, slotSize, FrameRing.OverflowPolicy.DROP_NEWEST);
+        BandSession session = new BandSession(deviceId, ring, decoders, writer,
+                sessionListener, workers);
+        sessions.put(deviceId, session);
+        listener.onConnected(deviceId);
+    }
+
+    @Override
+    public void onStreaming(BandGatt gatt) {
+        listener.onStatus(gatt.getDeviceId(), "Streaming");
+    }
+
+    @Override
+    public void onDisconnected(BandGatt gatt) {
+        BandSession session = sessions.get(gatt.getDeviceId());
+        if(session != null) {
+            session.stop();
+        }
+        listener.onDisconnected(gatt.getDeviceId());
+    }
+
+    @Override
+    public void onNotification(BandGatt gatt, UUID characteristic, byte[] value) {
+        BandSession session = sessions.get(gatt.getDeviceId());
+        if(session != null) {
+            session.offer(characteristic, value);
+        }
+    }
+
+    @Override
+    public void onStatus(BandGatt gatt, String message) {
+        listener.onStatus(gatt.getDeviceId(), message);
+    }
+
+    // Forwards samples and drops closed sessions from the map.
+    private final BandSession.SampleListener sessionListener = new BandSession.SampleListener() {
+        @Override
+        public void onSample(BandSession session, long timestamp, int x, int y, int z) {
+            listener.onSample(session, timestamp, x, y, z);
+        }
+
+        @Override
+        public void onSessionClosed(BandSession session) {
+            sessions.remove(session.getDeviceId(), session);
+            listener.onSessionClosed(session);
+        }
+
+        @Override
+        public void onStreamSamples(BandSession session, int stream, StreamDecoder decoder) {
+            listener.onStreamSamples(session, stream, decoder);
+        }
+    };
+}
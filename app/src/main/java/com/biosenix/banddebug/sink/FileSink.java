@@ -0,0 +1,76 @@
+package com.biosenix.banddebug.sink;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.session.SessionManager;
+import com.biosenix.banddebug.storage.SampleWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stores each band's session in the file the segment factory opens for it, e.g. a
+ * SegmentedSessionWriter. Durability is left to the writer's own commits.
+ */
+public class FileSink implements Sink {
+    private final SessionManager.SegmentFactory segments;
+    private final Map<String, SampleWriter> writers = new HashMap<>();
+
+    public FileSink(SessionManager.SegmentFactory segments) {
+        this.segments = segments;
+    }
+
+    @Override
+    public void open(String deviceId, long startEpochMillis) throws IOException {
+        // A session that never got its close, e.g. the band reconnected while it was queued.
+        close(deviceId);
+        SampleWriter writer = segments.open(deviceId, startEpochMillis);
+        if(writer != null) {
+            writers.put(deviceId, writer);
+        }
+    }
+
+    @Override
+    public long write(String deviceId, SampleBlock samples) throws IOException {
+        SampleWriter writer = writers.get(deviceId);
+        if(writer == null) {
+            return 0;
+        }
+        long before = writer.getBytesWritten();
+        for(int i = 0; i < samples.size(); i++) {
+            writer.append(samples.timestamps[i], samples.x[i], samples.y[i], samples.z[i]);
+        }
+        return writer.getBytesWritten() - before;
+    }
+
+    @Override
+    public void close(String deviceId) throws IOException {
+        SampleWriter writer = writers.remove(deviceId);
+        if(writer != null) {
+            writer.close();
+        }
+    }
+
+    @Override
+    public void flush() {
+        // The writers commit on their own schedule.
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for(String deviceId : new ArrayList<>(writers.keySet())) {
+            try {
+                close(deviceId);
+            }
+            catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.biosenix.banddebug.sink;
+
+import com.biosenix.banddebug.aws.Kinesis;
+import com.biosenix.banddebug.decode.SampleBlock;
+
+/**
+ * Uploads every sample to the Kinesis stream. The producer batches the records itself and sheds
+ * them under its own overflow policy, so writes never fail here.
+ */
+public class KinesisSink implements Sink {
+    private final Kinesis kinesis;
+
+    public KinesisSink(Kinesis kinesis) {
+        this.kinesis = kinesis;
+    }
+
+    @Override
+    public void open(String deviceId, long startEpochMillis) {
+    }
+
+    @Override
+    public long write(String deviceId, SampleBlock samples) {
+        kinesis.writeSamplesToStream(deviceId, samples);
+        return 0;
+    }
+
+    @Override
+    public void close(String deviceId) {
+        // Push out whatever is still waiting in the upload batch.
+        kinesis.flush();
+    }
+
+    @Override
+    public void flush() {
+        // Left to the producer's linger, flushing each time the queue empties would send tiny requests.
+    }
+
+    @Override
+    public void close() {
+        // The Kinesis client is closed by its owner.
+    }
+}
@@ -0,0 +1,41 @@
+package com.biosenix.banddebug.sink;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the decoded samples of all bands, e.g. the session files or Kinesis.
+ *
+ * A sink is fed by {@link SinkFanOut} on a thread of its own, so all calls come from that one
+ * thread, in the order of each band's samples. An exception fails only the call it was thrown
+ * from: the samples of a failed write are counted as dropped and the sink keeps getting the
+ * following ones.
+ */
+public interface Sink extends Closeable {
+
+    /**
+     * A band's session starts.
+     * @param startEpochMillis phone time of the session start.
+     */
+    void open(String deviceId, long startEpochMillis) throws IOException;
+
+    /**
+     * Writes a batch of samples of a band, timestamps relative to its session start. The block
+     * is reused once this returns.
+     * @return the bytes this added to the phone's storage, for the session stats. 0 for sinks
+     *         that send the samples elsewhere.
+     */
+    long write(String deviceId, SampleBlock samples) throws IOException;
+
+    /**
+     * A band's session ended, its last samples were written.
+     */
+    void close(String deviceId) throws IOException;
+
+    /**
+     * Called whenever the sink's queue runs empty. Pushes out what is buffered in memory.
+     */
+    void flush() throws IOException;
+}
@@ -0,0 +1,439 @@
+package com.biosenix.banddebug.sink;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.metrics.Counter;
+import com.biosenix.banddebug.metrics.Gauge;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+import com.biosenix.banddebug.storage.SampleWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds the decoded samples of every band to several {@link Sink}s, each with its own bounded
+ * queue, batch size and thread, so a slow or failing sink never delays or breaks the others.
+ *
+ * A session writes its samples to the {@link Stream} it gets from {@link #open}, which collects
+ * them into one batch per sink. A batch is handed to its sink's queue once it is full, once its
+ * first sample is older than {@link Config#lingerMillis}, or when the session ends. The age is
+ * checked on every sample and by a timer running every half linger, so a band that goes quiet
+ * mid-batch does not hold its last samples back. A sink whose queue is full drops the new batch,
+ * so only the sink that falls behind loses samples.
+ *
+ * Per sink metrics, with the name given to {@link #add}: "sink.NAME.samples" written,
+ * "sink.NAME.dropped_samples", "sink.NAME.errors", "sink.NAME.queued_batches" and
+ * "sink.NAME.lag_ms", the time from a batch's first sample to the sink having written it.
+ *
+ * Batches are recycled through a pool per sink, so steady state streaming does not allocate
+ * sample storage.
+ */
+public class SinkFanOut {
+
+    public static class Config {
+        // Batches waiting for the sink, new batches are dropped beyond it.
+        public int queueBatches = 64;
+        public int batchSamples = 256;
+        // Longest time a sample waits for its batch to fill up, up to half as long again when no
+        // sample follows it.
+        public long lingerMillis = 1000;
+    }
+
+    /**
+     * Point in time copy of the counters of a sink.
+     */
+    public static class Stats {
+        public String name;
+        public int queuedBatches;
+        public long samples;
+        public long droppedSamples;
+        public long errors;
+        // Lag of the last batch written.
+        public long lagMillis;
+    }
+
+    private final List<SinkQueue> queues = new CopyOnWriteArrayList<>();
+    // Streams not closed yet, for the linger timer.
+    private final Set<Stream> streams = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sink-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Adds a sink and starts its thread. Sessions opened before do not feed it.
+     * @param name short name for the metrics and the thread, e.g. "file".
+     */
+    public void add(String name, Sink sink, Config config) {
+        SinkQueue queue = new SinkQueue(name, sink, config);
+        queues.add(queue);
+        queue.start();
+        long period = Math.max(1, config.lingerMillis / 2);
+        lingerTimer.scheduleWithFixedDelay(() -> publishLingered(queue), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a band's session on every sink.
+     * @return the stream to write the session's samples to. Closing it ends the session.
+     */
+    public Stream open(String deviceId, long startEpochMillis) {
+        Stream stream = new Stream(deviceId, startEpochMillis, queues.toArray(new SinkQueue[0]), streams);
+        for(SinkQueue queue : stream.targets) {
+            queue.control(Item.OPEN, stream);
+        }
+        streams.add(stream);
+        return stream;
+    }
+
+    public List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        for(SinkQueue queue : queues) {
+            stats.add(queue.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Lets every sink write what is queued, then closes the sinks. Streams still open stop
+     * feeding them, the stats stay available.
+     * @param timeoutMillis time each sink gets to catch up.
+     */
+    public void close(long timeoutMillis) throws InterruptedException {
+        lingerTimer.shutdownNow();
+        for(SinkQueue queue : queues) {
+            queue.control(Item.STOP, null);
+        }
+        for(SinkQueue queue : queues) {
+            queue.stop(timeoutMillis);
+        }
+    }
+
+    // Hands the sink the batches whose first sample is older than its linger.
+    private void publishLingered(SinkQueue queue) {
+        long now = System.nanoTime();
+        for(Stream stream : streams) {
+            stream.publishLingered(queue, now);
+        }
+    }
+
+    /**
+     * Samples of one band's session, batched for every sink. Written by the session's drain task,
+     * one thread at a time, while the linger timer publishes the batches that got too old.
+     */
+    public static class Stream implements SampleWriter {
+        private final String deviceId;
+        private final long startEpochMillis;
+        private final SinkQueue[] targets;
+        private final Set<Stream> openStreams;
+        // Batch being filled and the arrival time of its first sample, per sink.
+        private final SampleBlock[] batches;
+        private final long[] batchStartNanos;
+        private long samples = 0;
+        // Bytes the sinks stored, added by their threads.
+        private final AtomicLong bytes = new AtomicLong();
+        private boolean closed = false;
+
+        Stream(String deviceId, long startEpochMillis, SinkQueue[] targets, Set<Stream> openStreams) {
+            this.deviceId = deviceId;
+            this.startEpochMillis = startEpochMillis;
+            this.targets = targets;
+            this.openStreams = openStreams;
+            this.batches = new SampleBlock[targets.length];
+            this.batchStartNanos = new long[targets.length];
+        }
+
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        @Override
+        public synchronized void append(long timestamp, int x, int y, int z) {
+            if(closed) {
+                return;
+            }
+            samples++;
+            long now = System.nanoTime();
+            for(int i = 0; i < targets.length; i++) {
+                SampleBlock batch = batches[i];
+                if(batch == null) {
+                    batch = targets[i].takeBlock();
+                    batches[i] = batch;
+                    batchStartNanos[i] = now;
+                }
+                batch.append(timestamp, (short) x, (short) y, (short) z);
+                if(batch.isFull() || now - batchStartNanos[i] >= targets[i].lingerNanos) {
+                    publish(i);
+                }
+            }
+        }
+
+        /**
+         * Hands the partly filled batches to the sinks right away.
+         */
+        @Override
+        public synchronized void flush() {
+            for(int i = 0; i < targets.length; i++) {
+                publish(i);
+            }
+        }
+
+        /**
+         * Hands over the last samples and ends the session on every sink.
+         */
+        @Override
+        public synchronized void close() {
+            if(closed) {
+                return;
+            }
+            flush();
+            closed = true;
+            openStreams.remove(this);
+            for(SinkQueue queue : targets) {
+                queue.control(Item.CLOSE, this);
+            }
+        }
+
+        @Override
+        public synchronized long getSamplesWritten() {
+            return samples;
+        }
+
+        /**
+         * @return the bytes the sinks stored on the phone so far, see {@link Sink#write}.
+         */
+        @Override
+        public long getBytesWritten() {
+            return bytes.get();
+        }
+
+        synchronized void publishLingered(SinkQueue queue, long now) {
+            for(int i = 0; i < targets.length; i++) {
+                if(targets[i] == queue && batches[i] != null && now - batchStartNanos[i] >= queue.lingerNanos) {
+                    publish(i);
+                }
+            }
+        }
+
+        private void publish(int index) {
+            SampleBlock batch = batches[index];
+            if(batch == null) {
+                return;
+            }
+            batches[index] = null;
+            targets[index].publish(this, batch, batchStartNanos[index]);
+        }
+    }
+
+    private static final class Item {
+        static final int OPEN = 0;
+        static final int BATCH = 1;
+        static final int CLOSE = 2;
+        static final int STOP = 3;
+
+        final int kind;
+        final Stream stream;
+        final SampleBlock samples;
+        final long firstNanos;
+
+        Item(int kind, Stream stream, SampleBlock samples, long firstNanos) {
+            this.kind = kind;
+            this.stream = stream;
+            this.samples = samples;
+            this.firstNanos = firstNanos;
+        }
+    }
+
+    // Queue and thread of one sink.
+    private static final class SinkQueue {
+        private final String name;
+        private final Sink sink;
+        private final Config config;
+        final long lingerNanos;
+        private final Thread thread;
+        // Session events and batches in order. Only batches count against the capacity.
+        private final LinkedBlockingQueue<Item> items = new LinkedBlockingQueue<>();
+        private final AtomicInteger queuedBatches = new AtomicInteger();
+        private final ArrayBlockingQueue<SampleBlock> pool;
+
+        private final Counter samplesMetric;
+        private final Counter droppedMetric;
+        private final Counter errorsMetric;
+        private final Histogram lagMetric;
+        private final Gauge queuedGauge = () -> queuedBatches.get();
+        private final AtomicLong samples = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private volatile long lagMillis = 0;
+        // Sink thread only: a failure was already logged, and samples were written since the last flush.
+        private boolean failing = false;
+        private boolean dirty = false;
+
+        SinkQueue(String name, Sink sink, Config config) {
+            this.name = name;
+            this.sink = sink;
+            this.config = config;
+            this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(config.lingerMillis);
+            // Blocks in the queue plus one being written and one being filled per session.
+            this.pool = new ArrayBlockingQueue<>(config.queueBatches + 8);
+            this.thread = new Thread(this::run, "sink-" + name);
+            thread.setDaemon(true);
+            MetricsRegistry metrics = MetricsRegistry.getDefault();
+            this.samplesMetric = metrics.counter("sink." + name + ".samples");
+            this.droppedMetric = metrics.counter("sink." + name + ".dropped_samples");
+            this.errorsMetric = metrics.counter("sink." + name + ".errors");
+            this.lagMetric = metrics.histogram("sink." + name + ".lag_ms");
+            metrics.gauge("sink." + name + ".queued_batches", queuedGauge);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        SampleBlock takeBlock() {
+            SampleBlock block = pool.poll();
+            return block != null ? block : new SampleBlock(config.batchSamples);
+        }
+
+        void publish(Stream stream, SampleBlock batch, long firstNanos) {
+            if(queuedBatches.incrementAndGet() > config.queueBatches) {
+                queuedBatches.decrementAndGet();
+                drop(batch.size());
+                recycle(batch);
+                return;
+            }
+            items.add(new Item(Item.BATCH, stream, batch, firstNanos));
+        }
+
+        void control(int kind, Stream stream) {
+            items.add(new Item(kind, stream, null, 0));
+        }
+
+        void stop(long timeoutMillis) throws InterruptedException {
+            thread.join(timeoutMillis);
+            if(thread.isAlive()) {
+                System.out.println("Sink " + name + " did not catch up, " + queuedBatches.get() + " batches left");
+                thread.interrupt();
+            }
+            try {
+                sink.close();
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            MetricsRegistry.getDefault().removeGauge("sink." + name + ".queued_batches", queuedGauge);
+        }
+
+        Stats getStats() {
+            Stats stats = new Stats();
+            stats.name = name;
+            stats.queuedBatches = queuedBatches.get();
+            stats.samples = samples.get();
+            stats.droppedSamples = dropped.get();
+            stats.errors = errors.get();
+            stats.lagMillis = lagMillis;
+            return stats;
+        }
+
+        private void run() {
+            try {
+                while(true) {
+                    Item item = items.poll();
+                    if(item == null) {
+                        if(dirty) {
+                            dirty = false;
+                            try {
+                                sink.flush();
+                            }
+                            catch (IOException | RuntimeException ex) {
+                                fail("flush", ex);
+                            }
+                        }
+                        item = items.take();
+                    }
+                    if(item.kind == Item.STOP) {
+                        if(dirty) {
+                            sink.flush();
+                        }
+                        return;
+                    }
+                    handle(item);
+                }
+            }
+            catch (InterruptedException ex) {
+                // Stopped without catching up.
+            }
+            catch (IOException | RuntimeException ex) {
+                fail("flush", ex);
+            }
+        }
+
+        private void handle(Item item) {
+            String deviceId = item.stream.deviceId;
+            try {
+                switch (item.kind) {
+                    case Item.OPEN:
+                        sink.open(deviceId, item.stream.startEpochMillis);
+                        break;
+                    case Item.BATCH:
+                        queuedBatches.decrementAndGet();
+                        int size = item.samples.size();
+                        try {
+                            item.stream.bytes.addAndGet(sink.write(deviceId, item.samples));
+                            samples.addAndGet(size);
+                            samplesMetric.add(size);
+                            dirty = true;
+                            failing = false;
+                        }
+                        catch (IOException | RuntimeException ex) {
+                            drop(size);
+                            throw ex;
+                        }
+                        finally {
+                            lagMillis = (System.nanoTime() - item.firstNanos) / 1_000_000;
+                            lagMetric.record(lagMillis);
+                            recycle(item.samples);
+                        }
+                        break;
+                    case Item.CLOSE:
+                        sink.close(deviceId);
+                        break;
+                }
+            }
+            catch (IOException | RuntimeException ex) {
+                fail("BP" + deviceId, ex);
+            }
+        }
+
+        private void drop(int size) {
+            dropped.addAndGet(size);
+            droppedMetric.add(size);
+        }
+
+        private void fail(String what, Exception ex) {
+            errors.incrementAndGet();
+            errorsMetric.increment();
+            // Log the first failure of a streak only, a sink that is down fails every batch.
+            if(!failing) {
+                failing = true;
+                System.out.println("Sink " + name + " failed on " + what + ": " + ex);
+            }
+        }
+
+        private void recycle(SampleBlock block) {
+            block.clear();
+            pool.offer(block);
+        }
+    }
+}
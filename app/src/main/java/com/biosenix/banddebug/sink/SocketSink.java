@@ -0,0 +1,129 @@
+package com.biosenix.banddebug.sink;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Streams the samples as text lines "deviceId,timestamp,x,y,z" to a TCP listener, e.g. a laptop
+ * on the same network or "adb reverse" to a desktop tool.
+ *
+ * Connects on the first write. When the connection fails, writes fail without trying to
+ * reconnect until {@link #RECONNECT_DELAY_MILLIS} have passed, so a missing listener costs
+ * dropped samples but no blocked connect per batch.
+ */
+public class SocketSink implements Sink {
+    public static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    public static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final String host;
+    private final int port;
+    private Socket socket = null;
+    private OutputStream out = null;
+    private long nextConnectMillis = 0;
+    private final StringBuilder line = new StringBuilder(64);
+
+    public SocketSink(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void open(String deviceId, long startEpochMillis) {
+    }
+
+    @Override
+    public long write(String deviceId, SampleBlock samples) throws IOException {
+        OutputStream out = connect();
+        try {
+            for(int i = 0; i < samples.size(); i++) {
+                line.setLength(0);
+                line.append(deviceId).append(',').append(samples.timestamps[i]).append(',')
+                        .append(samples.x[i]).append(',').append(samples.y[i]).append(',').append(samples.z[i])
+                        .append('\n');
+                for(int c = 0; c < line.length(); c++) {
+                    out.write(line.charAt(c));
+                }
+            }
+        }
+        catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+        return 0;
+    }
+
+    @Override
+    public void close(String deviceId) throws IOException {
+        flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if(out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        }
+        catch (IOException ex) {
+            disconnect();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        }
+        catch (IOException ex) {
+            // The listener is gone, nothing left to deliver to.
+        }
+        disconnect();
+    }
+
+    public boolean isConnected() {
+        return out != null;
+    }
+
+    private OutputStream connect() throws IOException {
+        if(out != null) {
+            return out;
+        }
+        long now = System.currentTimeMillis();
+        if(now < nextConnectMillis) {
+            throw new IOException("Not connected to " + host + ":" + port);
+        }
+        nextConnectMillis = now + RECONNECT_DELAY_MILLIS;
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+        }
+        catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 16 * 1024);
+        return out;
+    }
+
+    private void disconnect() {
+        out = null;
+        if(socket != null) {
+            try {
+                socket.close();
+            }
+            catch (IOException ex) {
+                // Closing anyway.
+            }
+            socket = null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts binary session files back into the "timestamp,x,y,z" CSV lines the app used to write,
+ * so existing analysis scripts keep working.
+ *
+ * Can be run on a workstation against files pulled from the phone:
+ * <pre>
+ *   java -cp ... com.biosenix.banddebug.storage.CsvExport session.bds [session.csv]
+ * </pre>
+ */
+public final class CsvExport {
+
+    private CsvExport() {
+
+    }
+
+    /**
+     * Streams every sample of the session file into out as CSV.
+     * @return the number of samples exported.
+     */
+    public static long export(InputStream in, OutputStream out) throws IOException {
+        SessionReader reader = new SessionReader(in);
+        SampleBlock block = new SampleBlock(SessionFormat.MAX_SAMPLES_PER_BLOCK);
+        // Long enough for four signed numbers, the separators and the newline.
+        byte[] line = new byte[4 * 21];
+        long samples = 0;
+        while(reader.nextBlock(block)) {
+            for(int i = 0; i < block.size(); i++) {
+                int pos = writeNumber(line, 0, block.timestamps[i]);
+                line[pos++] = ',';
+                pos = writeNumber(line, pos, block.x[i]);
+                line[pos++] = ',';
+                pos = writeNumber(line, pos, block.y[i]);
+                line[pos++] = ',';
+                pos = writeNumber(line, pos, block.z[i]);
+                line[pos++] = '\n';
+                out.write(line, 0, pos);
+            }
+            samples += block.size();
+        }
+        out.flush();
+        if(reader.isTruncated()) {
+            System.err.println("Warning: session file ends with an incomplete block");
+        }
+        return samples;
+    }
+
+    // Writes the decimal representation of value at pos and returns the new position.
+    private static int writeNumber(byte[] buffer, int pos, long value) {
+        if(value == Long.MIN_VALUE) {
+            byte[] digits = Long.toString(value).getBytes();
+            System.arraycopy(digits, 0, buffer, pos, digits.length);
+            return pos + digits.length;
+        }
+        if(value < 0) {
+            buffer[pos++] = '-';
+            value = -value;
+        }
+        int start = pos;
+        do {
+            buffer[pos++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while(value != 0);
+        // Digits were written least significant first.
+        for(int i = start, j = pos - 1; i < j; i++, j--) {
+            byte tmp = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = tmp;
+        }
+        return pos;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("Usage: CsvExport <session" + SessionFormat.FILE_EXTENSION + "> [output.csv]");
+            System.exit(1);
+        }
+        String output = args.length > 1 ? args[1] :
+                args[0].replaceAll("\\" + SessionFormat.FILE_EXTENSION + "$", "") + ".csv";
+        try (InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            long samples = export(in, out);
+            System.out.println("Exported " + samples + " samples to " + output);
+        }
+    }
+}
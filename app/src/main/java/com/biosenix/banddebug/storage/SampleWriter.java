@@ -0,0 +1,24 @@
+package com.biosenix.banddebug.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of the samples of one session on disk.
+ */
+public interface SampleWriter extends Closeable {
+    /**
+     * Appends one sample.
+     * @param timestamp sample time in milliseconds relative to the session start.
+     */
+    void append(long timestamp, int x, int y, int z) throws IOException;
+
+    /**
+     * Hands everything appended so far to the underlying stream.
+     */
+    void flush() throws IOException;
+
+    long getSamplesWritten();
+
+    long getBytesWritten();
+}
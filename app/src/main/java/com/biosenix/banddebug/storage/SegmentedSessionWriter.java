@@ -0,0 +1,294 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.metrics.Counter;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a session as a series of segment files, each a complete {@link SessionFormat} file.
+ *
+ * A segment is closed and a new one started once it reaches {@link Config#maxSegmentBytes} or
+ * {@link Config#maxSegmentMillis}, so a multi-day session never becomes one giant file. Every
+ * segment carries the session start in its header, so timestamps stay relative to the session
+ * start across segments.
+ *
+ * Durability is group committed: at most every {@link Config#commitIntervalMillis} the pending
+ * samples are written out and the file is fsynced, so a crash or OOM kill loses at most that
+ * interval of samples without paying for a sync per sample. The check runs as samples arrive and,
+ * when the writer is given a {@link ScheduledExecutorService}, on a timer every quarter interval,
+ * so the samples of a band that stops sending are committed within 1.25 intervals too. Without a
+ * timer they wait for the next sample or for the writer to be closed.
+ *
+ * Open segments are named "name-NNN.bds.open". Closed segments are finalized on the background
+ * executor: renamed to "name-NNN.bds" and, if {@link Config#compressClosedSegments} is set,
+ * gzipped to "name-NNN.bds.gz". A ".open" segment left by a crash is still readable up to its
+ * last complete block, see {@link SessionReader#isTruncated()}.
+ *
+ * Each segment gets a {@link SessionIndex} in "name-NNN.bds.idx", committed along with the
+ * segment. Compressed segments cannot be seeked in, their index is deleted.
+ *
+ * Written by one thread at a time. The timed commits run on the timer thread, the writer locks
+ * itself against them.
+ */
+public class SegmentedSessionWriter implements SampleWriter {
+    public static final String OPEN_SUFFIX = ".open";
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    public static class Config {
+        public long maxSegmentBytes = 64L * 1024 * 1024;
+        public long maxSegmentMillis = 60 * 60 * 1000;
+        // Time between two fsyncs, 0 to sync after every sample, negative to only sync on close.
+        public long commitIntervalMillis = 1000;
+        public boolean compressClosedSegments = false;
+        public int samplesPerBlock = SessionFormat.DEFAULT_SAMPLES_PER_BLOCK;
+        public int bufferBytes = 64 * 1024;
+        // Band time between two index entries, 0 to index every block, negative to write no index.
+        public long indexIntervalMillis = SessionIndex.DEFAULT_INTERVAL_MILLIS;
+    }
+
+    private final File directory;
+    private final String name;
+    private final long startEpochMillis;
+    private final Config config;
+    private final Executor finisher;
+    // Timed commits, null without a timer.
+    private final ScheduledFuture<?> commitTask;
+
+    private final Histogram syncLatencyMetric;
+    private final Counter segmentsMetric;
+
+    private int segmentIndex = -1;
+    private File segmentFile;
+    private FileOutputStream segmentStream;
+    private SessionWriter segment;
+    private long segmentStartNanos;
+    private long lastCommitNanos;
+    // Samples were appended since the last commit.
+    private boolean dirty = false;
+    private final long commitIntervalNanos;
+
+    // Totals of the segments already closed.
+    private long closedSamples = 0;
+    private long closedBytes = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens the first segment. Samples are only committed as they arrive or on close.
+     * @param directory directory the segments are created in.
+     * @param name file name of the session without extension, the segment number is appended.
+     * @param startEpochMillis session start written into every segment header.
+     * @param finisher runs the renaming and compression of closed segments, off the sample path.
+     */
+    public SegmentedSessionWriter(File directory, String name, long startEpochMillis, Config config,
+                                  Executor finisher) throws IOException {
+        this(directory, name, startEpochMillis, config, finisher, null);
+    }
+
+    /**
+     * Opens the first segment, with timed commits on the finisher.
+     * @param finisher runs the renaming and compression of closed segments and the timed commits.
+     */
+    public SegmentedSessionWriter(File directory, String name, long startEpochMillis, Config config,
+                                  ScheduledExecutorService finisher) throws IOException {
+        this(directory, name, startEpochMillis, config, finisher, finisher);
+    }
+
+    private SegmentedSessionWriter(File directory, String name, long startEpochMillis, Config config,
+                                   Executor finisher, ScheduledExecutorService timer) throws IOException {
+        this.directory = directory;
+        this.name = name;
+        this.startEpochMillis = startEpochMillis;
+        this.config = config;
+        this.finisher = finisher;
+        this.commitIntervalNanos = config.commitIntervalMillis * 1_000_000L;
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        this.syncLatencyMetric = metrics.histogram("disk.sync_latency_us");
+        this.segmentsMetric = metrics.counter("disk.segments");
+        openSegment();
+        if(timer != null && config.commitIntervalMillis > 0) {
+            long period = Math.max(1, config.commitIntervalMillis / 4);
+            commitTask = timer.scheduleWithFixedDelay(this::commitIfDue, period, period, TimeUnit.MILLISECONDS);
+        }
+        else {
+            commitTask = null;
+        }
+    }
+
+    @Override
+    public synchronized void append(long timestamp, int x, int y, int z) throws IOException {
+        segment.append(timestamp, x, y, z);
+        dirty = true;
+        long now = System.nanoTime();
+        if(segment.getBytesWritten() >= config.maxSegmentBytes ||
+                now - segmentStartNanos >= config.maxSegmentMillis * 1_000_000L) {
+            rotate();
+        }
+        else if(commitIntervalNanos >= 0 && now - lastCommitNanos >= commitIntervalNanos) {
+            commit(now);
+        }
+    }
+
+    /**
+     * Writes out and fsyncs the pending samples now, regardless of the commit interval.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        commit(System.nanoTime());
+    }
+
+    /**
+     * Closes and finalizes the current segment and starts the next one.
+     */
+    public synchronized void rotate() throws IOException {
+        closeSegment();
+        openSegment();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        if(commitTask != null) {
+            commitTask.cancel(false);
+        }
+        closeSegment();
+    }
+
+    @Override
+    public synchronized long getSamplesWritten() {
+        return closedSamples + (closed ? 0 : segment.getSamplesWritten());
+    }
+
+    @Override
+    public synchronized long getBytesWritten() {
+        return closedBytes + (closed ? 0 : segment.getBytesWritten());
+    }
+
+    /**
+     * @return the number of segments started so far.
+     */
+    public synchronized int getSegmentCount() {
+        return segmentIndex + 1;
+    }
+
+    /**
+     * @return the file the current segment is written to, with its {@link #OPEN_SUFFIX}.
+     */
+    public synchronized File getSegmentFile() {
+        return segmentFile;
+    }
+
+    /**
+     * @return the name segment index gets once it is finalized, before any compression.
+     */
+    public String segmentName(int index) {
+        return String.format(Locale.ROOT, "%s-%03d%s", name, index, SessionFormat.FILE_EXTENSION);
+    }
+
+    private void openSegment() throws IOException {
+        segmentIndex++;
+        segmentFile = new File(directory, segmentName(segmentIndex) + OPEN_SUFFIX);
+        segmentStream = new FileOutputStream(segmentFile);
+        OutputStream out = new BufferedOutputStream(segmentStream, config.bufferBytes);
+        SessionIndex.Writer index = null;
+        if(config.indexIntervalMillis >= 0) {
+            OutputStream indexOut = new BufferedOutputStream(
+                    new FileOutputStream(SessionIndex.fileFor(segmentFile)), 4096);
+            index = new SessionIndex.Writer(indexOut, config.indexIntervalMillis);
+        }
+        segment = new SessionWriter(out, startEpochMillis, config.samplesPerBlock, index);
+        segmentStartNanos = System.nanoTime();
+        lastCommitNanos = segmentStartNanos;
+        segmentsMetric.increment();
+    }
+
+    private void commit(long now) throws IOException {
+        segment.flush();
+        long start = System.nanoTime();
+        segmentStream.getFD().sync();
+        syncLatencyMetric.record((System.nanoTime() - start) / 1000);
+        lastCommitNanos = now;
+        dirty = false;
+    }
+
+    // Timer task: commits what a band that went quiet left pending.
+    private synchronized void commitIfDue() {
+        long now = System.nanoTime();
+        if(closed || !dirty || now - lastCommitNanos < commitIntervalNanos) {
+            return;
+        }
+        try {
+            commit(now);
+        }
+        catch (IOException ex) {
+            // The next append or commit tries again.
+            ex.printStackTrace();
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        try {
+            commit(System.nanoTime());
+        }
+        finally {
+            segment.close();
+        }
+        closedSamples += segment.getSamplesWritten();
+        closedBytes += segment.getBytesWritten();
+
+        File open = segmentFile;
+        File done = new File(directory, segmentName(segmentIndex));
+        boolean compress = config.compressClosedSegments;
+        finisher.execute(() -> finalizeSegment(open, done, compress));
+    }
+
+    private static void finalizeSegment(File open, File done, boolean compress) {
+        if(!open.renameTo(done)) {
+            System.out.println("Cannot finalize segment " + open);
+            return;
+        }
+        if(!compress) {
+            return;
+        }
+        File compressed = new File(done.getPath() + COMPRESSED_SUFFIX);
+        File partial = new File(compressed.getPath() + OPEN_SUFFIX);
+        try (InputStream in = new FileInputStream(done);
+             FileOutputStream file = new FileOutputStream(partial)) {
+            GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+            out.finish();
+            out.flush();
+            file.getFD().sync();
+        }
+        catch (IOException ex) {
+            // The uncompressed segment is still there.
+            ex.printStackTrace();
+            partial.delete();
+            return;
+        }
+        if(partial.renameTo(compressed)) {
+            done.delete();
+            SessionIndex.fileFor(done).delete();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Catalog of the session files of each band with their time bounds.
+ *
+ * Per band the files are kept in a tree sorted by start time, so the file holding a given time is
+ * found in O(log n). Files of one band do not overlap in time, a band records one session at a
+ * time. Bounds are session start plus band time, so they are close to but not exactly phone time.
+ *
+ * Thread safe.
+ */
+public class SessionCatalog {
+    // "<date>-BP<device>-NNN.bds", also without the segment number and while still open.
+    private static final Pattern FILE_NAME = Pattern.compile(
+            "^.*-BP([^-]+)(-\\d+)?" + Pattern.quote(SessionFormat.FILE_EXTENSION) +
+                    "(" + Pattern.quote(SegmentedSessionWriter.OPEN_SUFFIX) + ")?$");
+
+    /**
+     * One session file and the time it covers.
+     */
+    public static class Entry {
+        public final String deviceId;
+        public final File file;
+        // Session start from the file header.
+        public final long sessionStartEpochMillis;
+        // Band timestamps of the first and last sample in the file, relative to the session start.
+        public final long firstTimestamp;
+        public final long lastTimestamp;
+
+        public Entry(String deviceId, File file, long sessionStartEpochMillis, long firstTimestamp, long lastTimestamp) {
+            this.deviceId = deviceId;
+            this.file = file;
+            this.sessionStartEpochMillis = sessionStartEpochMillis;
+            this.firstTimestamp = firstTimestamp;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        public long getStartEpochMillis() {
+            return sessionStartEpochMillis + firstTimestamp;
+        }
+
+        public long getEndEpochMillis() {
+            return sessionStartEpochMillis + lastTimestamp;
+        }
+
+        /**
+         * @return the band timestamp matching a phone time in this file's session.
+         */
+        public long toTimestamp(long epochMillis) {
+            return epochMillis - sessionStartEpochMillis;
+        }
+
+        @Override
+        public String toString() {
+            return file.getName() + " [" + getStartEpochMillis() + ", " + getEndEpochMillis() + "]";
+        }
+    }
+
+    private final Map<String, NavigableMap<Long, Entry>> devices = new HashMap<>();
+
+    /**
+     * Catalogs the session files in a directory. Files that cannot be read are skipped, compressed
+     * segments too as they cannot be seeked in.
+     */
+    public static SessionCatalog scan(File directory) {
+        SessionCatalog catalog = new SessionCatalog();
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return catalog;
+        }
+        for(File file : files) {
+            Matcher matcher = FILE_NAME.matcher(file.getName());
+            if(!matcher.matches()) {
+                continue;
+            }
+            try {
+                Entry entry = describe(matcher.group(1), file);
+                if(entry != null) {
+                    catalog.add(entry);
+                }
+            }
+            catch (IOException ex) {
+                System.out.println("Skipping session file " + file + ": " + ex.getMessage());
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Reads the time bounds of a session file. Uses its index, so only the samples after the
+     * last index entry are decoded.
+     * @return the entry, or null if the file holds no samples.
+     */
+    public static Entry describe(String deviceId, File file) throws IOException {
+        SessionIndex index = SessionIndex.open(file);
+        if(index.size() == 0) {
+            return null;
+        }
+        long lastTimestamp = index.getTimestamp(index.size() - 1);
+        long startEpochMillis;
+        try (SessionReader reader = SessionReader.open(file, index.getOffset(index.size() - 1))) {
+            startEpochMillis = reader.getStartEpochMillis();
+            SampleBlock block = new SampleBlock(SessionFormat.MAX_SAMPLES_PER_BLOCK);
+            while(reader.nextBlock(block)) {
+                if(!block.isEmpty()) {
+                    lastTimestamp = block.timestamps[block.size() - 1];
+                }
+            }
+        }
+        return new Entry(deviceId, file, startEpochMillis, index.getTimestamp(0), lastTimestamp);
+    }
+
+    public synchronized void add(Entry entry) {
+        NavigableMap<Long, Entry> entries = devices.get(entry.deviceId);
+        if(entries == null) {
+            entries = new TreeMap<>();
+            devices.put(entry.deviceId, entries);
+        }
+        entries.put(entry.getStartEpochMillis(), entry);
+    }
+
+    public synchronized boolean remove(Entry entry) {
+        NavigableMap<Long, Entry> entries = devices.get(entry.deviceId);
+        return entries != null && entries.remove(entry.getStartEpochMillis(), entry);
+    }
+
+    public synchronized Set<String> getDevices() {
+        return new TreeSet<>(devices.keySet());
+    }
+
+    /**
+     * @return the files of a band, oldest first.
+     */
+    public synchronized List<Entry> getEntries(String deviceId) {
+        NavigableMap<Long, Entry> entries = devices.get(deviceId);
+        return entries != null ? new ArrayList<>(entries.values()) : new ArrayList<>();
+    }
+
+    /**
+     * @return the file of a band that covers a phone time, or null if none does.
+     */
+    public synchronized Entry find(String deviceId, long epochMillis) {
+        NavigableMap<Long, Entry> entries = devices.get(deviceId);
+        if(entries == null) {
+            return null;
+        }
+        Map.Entry<Long, Entry> floor = entries.floorEntry(epochMillis);
+        if(floor == null || floor.getValue().getEndEpochMillis() < epochMillis) {
+            return null;
+        }
+        return floor.getValue();
+    }
+
+    /**
+     * @param fromEpochMillis start of the range, inclusive.
+     * @param toEpochMillis end of the range, exclusive.
+     * @return the files of a band that overlap a phone time range, oldest first.
+     */
+    public synchronized List<Entry> find(String deviceId, long fromEpochMillis, long toEpochMillis) {
+        List<Entry> found = new ArrayList<>();
+        NavigableMap<Long, Entry> entries = devices.get(deviceId);
+        if(entries == null || fromEpochMillis >= toEpochMillis) {
+            return found;
+        }
+        // The file started before the range may reach into it.
+        Long first = entries.floorKey(fromEpochMillis);
+        for(Entry entry : entries.subMap(first != null ? first : fromEpochMillis, true, toEpochMillis, false).values()) {
+            if(entry.getEndEpochMillis() >= fromEpochMillis) {
+                found.add(entry);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,68 @@
+package com.biosenix.banddebug.storage;
+
+/**
+ * Layout of the binary session files, replacing the one-line-per-sample CSV files.
+ *
+ * All multi-byte fixed width fields are little-endian.
+ * <pre>
+ * File header (16 bytes)
+ *   magic "BDSF" | version (1) | reserved (3) | session start, epoch millis (8)
+ * Block, repeated until the end of the file
+ *   header (12 bytes): sync (2) | sample count (2) | payload length (4) | CRC32 of payload (4)
+ *   payload: per sample, ZigZag varint deltas of timestamp, x, y and z against the previous
+ *            sample in the same block. The first sample is a delta against 0.
+ * </pre>
+ * Every block is self contained, so a file cut short by a crash loses at most its last block.
+ */
+public final class SessionFormat {
+    public static final String FILE_EXTENSION = ".bds";
+
+    public static final byte[] MAGIC = {'B', 'D', 'S', 'F'};
+    public static final byte VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+
+    public static final int BLOCK_SYNC = 0xB10C;
+    public static final int BLOCK_HEADER_SIZE = 12;
+
+    public static final int DEFAULT_SAMPLES_PER_BLOCK = 256;
+    // Sample count is stored in 16 bits.
+    public static final int MAX_SAMPLES_PER_BLOCK = 0xFFFF;
+    // Timestamp delta plus three 16-bit axis deltas (at most 17 significant bits after ZigZag).
+    public static final int MAX_SAMPLE_BYTES = Varint.MAX_BYTES + 3 * 3;
+
+    private SessionFormat() {
+
+    }
+
+    static void putShort(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >> 8);
+    }
+
+    static void putInt(byte[] buffer, int pos, int value) {
+        buffer[pos] = (byte) value;
+        buffer[pos + 1] = (byte) (value >> 8);
+        buffer[pos + 2] = (byte) (value >> 16);
+        buffer[pos + 3] = (byte) (value >> 24);
+    }
+
+    static void putLong(byte[] buffer, int pos, long value) {
+        putInt(buffer, pos, (int) value);
+        putInt(buffer, pos + 4, (int) (value >> 32));
+    }
+
+    static int getShort(byte[] buffer, int pos) {
+        return (buffer[pos] & 0xFF) | (buffer[pos + 1] & 0xFF) << 8;
+    }
+
+    static int getInt(byte[] buffer, int pos) {
+        return (buffer[pos] & 0xFF) |
+                (buffer[pos + 1] & 0xFF) << 8 |
+                (buffer[pos + 2] & 0xFF) << 16 |
+                (buffer[pos + 3] & 0xFF) << 24;
+    }
+
+    static long getLong(byte[] buffer, int pos) {
+        return (getInt(buffer, pos) & 0xFFFFFFFFL) | (long) getInt(buffer, pos + 4) << 32;
+    }
+}
@@ -0,0 +1,261 @@
+package com.biosenix.banddebug.storage;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Sparse index of a session file, mapping band timestamps to the file offsets of blocks, so a
+ * reader can seek close to a time instead of decoding the file from its start.
+ *
+ * The index lives in a file next to the session file, written by {@link SessionWriter} as blocks
+ * go out. Little-endian like the session file.
+ * <pre>
+ * Index file, "name.bds.idx"
+ *   header (8 bytes): magic "BDIX" | version (1) | reserved (3)
+ *   entry (16 bytes), repeated: timestamp of the block's first sample (8) | file offset of the block (8)
+ * </pre>
+ * An entry is written for the first block and then for the first block starting at least the
+ * index interval after the previous entry, so a reader decodes at most one interval of samples
+ * before reaching the time it seeks. Session timestamps never go backwards, so entries are sorted.
+ *
+ * The index is only a hint: entries past the end of the session file are ignored, and a missing
+ * or damaged index is rebuilt from the block headers, see {@link #open(File)}.
+ */
+public class SessionIndex {
+    public static final String FILE_EXTENSION = ".idx";
+
+    public static final byte[] MAGIC = {'B', 'D', 'I', 'X'};
+    public static final byte VERSION = 1;
+    public static final int HEADER_SIZE = 8;
+    public static final int ENTRY_SIZE = 16;
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 10_000;
+
+    /**
+     * Writes index entries as {@link SessionWriter} writes blocks. Not thread safe.
+     */
+    public static class Writer implements Closeable {
+        private final OutputStream out;
+        private final long intervalMillis;
+        private final byte[] buffer = new byte[Math.max(HEADER_SIZE, ENTRY_SIZE)];
+        private long entries = 0;
+        private long lastTimestamp = 0;
+
+        /**
+         * @param intervalMillis minimum band time between two entries, 0 to index every block.
+         */
+        public Writer(OutputStream out, long intervalMillis) throws IOException {
+            this.out = out;
+            this.intervalMillis = intervalMillis;
+            System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+            buffer[4] = VERSION;
+            buffer[5] = 0;
+            buffer[6] = 0;
+            buffer[7] = 0;
+            out.write(buffer, 0, HEADER_SIZE);
+        }
+
+        /**
+         * Called for every block, before it is written.
+         * @param firstTimestamp timestamp of the block's first sample.
+         * @param offset file offset the block is written at.
+         */
+        void onBlock(long firstTimestamp, long offset) throws IOException {
+            if(entries > 0 && firstTimestamp - lastTimestamp < intervalMillis) {
+                return;
+            }
+            SessionFormat.putLong(buffer, 0, firstTimestamp);
+            SessionFormat.putLong(buffer, 8, offset);
+            out.write(buffer, 0, ENTRY_SIZE);
+            entries++;
+            lastTimestamp = firstTimestamp;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private final long[] timestamps;
+    private final long[] offsets;
+    private final int size;
+
+    SessionIndex(long[] timestamps, long[] offsets, int size) {
+        this.timestamps = timestamps;
+        this.offsets = offsets;
+        this.size = size;
+    }
+
+    /**
+     * @return the index file that belongs to a session file. A segment that is still open already
+     *         has its index under the name it gets once finalized.
+     */
+    public static File fileFor(File sessionFile) {
+        String path = sessionFile.getPath();
+        if(path.endsWith(SegmentedSessionWriter.OPEN_SUFFIX)) {
+            path = path.substring(0, path.length() - SegmentedSessionWriter.OPEN_SUFFIX.length());
+        }
+        return new File(path + FILE_EXTENSION);
+    }
+
+    /**
+     * Loads the index of a session file, or rebuilds it if its index file is missing or damaged.
+     */
+    public static SessionIndex open(File sessionFile) throws IOException {
+        File indexFile = fileFor(sessionFile);
+        if(indexFile.exists()) {
+            try {
+                SessionIndex index = read(indexFile, sessionFile.length());
+                if(index.size > 0) {
+                    return index;
+                }
+            }
+            catch (IOException ex) {
+                System.out.println("Rebuilding damaged index " + indexFile + ": " + ex.getMessage());
+            }
+        }
+        return rebuild(sessionFile, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Reads an index file. A partly written last entry, e.g. after a crash, is ignored.
+     * @param sessionLength length of the session file, entries at or past it are dropped.
+     */
+    public static SessionIndex read(File indexFile, long sessionLength) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(indexFile))) {
+            byte[] buffer = new byte[Math.max(HEADER_SIZE, ENTRY_SIZE)];
+            if(SessionReader.readFully(in, buffer, HEADER_SIZE) != HEADER_SIZE ||
+                    !Arrays.equals(Arrays.copyOf(buffer, MAGIC.length), MAGIC)) {
+                throw new IOException("Not a session index");
+            }
+            if(buffer[4] != VERSION) {
+                throw new IOException("Unsupported session index version " + buffer[4]);
+            }
+            int capacity = (int) Math.max(0, (indexFile.length() - HEADER_SIZE) / ENTRY_SIZE);
+            long[] timestamps = new long[capacity];
+            long[] offsets = new long[capacity];
+            int size = 0;
+            while(size < capacity && SessionReader.readFully(in, buffer, ENTRY_SIZE) == ENTRY_SIZE) {
+                long timestamp = SessionFormat.getLong(buffer, 0);
+                long offset = SessionFormat.getLong(buffer, 8);
+                if(offset < SessionFormat.FILE_HEADER_SIZE || offset >= sessionLength ||
+                        (size > 0 && (offset <= offsets[size - 1] || timestamp < timestamps[size - 1]))) {
+                    break;
+                }
+                timestamps[size] = timestamp;
+                offsets[size] = offset;
+                size++;
+            }
+            return new SessionIndex(timestamps, offsets, size);
+        }
+    }
+
+    /**
+     * Builds the index of a session file from its block headers, decoding only the first
+     * timestamp of each block. Stops at the first incomplete block.
+     */
+    public static SessionIndex rebuild(File sessionFile, long intervalMillis) throws IOException {
+        long[] timestamps = new long[16];
+        long[] offsets = new long[16];
+        int size = 0;
+        try (RandomAccessFile file = new RandomAccessFile(sessionFile, "r")) {
+            long length = file.length();
+            byte[] header = new byte[SessionFormat.BLOCK_HEADER_SIZE + Varint.MAX_BYTES];
+            int[] cursor = new int[1];
+            long offset = SessionFormat.FILE_HEADER_SIZE;
+            while(offset + SessionFormat.BLOCK_HEADER_SIZE <= length) {
+                file.seek(offset);
+                int read = (int) Math.min(header.length, length - offset);
+                file.readFully(header, 0, read);
+                if(SessionFormat.getShort(header, 0) != SessionFormat.BLOCK_SYNC) {
+                    throw new IOException("Block sync marker not found at " + offset);
+                }
+                int count = SessionFormat.getShort(header, 2);
+                int payloadLength = SessionFormat.getInt(header, 4);
+                if(payloadLength < 0 || payloadLength > count * SessionFormat.MAX_SAMPLE_BYTES ||
+                        offset + SessionFormat.BLOCK_HEADER_SIZE + payloadLength > length) {
+                    break;
+                }
+                if(count > 0) {
+                    cursor[0] = SessionFormat.BLOCK_HEADER_SIZE;
+                    long timestamp;
+                    try {
+                        timestamp = Varint.readSigned(header, cursor);
+                    }
+                    catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+                        throw new IOException("Corrupt block payload at " + offset, ex);
+                    }
+                    if(size == 0 || timestamp - timestamps[size - 1] >= intervalMillis) {
+                        if(size == timestamps.length) {
+                            timestamps = Arrays.copyOf(timestamps, size * 2);
+                            offsets = Arrays.copyOf(offsets, size * 2);
+                        }
+                        timestamps[size] = timestamp;
+                        offsets[size] = offset;
+                        size++;
+                    }
+                }
+                offset += SessionFormat.BLOCK_HEADER_SIZE + payloadLength;
+            }
+        }
+        return new SessionIndex(timestamps, offsets, size);
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getTimestamp(int entry) {
+        return timestamps[entry];
+    }
+
+    public long getOffset(int entry) {
+        return offsets[entry];
+    }
+
+    /**
+     * Binary search for the last entry at or before a time.
+     * @return the entry, or -1 if the index is empty or its first entry is later.
+     */
+    public int floor(long timestamp) {
+        int low = 0;
+        int high = size - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(timestamps[mid] <= timestamp) {
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * @return the offset of the block to start reading at for samples from a time on.
+     */
+    public long seekOffset(long timestamp) {
+        int entry = floor(timestamp);
+        return entry >= 0 ? offsets[entry] : SessionFormat.FILE_HEADER_SIZE;
+    }
+}
@@ -0,0 +1,80 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Streams the samples of a session file that fall in a band time range.
+ *
+ * The reader seeks with the file's {@link SessionIndex} to the last indexed block at or before the
+ * start of the range, so it decodes at most one index interval of samples before the range, and
+ * stops at the first sample past its end. Not thread safe.
+ */
+public class SessionRangeReader implements Closeable {
+    private final SessionReader reader;
+    private final long fromTimestamp;
+    private final long toTimestamp;
+    private boolean done = false;
+
+    /**
+     * @param fromTimestamp first band timestamp of the range, inclusive.
+     * @param toTimestamp end of the range, exclusive.
+     */
+    public SessionRangeReader(File file, SessionIndex index, long fromTimestamp, long toTimestamp) throws IOException {
+        this.reader = SessionReader.open(file, index.seekOffset(fromTimestamp));
+        this.fromTimestamp = fromTimestamp;
+        this.toTimestamp = toTimestamp;
+    }
+
+    public long getStartEpochMillis() {
+        return reader.getStartEpochMillis();
+    }
+
+    public boolean isTruncated() {
+        return reader.isTruncated();
+    }
+
+    /**
+     * Reads the next samples of the range into samples, replacing its contents. Blocks are trimmed
+     * to the range, so a call may return fewer samples than a block holds but never none.
+     * @param samples block to fill. Its capacity must fit the blocks of the file.
+     * @return false once the range or the file has ended.
+     */
+    public boolean nextBlock(SampleBlock samples) throws IOException {
+        while(!done) {
+            if(!reader.nextBlock(samples)) {
+                done = true;
+                return false;
+            }
+            int count = samples.size();
+            if(count == 0 || samples.timestamps[count - 1] < fromTimestamp) {
+                continue;
+            }
+            // Keep the samples in range, compacting them to the front of the block.
+            samples.clear();
+            for(int i = 0; i < count; i++) {
+                long timestamp = samples.timestamps[i];
+                if(timestamp >= toTimestamp) {
+                    done = true;
+                    break;
+                }
+                if(timestamp >= fromTimestamp) {
+                    samples.append(timestamp, samples.x[i], samples.y[i], samples.z[i]);
+                }
+            }
+            if(!samples.isEmpty()) {
+                return true;
+            }
+        }
+        samples.clear();
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,154 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Streams the blocks of a binary session file written by {@link SessionWriter}.
+ * Only one block is held in memory at a time. Not thread safe.
+ */
+public class SessionReader implements Closeable {
+    private final InputStream in;
+    private final long startEpochMillis;
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[SessionFormat.BLOCK_HEADER_SIZE];
+    private final int[] cursor = new int[1];
+    private byte[] payload = new byte[SessionFormat.DEFAULT_SAMPLES_PER_BLOCK * SessionFormat.MAX_SAMPLE_BYTES];
+
+    // Set when the file ends in the middle of a block, e.g. after a crash while writing.
+    private boolean truncated = false;
+
+    public SessionReader(InputStream in) throws IOException {
+        this(in, readHeader(in));
+    }
+
+    private SessionReader(InputStream in, long startEpochMillis) {
+        this.in = in;
+        this.startEpochMillis = startEpochMillis;
+    }
+
+    /**
+     * Opens a session file for reading from the block at offset, e.g. one found with a
+     * {@link SessionIndex}, without reading the blocks before it.
+     * @param offset file offset of a block, or {@link SessionFormat#FILE_HEADER_SIZE} for the first.
+     */
+    public static SessionReader open(File file, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long startEpochMillis = readHeader(in);
+            in.getChannel().position(Math.max(offset, SessionFormat.FILE_HEADER_SIZE));
+            return new SessionReader(new BufferedInputStream(in, 64 * 1024), startEpochMillis);
+        }
+        catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    // Checks the file header and returns the session start.
+    private static long readHeader(InputStream in) throws IOException {
+        byte[] fileHeader = new byte[SessionFormat.FILE_HEADER_SIZE];
+        if(readFully(in, fileHeader, SessionFormat.FILE_HEADER_SIZE) != SessionFormat.FILE_HEADER_SIZE ||
+                !Arrays.equals(Arrays.copyOf(fileHeader, SessionFormat.MAGIC.length), SessionFormat.MAGIC)) {
+            throw new IOException("Not a session file");
+        }
+        if(fileHeader[4] != SessionFormat.VERSION) {
+            throw new IOException("Unsupported session file version " + fileHeader[4]);
+        }
+        return SessionFormat.getLong(fileHeader, 8);
+    }
+
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Reads the next block into samples, replacing its contents.
+     * @param samples block to fill. Its capacity must fit the blocks of the file.
+     * @return false once the end of the file (or a truncated last block) is reached.
+     * @throws IOException if a block fails its checksum or is otherwise corrupt.
+     */
+    public boolean nextBlock(SampleBlock samples) throws IOException {
+        samples.clear();
+        int read = readFully(in, header, SessionFormat.BLOCK_HEADER_SIZE);
+        if(read == 0) {
+            return false;
+        }
+        if(read < SessionFormat.BLOCK_HEADER_SIZE) {
+            truncated = true;
+            return false;
+        }
+        if(SessionFormat.getShort(header, 0) != SessionFormat.BLOCK_SYNC) {
+            throw new IOException("Block sync marker not found");
+        }
+        int count = SessionFormat.getShort(header, 2);
+        int payloadLength = SessionFormat.getInt(header, 4);
+        int checksum = SessionFormat.getInt(header, 8);
+        if(payloadLength < 0 || payloadLength > count * SessionFormat.MAX_SAMPLE_BYTES) {
+            throw new IOException("Invalid block payload length " + payloadLength);
+        }
+        if(count > samples.capacity()) {
+            throw new IOException("Block of " + count + " samples does not fit in " + samples.capacity());
+        }
+
+        if(payload.length < payloadLength) {
+            payload = new byte[payloadLength];
+        }
+        if(readFully(in, payload, payloadLength) < payloadLength) {
+            truncated = true;
+            return false;
+        }
+        crc.reset();
+        crc.update(payload, 0, payloadLength);
+        if((int) crc.getValue() != checksum) {
+            throw new IOException("Block checksum mismatch");
+        }
+
+        cursor[0] = 0;
+        long timestamp = 0;
+        long x = 0, y = 0, z = 0;
+        try {
+            for(int i = 0; i < count; i++) {
+                timestamp += Varint.readSigned(payload, cursor);
+                x += Varint.readSigned(payload, cursor);
+                y += Varint.readSigned(payload, cursor);
+                z += Varint.readSigned(payload, cursor);
+                samples.append(timestamp, (short) x, (short) y, (short) z);
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            throw new IOException("Corrupt block payload", ex);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // Reads until length bytes are read or the stream ends. Returns the number of bytes read.
+    static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while(total < length) {
+            int read = in.read(buffer, total, length - total);
+            if(read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,158 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Appends samples to a binary session file, see {@link SessionFormat}.
+ *
+ * Samples are collected in a fixed size block and encoded into a reusable buffer once the block
+ * is full, so appending a sample does not allocate and the stream only sees one write per block.
+ * Optionally writes a {@link SessionIndex} of the blocks alongside. Not thread safe.
+ */
+public class SessionWriter implements SampleWriter {
+    private final OutputStream out;
+    private final SampleBlock block;
+    private final byte[] buffer;
+    private final CRC32 crc = new CRC32();
+    private final SessionIndex.Writer index;
+
+    private long samplesWritten = 0;
+    private long bytesWritten = 0;
+
+    public SessionWriter(OutputStream out, long startEpochMillis) throws IOException {
+        this(out, startEpochMillis, SessionFormat.DEFAULT_SAMPLES_PER_BLOCK);
+    }
+
+    public SessionWriter(OutputStream out, long startEpochMillis, int samplesPerBlock) throws IOException {
+        this(out, startEpochMillis, samplesPerBlock, null);
+    }
+
+    /**
+     * @param index receives an entry for the blocks to index, flushed and closed with this writer.
+     *              May be null.
+     */
+    public SessionWriter(OutputStream out, long startEpochMillis, int samplesPerBlock,
+                         SessionIndex.Writer index) throws IOException {
+        if(samplesPerBlock <= 0 || samplesPerBlock > SessionFormat.MAX_SAMPLES_PER_BLOCK) {
+            throw new IllegalArgumentException("Invalid samples per block " + samplesPerBlock);
+        }
+        this.out = out;
+        this.index = index;
+        this.block = new SampleBlock(samplesPerBlock);
+        this.buffer = new byte[Math.max(SessionFormat.FILE_HEADER_SIZE,
+                SessionFormat.BLOCK_HEADER_SIZE + samplesPerBlock * SessionFormat.MAX_SAMPLE_BYTES)];
+
+        System.arraycopy(SessionFormat.MAGIC, 0, buffer, 0, SessionFormat.MAGIC.length);
+        buffer[4] = SessionFormat.VERSION;
+        buffer[5] = 0;
+        buffer[6] = 0;
+        buffer[7] = 0;
+        SessionFormat.putLong(buffer, 8, startEpochMillis);
+        out.write(buffer, 0, SessionFormat.FILE_HEADER_SIZE);
+        bytesWritten += SessionFormat.FILE_HEADER_SIZE;
+    }
+
+    /**
+     * Appends one sample, writing out the current block if it fills up.
+     */
+    @Override
+    public void append(long timestamp, int x, int y, int z) throws IOException {
+        block.append(timestamp, (short) x, (short) y, (short) z);
+        if(block.isFull()) {
+            writeBlock();
+        }
+    }
+
+    /**
+     * Appends all samples of a decoded block.
+     */
+    public void append(SampleBlock samples) throws IOException {
+        for(int i = 0; i < samples.size(); i++) {
+            append(samples.timestamps[i], samples.x[i], samples.y[i], samples.z[i]);
+        }
+    }
+
+    /**
+     * Writes out the samples of the current, possibly partial, block and flushes the stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        writeBlock();
+        out.flush();
+        // After the data, so the index never points past what was written.
+        if(index != null) {
+            index.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            try {
+                out.close();
+            }
+            finally {
+                if(index != null) {
+                    index.close();
+                }
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int count = block.size();
+        if(count == 0) {
+            return;
+        }
+
+        int pos = SessionFormat.BLOCK_HEADER_SIZE;
+        long lastTimestamp = 0;
+        int lastX = 0, lastY = 0, lastZ = 0;
+        for(int i = 0; i < count; i++) {
+            pos = Varint.writeSigned(buffer, pos, block.timestamps[i] - lastTimestamp);
+            pos = Varint.writeSigned(buffer, pos, block.x[i] - lastX);
+            pos = Varint.writeSigned(buffer, pos, block.y[i] - lastY);
+            pos = Varint.writeSigned(buffer, pos, block.z[i] - lastZ);
+            lastTimestamp = block.timestamps[i];
+            lastX = block.x[i];
+            lastY = block.y[i];
+            lastZ = block.z[i];
+        }
+        int payloadLength = pos - SessionFormat.BLOCK_HEADER_SIZE;
+
+        crc.reset();
+        crc.update(buffer, SessionFormat.BLOCK_HEADER_SIZE, payloadLength);
+        SessionFormat.putShort(buffer, 0, SessionFormat.BLOCK_SYNC);
+        SessionFormat.putShort(buffer, 2, count);
+        SessionFormat.putInt(buffer, 4, payloadLength);
+        SessionFormat.putInt(buffer, 8, (int) crc.getValue());
+
+        if(index != null) {
+            index.onBlock(block.timestamps[0], bytesWritten);
+        }
+        out.write(buffer, 0, pos);
+        samplesWritten += count;
+        bytesWritten += pos;
+        block.clear();
+    }
+
+    @Override
+    public long getSamplesWritten() {
+        return samplesWritten + block.size();
+    }
+
+    /**
+     * @return the number of bytes handed to the stream so far, excluding the unwritten block.
+     */
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+}
@@ -0,0 +1,85 @@
+package com.biosenix.banddebug.storage;
+
+/**
+ * ZigZag + LEB128 variable length integer helpers working directly on byte arrays.
+ * Small magnitudes, positive or negative, take a single byte.
+ */
+public final class Varint {
+    // Longest encoding of a 64-bit value.
+    public static final int MAX_BYTES = 10;
+
+    private Varint() {
+
+    }
+
+    /**
+     * Writes a signed value at pos.
+     * @return the position right after the written bytes.
+     */
+    public static int writeSigned(byte[] buffer, int pos, long value) {
+        return writeUnsigned(buffer, pos, (value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes the value as an unsigned varint at pos.
+     * @return the position right after the written bytes.
+     */
+    public static int writeUnsigned(byte[] buffer, int pos, long value) {
+        while((value & ~0x7FL) != 0) {
+            buffer[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * @return the number of bytes {@link #writeSigned(byte[], int, long)} takes for the value.
+     */
+    public static int sizeSigned(long value) {
+        return sizeUnsigned((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * @return the number of bytes {@link #writeUnsigned(byte[], int, long)} takes for the value.
+     */
+    public static int sizeUnsigned(long value) {
+        int size = 1;
+        while((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Reads an unsigned varint. The position is passed in and returned through cursor[0]
+     * so reading does not allocate.
+     */
+    public static long readUnsigned(byte[] buffer, int[] cursor) {
+        int pos = cursor[0];
+        long value = 0;
+        int shift = 0;
+        while(true) {
+            if(shift >= 64) {
+                throw new IllegalArgumentException("Malformed varint at " + cursor[0]);
+            }
+            byte b = buffer[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        cursor[0] = pos;
+        return value;
+    }
+
+    /**
+     * Reads a signed (ZigZag) varint, see {@link #readUnsigned(byte[], int[])}.
+     */
+    public static long readSigned(byte[] buffer, int[] cursor) {
+        long value = readUnsigned(buffer, cursor);
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
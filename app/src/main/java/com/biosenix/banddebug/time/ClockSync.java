@@ -0,0 +1,178 @@
+package com.biosenix.banddebug.time;
+
+/**
+ * Maps band time to phone (epoch) time, correcting for the drift between the two clocks.
+ *
+ * Every received notification gives a pair (band time of its newest sample, phone time it was
+ * handled). The phone time is always late by a varying transport and queueing delay, so the
+ * pair with the smallest offset (phone - band) of each window is the best estimate of the true
+ * offset. A least-squares line through the minima of the last windows gives the offset and the
+ * drift rate. Until two windows are complete the smallest offset seen so far is used as is.
+ *
+ * Not thread safe. The fitted {@link Mapping} is immutable and can be handed to other threads.
+ */
+public class ClockSync {
+
+    /**
+     * Band to phone time mapping: offset(band) = offset + drift * (band - reference).
+     */
+    public static final class Mapping {
+        // Used before the first observation, phone time is taken to be band time.
+        public static final Mapping IDENTITY = new Mapping(0, 0, 0);
+
+        private final long reference;
+        private final double offset;
+        private final double drift;
+
+        Mapping(long reference, double offset, double drift) {
+            this.reference = reference;
+            this.offset = offset;
+            this.drift = drift;
+        }
+
+        /**
+         * @return the phone time matching the band time.
+         */
+        public long toPhoneMillis(long bandMillis) {
+            return bandMillis + Math.round(offset + drift * (bandMillis - reference));
+        }
+
+        /**
+         * @return how much faster the phone clock runs than the band clock, in parts per million.
+         */
+        public double getDriftPpm() {
+            return drift * 1e6;
+        }
+    }
+
+    public static final long DEFAULT_WINDOW_MILLIS = 10_000;
+    public static final int DEFAULT_WINDOWS = 30;
+
+    private final long windowMillis;
+    // Minima of the completed windows, oldest overwritten first.
+    private final long[] windowBand;
+    private final long[] windowOffset;
+    private int windows = 0;
+    private int nextWindow = 0;
+
+    // Smallest offset of the window being collected.
+    private long windowStart = -1;
+    private long currentBand = 0;
+    private long currentOffset = Long.MAX_VALUE;
+
+    private Mapping mapping = Mapping.IDENTITY;
+    private boolean synced = false;
+
+    public ClockSync() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_WINDOWS);
+    }
+
+    /**
+     * @param windowMillis phone time each minimum is taken over.
+     * @param windows number of minima the drift is fitted over.
+     */
+    public ClockSync(long windowMillis, int windows) {
+        if(windowMillis <= 0 || windows < 2) {
+            throw new IllegalArgumentException("Invalid window " + windowMillis + " ms x " + windows);
+        }
+        this.windowMillis = windowMillis;
+        this.windowBand = new long[windows];
+        this.windowOffset = new long[windows];
+    }
+
+    /**
+     * Adds a pair of simultaneous band and phone times.
+     */
+    public void addObservation(long bandMillis, long phoneMillis) {
+        if(windowStart < 0) {
+            windowStart = phoneMillis;
+        }
+        else if(phoneMillis - windowStart >= windowMillis) {
+            closeWindow();
+            windowStart = phoneMillis;
+        }
+
+        long sampleOffset = phoneMillis - bandMillis;
+        if(sampleOffset < currentOffset) {
+            currentOffset = sampleOffset;
+            currentBand = bandMillis;
+            if(windows < 2 && (!synced || sampleOffset < mapping.offset)) {
+                // Not enough windows for a drift estimate yet, go with the best offset so far.
+                mapping = new Mapping(bandMillis, sampleOffset, 0);
+                synced = true;
+            }
+        }
+    }
+
+    /**
+     * @return the phone time matching the band time, or the band time itself before the first
+     * observation.
+     */
+    public long toPhoneMillis(long bandMillis) {
+        return mapping.toPhoneMillis(bandMillis);
+    }
+
+    /**
+     * @return the current mapping. A new instance is created whenever the estimate changes.
+     */
+    public Mapping getMapping() {
+        return mapping;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /**
+     * @return how much faster the phone clock runs than the band clock, in parts per million.
+     */
+    public double getDriftPpm() {
+        return mapping.getDriftPpm();
+    }
+
+    public void reset() {
+        windows = 0;
+        nextWindow = 0;
+        windowStart = -1;
+        currentOffset = Long.MAX_VALUE;
+        mapping = Mapping.IDENTITY;
+        synced = false;
+    }
+
+    private void closeWindow() {
+        if(currentOffset == Long.MAX_VALUE) {
+            return;
+        }
+        windowBand[nextWindow] = currentBand;
+        windowOffset[nextWindow] = currentOffset;
+        nextWindow = (nextWindow + 1) % windowBand.length;
+        windows = Math.min(windows + 1, windowBand.length);
+        currentOffset = Long.MAX_VALUE;
+        if(windows >= 2) {
+            fit();
+        }
+    }
+
+    // Least squares over the window minima, relative to the newest one to keep the doubles small.
+    private void fit() {
+        long base = windowBand[(nextWindow - 1 + windowBand.length) % windowBand.length];
+        long baseOffset = windowOffset[(nextWindow - 1 + windowBand.length) % windowBand.length];
+        double meanBand = 0, meanOffset = 0;
+        for(int i = 0; i < windows; i++) {
+            meanBand += windowBand[i] - base;
+            meanOffset += windowOffset[i] - baseOffset;
+        }
+        meanBand /= windows;
+        meanOffset /= windows;
+
+        double covariance = 0, variance = 0;
+        for(int i = 0; i < windows; i++) {
+            double band = windowBand[i] - base - meanBand;
+            covariance += band * (windowOffset[i] - baseOffset - meanOffset);
+            variance += band * band;
+        }
+        double drift = variance > 0 ? covariance / variance : 0;
+        mapping = new Mapping(base, baseOffset + meanOffset - drift * meanBand, drift);
+        synced = true;
+    }
+}
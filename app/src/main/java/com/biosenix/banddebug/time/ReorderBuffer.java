@@ -0,0 +1,218 @@
+package com.biosenix.banddebug.time;
+
+/**
+ * Small jitter window that puts samples back in timestamp order and drops duplicates.
+ *
+ * Samples are kept in a binary min-heap keyed by their 64-bit timestamp, so offering a sample
+ * is O(log n). A sample is released to the sink once it is maxDelayTicks older than the newest
+ * sample seen, or earlier when the window holds maxSamples. Released samples are strictly
+ * increasing: a sample with the timestamp of the last released one is a duplicate, an older
+ * one arrived too late to be placed and is dropped.
+ *
+ * The heap lives in primitive arrays, so the buffer does not allocate after construction.
+ * Not thread safe.
+ */
+public class ReorderBuffer {
+
+    /**
+     * Receives the samples in order.
+     */
+    public interface Sink {
+        void onSample(long ticks, short x, short y, short z);
+    }
+
+    private final long maxDelayTicks;
+    private final int maxSamples;
+    private final Sink sink;
+
+    private final long[] heapTicks;
+    private final short[] heapX, heapY, heapZ;
+    private int size = 0;
+
+    private long newest = Long.MIN_VALUE;
+    private boolean hasReleased = false;
+    private long lastReleased = 0;
+
+    private long released = 0;
+    private long reordered = 0;
+    private long duplicates = 0;
+    private long late = 0;
+    private long forced = 0;
+
+    /**
+     * @param maxDelayTicks how long a sample is held back for earlier ones to arrive, 0 only dedups.
+     * @param maxSamples most samples held at once.
+     */
+    public ReorderBuffer(long maxDelayTicks, int maxSamples, Sink sink) {
+        if(maxDelayTicks < 0 || maxSamples <= 0) {
+            throw new IllegalArgumentException("Invalid window " + maxDelayTicks + " ticks, " + maxSamples + " samples");
+        }
+        this.maxDelayTicks = maxDelayTicks;
+        this.maxSamples = maxSamples;
+        this.sink = sink;
+        this.heapTicks = new long[maxSamples];
+        this.heapX = new short[maxSamples];
+        this.heapY = new short[maxSamples];
+        this.heapZ = new short[maxSamples];
+    }
+
+    /**
+     * Adds a sample and releases the samples that left the window.
+     */
+    public void offer(long ticks, short x, short y, short z) {
+        if(isBehindOutput(ticks)) {
+            return;
+        }
+        if(size == maxSamples) {
+            forced++;
+            releaseOldest();
+            if(isBehindOutput(ticks)) {
+                return;
+            }
+        }
+        if(ticks < newest) {
+            reordered++;
+        }
+        else {
+            newest = ticks;
+        }
+        push(ticks, x, y, z);
+
+        while(size > 0 && newest - heapTicks[0] >= maxDelayTicks) {
+            releaseOldest();
+        }
+    }
+
+    /**
+     * Releases every sample still held, e.g. when the session ends.
+     */
+    public void flush() {
+        while(size > 0) {
+            releaseOldest();
+        }
+    }
+
+    /**
+     * Drops the held samples and forgets the output position, e.g. for a new connection.
+     */
+    public void reset() {
+        size = 0;
+        newest = Long.MIN_VALUE;
+        hasReleased = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of samples handed to the sink.
+     */
+    public long getReleased() {
+        return released;
+    }
+
+    /**
+     * @return the number of samples that arrived after a newer one and were put back in order.
+     */
+    public long getReordered() {
+        return reordered;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return the number of samples dropped because newer samples were already released.
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * @return the number of samples released early because the window was full.
+     */
+    public long getForced() {
+        return forced;
+    }
+
+    private boolean isBehindOutput(long ticks) {
+        if(!hasReleased || ticks > lastReleased) {
+            return false;
+        }
+        if(ticks == lastReleased) {
+            duplicates++;
+        }
+        else {
+            late++;
+        }
+        return true;
+    }
+
+    private void releaseOldest() {
+        long ticks = heapTicks[0];
+        short x = heapX[0], y = heapY[0], z = heapZ[0];
+        pop();
+        if(hasReleased && ticks == lastReleased) {
+            duplicates++;
+            return;
+        }
+        hasReleased = true;
+        lastReleased = ticks;
+        released++;
+        sink.onSample(ticks, x, y, z);
+    }
+
+    private void push(long ticks, short x, short y, short z) {
+        int i = size++;
+        // Sift up.
+        while(i > 0) {
+            int parent = (i - 1) >>> 1;
+            if(heapTicks[parent] <= ticks) {
+                break;
+            }
+            move(parent, i);
+            i = parent;
+        }
+        set(i, ticks, x, y, z);
+    }
+
+    private void pop() {
+        size--;
+        if(size == 0) {
+            return;
+        }
+        long ticks = heapTicks[size];
+        short x = heapX[size], y = heapY[size], z = heapZ[size];
+        // Sift the last element down from the root.
+        int i = 0;
+        int half = size >>> 1;
+        while(i < half) {
+            int child = 2 * i + 1;
+            if(child + 1 < size && heapTicks[child + 1] < heapTicks[child]) {
+                child++;
+            }
+            if(ticks <= heapTicks[child]) {
+                break;
+            }
+            move(child, i);
+            i = child;
+        }
+        set(i, ticks, x, y, z);
+    }
+
+    private void move(int from, int to) {
+        heapTicks[to] = heapTicks[from];
+        heapX[to] = heapX[from];
+        heapY[to] = heapY[from];
+        heapZ[to] = heapZ[from];
+    }
+
+    private void set(int i, long ticks, short x, short y, short z) {
+        heapTicks[i] = ticks;
+        heapX[i] = x;
+        heapY[i] = y;
+        heapZ[i] = z;
+    }
+}
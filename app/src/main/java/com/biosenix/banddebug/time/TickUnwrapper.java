@@ -0,0 +1,56 @@
+package com.biosenix.banddebug.time;
+
+/**
+ * Extends the band's 32-bit tick counter (1/1024 s) to 64 bits across wraparounds.
+ *
+ * Each timestamp is placed within half a counter period (about 24 days) of the newest one seen,
+ * so samples that arrive out of order, even across a wrap, get the right 64-bit value.
+ * Not thread safe.
+ */
+public class TickUnwrapper {
+    public static final int TICKS_PER_SECOND = 1024;
+
+    private boolean started = false;
+    private long newest = 0;
+
+    /**
+     * @param ticks the 32-bit timestamp as sent by the band, higher bits are ignored.
+     * @return the 64-bit tick count.
+     */
+    public long unwrap(long ticks) {
+        if(!started) {
+            started = true;
+            newest = ticks & 0xFFFFFFFFL;
+            return newest;
+        }
+        // Signed 32-bit distance from the newest timestamp, wraps are taken care of by the cast.
+        int delta = (int) (ticks - newest);
+        long extended = newest + delta;
+        if(extended > newest) {
+            newest = extended;
+        }
+        return extended;
+    }
+
+    /**
+     * Starts over, e.g. for a new connection where the band clock may have been reset.
+     */
+    public void reset() {
+        started = false;
+        newest = 0;
+    }
+
+    /**
+     * @return the tick count converted to milliseconds, without overflowing.
+     */
+    public static long toMillis(long ticks) {
+        return Math.floorDiv(ticks * 1000, TICKS_PER_SECOND);
+    }
+
+    /**
+     * @return the milliseconds converted to band ticks.
+     */
+    public static long toTicks(long millis) {
+        return Math.floorDiv(millis * TICKS_PER_SECOND, 1000);
+    }
+}
@@ -0,0 +1,62 @@
+package com.biosenix.banddebug.ui;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Runs {@link StatusPublisher} renders on the main thread, either aligned to the next display
+ * frame (Choreographer) or through a plain main looper Handler.
+ */
+public class MainThreadScheduler implements StatusPublisher.Scheduler {
+    private final boolean vsync;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Choreographer choreographer = null;
+
+    // The publisher always schedules the same task, so the frame callback wrapping it is reused.
+    private Runnable frameTask = null;
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            Runnable task = frameTask;
+            if(task != null) {
+                task.run();
+            }
+        }
+    };
+    // Choreographer is per thread, so it is fetched on the main thread.
+    private final Runnable postFrame = new Runnable() {
+        @Override
+        public void run() {
+            if(choreographer == null) {
+                choreographer = Choreographer.getInstance();
+            }
+            choreographer.postFrameCallback(frameCallback);
+        }
+    };
+
+    /**
+     * @param vsync true to render at most once per display frame, false to render as soon as the
+     *              delay requested by the publisher passed.
+     */
+    public MainThreadScheduler(boolean vsync) {
+        this.vsync = vsync;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        if(vsync) {
+            frameTask = task;
+            handler.postDelayed(postFrame, delayMillis);
+        }
+        else {
+            handler.postDelayed(task, delayMillis);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.biosenix.banddebug.ui;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Coalesces status updates from background threads and pushes them to the UI at a bounded rate.
+ *
+ * Status messages and the live sample only keep their latest value, so publishing them at the
+ * band sample rate costs a few field writes and at most one scheduled render per frame. State
+ * changes (connected, disconnected, scan failed, ...) go through a separate queue and are all
+ * rendered, in order, even if they arrive within the same frame.
+ *
+ * Renders always run through the same Runnable on the thread of the {@link Scheduler}.
+ */
+public class StatusPublisher {
+
+    /**
+     * Applies the published values to the views. Called on the UI thread only.
+     */
+    public interface Renderer {
+        void renderState(String message);
+
+        void renderStatus(String message);
+
+        void renderSample(long timestamp, int x, int y, int z, long sampleCount);
+    }
+
+    /**
+     * Runs the render task on the UI thread.
+     */
+    public interface Scheduler {
+        long uptimeMillis();
+
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private final Scheduler scheduler;
+    private final Renderer renderer;
+    private final long minIntervalMillis;
+    private final Runnable renderTask = this::render;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final ConcurrentLinkedQueue<String> states = new ConcurrentLinkedQueue<>();
+
+    // Latest status message, guarded by this.
+    private String status = null;
+    // Latest sample, guarded by this. Kept as primitives so publishing a sample does not allocate.
+    private boolean sampleDirty = false;
+    private long timestamp;
+    private int x, y, z;
+    private long sampleCount = 0;
+
+    private volatile long lastRenderMillis = Long.MIN_VALUE / 2;
+    private long renders = 0;
+
+    /**
+     * @param minIntervalMillis minimum time between two renders. 0 renders at most once per
+     *                          scheduler tick, e.g. once per display frame with a vsync scheduler.
+     */
+    public StatusPublisher(Scheduler scheduler, Renderer renderer, long minIntervalMillis) {
+        this.scheduler = scheduler;
+        this.renderer = renderer;
+        this.minIntervalMillis = minIntervalMillis;
+    }
+
+    /**
+     * Publishes an informational message. Replaces any message not yet rendered.
+     */
+    public void publishStatus(String message) {
+        synchronized (this) {
+            status = message;
+        }
+        requestRender();
+    }
+
+    /**
+     * Publishes a state change. State changes are never coalesced or dropped.
+     */
+    public void publishState(String message) {
+        synchronized (this) {
+            // An older informational message must not overwrite the state once rendered.
+            status = null;
+        }
+        states.add(message);
+        requestRender();
+    }
+
+    /**
+     * Publishes the latest sample. Only the most recent sample is rendered.
+     */
+    public void publishSample(long timestamp, int x, int y, int z) {
+        synchronized (this) {
+            this.timestamp = timestamp;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.sampleCount++;
+            this.sampleDirty = true;
+        }
+        requestRender();
+    }
+
+    /**
+     * @return the number of times the renderer was run.
+     */
+    public long getRenders() {
+        return renders;
+    }
+
+    private void requestRender() {
+        // Only the first update after a render schedules the next one.
+        if(scheduled.compareAndSet(false, true)) {
+            long delay = Math.max(0, lastRenderMillis + minIntervalMillis - scheduler.uptimeMillis());
+            scheduler.schedule(renderTask, delay);
+        }
+    }
+
+    private void render() {
+        // Clear first so updates that arrive while rendering schedule another pass.
+        scheduled.set(false);
+        lastRenderMillis = scheduler.uptimeMillis();
+        renders++;
+
+        String state;
+        while((state = states.poll()) != null) {
+            renderer.renderState(state);
+        }
+
+        String message;
+        boolean renderSample;
+        long t, count;
+        int sx, sy, sz;
+        synchronized (this) {
+            message = status;
+            status = null;
+            renderSample = sampleDirty;
+            sampleDirty = false;
+            t = timestamp;
+            sx = x;
+            sy = y;
+            sz = z;
+            count = sampleCount;
+        }
+        if(message != null) {
+            renderer.renderStatus(message);
+        }
+        if(renderSample) {
+            renderer.renderSample(t, sx, sy, sz, count);
+        }
+    }
+}
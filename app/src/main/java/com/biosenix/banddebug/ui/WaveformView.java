@@ -0,0 +1,98 @@
+package com.biosenix.banddebug.ui;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.biosenix.banddebug.plot.WaveformBuffer;
+
+/**
+ * Live plot of the three axes of a {@link WaveformBuffer}, one min/max line per pixel column.
+ *
+ * Drawing reuses the frame, the paths and the paints, so redrawing every display frame while a
+ * band streams does not allocate. Call {@link #invalidate()} when new samples were published, a
+ * draw without new samples returns right away.
+ */
+public class WaveformView extends View {
+    // x, y and z.
+    private static final int[] COLORS = { 0xFFE53935, 0xFF43A047, 0xFF1E88E5 };
+
+    private WaveformBuffer buffer = null;
+    private final WaveformBuffer.Frame frame = new WaveformBuffer.Frame();
+    private final Path[] paths = { new Path(), new Path(), new Path() };
+    private final Paint[] paints = new Paint[3];
+
+    public WaveformView(Context context) {
+        this(context, null);
+    }
+
+    public WaveformView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        for(int axis = 0; axis < 3; axis++) {
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(COLORS[axis]);
+            paint.setStyle(Paint.Style.STROKE);
+            paint.setStrokeWidth(getResources().getDisplayMetrics().density);
+            paints[axis] = paint;
+        }
+    }
+
+    public void setBuffer(WaveformBuffer buffer) {
+        this.buffer = buffer;
+        frame.version = -1;
+        if(getWidth() > 0) {
+            buffer.setColumns(getWidth());
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        if(buffer != null && width > 0) {
+            buffer.setColumns(width);
+        }
+        // The paths are scaled to the old size.
+        frame.version = -1;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if(buffer != null && buffer.copyTo(frame)) {
+            buildPaths();
+        }
+        for(int axis = 0; axis < 3; axis++) {
+            canvas.drawPath(paths[axis], paints[axis]);
+        }
+    }
+
+    // Zigzags through each column's min and max. rewind() keeps the paths' storage.
+    private void buildPaths() {
+        int height = getHeight();
+        float columnWidth = frame.columns > 0 ? (float) getWidth() / buffer.getColumns() : 0;
+        float range = Math.max(1, frame.high - frame.low);
+        float scale = (height - 1) / range;
+        for(int axis = 0; axis < 3; axis++) {
+            Path path = paths[axis];
+            path.rewind();
+            short[] min = frame.min[axis];
+            short[] max = frame.max[axis];
+            for(int column = 0; column < frame.columns; column++) {
+                float x = (column + 0.5f) * columnWidth;
+                float top = height - 1 - (max[column] - frame.low) * scale;
+                float bottom = height - 1 - (min[column] - frame.low) * scale;
+                if(column == 0) {
+                    path.moveTo(x, bottom);
+                }
+                else {
+                    path.lineTo(x, bottom);
+                }
+                path.lineTo(x, top);
+            }
+        }
+    }
+}
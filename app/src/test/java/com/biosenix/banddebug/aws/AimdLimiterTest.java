@@ -0,0 +1,89 @@
+package com.biosenix.banddebug.aws;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AimdLimiterTest {
+
+    @Test
+    public void capsRequestsAndBytes() {
+        AimdLimiter limiter = new AimdLimiter(2, 1, 8, 1000, 0, 0.5);
+        assertTrue(limiter.tryAcquire(400));
+        assertTrue(limiter.tryAcquire(400));
+        assertFalse(limiter.tryAcquire(1));
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(800, limiter.getInFlightBytes());
+
+        limiter.onComplete(400, 10, false);
+        // Room for another request, not for its bytes.
+        assertFalse(limiter.tryAcquire(700));
+        assertTrue(limiter.tryAcquire(600));
+    }
+
+    @Test
+    public void oversizedRequestPassesWhenIdle() {
+        AimdLimiter limiter = new AimdLimiter(2, 1, 8, 1000, 0, 0.5);
+        assertTrue(limiter.tryAcquire(5000));
+        assertFalse(limiter.tryAcquire(1));
+        limiter.onComplete(5000, 10, false);
+        assertEquals(0, limiter.getInFlightBytes());
+    }
+
+    @Test
+    public void growsAdditivelyShrinksMultiplicatively() {
+        AimdLimiter limiter = new AimdLimiter(2, 1, 8, Long.MAX_VALUE, 0, 0.5);
+        // Each success adds 1 / limit, so a round of limit successes adds about one.
+        complete(limiter, 3, false);
+        assertEquals(3, limiter.getLimit());
+        complete(limiter, 3, false);
+        assertEquals(4, limiter.getLimit());
+
+        complete(limiter, 1, true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(1, limiter.getDecreases());
+
+        complete(limiter, 1000, false);
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void slowRequestsCountAsCongestion() {
+        AimdLimiter limiter = new AimdLimiter(8, 1, 8, Long.MAX_VALUE, 100, 0.5);
+        assertTrue(limiter.tryAcquire(1));
+        limiter.onComplete(1, 50, false);
+        assertEquals(8, limiter.getLimit());
+
+        assertTrue(limiter.tryAcquire(1));
+        limiter.onComplete(1, 500, false);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void decreasesOncePerRoundTrip() {
+        AimdLimiter limiter = new AimdLimiter(8, 2, 8, Long.MAX_VALUE, 0, 0.5);
+        // Eight requests sent together are throttled together, which is one congestion signal.
+        for(int i = 0; i < 8; i++) {
+            assertTrue(limiter.tryAcquire(1));
+        }
+        for(int i = 0; i < 8; i++) {
+            limiter.onComplete(1, 60_000, true);
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(1, limiter.getDecreases());
+
+        // Never below the floor.
+        for(int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire(1));
+            limiter.onComplete(1, 0, true);
+        }
+        assertEquals(2, limiter.getLimit());
+    }
+
+    private static void complete(AimdLimiter limiter, int requests, boolean congested) {
+        for(int i = 0; i < requests; i++) {
+            assertTrue(limiter.tryAcquire(1));
+            limiter.onComplete(1, 0, congested);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.biosenix.banddebug.aws;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResultEntry;
+
+/**
+ * In-memory stand-in for the Kinesis client. Completes every request immediately and records it.
+ * Individual records can be failed by setting {@link #failer}, whole requests by {@link #offline}.
+ *
+ * With {@link #latencyMillis} set, requests complete later on a timer thread instead. With
+ * {@link #capacity} set, every record of a request that arrives while that many requests are
+ * already outstanding is throttled, like an overloaded shard.
+ */
+public class FakeKinesisClient implements KinesisAsyncClient {
+
+    public interface RecordFailer {
+        /**
+         * @return true if the record at the given index of the given request should be rejected.
+         */
+        boolean shouldFail(int requestNumber, int recordIndex);
+    }
+
+    public final List<PutRecordsRequest> requests = Collections.synchronizedList(new ArrayList<>());
+    public volatile RecordFailer failer = null;
+    public volatile boolean offline = false;
+    public volatile long latencyMillis = 0;
+    public volatile int capacity = Integer.MAX_VALUE;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger maxOutstanding = new AtomicInteger();
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "fake-kinesis");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public CompletableFuture<PutRecordsResponse> putRecords(PutRecordsRequest request) {
+        if(offline) {
+            CompletableFuture<PutRecordsResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("Network is unreachable"));
+            return failed;
+        }
+        int requestNumber;
+        synchronized (requests) {
+            requestNumber = requests.size();
+            requests.add(request);
+        }
+
+        int concurrent = outstanding.incrementAndGet();
+        maxOutstanding.accumulateAndGet(concurrent, Math::max);
+        boolean overloaded = concurrent > capacity;
+
+        List<PutRecordsResultEntry> results = new ArrayList<>();
+        int failed = 0;
+        for(int i = 0; i < request.records().size(); i++) {
+            if(overloaded || (failer != null && failer.shouldFail(requestNumber, i))) {
+                failed++;
+                results.add(PutRecordsResultEntry.builder()
+                        .errorCode("ProvisionedThroughputExceededException")
+                        .errorMessage("Rate exceeded for shard")
+                        .build());
+            }
+            else {
+                results.add(PutRecordsResultEntry.builder()
+                        .shardId("shardId-000000000000")
+                        .sequenceNumber(String.valueOf(requestNumber * 1000 + i))
+                        .build());
+            }
+        }
+        PutRecordsResponse response = PutRecordsResponse.builder()
+                .failedRecordCount(failed)
+                .records(results)
+                .build();
+        if(latencyMillis <= 0) {
+            outstanding.decrementAndGet();
+            return CompletableFuture.completedFuture(response);
+        }
+        CompletableFuture<PutRecordsResponse> future = new CompletableFuture<>();
+        timer.schedule(() -> {
+            outstanding.decrementAndGet();
+            future.complete(response);
+        }, latencyMillis, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    /**
+     * @return the most requests that were outstanding at the same time.
+     */
+    public int maxOutstanding() {
+        return maxOutstanding.get();
+    }
+
+    public int totalRecords() {
+        synchronized (requests) {
+            int total = 0;
+            for(PutRecordsRequest request : requests) {
+                total += request.records().size();
+            }
+            return total;
+        }
+    }
+
+    @Override
+    public String serviceName() {
+        return "kinesis";
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
@@ -0,0 +1,536 @@
+package com.biosenix.banddebug.aws;
+
+import com.biosenix.banddebug.codec.AccelerationCodec;
+import com.biosenix.banddebug.codec.RecordCompressor;
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.features.Features;
+import com.biosenix.banddebug.models.Acceleration;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+
+import static org.junit.Assert.*;
+
+public class KinesisBatchProducerTest {
+    private final ObjectMapper json = new ObjectMapper();
+    private final FakeKinesisClient client = new FakeKinesisClient();
+    private KinesisBatchProducer producer;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private KinesisBatchProducer.Config config() {
+        KinesisBatchProducer.Config config = new KinesisBatchProducer.Config();
+        // Long enough that the linger and retry timers never fire during a test unless it is asked to.
+        config.lingerMillis = 60_000;
+        config.retryBackoffMillis = 60_000;
+        config.maxRetryBackoffMillis = 60_000;
+        // One record per sample, so the counts below are in samples unless a test packs them.
+        config.samplesPerRecord = 1;
+        return config;
+    }
+
+    @After
+    public void tearDown() {
+        if(producer != null) {
+            producer.close();
+        }
+    }
+
+    @Test
+    public void flushesWhenRecordCountIsReached() {
+        KinesisBatchProducer.Config config = config();
+        config.maxRecordsPerRequest = 10;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        for(int i = 0; i < 25; i++) {
+            producer.add(new Acceleration("01", i, i, i, i));
+        }
+        assertEquals(2, client.requests.size());
+        assertEquals(10, client.requests.get(0).records().size());
+        assertEquals(5, producer.getPendingRecords());
+
+        producer.flush();
+        assertEquals(3, client.requests.size());
+        assertEquals(5, client.requests.get(2).records().size());
+        assertEquals(25, producer.getSentRecords());
+    }
+
+    @Test
+    public void flushesWhenByteLimitIsReached() {
+        KinesisBatchProducer.Config config = config();
+        config.maxBytesPerRequest = 200;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        for(int i = 0; i < 20; i++) {
+            producer.add(new Acceleration("01", i, i, i, i));
+        }
+        producer.flush();
+
+        assertTrue(client.requests.size() > 1);
+        for(PutRecordsRequest request : client.requests) {
+            int bytes = 0;
+            for(int i = 0; i < request.records().size(); i++) {
+                bytes += request.records().get(i).data().asByteArray().length + 2;
+            }
+            assertTrue(bytes <= 200);
+        }
+        assertEquals(20, client.totalRecords());
+    }
+
+    @Test
+    public void flushesAfterLingerTime() throws InterruptedException {
+        KinesisBatchProducer.Config config = config();
+        config.lingerMillis = 20;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        producer.add(new Acceleration("01", 1, 2, 3, 4));
+        long deadline = System.currentTimeMillis() + 5000;
+        while(client.requests.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, client.totalRecords());
+    }
+
+    @Test
+    public void packsSamplesPerDeviceIntoOneRecord() throws Exception {
+        KinesisBatchProducer.Config config = config();
+        config.samplesPerRecord = 4;
+        config.encoding = KinesisBatchProducer.Encoding.JSON;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        for(int i = 0; i < 8; i++) {
+            producer.add(new Acceleration("01", i, 0, 0, i));
+        }
+        producer.add(new Acceleration("02", 9, 9, 9, 9));
+        producer.flush();
+
+        assertEquals(1, client.requests.size());
+        PutRecordsRequest request = client.requests.get(0);
+        assertEquals(3, request.records().size());
+
+        JsonNode first = json.readTree(request.records().get(0).data().asByteArray());
+        assertTrue(first.isArray());
+        assertEquals(4, first.size());
+        assertEquals(3, first.get(3).get("x").asInt());
+        assertEquals("01", request.records().get(0).partitionKey());
+
+        // The lone sample of the second band still goes out as a plain object.
+        JsonNode last = json.readTree(request.records().get(2).data().asByteArray());
+        assertTrue(last.isObject());
+        assertEquals("02", request.records().get(2).partitionKey());
+    }
+
+    @Test
+    public void packsSamplesIntoBinaryRecords() {
+        KinesisBatchProducer.Config config = config();
+        config.samplesPerRecord = 4;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        for(int i = 0; i < 8; i++) {
+            producer.add(new Acceleration("01", i, -i, 1000 + i, 20 * i));
+        }
+        producer.add(new Acceleration("02", 9, 9, 9, 9));
+        producer.flush();
+
+        PutRecordsRequest request = client.requests.get(0);
+        assertEquals(3, request.records().size());
+        byte[] data = request.records().get(1).data().asByteArray();
+        assertTrue(AccelerationCodec.isBinary(data));
+        List<Acceleration> samples = AccelerationCodec.decode(data);
+        assertEquals(4, samples.size());
+        for(int i = 0; i < 4; i++) {
+            Acceleration sample = samples.get(i);
+            assertEquals("01", sample.deviceID);
+            assertEquals(4 + i, sample.x);
+            assertEquals(-4 - i, sample.y);
+            assertEquals(1004 + i, sample.z);
+            assertEquals(20 * (4 + i), sample.timestamp);
+        }
+        assertEquals("02", AccelerationCodec.decode(request.records().get(2).data().asByteArray()).get(0).deviceID);
+    }
+
+    @Test
+    public void retriesOnlyTheRejectedRecords() {
+        producer = new KinesisBatchProducer(client, "acceleration", json, config());
+        // Reject records 1 and 3 of the first request only.
+        client.failer = (request, index) -> request == 0 && (index == 1 || index == 3);
+
+        for(int i = 0; i < 5; i++) {
+            producer.add(new Acceleration("01", i, 0, 0, i));
+        }
+        producer.flush();
+        assertEquals(3, producer.getSentRecords());
+        assertEquals(2, producer.getRetriedRecords());
+        assertEquals(2, producer.getPendingRecords());
+
+        producer.flush();
+        assertEquals(2, client.requests.size());
+        PutRecordsRequest retry = client.requests.get(1);
+        assertEquals(2, retry.records().size());
+        assertEquals(client.requests.get(0).records().get(1), retry.records().get(0));
+        assertEquals(client.requests.get(0).records().get(3), retry.records().get(1));
+        assertEquals(5, producer.getSentRecords());
+    }
+
+    @Test
+    public void dropsRecordsAfterMaxAttempts() {
+        KinesisBatchProducer.Config config = config();
+        config.maxAttempts = 3;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+        client.failer = (request, index) -> true;
+
+        producer.add(new Acceleration("01", 1, 2, 3, 4));
+        for(int i = 0; i < 5; i++) {
+            producer.flush();
+        }
+        assertEquals(3, client.requests.size());
+        assertEquals(1, producer.getDroppedRecords());
+        assertEquals(0, producer.getPendingRecords());
+    }
+
+    @Test
+    public void backsOffBeforeRetrying() throws InterruptedException {
+        KinesisBatchProducer.Config config = config();
+        config.retryBackoffMillis = 200;
+        config.maxRetryBackoffMillis = 200;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+        client.failer = (request, index) -> request == 0;
+
+        producer.add(new Acceleration("01", 1, 2, 3, 4));
+        producer.flush();
+        // Equal jitter: the retry waits at least half the window.
+        Thread.sleep(50);
+        assertEquals(1, client.requests.size());
+
+        waitFor(() -> producer.getSentRecords() == 1);
+        assertEquals(2, client.requests.size());
+        assertEquals(1, producer.getThrottledRecords());
+    }
+
+    @Test
+    public void capsRequestsInFlight() throws InterruptedException {
+        KinesisBatchProducer.Config config = config();
+        config.maxRecordsPerRequest = 10;
+        config.initialInFlightRequests = 3;
+        config.maxInFlightRequests = 3;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+        client.latencyMillis = 20;
+
+        for(int i = 0; i < 500; i++) {
+            assertTrue(producer.add(new Acceleration("01", i, 0, 0, i)));
+            assertTrue(producer.getInFlightRequests() <= 3);
+        }
+        producer.flush();
+        waitFor(() -> producer.getSentRecords() == 500);
+
+        assertEquals(3, client.maxOutstanding());
+        assertEquals(500, client.totalRecords());
+        assertEquals(0, producer.getDroppedRecords());
+    }
+
+    @Test
+    public void shrinksInFlightLimitWhenThrottled() throws InterruptedException {
+        KinesisBatchProducer.Config config = config();
+        config.maxRecordsPerRequest = 10;
+        config.initialInFlightRequests = 8;
+        config.maxInFlightRequests = 8;
+        config.maxAttempts = 1000;
+        config.retryBackoffMillis = 10;
+        config.maxRetryBackoffMillis = 100;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+        // The shard takes two requests at a time and throttles everything beyond.
+        client.latencyMillis = 10;
+        client.capacity = 2;
+
+        for(int i = 0; i < 2000; i++) {
+            producer.add(new Acceleration("01", i, 0, 0, i));
+        }
+        producer.flush();
+        waitFor(() -> producer.getSentRecords() == 2000);
+
+        assertTrue(producer.getThrottledRecords() > 0);
+        assertTrue("limit " + producer.getInFlightLimit(), producer.getInFlightLimit() < 8);
+        assertEquals(0, producer.getDroppedRecords());
+    }
+
+    @Test
+    public void shedsOldestRecordsWhenBufferIsFull() throws InterruptedException {
+        KinesisBatchProducer.Config config = overflowConfig(KinesisBatchProducer.OverflowPolicy.SHED_OLDEST);
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+        client.latencyMillis = 200;
+
+        for(int i = 0; i < 200; i++) {
+            assertTrue(producer.add(new Acceleration("01", i, 0, 0, i)));
+            assertTrue(producer.getBufferedBytes() <= config.maxBufferedBytes);
+        }
+        assertTrue(producer.getShedRecords() > 0);
+        producer.flush();
+        waitFor(() -> producer.getSentRecords() + producer.getShedRecords() == 200);
+
+        assertEquals(producer.getShedRecords(), producer.getDroppedRecords());
+        // The newest sample survives.
+        List<Acceleration> sent = sentSamples();
+        assertEquals(199, sent.get(sent.size() - 1).timestamp);
+    }
+
+    @Test
+    public void blocksCallerWhileBufferIsFull() throws InterruptedException {
+        KinesisBatchProducer.Config config = overflowConfig(KinesisBatchProducer.OverflowPolicy.BLOCK);
+        config.blockTimeoutMillis = 10_000;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+        client.latencyMillis = 5;
+
+        for(int i = 0; i < 200; i++) {
+            assertTrue(producer.add(new Acceleration("01", i, 0, 0, i)));
+            assertTrue(producer.getBufferedBytes() <= config.maxBufferedBytes);
+        }
+        producer.flush();
+        waitFor(() -> producer.getSentRecords() == 200);
+
+        assertEquals(0, producer.getDroppedRecords());
+        List<Acceleration> sent = sentSamples();
+        for(int i = 0; i < sent.size(); i++) {
+            assertEquals(i, sent.get(i).timestamp);
+        }
+    }
+
+    @Test
+    public void spillsOverflowToSpool() throws Exception {
+        KinesisBatchProducer.Config config = overflowConfig(KinesisBatchProducer.OverflowPolicy.SPILL);
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 1024 * 1024, 16 * 1024 * 1024, false);
+        producer = new KinesisBatchProducer(client, "acceleration", json, config, spool);
+        client.latencyMillis = 200;
+
+        for(int i = 0; i < 200; i++) {
+            assertTrue(producer.add(new Acceleration("01", i, 0, 0, i)));
+        }
+        producer.flush();
+        waitFor(() -> producer.getSentRecords() + producer.getSpilledRecords() == 200);
+        assertTrue(producer.getSpilledRecords() > 0);
+        assertEquals(0, producer.getDroppedRecords());
+
+        spool.flush();
+        List<PutRecordsRequestEntry> spilled = new ArrayList<>();
+        spool.read(spilled, 1000, KinesisBatchProducer.MAX_BYTES_PER_REQUEST);
+        assertEquals(producer.getSpilledRecords(), spilled.size());
+        spool.close();
+    }
+
+    @Test
+    public void spillsRecordsThatRunOutOfAttempts() throws Exception {
+        KinesisBatchProducer.Config config = config();
+        config.overflowPolicy = KinesisBatchProducer.OverflowPolicy.SPILL;
+        config.maxAttempts = 1;
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 1024 * 1024, 16 * 1024 * 1024, false);
+        producer = new KinesisBatchProducer(client, "acceleration", json, config, spool);
+        client.offline = true;
+
+        for(int i = 0; i < 5; i++) {
+            assertTrue(producer.add(new Acceleration("01", i, 0, 0, i)));
+        }
+        producer.flush();
+        assertEquals(5, producer.getSpilledRecords());
+        assertEquals(0, producer.getDroppedRecords());
+
+        // The producer's flush made them readable for the drainer.
+        List<PutRecordsRequestEntry> spilled = new ArrayList<>();
+        assertEquals(5, spool.read(spilled, 1000, KinesisBatchProducer.MAX_BYTES_PER_REQUEST));
+        spool.close();
+    }
+
+    @Test
+    public void blocksPackIntoTheSameRecordsAsSamples() {
+        KinesisBatchProducer.Config config = config();
+        config.samplesPerRecord = 4;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+        for(int i = 0; i < 10; i++) {
+            producer.add(new Acceleration("01", i, -i, 1000 + i, 20 * i));
+        }
+        producer.flush();
+        List<byte[]> fromSamples = sentData(client);
+
+        FakeKinesisClient blockClient = new FakeKinesisClient();
+        KinesisBatchProducer blockProducer = new KinesisBatchProducer(blockClient, "acceleration", json, config);
+        // Blocks that do not line up with the records.
+        SampleBlock block = new SampleBlock(6);
+        for(int i = 0; i < 10; i++) {
+            block.append(20 * i, (short) i, (short) -i, (short) (1000 + i));
+            if(block.isFull() || i == 9) {
+                assertTrue(blockProducer.add("01", block));
+                block.clear();
+            }
+        }
+        blockProducer.flush();
+        List<byte[]> fromBlocks = sentData(blockClient);
+        blockProducer.close();
+
+        assertEquals(3, fromSamples.size());
+        assertEquals(fromSamples.size(), fromBlocks.size());
+        for(int i = 0; i < fromSamples.size(); i++) {
+            assertArrayEquals(fromSamples.get(i), fromBlocks.get(i));
+        }
+        assertEquals(3, blockProducer.getSentRecords());
+    }
+
+    private static List<byte[]> sentData(FakeKinesisClient client) {
+        List<byte[]> data = new ArrayList<>();
+        for(PutRecordsRequest request : client.requests) {
+            for(PutRecordsRequestEntry entry : request.records()) {
+                data.add(entry.data().asByteArray());
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void spillsOnceSpoolIsAttached() throws Exception {
+        KinesisBatchProducer.Config config = config();
+        config.overflowPolicy = KinesisBatchProducer.OverflowPolicy.SPILL;
+        config.maxAttempts = 1;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config, null);
+        client.offline = true;
+
+        // Nowhere to spill yet.
+        for(int i = 0; i < 5; i++) {
+            assertTrue(producer.add(new Acceleration("01", i, 0, 0, i)));
+        }
+        producer.flush();
+        assertEquals(5, producer.getDroppedRecords());
+        assertEquals(0, producer.getSpilledRecords());
+
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 1024 * 1024, 16 * 1024 * 1024, false);
+        producer.attachSpool(spool);
+        for(int i = 5; i < 10; i++) {
+            assertTrue(producer.add(new Acceleration("01", i, 0, 0, i)));
+        }
+        producer.flush();
+        assertEquals(5, producer.getDroppedRecords());
+        assertEquals(5, producer.getSpilledRecords());
+
+        List<PutRecordsRequestEntry> spilled = new ArrayList<>();
+        assertEquals(5, spool.read(spilled, 1000, KinesisBatchProducer.MAX_BYTES_PER_REQUEST));
+        spool.close();
+    }
+
+    @Test
+    public void defaultConfigPacksAndCompressesRecords() {
+        KinesisBatchProducer.Config config = new KinesisBatchProducer.Config();
+        config.lingerMillis = 60_000;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        for(int i = 0; i < 100; i++) {
+            producer.add(new Acceleration("01", i % 3, 0, 1000, 20 * i));
+        }
+        producer.flush();
+
+        assertEquals(2, client.totalRecords());
+        byte[] data = client.requests.get(0).records().get(0).data().asByteArray();
+        assertTrue(RecordCompressor.isCompressed(data, 0, data.length));
+        assertEquals(100, sentSamples().size());
+    }
+
+    @Test
+    public void compressesLargeRecords() {
+        KinesisBatchProducer.Config config = config();
+        config.samplesPerRecord = 500;
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        for(int i = 0; i < 500; i++) {
+            producer.add(new Acceleration("01", i % 3, 0, 1000, 20 * i));
+        }
+        producer.flush();
+
+        byte[] data = client.requests.get(0).records().get(0).data().asByteArray();
+        assertTrue(RecordCompressor.isCompressed(data, 0, data.length));
+        List<Acceleration> samples = sentSamples();
+        assertEquals(500, samples.size());
+        assertEquals(499 % 3, samples.get(499).x);
+    }
+
+    @Test
+    public void sendsFeatureRecords() throws Exception {
+        Features features = new Features(3);
+        features.deviceID = "02";
+        features.activityCount = 1234;
+        Kinesis kinesis = new Kinesis("acceleration", client, config());
+        assertTrue(kinesis.writeFeaturesToStream(features));
+        kinesis.flush();
+        kinesis.close();
+
+        PutRecordsRequestEntry entry = client.requests.get(0).records().get(0);
+        assertEquals("02", entry.partitionKey());
+        JsonNode record = json.readTree(entry.data().asByteArray());
+        assertEquals(1234, record.get("activityCount").asLong());
+        assertEquals(3, record.get("bandPower").size());
+    }
+
+    @Test
+    public void numbersRecordsPerDeviceAndAppliesStrategy() {
+        KinesisBatchProducer.Config config = config();
+        config.partitionStrategy = new ExplicitHashPartitionStrategy(ShardMap.uniform(4), 2);
+        producer = new KinesisBatchProducer(client, "acceleration", json, config);
+
+        for(int i = 0; i < 6; i++) {
+            producer.add(new Acceleration("01", i, 0, 0, i));
+            producer.add(new Acceleration("02", i, 0, 0, i));
+        }
+        producer.flush();
+
+        PutRecordsRequest request = client.requests.get(0);
+        assertEquals(12, request.records().size());
+        long[] next = new long[3];
+        for(PutRecordsRequestEntry entry : request.records()) {
+            byte[] data = entry.data().asByteArray();
+            int device = Integer.parseInt(entry.partitionKey());
+            long sequence = AccelerationCodec.sequenceOf(data, 0, data.length);
+            assertEquals(next[device]++, sequence);
+            // Band 01 rotates over shards 0 and 1, band 02 over 2 and 3.
+            int shard = (device - 1) * 2 + (int) (sequence % 2);
+            assertEquals(ShardMap.uniform(4).midpointOf(shard).toString(), entry.explicitHashKey());
+        }
+    }
+
+    // One request of ten records in flight and room for about two more requests in memory.
+    private KinesisBatchProducer.Config overflowConfig(KinesisBatchProducer.OverflowPolicy policy) {
+        KinesisBatchProducer.Config config = config();
+        config.maxRecordsPerRequest = 10;
+        config.initialInFlightRequests = 1;
+        config.maxInFlightRequests = 1;
+        config.maxBufferedBytes = 300;
+        config.overflowPolicy = policy;
+        return config;
+    }
+
+    private List<Acceleration> sentSamples() {
+        List<Acceleration> samples = new ArrayList<>();
+        synchronized (client.requests) {
+            for(PutRecordsRequest request : client.requests) {
+                for(PutRecordsRequestEntry entry : request.records()) {
+                    samples.addAll(AccelerationCodec.decode(entry.data().asByteArray()));
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while(!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
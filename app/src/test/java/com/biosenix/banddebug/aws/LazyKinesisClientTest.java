@@ -0,0 +1,92 @@
+package com.biosenix.banddebug.aws;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsResponse;
+
+import static org.junit.Assert.*;
+
+public class LazyKinesisClientTest {
+
+    private static PutRecordsRequest request() {
+        return PutRecordsRequest.builder()
+                .streamName("acceleration")
+                .records(PutRecordsRequestEntry.builder()
+                        .partitionKey("01")
+                        .data(SdkBytes.fromByteArray(new byte[] { 1, 2, 3 }))
+                        .build())
+                .build();
+    }
+
+    @Test
+    public void requestsWaitForTheClient() throws Exception {
+        FakeKinesisClient fake = new FakeKinesisClient();
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger builds = new AtomicInteger();
+        Thread[] buildThread = new Thread[1];
+        LazyKinesisClient client = new LazyKinesisClient(() -> {
+            builds.incrementAndGet();
+            buildThread[0] = Thread.currentThread();
+            try {
+                release.await();
+            }
+            catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return fake;
+        });
+        assertFalse(client.isReady());
+        assertEquals(0, builds.get());
+
+        // Does not block the caller while the client is built.
+        CompletableFuture<PutRecordsResponse> first = client.putRecords(request());
+        CompletableFuture<PutRecordsResponse> second = client.putRecords(request());
+        assertFalse(first.isDone());
+        assertEquals(0, fake.requests.size());
+
+        release.countDown();
+        assertEquals(0, (int) first.get(5, TimeUnit.SECONDS).failedRecordCount());
+        second.get(5, TimeUnit.SECONDS);
+        assertTrue(client.isReady());
+        assertNotSame(Thread.currentThread(), buildThread[0]);
+
+        client.putRecords(request()).get(5, TimeUnit.SECONDS);
+        assertEquals(3, fake.requests.size());
+        assertEquals(1, builds.get());
+    }
+
+    @Test
+    public void failedBuildIsRetried() throws Exception {
+        FakeKinesisClient fake = new FakeKinesisClient();
+        AtomicInteger builds = new AtomicInteger();
+        LazyKinesisClient client = new LazyKinesisClient(() -> {
+            if(builds.incrementAndGet() == 1) {
+                throw new IllegalStateException("No region");
+            }
+            return fake;
+        });
+
+        try {
+            client.putRecords(request()).get(5, TimeUnit.SECONDS);
+            fail("Request went out without a client");
+        }
+        catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(client.isReady());
+
+        client.putRecords(request()).get(5, TimeUnit.SECONDS);
+        assertTrue(client.isReady());
+        assertEquals(2, builds.get());
+        assertEquals(1, fake.requests.size());
+    }
+}
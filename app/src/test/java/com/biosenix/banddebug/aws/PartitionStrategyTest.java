@@ -0,0 +1,122 @@
+package com.biosenix.banddebug.aws;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import software.amazon.awssdk.services.kinesis.model.HashKeyRange;
+import software.amazon.awssdk.services.kinesis.model.SequenceNumberRange;
+import software.amazon.awssdk.services.kinesis.model.Shard;
+
+import static org.junit.Assert.*;
+
+public class PartitionStrategyTest {
+    private static final int SHARDS = 8;
+    private static final int DEVICES = 64;
+    private static final int RECORDS_PER_DEVICE = 1000;
+
+    // Records per shard when every band sends the same number of records.
+    private static int[] load(PartitionStrategy strategy, ShardMap shards) {
+        int[] load = new int[shards.getShardCount()];
+        for(int sequence = 0; sequence < RECORDS_PER_DEVICE; sequence++) {
+            for(int device = 0; device < DEVICES; device++) {
+                String deviceId = String.format("%02d", device);
+                PartitionStrategy.Key key = strategy.partition(deviceId, sequence, 1_000_000L + sequence * 100L);
+                BigInteger hashKey = key.explicitHashKey != null ? new BigInteger(key.explicitHashKey)
+                        : ShardMap.hashKeyOf(key.partitionKey);
+                load[shards.shardOf(hashKey)]++;
+            }
+        }
+        return load;
+    }
+
+    // Busiest shard against the mean, 1 is perfectly even.
+    private static double imbalance(int[] load) {
+        double mean = (double) DEVICES * RECORDS_PER_DEVICE / load.length;
+        return Arrays.stream(load).max().getAsInt() / mean;
+    }
+
+    @Test
+    public void shardMap_findsShards() {
+        ShardMap shards = ShardMap.uniform(SHARDS);
+        assertEquals(0, shards.shardOf(BigInteger.ZERO));
+        assertEquals(SHARDS - 1, shards.shardOf(ShardMap.MAX_HASH_KEY));
+        for(int i = 0; i < SHARDS; i++) {
+            assertEquals(i, shards.shardOf(shards.midpointOf(i)));
+        }
+        // MD5 of the partition key, as Kinesis computes it.
+        assertEquals(new BigInteger("96a3be3cf272e017046d1b2674a52bd3", 16), ShardMap.hashKeyOf("01"));
+    }
+
+    @Test
+    public void shardMap_skipsClosedShards() {
+        Shard closed = Shard.builder().shardId("shardId-0")
+                .hashKeyRange(HashKeyRange.builder().startingHashKey("0").endingHashKey(ShardMap.MAX_HASH_KEY.toString()).build())
+                .sequenceNumberRange(SequenceNumberRange.builder().startingSequenceNumber("1").endingSequenceNumber("9").build())
+                .build();
+        Shard low = Shard.builder().shardId("shardId-1")
+                .hashKeyRange(HashKeyRange.builder().startingHashKey("0").endingHashKey("99").build())
+                .sequenceNumberRange(SequenceNumberRange.builder().startingSequenceNumber("10").build())
+                .build();
+        Shard high = Shard.builder().shardId("shardId-2")
+                .hashKeyRange(HashKeyRange.builder().startingHashKey("100").endingHashKey(ShardMap.MAX_HASH_KEY.toString()).build())
+                .sequenceNumberRange(SequenceNumberRange.builder().startingSequenceNumber("10").build())
+                .build();
+        ShardMap shards = ShardMap.fromShards(Arrays.asList(closed, high, low));
+        assertEquals(2, shards.getShardCount());
+        assertEquals(0, shards.shardOf(BigInteger.valueOf(99)));
+        assertEquals(1, shards.shardOf(BigInteger.valueOf(100)));
+    }
+
+    @Test
+    public void device_keepsDeviceIdAsKey() {
+        PartitionStrategy.Key key = new DevicePartitionStrategy().partition("01", 5, 0);
+        assertEquals("01", key.partitionKey);
+        assertNull(key.explicitHashKey);
+    }
+
+    @Test
+    public void explicitHash_spreadsDevicesEvenly() {
+        ShardMap shards = ShardMap.uniform(SHARDS);
+        int[] hashed = load(new DevicePartitionStrategy(), shards);
+        int[] explicit = load(new ExplicitHashPartitionStrategy(shards, 1), shards);
+
+        for(int records : explicit) {
+            assertEquals(DEVICES * RECORDS_PER_DEVICE / SHARDS, records);
+        }
+        // Hashing 64 short IDs onto 8 shards is visibly uneven.
+        assertTrue(imbalance(hashed) > imbalance(explicit));
+    }
+
+    @Test
+    public void explicitHash_spreadsOneDeviceOverShards() {
+        ShardMap shards = ShardMap.uniform(SHARDS);
+        ExplicitHashPartitionStrategy strategy = new ExplicitHashPartitionStrategy(shards, 4);
+        int[] load = new int[SHARDS];
+        for(int sequence = 0; sequence < 400; sequence++) {
+            PartitionStrategy.Key key = strategy.partition("01", sequence, 0);
+            assertEquals("01", key.partitionKey);
+            load[shards.shardOf(new BigInteger(key.explicitHashKey))]++;
+        }
+        assertArrayEquals(new int[] {100, 100, 100, 100, 0, 0, 0, 0}, load);
+        // The next band starts on the next free shards.
+        assertEquals(4, shards.shardOf(new BigInteger(strategy.partition("02", 0, 0).explicitHashKey)));
+    }
+
+    @Test
+    public void timeBucket_evensOutOverTime() {
+        ShardMap shards = ShardMap.uniform(SHARDS);
+        // Ten records per bucket, so each band moves through 100 buckets.
+        int[] load = load(new TimeBucketPartitionStrategy(1000), shards);
+        assertTrue("imbalance " + imbalance(load), imbalance(load) < 1.1);
+    }
+
+    @Test
+    public void timeBucket_keyChangesWithBucket() {
+        TimeBucketPartitionStrategy strategy = new TimeBucketPartitionStrategy(60_000);
+        assertEquals("01/1", strategy.partition("01", 0, 60_000).partitionKey);
+        assertSame(strategy.partition("01", 1, 60_000), strategy.partition("01", 2, 119_999));
+        assertEquals("01/2", strategy.partition("01", 3, 120_000).partitionKey);
+    }
+}
@@ -0,0 +1,237 @@
+package com.biosenix.banddebug.aws;
+
+import com.biosenix.banddebug.codec.AccelerationCodec;
+import com.biosenix.banddebug.models.Acceleration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequest;
+import software.amazon.awssdk.services.kinesis.model.PutRecordsRequestEntry;
+
+import static org.junit.Assert.*;
+
+public class UploadSpoolTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] bytes(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(PutRecordsRequestEntry entry) {
+        return entry.data().asUtf8String();
+    }
+
+    @Test
+    public void records_areReadInOrderAfterFlush() throws IOException {
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 1024, 1024 * 1024, false);
+        for(int i = 0; i < 100; i++) {
+            spool.append("0" + (i % 3), bytes(i));
+        }
+
+        List<PutRecordsRequestEntry> out = new ArrayList<>();
+        // Closed segments can be read, the tail of the one being written only once it is flushed.
+        int beforeFlush = spool.read(out, 500, 1 << 20);
+        assertTrue(beforeFlush > 0 && beforeFlush < 100);
+
+        spool.flush();
+        assertTrue(spool.getSegmentCount() > 1);
+        assertEquals(100 - beforeFlush, spool.read(out, 500, 1 << 20));
+        for(int i = 0; i < 100; i++) {
+            assertEquals("record-" + i, text(out.get(i)));
+            assertEquals("0" + (i % 3), out.get(i).partitionKey());
+        }
+        assertFalse(spool.hasUnread());
+
+        spool.commit();
+        // Only the segment still being written is left once everything was uploaded.
+        assertEquals(1, spool.getSegmentCount());
+        spool.close();
+    }
+
+    @Test
+    public void records_keepExplicitHashKeys() throws IOException {
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 1024, 1024 * 1024, false);
+        String hashKey = ShardMap.uniform(4).midpointOf(3).toString();
+        spool.append("01", hashKey, bytes(0));
+        spool.append("02", bytes(1));
+        spool.flush();
+
+        List<PutRecordsRequestEntry> out = new ArrayList<>();
+        assertEquals(2, spool.read(out, 10, 1 << 20));
+        assertEquals("01", out.get(0).partitionKey());
+        assertEquals(hashKey, out.get(0).explicitHashKey());
+        assertEquals("record-0", text(out.get(0)));
+        assertNull(out.get(1).explicitHashKey());
+        assertEquals("record-1", text(out.get(1)));
+        spool.close();
+    }
+
+    @Test
+    public void crashRecovery_replaysOnlyUncommittedRecords() throws IOException {
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 512, 1024 * 1024, false);
+        for(int i = 0; i < 100; i++) {
+            spool.append("01", bytes(i));
+        }
+        spool.flush();
+        List<PutRecordsRequestEntry> out = new ArrayList<>();
+        spool.read(out, 30, 1 << 20);
+        spool.commit();
+        // Read but never acknowledged.
+        spool.read(out, 10, 1 << 20);
+        spool.append("01", bytes(100));
+        spool.flush();
+
+        // Simulate a crash in the middle of writing a record: garbage at the end of the last segment.
+        List<File> files = spool.listSegments();
+        try (FileOutputStream torn = new FileOutputStream(files.get(files.size() - 1), true)) {
+            torn.write(new byte[] {0, 0, 0, 42, 1, 2, 3});
+        }
+
+        UploadSpool recovered = new UploadSpool(folder.getRoot(), 512, 1024 * 1024, false);
+        out.clear();
+        while(recovered.read(out, 500, 1 << 20) > 0) {
+            // Keep reading across segments.
+        }
+        assertEquals(71, out.size());
+        for(int i = 0; i < out.size(); i++) {
+            assertEquals("record-" + (30 + i), text(out.get(i)));
+        }
+
+        // New records go to a fresh segment after the torn one.
+        recovered.append("01", bytes(101));
+        recovered.flush();
+        out.clear();
+        assertEquals(1, recovered.read(out, 500, 1 << 20));
+        assertEquals("record-101", text(out.get(0)));
+        recovered.close();
+    }
+
+    @Test
+    public void quota_evictsOldestSegmentsFirst() throws IOException {
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 200, 1000, false);
+        for(int i = 0; i < 1000; i++) {
+            spool.append("01", bytes(i));
+            spool.flush();
+        }
+        assertTrue(spool.getTotalBytes() <= 1000);
+        assertTrue(spool.getEvictedSegments() > 0);
+
+        List<PutRecordsRequestEntry> out = new ArrayList<>();
+        while(spool.read(out, 500, 1 << 20) > 0) {
+            // Drain.
+        }
+        // What is left is the newest data, still in order.
+        assertFalse(out.isEmpty());
+        assertEquals("record-999", text(out.get(out.size() - 1)));
+        for(int i = 1; i < out.size(); i++) {
+            int previous = Integer.parseInt(text(out.get(i - 1)).substring(7));
+            assertEquals(previous + 1, Integer.parseInt(text(out.get(i)).substring(7)));
+        }
+        spool.close();
+    }
+
+    @Test
+    public void kinesis_survivesOfflineCrashAndReplays() throws Exception {
+        KinesisBatchProducer.Config config = new KinesisBatchProducer.Config();
+        config.lingerMillis = 60_000;
+        config.samplesPerRecord = 10;
+        File spoolDir = new File(folder.getRoot(), "spool");
+
+        // Offline: everything stays in the spool. The app is then killed without closing anything.
+        FakeKinesisClient offline = new FakeKinesisClient();
+        offline.offline = true;
+        Kinesis first = new Kinesis("acceleration", offline, config, spoolDir);
+        for(int i = 0; i < 1000; i++) {
+            first.writeAccelToStream(new Acceleration("01", i, 0, 0, i));
+        }
+        first.flush();
+        first.getDrainer().stop();
+        assertEquals(0, first.getDrainer().getUploadedRecords());
+
+        FakeKinesisClient online = new FakeKinesisClient();
+        // Throttle a few records on the way to exercise the per-record retry.
+        online.failer = (request, index) -> request == 0 && index % 7 == 0;
+        Kinesis second = new Kinesis("acceleration", online, config, spoolDir);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while(second.getDrainer().getUploadedRecords() < 100 && System.currentTimeMillis() < deadline) {
+            second.onNetworkAvailable();
+            Thread.sleep(10);
+        }
+        second.close();
+
+        Set<Integer> samples = new TreeSet<>();
+        synchronized (online.requests) {
+            for(PutRecordsRequest request : online.requests) {
+                for(PutRecordsRequestEntry entry : request.records()) {
+                    for(Acceleration sample : AccelerationCodec.decode(entry.data().asByteArray())) {
+                        samples.add(sample.x);
+                    }
+                }
+            }
+        }
+        assertEquals(1000, samples.size());
+        assertTrue(second.getDrainer().getRetriedRecords() > 0);
+    }
+
+    @Test
+    public void drainer_capsBacklogRate() throws Exception {
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 1 << 20, 1 << 22, false);
+        for(int i = 0; i < 2000; i++) {
+            spool.append("01", bytes(i));
+        }
+        spool.flush();
+
+        FakeKinesisClient client = new FakeKinesisClient();
+        SpoolDrainer drainer = new SpoolDrainer(spool, client, "acceleration", 1000);
+        long start = System.nanoTime();
+        drainer.start();
+        while(drainer.getUploadedRecords() < 2000) {
+            Thread.sleep(5);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        drainer.stop();
+
+        // Four batches of 500 at 1000 records/s. The third, the last one read while records are
+        // left behind it, may leave after one second. The fourth reaches the write position.
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 900);
+        assertEquals(4, client.requests.size());
+    }
+
+    @Test
+    public void drainer_doesNotHoldBackLiveRecords() throws Exception {
+        UploadSpool spool = new UploadSpool(folder.getRoot(), 1 << 20, 1 << 22, false);
+        FakeKinesisClient client = new FakeKinesisClient();
+        // A cap that would take a minute for what is appended below, were it applied.
+        SpoolDrainer drainer = new SpoolDrainer(spool, client, "acceleration", 1);
+        drainer.start();
+        long start = System.nanoTime();
+        for(int round = 0; round < 5; round++) {
+            for(int i = 0; i < 10; i++) {
+                spool.append("01", bytes(round * 10 + i));
+            }
+            spool.flush();
+            drainer.wake();
+            long deadline = System.currentTimeMillis() + 5000;
+            while(drainer.getUploadedRecords() < (round + 1) * 10 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        drainer.stop();
+
+        assertEquals(50, drainer.getUploadedRecords());
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis < 5000);
+    }
+}
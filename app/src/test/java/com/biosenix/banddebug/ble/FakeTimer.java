@@ -0,0 +1,43 @@
+package com.biosenix.banddebug.ble;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link BleTimer} whose clock only moves when the test advances it, running the tasks that
+ * fall due in order.
+ */
+class FakeTimer implements BleTimer {
+    long now = 1000;
+    private final List<Long> due = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public long uptimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        due.add(now + delayMillis);
+        tasks.add(task);
+    }
+
+    void advance(long millis) {
+        long until = now + millis;
+        while(true) {
+            int next = -1;
+            for(int i = 0; i < tasks.size(); i++) {
+                if(due.get(i) <= until && (next < 0 || due.get(i) < due.get(next))) {
+                    next = i;
+                }
+            }
+            if(next < 0) {
+                break;
+            }
+            now = Math.max(now, due.remove(next));
+            tasks.remove(next).run();
+        }
+        now = until;
+    }
+}
@@ -0,0 +1,170 @@
+package com.biosenix.banddebug.ble;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.biosenix.banddebug.ble.GattOperationQueue.Type.DISCOVER_SERVICES;
+import static com.biosenix.banddebug.ble.GattOperationQueue.Type.REQUEST_MTU;
+import static com.biosenix.banddebug.ble.GattOperationQueue.Type.WRITE_DESCRIPTOR;
+import static org.junit.Assert.*;
+
+public class GattOperationQueueTest {
+    private final FakeTimer timer = new FakeTimer();
+    private final GattOperationQueue queue = new GattOperationQueue(timer, 1000, 3, 50);
+    // Every start and outcome, in order, e.g. "start mtu", "done mtu", "failed mtu -2".
+    private final List<String> log = new ArrayList<>();
+
+    // An operation whose start() answers are scripted, true once they run out.
+    private class FakeOperation extends GattOperationQueue.Operation {
+        private final boolean[] accepts;
+        int starts = 0;
+
+        FakeOperation(GattOperationQueue.Type type, String name, boolean... accepts) {
+            super(type, name);
+            this.accepts = accepts;
+        }
+
+        @Override
+        protected boolean start() {
+            log.add("start " + getName());
+            return starts < accepts.length ? accepts[starts++] : true;
+        }
+
+        @Override
+        protected void onSuccess() {
+            log.add("done " + getName());
+        }
+
+        @Override
+        protected void onFailure(int status) {
+            log.add("failed " + getName() + " " + status);
+        }
+    }
+
+    @Test
+    public void runsOneOperationAtATime() {
+        queue.enqueue(new FakeOperation(REQUEST_MTU, "mtu"));
+        queue.enqueue(new FakeOperation(DISCOVER_SERVICES, "discover"));
+        queue.enqueue(new FakeOperation(WRITE_DESCRIPTOR, "subscribe"));
+        assertEquals(3, queue.size());
+        assertEquals("[start mtu]", log.toString());
+
+        // A callback of another kind, e.g. a descriptor write of an earlier link, is ignored.
+        queue.complete(WRITE_DESCRIPTOR, GattOperationQueue.SUCCESS);
+        assertEquals("[start mtu]", log.toString());
+
+        queue.complete(REQUEST_MTU, GattOperationQueue.SUCCESS);
+        queue.complete(DISCOVER_SERVICES, GattOperationQueue.SUCCESS);
+        queue.complete(WRITE_DESCRIPTOR, GattOperationQueue.SUCCESS);
+        assertEquals("[start mtu, done mtu, start discover, done discover, start subscribe, done subscribe]",
+                log.toString());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void retriesRefusedAndFailedOperations() {
+        // Refused by a busy stack, then a GATT error (133), then it works.
+        queue.enqueue(new FakeOperation(WRITE_DESCRIPTOR, "subscribe", false));
+        queue.enqueue(new FakeOperation(REQUEST_MTU, "mtu"));
+        assertEquals("[start subscribe]", log.toString());
+        timer.advance(50);
+        assertEquals("[start subscribe, start subscribe]", log.toString());
+        queue.complete(WRITE_DESCRIPTOR, 133);
+        timer.advance(49);
+        assertEquals(2, log.size());
+        timer.advance(1);
+        queue.complete(WRITE_DESCRIPTOR, GattOperationQueue.SUCCESS);
+        assertEquals("[start subscribe, start subscribe, start subscribe, done subscribe, start mtu]",
+                log.toString());
+    }
+
+    @Test
+    public void givesUpAfterTheLastAttemptAndMovesOn() {
+        queue.enqueue(new FakeOperation(DISCOVER_SERVICES, "discover", false, false, false));
+        queue.enqueue(new FakeOperation(REQUEST_MTU, "mtu"));
+        timer.advance(1000);
+        assertEquals("[start discover, start discover, start discover, failed discover -1, start mtu]",
+                log.toString());
+    }
+
+    @Test
+    public void timesOutOperationsWithoutCallback() {
+        queue.enqueue(new FakeOperation(REQUEST_MTU, "mtu"));
+        queue.enqueue(new FakeOperation(DISCOVER_SERVICES, "discover"));
+        timer.advance(999);
+        assertEquals("[start mtu]", log.toString());
+        // Three attempts of 1 s each, 50 ms apart.
+        timer.advance(1 + 50 + 1000 + 50 + 1000);
+        assertEquals("[start mtu, start mtu, start mtu, failed mtu -2, start discover]", log.toString());
+        // The callback of the abandoned MTU exchange finally arrives, too late to matter.
+        queue.complete(REQUEST_MTU, GattOperationQueue.SUCCESS);
+        assertEquals(5, log.size());
+    }
+
+    @Test
+    public void dropsCallbackOfTimedOutAttemptWhileRetryWaits() {
+        queue.enqueue(new FakeOperation(REQUEST_MTU, "mtu"));
+        queue.enqueue(new FakeOperation(DISCOVER_SERVICES, "discover"));
+        timer.advance(1000);
+        assertEquals("[start mtu]", log.toString());
+        assertEquals(2, queue.size());
+
+        // The reply of the abandoned first attempt arrives during the retry delay.
+        timer.advance(20);
+        queue.complete(REQUEST_MTU, GattOperationQueue.SUCCESS);
+        assertEquals("[start mtu]", log.toString());
+        assertEquals(2, queue.size());
+
+        // The retry goes out as planned and its own callback completes the operation.
+        timer.advance(30);
+        assertEquals("[start mtu, start mtu]", log.toString());
+        queue.complete(REQUEST_MTU, GattOperationQueue.SUCCESS);
+        assertEquals("[start mtu, start mtu, done mtu, start discover]", log.toString());
+    }
+
+    @Test
+    public void operationsQueueFollowUpsFromTheirCallbacks() {
+        // A stack that completes every request right away, from within start().
+        GattOperationQueue.Operation subscribe = new FakeOperation(WRITE_DESCRIPTOR, "subscribe") {
+            @Override
+            protected boolean start() {
+                super.start();
+                queue.complete(WRITE_DESCRIPTOR, GattOperationQueue.SUCCESS);
+                return true;
+            }
+        };
+        queue.enqueue(new FakeOperation(DISCOVER_SERVICES, "discover") {
+            @Override
+            protected boolean start() {
+                super.start();
+                queue.complete(DISCOVER_SERVICES, GattOperationQueue.SUCCESS);
+                return true;
+            }
+
+            @Override
+            protected void onSuccess() {
+                super.onSuccess();
+                queue.enqueue(subscribe);
+            }
+        });
+        assertEquals("[start discover, done discover, start subscribe, done subscribe]", log.toString());
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void clearDropsPendingOperations() {
+        queue.enqueue(new FakeOperation(REQUEST_MTU, "mtu"));
+        queue.enqueue(new FakeOperation(DISCOVER_SERVICES, "discover"));
+        queue.clear();
+        assertTrue(queue.isIdle());
+        timer.advance(10_000);
+        queue.complete(REQUEST_MTU, GattOperationQueue.SUCCESS);
+        assertEquals("[start mtu]", log.toString());
+
+        // The next link starts from scratch.
+        queue.enqueue(new FakeOperation(REQUEST_MTU, "mtu"));
+        assertEquals("[start mtu, start mtu]", log.toString());
+    }
+}
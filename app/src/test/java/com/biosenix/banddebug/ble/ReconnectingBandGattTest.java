@@ -0,0 +1,266 @@
+package com.biosenix.banddebug.ble;
+
+import com.biosenix.banddebug.decode.DecoderRegistry;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ReconnectingBandGattTest {
+    private static final String BAND = "07";
+    private static final String ADDRESS = "C4:7F:51:00:00:07";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class FakeScanner implements BandScanner {
+        final List<String> scans = new ArrayList<>();
+        Listener listener = null;
+
+        @Override
+        public void startScan(String deviceId, Listener listener) {
+            scans.add(deviceId);
+            this.listener = listener;
+        }
+
+        @Override
+        public void stopScan(String deviceId) {
+            listener = null;
+        }
+    }
+
+    // One direct connection attempt, driven by the test.
+    private static class FakeLink implements BandGatt {
+        final String address;
+        Listener listener = null;
+        boolean disconnected = false;
+        // Connects as soon as it is asked to, from within connect().
+        boolean upOnConnect = false;
+
+        FakeLink(String address) {
+            this.address = address;
+        }
+
+        @Override
+        public String getDeviceId() {
+            return BAND;
+        }
+
+        @Override
+        public void connect(Listener listener) {
+            this.listener = listener;
+            if(upOnConnect) {
+                up();
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            disconnected = true;
+        }
+
+        void up() {
+            listener.onConnected(this);
+        }
+
+        void down() {
+            listener.onDisconnected(this);
+        }
+    }
+
+    private static class RecordingListener implements BandGatt.Listener {
+        int connected = 0;
+        int disconnected = 0;
+        int notifications = 0;
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onConnected(BandGatt gatt) {
+            connected++;
+            events.add("connected");
+        }
+
+        @Override
+        public void onStreaming(BandGatt gatt) {
+            events.add("streaming");
+        }
+
+        @Override
+        public void onDisconnected(BandGatt gatt) {
+            disconnected++;
+            events.add("disconnected");
+        }
+
+        @Override
+        public void onNotification(BandGatt gatt, UUID characteristic, byte[] value) {
+            notifications++;
+            events.add("notification");
+        }
+
+        @Override
+        public void onStatus(BandGatt gatt, String message) {
+        }
+    }
+
+    private final FakeTimer timer = new FakeTimer();
+    private final FakeScanner scanner = new FakeScanner();
+    private final List<FakeLink> links = new ArrayList<>();
+    private final RecordingListener listener = new RecordingListener();
+    private BandAddressCache cache;
+    private ReconnectingBandGatt.Config config;
+    private boolean instantLinks = false;
+
+    @Before
+    public void setUp() {
+        cache = new BandAddressCache(folder.getRoot().toPath().resolve("addresses.properties").toFile());
+        config = new ReconnectingBandGatt.Config();
+        config.backoffMillis = new long[] {0, 100, 400};
+        config.connectTimeoutMillis = 1000;
+        config.directAttemptsBeforeScan = 2;
+        config.scanTimeoutMillis = 5000;
+    }
+
+    private ReconnectingBandGatt band() {
+        return new ReconnectingBandGatt(BAND, config, scanner, (deviceId, address) -> {
+            FakeLink link = new FakeLink(address);
+            link.upOnConnect = instantLinks;
+            links.add(link);
+            return link;
+        }, cache, timer);
+    }
+
+    private FakeLink lastLink() {
+        return links.get(links.size() - 1);
+    }
+
+    @Test
+    public void scansWhenNoAddressIsCachedThenRemembersIt() {
+        ReconnectingBandGatt gatt = band();
+        gatt.connect(listener);
+        assertEquals(ReconnectingBandGatt.State.SCANNING, gatt.getState());
+        assertEquals(1, scanner.scans.size());
+        assertTrue(links.isEmpty());
+
+        scanner.listener.onFound(BAND, ADDRESS);
+        assertEquals(ReconnectingBandGatt.State.CONNECTING, gatt.getState());
+        assertEquals(ADDRESS, lastLink().address);
+        assertEquals(ADDRESS, cache.get(BAND));
+        // Survives a restart of the app.
+        assertEquals(ADDRESS, new BandAddressCache(folder.getRoot().toPath().resolve("addresses.properties").toFile()).get(BAND));
+
+        lastLink().up();
+        assertEquals(ReconnectingBandGatt.State.CONNECTED, gatt.getState());
+        assertEquals(1, listener.connected);
+    }
+
+    @Test
+    public void connectsDirectlyToCachedAddressAfterLinkLoss() {
+        cache.put(BAND, ADDRESS);
+        ReconnectingBandGatt gatt = band();
+        gatt.connect(listener);
+        assertTrue(scanner.scans.isEmpty());
+        lastLink().up();
+        lastLink().listener.onNotification(lastLink(), DecoderRegistry.ACC_CHARACTERISTIC, new byte[10]);
+
+        FakeLink lost = lastLink();
+        lost.down();
+        assertTrue(lost.disconnected);
+        assertEquals(1, listener.disconnected);
+        // Straight back to a direct attempt, no scan and no wait.
+        assertEquals(2, links.size());
+        assertEquals(ReconnectingBandGatt.State.CONNECTING, gatt.getState());
+
+        timer.advance(30);
+        lastLink().up();
+        assertEquals(2, listener.connected);
+        assertTrue(scanner.scans.isEmpty());
+        assertEquals(1, listener.notifications);
+    }
+
+    @Test
+    public void linkLossIsReportedBeforeTheNewLinkAndStaleLinksAreIgnored() {
+        cache.put(BAND, ADDRESS);
+        // The reconnect succeeds right away, from within the lost link's disconnected event.
+        instantLinks = true;
+        ReconnectingBandGatt gatt = band();
+        gatt.connect(listener);
+        FakeLink lost = lastLink();
+        lost.down();
+        assertEquals(2, links.size());
+        assertEquals("[connected, disconnected, connected]", listener.events.toString());
+
+        // Late events of the lost link do not reach the listener.
+        lost.listener.onStreaming(lost);
+        lost.listener.onNotification(lost, DecoderRegistry.ACC_CHARACTERISTIC, new byte[10]);
+        assertEquals("[connected, disconnected, connected]", listener.events.toString());
+
+        lastLink().listener.onStreaming(lastLink());
+        lastLink().listener.onNotification(lastLink(), DecoderRegistry.ACC_CHARACTERISTIC, new byte[10]);
+        assertEquals("[connected, disconnected, connected, streaming, notification]", listener.events.toString());
+        assertEquals(ReconnectingBandGatt.State.CONNECTED, gatt.getState());
+    }
+
+    @Test
+    public void backsOffThenFallsBackToScanning() {
+        cache.put(BAND, ADDRESS);
+        ReconnectingBandGatt gatt = band();
+        gatt.connect(listener);
+
+        // The band is out of range: the attempt fails.
+        lastLink().down();
+        assertTrue(lastLink().disconnected);
+        assertEquals(ReconnectingBandGatt.State.WAITING, gatt.getState());
+        timer.advance(0);
+        assertEquals(2, links.size());
+
+        // The second attempt times out, the next one waits out the 100 ms backoff.
+        timer.advance(1000);
+        assertTrue(links.get(1).disconnected);
+        assertEquals(ReconnectingBandGatt.State.WAITING, gatt.getState());
+        timer.advance(99);
+        assertEquals(ReconnectingBandGatt.State.WAITING, gatt.getState());
+        timer.advance(1);
+        // Two direct attempts failed, the address may be stale: scan.
+        assertEquals(ReconnectingBandGatt.State.SCANNING, gatt.getState());
+        assertEquals(2, links.size());
+
+        scanner.listener.onFound(BAND, "C4:7F:51:00:00:99");
+        assertEquals("C4:7F:51:00:00:99", lastLink().address);
+        assertEquals("C4:7F:51:00:00:99", cache.get(BAND));
+        lastLink().up();
+        assertEquals(1, listener.connected);
+        assertEquals(0, listener.disconnected);
+    }
+
+    @Test
+    public void disconnectStopsReconnecting() {
+        cache.put(BAND, ADDRESS);
+        ReconnectingBandGatt gatt = band();
+        gatt.connect(listener);
+        lastLink().up();
+
+        gatt.disconnect();
+        FakeLink link = lastLink();
+        assertTrue(link.disconnected);
+        link.down();
+        assertEquals(1, listener.disconnected);
+        assertEquals(ReconnectingBandGatt.State.IDLE, gatt.getState());
+        timer.advance(60_000);
+        assertEquals(1, links.size());
+
+        // A pending attempt is simply dropped.
+        gatt.connect(listener);
+        gatt.disconnect();
+        assertTrue(lastLink().disconnected);
+        timer.advance(60_000);
+        assertEquals(2, links.size());
+        assertEquals(1, listener.disconnected);
+    }
+}
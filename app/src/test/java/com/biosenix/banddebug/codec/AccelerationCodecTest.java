@@ -0,0 +1,141 @@
+package com.biosenix.banddebug.codec;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.models.Acceleration;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AccelerationCodecTest {
+
+    private static List<Acceleration> walk(String deviceId, int count, long seed) {
+        Random random = new Random(seed);
+        List<Acceleration> samples = new ArrayList<>();
+        int x = 0, y = 0, z = 1000;
+        for(int i = 0; i < count; i++) {
+            x += random.nextInt(41) - 20;
+            y += random.nextInt(41) - 20;
+            z += random.nextInt(41) - 20;
+            samples.add(new Acceleration(deviceId, x, y, z, 20 * i));
+        }
+        return samples;
+    }
+
+    private static void assertSame(List<Acceleration> expected, List<Acceleration> actual) {
+        assertEquals(expected.size(), actual.size());
+        for(int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).deviceID, actual.get(i).deviceID);
+            assertEquals(expected.get(i).timestamp, actual.get(i).timestamp);
+            assertEquals(expected.get(i).x, actual.get(i).x);
+            assertEquals(expected.get(i).y, actual.get(i).y);
+            assertEquals(expected.get(i).z, actual.get(i).z);
+        }
+    }
+
+    @Test
+    public void roundTrip() {
+        List<Acceleration> samples = walk("01", 500, 1);
+        byte[] data = AccelerationCodec.encode(samples, 42);
+        assertEquals(AccelerationCodec.encodedSize(samples, 42), data.length);
+        assertTrue(AccelerationCodec.isBinary(data));
+        assertSame(samples, AccelerationCodec.decode(data));
+        assertEquals(42, AccelerationCodec.sequenceOf(data, 0, data.length));
+    }
+
+    @Test
+    public void roundTrip_extremeValues() {
+        List<Acceleration> samples = new ArrayList<>();
+        samples.add(new Acceleration("BP\u00e9", Short.MIN_VALUE, Short.MAX_VALUE, 0, 0));
+        samples.add(new Acceleration("BP\u00e9", Short.MAX_VALUE, Short.MIN_VALUE, -1, Integer.MAX_VALUE));
+        samples.get(1).timestamp = 0xFFFFFFFFL;
+        byte[] data = AccelerationCodec.encode(samples, Long.MAX_VALUE);
+        assertSame(samples, AccelerationCodec.decode(data));
+        assertEquals(Long.MAX_VALUE, AccelerationCodec.sequenceOf(data, 0, data.length));
+    }
+
+    @Test
+    public void singleSample_isMuchSmallerThanJson() throws Exception {
+        Acceleration sample = new Acceleration("01", -123, 45, 1020, 123456);
+        byte[] binary = AccelerationCodec.encode(Collections.singletonList(sample), 0);
+        byte[] json = new ObjectMapper().writeValueAsBytes(sample);
+        assertFalse(AccelerationCodec.isBinary(json));
+        assertTrue(binary.length * 3 < json.length);
+    }
+
+    @Test
+    public void encodeIntoReusedBuffer_atOffset() {
+        List<Acceleration> samples = walk("07", 50, 2);
+        byte[] buffer = new byte[7 + AccelerationCodec.encodedSize(samples, 300)];
+        int end = AccelerationCodec.encode(samples, 300, buffer, 7);
+        assertEquals(buffer.length, end);
+        assertSame(samples, AccelerationCodec.decode(buffer, 7, end - 7));
+    }
+
+    @Test
+    public void block_roundTrip() {
+        List<Acceleration> samples = walk("03", 300, 3);
+        SampleBlock block = new SampleBlock(300);
+        for(Acceleration sample : samples) {
+            block.append(sample.timestamp, (short) sample.x, (short) sample.y, (short) sample.z);
+        }
+        byte[] buffer = new byte[AccelerationCodec.maxEncodedSize("03", 200)];
+        int end = AccelerationCodec.encode("03", 5, block, 100, 200, buffer, 0);
+        // Encoding a block gives the same bytes as encoding the objects.
+        assertArrayEquals(AccelerationCodec.encode(samples.subList(100, 300), 5), Arrays.copyOf(buffer, end));
+
+        SampleBlock decoded = new SampleBlock(200);
+        assertEquals("03", AccelerationCodec.decode(buffer, 0, end, decoded));
+        assertEquals(200, decoded.size());
+        for(int i = 0; i < 200; i++) {
+            assertEquals(block.timestamps[100 + i], decoded.timestamps[i]);
+            assertEquals(block.x[100 + i], decoded.x[i]);
+            assertEquals(block.z[100 + i], decoded.z[i]);
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedAndUnknownRecords() {
+        byte[] data = AccelerationCodec.encode(walk("01", 20, 4), 1000);
+        for(int length = 0; length < data.length; length++) {
+            try {
+                AccelerationCodec.decode(data, 0, length);
+                fail("Accepted a record cut at " + length);
+            }
+            catch (IllegalArgumentException ex) {
+                // Expected.
+            }
+        }
+        data[0] = 3;
+        try {
+            AccelerationCodec.decode(data);
+            fail("Accepted an unknown version");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void decodesVersion1Records() {
+        // Two samples of band "01" as written before records carried a sequence number.
+        byte[] data = {1, 2, 2, '0', '1', 40, 2, 4, (byte) 0xD0, 0x0F, 40, 1, 0, 0};
+        assertTrue(AccelerationCodec.isBinary(data));
+        assertEquals(-1, AccelerationCodec.sequenceOf(data, 0, data.length));
+
+        List<Acceleration> samples = AccelerationCodec.decode(data);
+        assertEquals(2, samples.size());
+        assertEquals("01", samples.get(1).deviceID);
+        assertEquals(40, samples.get(1).timestamp);
+        assertEquals(0, samples.get(1).x);
+        assertEquals(2, samples.get(1).y);
+        assertEquals(1000, samples.get(1).z);
+    }
+}
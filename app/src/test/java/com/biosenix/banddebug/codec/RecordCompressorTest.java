@@ -0,0 +1,110 @@
+package com.biosenix.banddebug.codec;
+
+import com.biosenix.banddebug.models.Acceleration;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+public class RecordCompressorTest {
+
+    // A band lying on a table: 50 Hz, a count or two of noise around 1 g.
+    private static List<Acceleration> resting(int count, long seed) {
+        Random random = new Random(seed);
+        List<Acceleration> samples = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            samples.add(new Acceleration("01", random.nextInt(3) - 1, random.nextInt(3) - 1,
+                    1000 + random.nextInt(3) - 1, 20 * i));
+        }
+        return samples;
+    }
+
+    @Test
+    public void compress_shrinksDeltaCodedBlocks() {
+        List<Acceleration> samples = resting(1000, 1);
+        byte[] record = AccelerationCodec.encode(samples, 7);
+        RecordCompressor compressor = new RecordCompressor(Deflater.BEST_SPEED);
+        byte[] compressed = compressor.compress(record);
+        compressor.close();
+
+        assertTrue(compressed.length + " of " + record.length, compressed.length * 2 < record.length);
+        assertTrue(RecordCompressor.isCompressed(compressed, 0, compressed.length));
+        assertTrue(AccelerationCodec.isBinary(compressed));
+        assertEquals(RecordCompressor.CODEC_DEFLATE, compressed[1]);
+
+        assertArrayEquals(record, RecordCompressor.decompress(compressed, 0, compressed.length));
+        List<Acceleration> decoded = AccelerationCodec.decode(compressed);
+        assertEquals(1000, decoded.size());
+        assertEquals(samples.get(999).z, decoded.get(999).z);
+        assertEquals(19_980, decoded.get(999).timestamp);
+        assertEquals(7, AccelerationCodec.sequenceOf(compressed, 0, compressed.length));
+    }
+
+    @Test
+    public void compress_neverGrowsRecords() {
+        RecordCompressor compressor = new RecordCompressor(Deflater.BEST_COMPRESSION);
+        // Too small to be worth it.
+        byte[] small = AccelerationCodec.encode(resting(4, 2), 0);
+        assertSame(small, compressor.compress(small));
+
+        // Full scale noise leaves Deflate little to work with, the result is never larger.
+        Random random = new Random(3);
+        for(int n = 0; n < 20; n++) {
+            List<Acceleration> noise = new ArrayList<>();
+            for(int i = 0; i < 20 + n; i++) {
+                noise.add(new Acceleration("01", random.nextInt(65536) - 32768, random.nextInt(65536) - 32768,
+                        random.nextInt(65536) - 32768, random.nextInt()));
+            }
+            byte[] record = AccelerationCodec.encode(noise, 0);
+            byte[] result = compressor.compress(record);
+            assertTrue(result == record || result.length < record.length);
+            assertEquals(noise.size(), AccelerationCodec.decode(result).size());
+        }
+        compressor.close();
+    }
+
+    @Test
+    public void compressor_isReusable() {
+        RecordCompressor compressor = new RecordCompressor(6);
+        for(int i = 0; i < 10; i++) {
+            List<Acceleration> samples = resting(100 + i * 50, i);
+            byte[] compressed = compressor.compress(AccelerationCodec.encode(samples, i));
+            assertEquals(samples.size(), AccelerationCodec.decode(compressed).size());
+        }
+        compressor.close();
+    }
+
+    @Test
+    public void decompress_rejectsCorruptRecords() {
+        RecordCompressor compressor = new RecordCompressor(Deflater.BEST_SPEED);
+        byte[] compressed = compressor.compress(AccelerationCodec.encode(resting(500, 4), 0));
+        compressor.close();
+
+        // The last bytes of a Deflate stream only close it, everything before them is needed.
+        for(int length = 0; length < compressed.length - 8; length += 7) {
+            try {
+                AccelerationCodec.decode(compressed, 0, length);
+                fail("Accepted a record cut at " + length);
+            }
+            catch (IllegalArgumentException ex) {
+                // Expected.
+            }
+        }
+
+        byte[] unknownCodec = Arrays.copyOf(compressed, compressed.length);
+        unknownCodec[1] = 9;
+        try {
+            RecordCompressor.decompress(unknownCodec, 0, unknownCodec.length);
+            fail("Accepted an unknown codec");
+        }
+        catch (IllegalArgumentException ex) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.biosenix.banddebug.decode;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+public class AccelDecoderTest {
+
+    private static byte[] frame(int x, int y, int z, long timestamp) {
+        return new byte[] {
+                (byte) x, (byte) (x >> 8),
+                (byte) y, (byte) (y >> 8),
+                (byte) z, (byte) (z >> 8),
+                (byte) timestamp, (byte) (timestamp >> 8),
+                (byte) (timestamp >> 16), (byte) (timestamp >> 24)
+        };
+    }
+
+    @Test
+    public void decode_littleEndianSignHandling() {
+        AccelDecoder decoder = new AccelDecoder();
+        SampleBlock block = new SampleBlock(4);
+
+        // 255 has the top bit of the LSB set, which must not be sign extended.
+        assertTrue(decoder.decode(frame(255, -1, -32768, 0xFFFFFFFFL), block));
+        assertTrue(decoder.decode(frame(32767, -256, 128, 1024), block));
+
+        assertEquals(2, block.size());
+        assertEquals(255, block.x[0]);
+        assertEquals(-1, block.y[0]);
+        assertEquals(-32768, block.z[0]);
+        assertEquals(0xFFFFFFFFL, block.timestamps[0]);
+
+        assertEquals(32767, block.x[1]);
+        assertEquals(-256, block.y[1]);
+        assertEquals(128, block.z[1]);
+        assertEquals(1024, block.timestamps[1]);
+    }
+
+    @Test
+    public void decode_rejectsWrongLength() {
+        AccelDecoder decoder = new AccelDecoder();
+        SampleBlock block = new SampleBlock(1);
+
+        assertFalse(decoder.decode(new byte[9], block));
+        assertFalse(decoder.decode(new byte[11], block));
+        assertFalse(decoder.decode(null, block));
+        assertEquals(3, decoder.getRejectedFrames());
+        assertTrue(block.isEmpty());
+    }
+
+    @Test
+    public void decode_fullBlockIsNotARejectedFrame() {
+        AccelDecoder decoder = new AccelDecoder();
+        SampleBlock block = new SampleBlock(1);
+
+        assertTrue(decoder.decode(frame(1, 2, 3, 4), block));
+        assertFalse(decoder.decode(frame(1, 2, 3, 5), block));
+        assertEquals(0, decoder.getRejectedFrames());
+
+        block.clear();
+        assertTrue(decoder.decode(frame(1, 2, 3, 5), block));
+        assertEquals(5, block.timestamps[0]);
+    }
+
+    @Test
+    public void decode_unpacksBackToBackFrames() {
+        AccelDecoder decoder = new AccelDecoder();
+        SampleBlock block = new SampleBlock(AccelDecoder.maxSamplesPerNotification(AccelDecoder.MAX_MTU));
+        assertTrue(block.capacity() >= 51);
+
+        byte[] packet = new byte[51 * AccelDecoder.FRAME_SIZE];
+        for(int i = 0; i < 51; i++) {
+            System.arraycopy(frame(i, -i, 1000 + i, 0xFFFFFFF0L + i), 0, packet, i * AccelDecoder.FRAME_SIZE,
+                    AccelDecoder.FRAME_SIZE);
+        }
+        assertTrue(decoder.decode(packet, block));
+        assertEquals(51, block.size());
+        for(int i = 0; i < 51; i++) {
+            assertEquals(i, block.x[i]);
+            assertEquals(-i, block.y[i]);
+            assertEquals(1000 + i, block.z[i]);
+            assertEquals((0xFFFFFFF0L + i) & 0xFFFFFFFFL, block.timestamps[i]);
+        }
+    }
+
+    @Test
+    public void decode_multiFrameNeedsRoomForAllSamples() {
+        AccelDecoder decoder = new AccelDecoder();
+        SampleBlock block = new SampleBlock(2);
+        byte[] packet = new byte[3 * AccelDecoder.FRAME_SIZE];
+
+        assertFalse(decoder.decode(packet, block));
+        assertTrue(block.isEmpty());
+        assertEquals(0, decoder.getRejectedFrames());
+        // Partial frames at the end are malformed.
+        assertFalse(decoder.decode(new byte[25], block));
+        assertEquals(1, decoder.getRejectedFrames());
+    }
+
+    @Test
+    public void decode_packedFormatWithHeader() {
+        AccelDecoder decoder = new AccelDecoder(AccelDecoder.Format.PACKED);
+        SampleBlock block = new SampleBlock(8);
+
+        int count = 3;
+        byte[] packet = new byte[AccelDecoder.PACKED_HEADER_SIZE + count * AccelDecoder.PACKED_SAMPLE_SIZE];
+        packet[0] = (byte) count;
+        long base = 0xFFFFFFFEL;
+        for(int i = 0; i < 4; i++) {
+            packet[1 + i] = (byte) (base >> (8 * i));
+        }
+        int[][] samples = {{255, -1, 7, 0}, {-32768, 32767, -2, 1}, {0, 1, 2, 40000}};
+        for(int i = 0; i < count; i++) {
+            int offset = AccelDecoder.PACKED_HEADER_SIZE + i * AccelDecoder.PACKED_SAMPLE_SIZE;
+            for(int axis = 0; axis < 4; axis++) {
+                packet[offset + 2 * axis] = (byte) samples[i][axis];
+                packet[offset + 2 * axis + 1] = (byte) (samples[i][axis] >> 8);
+            }
+        }
+
+        assertTrue(decoder.decode(packet, block));
+        assertEquals(3, block.size());
+        assertEquals(255, block.x[0]);
+        assertEquals(-1, block.y[0]);
+        assertEquals(0xFFFFFFFEL, block.timestamps[0]);
+        assertEquals(-32768, block.x[1]);
+        assertEquals(0xFFFFFFFFL, block.timestamps[1]);
+        // Base plus delta wraps around like the band clock.
+        assertEquals((base + 40000) & 0xFFFFFFFFL, block.timestamps[2]);
+
+        // A count that does not match the length is rejected.
+        packet[0] = 2;
+        assertFalse(decoder.decode(packet, block));
+        assertEquals(1, decoder.getRejectedFrames());
+    }
+
+    @Test
+    public void decode_packedFullMtuFitsHelperSizedBlock() {
+        AccelDecoder decoder = new AccelDecoder(AccelDecoder.Format.PACKED);
+        SampleBlock block = new SampleBlock(AccelDecoder.maxSamplesPerNotification(AccelDecoder.MAX_MTU));
+
+        // (517 - 3 - 5) / 8 samples, more than the 51 RAW frames of the same payload.
+        int count = (AccelDecoder.MAX_MTU - AccelDecoder.ATT_HEADER_SIZE - AccelDecoder.PACKED_HEADER_SIZE) /
+                AccelDecoder.PACKED_SAMPLE_SIZE;
+        assertEquals(63, count);
+        byte[] packet = new byte[AccelDecoder.PACKED_HEADER_SIZE + count * AccelDecoder.PACKED_SAMPLE_SIZE];
+        packet[0] = (byte) count;
+        for(int i = 0; i < count; i++) {
+            int offset = AccelDecoder.PACKED_HEADER_SIZE + i * AccelDecoder.PACKED_SAMPLE_SIZE;
+            packet[offset] = (byte) i;
+            packet[offset + 6] = (byte) i;
+        }
+
+        assertTrue(decoder.decode(packet, block));
+        assertEquals(count, block.size());
+        assertEquals(count - 1, block.x[count - 1]);
+        assertEquals(count - 1, block.timestamps[count - 1]);
+        assertEquals(0, decoder.getRejectedFrames());
+    }
+
+    @Test
+    public void decode_doesNotAllocatePerSample() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        AccelDecoder decoder = new AccelDecoder();
+        SampleBlock block = new SampleBlock(256);
+        byte[][] frames = new byte[64][];
+        for(int i = 0; i < frames.length; i++) {
+            frames[i] = frame(i * 37, -i * 91, i - 32, i * 1000L);
+        }
+
+        // Warm up so the measured loop runs compiled code.
+        long checksum = decodeMany(decoder, block, frames, 200_000);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        checksum += decodeMany(decoder, block, frames, 1_000_000);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum != 0);
+        // A single object per sample would be megabytes, allow a little slack for the measurement itself.
+        assertTrue("Allocated " + allocated + " bytes for 1M samples", allocated < 4096);
+    }
+
+    private static long decodeMany(AccelDecoder decoder, SampleBlock block, byte[][] frames, int count) {
+        long checksum = 0;
+        for(int i = 0; i < count; i++) {
+            if(block.isFull()) {
+                checksum += block.x[block.size() - 1];
+                block.clear();
+            }
+            decoder.decode(frames[i & (frames.length - 1)], block);
+        }
+        return checksum + block.size();
+    }
+}
@@ -0,0 +1,80 @@
+package com.biosenix.banddebug.decode;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DecoderRegistryTest {
+
+    private static byte[] ppgFrames(int... readingsAndTicks) {
+        byte[] data = new byte[readingsAndTicks.length / 2 * PpgDecoder.FRAME_SIZE];
+        for(int i = 0; i < readingsAndTicks.length; i++) {
+            for(int b = 0; b < 4; b++) {
+                data[i * 4 + b] = (byte) (readingsAndTicks[i] >> (8 * b));
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void createDefault_routesByParsedUuid() {
+        DecoderRegistry registry = DecoderRegistry.createDefault(AccelDecoder.Format.RAW);
+
+        assertEquals(2, registry.size());
+        // A UUID parsed again from its string, as Android hands out a new instance per callback.
+        assertEquals(0, registry.indexOf(UUID.fromString(DecoderRegistry.ACC_CHARACTERISTIC.toString())));
+        assertEquals(1, registry.indexOf(UUID.fromString(DecoderRegistry.PPG_CHARACTERISTIC.toString())));
+        assertEquals(-1, registry.indexOf(UUID.fromString("f3641402-00b0-4240-ba50-05ca45bf8abc")));
+        assertEquals(-1, registry.indexOf(null));
+        assertEquals("ppg", registry.getName(1));
+        assertEquals(DecoderRegistry.PPG_CHARACTERISTIC, registry.getCharacteristics().get(1));
+        // PPG is decoded if it arrives, but not subscribed to until something consumes it.
+        assertEquals(Collections.singletonList(DecoderRegistry.ACC_CHARACTERISTIC),
+                registry.getSubscribedCharacteristics());
+        registry.setSubscribed(DecoderRegistry.PPG_CHARACTERISTIC, true);
+        assertTrue(registry.isSubscribed(1));
+        assertEquals(registry.getCharacteristics(), registry.getSubscribedCharacteristics());
+
+        StreamDecoder[] decoders = registry.createDecoders(244);
+        assertTrue(decoders[0] instanceof AccelStreamDecoder);
+        assertTrue(decoders[1] instanceof PpgDecoder);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void register_rejectsDuplicateCharacteristic() {
+        DecoderRegistry registry = DecoderRegistry.createDefault(AccelDecoder.Format.RAW);
+        registry.register(DecoderRegistry.PPG_CHARACTERISTIC, "ppg2", PpgDecoder::new);
+    }
+
+    @Test
+    public void ppg_decodesFramesAndCountsRejects() {
+        PpgDecoder decoder = new PpgDecoder(16);
+
+        assertEquals(2, decoder.decode(ppgFrames(-5, 0xFFFFFFFF, 123456, 1024), 16));
+        PpgBlock block = decoder.getBlock();
+        assertEquals(-5, block.values[0]);
+        assertEquals(0xFFFFFFFFL, block.timestamps[0]);
+        assertEquals(123456, block.values[1]);
+        assertEquals(1024, block.timestamps[1]);
+
+        // Not a whole number of frames, more frames than the payload size, nothing.
+        assertEquals(0, decoder.decode(new byte[12], 12));
+        assertEquals(0, decoder.decode(new byte[24], 24));
+        assertEquals(0, decoder.decode(null, 0));
+        assertEquals(3, decoder.getRejectedFrames());
+        assertEquals(0, decoder.getBlock().size());
+    }
+
+    @Test
+    public void acc_rejectsAreCountedPerDecoder() {
+        StreamDecoder[] decoders = DecoderRegistry.createDefault(AccelDecoder.Format.RAW).createDecoders(20);
+
+        assertEquals(2, decoders[0].decode(new byte[20], 20));
+        assertEquals(0, decoders[0].decode(new byte[9], 9));
+        assertEquals(1, decoders[0].getRejectedFrames());
+        assertEquals(0, decoders[1].getRejectedFrames());
+    }
+}
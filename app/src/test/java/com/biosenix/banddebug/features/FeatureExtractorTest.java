@@ -0,0 +1,169 @@
+package com.biosenix.banddebug.features;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FeatureExtractorTest {
+
+    // Copies of the reused features, one per hop.
+    private static class Collector implements FeatureExtractor.Listener {
+        final List<Features> features = new ArrayList<>();
+
+        @Override
+        public void onFeatures(Features current) {
+            Features copy = new Features(current.bandPower.length);
+            copy.deviceID = current.deviceID;
+            copy.timestamp = current.timestamp;
+            copy.samples = current.samples;
+            copy.magnitudeMean = current.magnitudeMean;
+            System.arraycopy(current.mean, 0, copy.mean, 0, 3);
+            System.arraycopy(current.variance, 0, copy.variance, 0, 3);
+            copy.activityCount = current.activityCount;
+            System.arraycopy(current.bandPower, 0, copy.bandPower, 0, current.bandPower.length);
+            copy.dominantFrequencyHz = current.dominantFrequencyHz;
+            features.add(copy);
+        }
+    }
+
+    @Test
+    public void windowStatisticsMatchBruteForce() {
+        FeatureExtractor.Config config = new FeatureExtractor.Config();
+        config.hopSamples = 100;
+        Collector collector = new Collector();
+        FeatureExtractor extractor = new FeatureExtractor("01", config, collector);
+
+        Random random = new Random(1);
+        int[][] samples = new int[1000][3];
+        for(int i = 0; i < samples.length; i++) {
+            for(int axis = 0; axis < 3; axis++) {
+                samples[i][axis] = random.nextInt(4001) - 2000;
+            }
+            extractor.add(20L * i, samples[i][0], samples[i][1], samples[i][2]);
+        }
+
+        assertEquals(10, collector.features.size());
+        for(int n = 0; n < collector.features.size(); n++) {
+            Features features = collector.features.get(n);
+            int end = (n + 1) * 100;
+            int start = Math.max(0, end - config.windowSamples);
+            assertEquals("01", features.deviceID);
+            assertEquals(20L * (end - 1), features.timestamp);
+            assertEquals(end - start, features.samples);
+            for(int axis = 0; axis < 3; axis++) {
+                double sum = 0;
+                for(int i = start; i < end; i++) {
+                    sum += samples[i][axis];
+                }
+                double mean = sum / (end - start);
+                double squares = 0;
+                for(int i = start; i < end; i++) {
+                    squares += (samples[i][axis] - mean) * (samples[i][axis] - mean);
+                }
+                assertEquals(mean, features.mean[axis], 1e-9);
+                assertEquals(squares / (end - start), features.variance[axis], 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void magnitudeMeanStaysExactWithSmallHops() {
+        FeatureExtractor.Config config = new FeatureExtractor.Config();
+        config.hopSamples = 7;
+        Collector collector = new Collector();
+        FeatureExtractor extractor = new FeatureExtractor("01", config, collector);
+
+        Random random = new Random(2);
+        int[][] samples = new int[5000][3];
+        for(int i = 0; i < samples.length; i++) {
+            for(int axis = 0; axis < 3; axis++) {
+                samples[i][axis] = random.nextInt(65536) - 32768;
+            }
+            extractor.add(20L * i, samples[i][0], samples[i][1], samples[i][2]);
+        }
+
+        for(int n = 0; n < collector.features.size(); n++) {
+            int end = (n + 1) * config.hopSamples;
+            int start = Math.max(0, end - config.windowSamples);
+            double sum = 0;
+            for(int i = start; i < end; i++) {
+                sum += Math.sqrt((double) samples[i][0] * samples[i][0] + (double) samples[i][1] * samples[i][1] +
+                        (double) samples[i][2] * samples[i][2]);
+            }
+            assertEquals(sum / (end - start), collector.features.get(n).magnitudeMean, 1e-6);
+        }
+    }
+
+    @Test
+    public void bandPowerFindsSine() {
+        FeatureExtractor.Config config = new FeatureExtractor.Config();
+        Collector collector = new Collector();
+        FeatureExtractor extractor = new FeatureExtractor("01", config, collector);
+
+        // 100 counts at exactly FFT bin 10, about 1.95 Hz, on top of gravity.
+        double frequency = 10 * config.sampleRateHz / config.windowSamples;
+        for(int i = 0; i < 500; i++) {
+            int z = (int) Math.round(1024 + 100 * Math.sin(2 * Math.PI * frequency * i / config.sampleRateHz));
+            extractor.add(20L * i, 0, 0, z);
+        }
+
+        Features features = collector.features.get(1);
+        assertEquals(frequency, features.dominantFrequencyHz, 1e-9);
+        assertEquals(1024, features.magnitudeMean, 1);
+        // A sine of amplitude A carries a power of A^2 / 2.
+        assertEquals(5000, features.bandPower[0], 100);
+        assertEquals(0, features.bandPower[1], 10);
+        assertEquals(0, features.bandPower[2], 10);
+        assertEquals(features.variance[2], features.bandPower[0], 100);
+    }
+
+    @Test
+    public void activityCountsIgnoreRestAndResetEachHop() {
+        FeatureExtractor.Config config = new FeatureExtractor.Config();
+        config.hopSamples = 50;
+        Collector collector = new Collector();
+        FeatureExtractor extractor = new FeatureExtractor("01", config, collector);
+
+        // At rest, the noise stays inside the dead band.
+        for(int i = 0; i < 50; i++) {
+            extractor.add(20L * i, 3, -2, 1024 + (i % 3) - 1);
+        }
+        // Then 0.5 g above gravity: 0.48 g over the dead band, 480 milli-g per sample.
+        for(int i = 50; i < 100; i++) {
+            extractor.add(20L * i, 0, 0, 1536);
+        }
+        for(int i = 100; i < 150; i++) {
+            extractor.add(20L * i, 0, 0, 1024);
+        }
+
+        assertEquals(3, collector.features.size());
+        assertEquals(0, collector.features.get(0).activityCount);
+        assertEquals(50 * 480, collector.features.get(1).activityCount);
+        assertEquals(0, collector.features.get(2).activityCount);
+    }
+
+    @Test
+    public void resetStartsAnEmptyWindow() {
+        FeatureExtractor.Config config = new FeatureExtractor.Config();
+        config.hopSamples = 10;
+        Collector collector = new Collector();
+        FeatureExtractor extractor = new FeatureExtractor("01", config, collector);
+
+        for(int i = 0; i < 300; i++) {
+            extractor.add(i, 500, 0, 0);
+        }
+        extractor.reset();
+        for(int i = 0; i < 10; i++) {
+            extractor.add(i, -500, 0, 0);
+        }
+
+        Features last = collector.features.get(collector.features.size() - 1);
+        assertEquals(10, last.samples);
+        assertEquals(-500, last.mean[0], 0);
+        assertEquals(0, last.variance[0], 0);
+    }
+}
@@ -0,0 +1,40 @@
+package com.biosenix.banddebug.features;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FftTest {
+
+    @Test
+    public void transform_matchesDirectDft() {
+        int n = 64;
+        Random random = new Random(1);
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for(int i = 0; i < n; i++) {
+            re[i] = random.nextGaussian();
+            im[i] = random.nextGaussian();
+        }
+        double[] expectedRe = new double[n];
+        double[] expectedIm = new double[n];
+        for(int k = 0; k < n; k++) {
+            for(int t = 0; t < n; t++) {
+                double angle = -2 * Math.PI * k * t / n;
+                expectedRe[k] += re[t] * Math.cos(angle) - im[t] * Math.sin(angle);
+                expectedIm[k] += re[t] * Math.sin(angle) + im[t] * Math.cos(angle);
+            }
+        }
+
+        new Fft(n).transform(re, im);
+        assertArrayEquals(expectedRe, re, 1e-9);
+        assertArrayEquals(expectedIm, im, 1e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsSizesThatAreNotPowersOfTwo() {
+        new Fft(100);
+    }
+}
@@ -0,0 +1,131 @@
+package com.biosenix.banddebug.metrics;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void buckets_coverValuesInOrder() {
+        long previousUpper = -1;
+        for(long value : new long[] {0, 1, 15, 16, 17, 31, 32, 1000, 123_456_789L, Long.MAX_VALUE}) {
+            int bucket = Histogram.bucketOf(value);
+            assertTrue("value " + value, value <= Histogram.upperBoundOf(bucket));
+            assertTrue("value " + value, previousUpper < Histogram.upperBoundOf(bucket));
+            previousUpper = Histogram.upperBoundOf(bucket);
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBoundOf(Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles_withinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for(long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(100_000, snapshot.count);
+        assertEquals(100_000, snapshot.max);
+        assertEquals(50_000.5, snapshot.getMean(), 1e-9);
+        assertEquals(50_000, snapshot.getPercentile(0.5), 50_000 * 0.07);
+        assertEquals(90_000, snapshot.getPercentile(0.9), 90_000 * 0.07);
+        assertEquals(99_000, snapshot.getPercentile(0.99), 99_000 * 0.07);
+        assertEquals(100_000, snapshot.getPercentile(1.0));
+        // Never below the true value: the upper bound of the bucket is reported.
+        assertTrue(snapshot.getPercentile(0.5) >= 50_000);
+    }
+
+    @Test
+    public void percentiles_emptyAndNegative() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.snapshot().getPercentile(0.99));
+        assertEquals(0, histogram.snapshot().getMean(), 0);
+
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.snapshot().max);
+    }
+
+    @Test
+    public void record_concurrentWritersLoseNothing() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 4; t++) {
+            final long seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                for(int i = 0; i < 100_000; i++) {
+                    histogram.record(random.nextInt(10_000));
+                }
+            }));
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400_000, snapshot.count);
+        assertTrue(snapshot.max < 10_000);
+        assertEquals(5_000, snapshot.getPercentile(0.5), 5_000 * 0.1);
+    }
+
+    @Test
+    public void since_coversOnlyNewValues() {
+        Histogram histogram = new Histogram();
+        for(long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        Histogram.Snapshot before = histogram.snapshot();
+        for(long value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot delta = histogram.snapshot().since(before);
+
+        assertEquals(100, delta.count);
+        assertEquals(5050, delta.sum);
+        assertEquals(100, delta.max, 100 * 0.07);
+        assertEquals(99, delta.getPercentile(0.99), 99 * 0.07);
+        assertEquals(0, histogram.snapshot().since(histogram.snapshot()).count);
+    }
+
+    @Test
+    public void record_doesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        Histogram histogram = new Histogram();
+        Counter counter = new Counter();
+        // Warm up so the measured loop runs compiled code.
+        recordMany(histogram, counter, 200_000);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        recordMany(histogram, counter, 1_000_000);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(1_200_000, counter.get());
+        assertTrue("Allocated " + allocated + " bytes for 1M records", allocated < 4096);
+    }
+
+    private static void recordMany(Histogram histogram, Counter counter, int count) {
+        for(int i = 0; i < count; i++) {
+            histogram.record(i * 31L);
+            counter.increment();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.biosenix.banddebug.metrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MetricsReporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void registry_sameNameSameMetric() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("a.count").increment();
+        registry.counter("a.count").add(2);
+        assertSame(registry.histogram("a.latency_ms"), registry.histogram("a.latency_ms"));
+        assertEquals(Long.valueOf(3), registry.getCounters().get("a.count"));
+
+        Gauge first = () -> 1;
+        Gauge second = () -> 2;
+        registry.gauge("a.gauge", first);
+        registry.gauge("a.gauge", second);
+        // The replaced gauge must not remove its successor.
+        registry.removeGauge("a.gauge", first);
+        assertEquals(Long.valueOf(2), registry.getGauges().get("a.gauge"));
+        registry.removeGauge("a.gauge", second);
+        assertTrue(registry.getGauges().isEmpty());
+    }
+
+    @Test
+    public void format_countersGaugesHistograms() {
+        MetricsRegistry registry = new MetricsRegistry();
+        Counter frames = registry.counter("ble.notifications");
+        registry.gauge("kinesis.in_flight", () -> 3);
+        registry.histogram("disk.latency_us").record(100);
+        MetricsReporter reporter = new MetricsReporter(registry, new File(folder.getRoot(), "m.jsonl"), 1000, 1 << 20);
+
+        frames.add(50);
+        String first = reporter.format(10_000);
+        assertEquals("{\"time\":10000"
+                + ",\"counters\":{\"ble.notifications\":{\"total\":50,\"rate\":0.0}}"
+                + ",\"gauges\":{\"kinesis.in_flight\":3}"
+                + ",\"histograms\":{\"disk.latency_us\":{\"count\":1,\"mean\":100.0,\"p50\":100,\"p90\":100,\"p99\":100,\"max\":100}}}\n",
+                first);
+
+        // 200 more in two seconds.
+        frames.add(200);
+        String second = reporter.format(12_000);
+        assertTrue(second, second.contains("\"ble.notifications\":{\"total\":250,\"rate\":100.0}"));
+    }
+
+    @Test
+    public void report_appendsLinesAndRotates() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("x").increment();
+        File file = new File(folder.getRoot(), "metrics.jsonl");
+        MetricsReporter reporter = new MetricsReporter(registry, file, 1000, 200);
+
+        reporter.report();
+        reporter.report();
+        assertEquals(2, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+
+        // Push the file over its limit, the next report starts a new one.
+        for(int i = 0; i < 10; i++) {
+            reporter.report();
+        }
+        File rotated = new File(file.getPath() + ".1");
+        assertTrue(rotated.exists());
+        assertTrue(rotated.length() >= 200);
+        assertTrue(file.length() <= rotated.length());
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertFalse(lines.isEmpty());
+        for(String line : lines) {
+            assertTrue(line, line.startsWith("{\"time\":") && line.endsWith("}"));
+        }
+    }
+
+    @Test
+    public void stop_writesFinalReport() throws IOException {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("x").add(7);
+        File file = new File(folder.getRoot(), "metrics.jsonl");
+        MetricsReporter reporter = new MetricsReporter(registry, file, 60_000, 1 << 20);
+        reporter.start();
+        reporter.stop();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"x\":{\"total\":7"));
+    }
+}
@@ -0,0 +1,161 @@
+package com.biosenix.banddebug.pipeline;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    private static final int FRAMES = 5_000_000;
+
+    private static void putSequence(byte[] frame, long sequence) {
+        for(int i = 0; i < 8; i++) {
+            frame[i] = (byte) (sequence >> (8 * i));
+        }
+        // Trailing bytes are derived from the sequence so torn frames are caught.
+        frame[8] = (byte) (sequence * 31);
+        frame[9] = (byte) (sequence * 17);
+    }
+
+    private static long getSequence(byte[] frame) {
+        long sequence = 0;
+        for(int i = 0; i < 8; i++) {
+            sequence |= (frame[i] & 0xFFL) << (8 * i);
+        }
+        assertEquals("Torn frame", (byte) (sequence * 31), frame[8]);
+        assertEquals("Torn frame", (byte) (sequence * 17), frame[9]);
+        return sequence;
+    }
+
+    @Test
+    public void singleThread_fifoAndDropNewest() {
+        FrameRing ring = new FrameRing(4, 10, FrameRing.OverflowPolicy.DROP_NEWEST);
+        byte[] frame = new byte[10];
+        for(int i = 0; i < 6; i++) {
+            putSequence(frame, i);
+            assertEquals(i < 4, ring.offer(frame));
+        }
+        assertEquals(2, ring.getOverflows());
+
+        byte[] out = new byte[10];
+        for(int i = 0; i < 4; i++) {
+            assertEquals(10, ring.poll(out));
+            assertEquals(i, getSequence(out));
+        }
+        assertEquals(-1, ring.poll(out));
+    }
+
+    @Test
+    public void singleThread_dropOldestKeepsNewestFrames() {
+        FrameRing ring = new FrameRing(4, 10, FrameRing.OverflowPolicy.DROP_OLDEST);
+        byte[] frame = new byte[10];
+        for(int i = 0; i < 6; i++) {
+            putSequence(frame, i);
+            assertTrue(ring.offer(frame));
+        }
+        assertEquals(2, ring.getOverflows());
+
+        byte[] out = new byte[10];
+        for(int i = 2; i < 6; i++) {
+            assertEquals(10, ring.poll(out));
+            assertEquals(i, getSequence(out));
+        }
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void rejectsFramesLargerThanASlot() {
+        FrameRing ring = new FrameRing(4, 10, FrameRing.OverflowPolicy.DROP_NEWEST);
+        assertFalse(ring.offer(new byte[11]));
+        assertEquals(1, ring.getOversized());
+        assertTrue(ring.offer(new byte[3]));
+        assertEquals(3, ring.poll(new byte[10]));
+    }
+
+    @Test
+    public void capacityIsRoundedToPowerOfTwo() {
+        assertEquals(8, new FrameRing(5, 10, FrameRing.OverflowPolicy.BLOCK).capacity());
+        assertEquals(8, new FrameRing(8, 10, FrameRing.OverflowPolicy.BLOCK).capacity());
+        assertEquals(1, new FrameRing(1, 10, FrameRing.OverflowPolicy.BLOCK).capacity());
+    }
+
+    @Test
+    public void stress_blockLosesNothing() throws Exception {
+        Result result = pump(FrameRing.OverflowPolicy.BLOCK);
+        assertEquals(FRAMES, result.received);
+        assertEquals(0, result.ring.getOverflows());
+    }
+
+    @Test
+    public void stress_dropNewestAccountsForEveryFrame() throws Exception {
+        Result result = pump(FrameRing.OverflowPolicy.DROP_NEWEST);
+        assertEquals(FRAMES, result.received + result.ring.getOverflows());
+    }
+
+    @Test
+    public void stress_dropOldestAccountsForEveryFrame() throws Exception {
+        Result result = pump(FrameRing.OverflowPolicy.DROP_OLDEST);
+        assertEquals(FRAMES, result.received + result.ring.getOverflows());
+        // The newest frame always survives.
+        assertEquals(FRAMES - 1, result.lastSequence);
+    }
+
+    private static class Result {
+        FrameRing ring;
+        long received;
+        long lastSequence;
+    }
+
+    // Pushes FRAMES frames through a small ring from one thread to a consumer thread.
+    private static Result pump(FrameRing.OverflowPolicy policy) throws Exception {
+        Result result = new Result();
+        result.ring = new FrameRing(256, 10, policy);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread consumer = new Thread(() -> {
+            byte[] polled = new byte[10];
+            long count = 0;
+            long last = -1;
+            try {
+                while(true) {
+                    int length = result.ring.poll(polled);
+                    if(length >= 0) {
+                        assertEquals(10, length);
+                        long sequence = getSequence(polled);
+                        // Frames may be dropped, but never reordered or repeated.
+                        assertTrue(sequence > last);
+                        last = sequence;
+                        count++;
+                    }
+                    else if(result.ring.isClosed()) {
+                        break;
+                    }
+                    else {
+                        result.ring.await(TimeUnit.MILLISECONDS.toNanos(50));
+                    }
+                }
+            }
+            catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+            result.received = count;
+            result.lastSequence = last;
+        }, "ring-stress");
+        consumer.start();
+
+        byte[] frame = new byte[10];
+        for(long i = 0; i < FRAMES; i++) {
+            putSequence(frame, i);
+            result.ring.offer(frame);
+        }
+        result.ring.close();
+        consumer.join();
+
+        if(failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        return result;
+    }
+}
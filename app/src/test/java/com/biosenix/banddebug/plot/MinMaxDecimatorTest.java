@@ -0,0 +1,125 @@
+package com.biosenix.banddebug.plot;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MinMaxDecimatorTest {
+
+    // Min and max per column of the last columns * samplesPerColumn values, computed directly.
+    private static void assertColumns(short[] values, int count, MinMaxDecimator decimator) {
+        int perColumn = decimator.getSamplesPerColumn();
+        // Columns start at multiples of perColumn counted from the first value, like the decimator.
+        int complete = count / perColumn;
+        int partial = count % perColumn;
+        int totalColumns = complete + (partial > 0 ? 1 : 0);
+        int shown = Math.min(totalColumns, decimator.getColumns());
+        assertEquals(shown, decimator.size());
+        short[] min = new short[shown];
+        short[] max = new short[shown];
+        decimator.copyTo(0, min, max);
+        for(int column = 0; column < shown; column++) {
+            int from = (totalColumns - shown + column) * perColumn;
+            int to = Math.min(count, from + perColumn);
+            short expectedMin = Short.MAX_VALUE;
+            short expectedMax = Short.MIN_VALUE;
+            for(int i = from; i < to; i++) {
+                expectedMin = (short) Math.min(expectedMin, values[i]);
+                expectedMax = (short) Math.max(expectedMax, values[i]);
+            }
+            assertEquals("min of column " + column, expectedMin, decimator.getMin(column, 0));
+            assertEquals("max of column " + column, expectedMax, decimator.getMax(column, 0));
+            assertEquals(expectedMin, min[column]);
+            assertEquals(expectedMax, max[column]);
+        }
+    }
+
+    @Test
+    public void columnsHoldMinAndMaxAsTheyScroll() {
+        Random random = new Random(3);
+        short[] values = new short[1000];
+        for(int i = 0; i < values.length; i++) {
+            values[i] = (short) (random.nextInt(2000) - 1000);
+        }
+        MinMaxDecimator decimator = new MinMaxDecimator(16, 7);
+        assertEquals(0, decimator.size());
+        for(int i = 0; i < values.length; i++) {
+            decimator.add(values[i], (short) 0, (short) -values[i]);
+            assertColumns(values, i + 1, decimator);
+        }
+        assertEquals(-decimator.getMax(3, 0), decimator.getMin(3, 2));
+    }
+
+    @Test
+    public void keepsSinglePeaks() {
+        MinMaxDecimator decimator = new MinMaxDecimator(10, 100);
+        for(int i = 0; i < 1000; i++) {
+            short value = (short) (i == 537 ? 4000 : 0);
+            decimator.add(value, value, value);
+        }
+        assertEquals(4000, decimator.getMax(5, 1));
+        assertEquals(0, decimator.getMax(4, 1));
+        assertEquals(0, decimator.getMax(6, 1));
+    }
+
+    @Test
+    public void rebuildMatchesIncrementalDecimation() {
+        SampleRing ring = new SampleRing(500);
+        MinMaxDecimator incremental = new MinMaxDecimator(50, 10);
+        Random random = new Random(5);
+        for(int i = 0; i < 1234; i++) {
+            short value = (short) random.nextInt(Short.MAX_VALUE);
+            ring.append(value, (short) i, (short) 0);
+        }
+        assertEquals(500, ring.size());
+        assertEquals(1233, ring.get(499, 1));
+        assertEquals(734, ring.get(0, 1));
+        for(int i = 0; i < ring.size(); i++) {
+            incremental.add(ring.get(i, 0), ring.get(i, 1), ring.get(i, 2));
+        }
+        MinMaxDecimator rebuilt = new MinMaxDecimator(50, 10);
+        rebuilt.add((short) 1, (short) 1, (short) 1);
+        rebuilt.rebuild(ring);
+        assertEquals(incremental.size(), rebuilt.size());
+        for(int column = 0; column < rebuilt.size(); column++) {
+            for(int axis = 0; axis < 3; axis++) {
+                assertEquals(incremental.getMin(column, axis), rebuilt.getMin(column, axis));
+                assertEquals(incremental.getMax(column, axis), rebuilt.getMax(column, axis));
+            }
+        }
+    }
+
+    @Test
+    public void bufferCopiesOnlyChangedFrames() {
+        WaveformBuffer buffer = new WaveformBuffer(600);
+        buffer.setColumns(100);
+        WaveformBuffer.Frame frame = new WaveformBuffer.Frame();
+        assertTrue(buffer.copyTo(frame));
+        assertEquals(0, frame.columns);
+
+        for(int i = 0; i < 60; i++) {
+            buffer.add(i, -i, 0);
+        }
+        assertTrue(buffer.copyTo(frame));
+        assertFalse(buffer.copyTo(frame));
+        assertEquals(10, frame.columns);
+        assertEquals(-59, frame.low);
+        assertEquals(59, frame.high);
+        assertEquals(54, frame.min[0][9]);
+        assertEquals(-54, frame.max[1][9]);
+
+        // Wider plot, same window: rebuilt from the raw samples.
+        short[] before = frame.min[0];
+        buffer.setColumns(300);
+        assertTrue(buffer.copyTo(frame));
+        assertNotSame(before, frame.min[0]);
+        assertEquals(30, frame.columns);
+        assertEquals(58, frame.min[0][29]);
+
+        buffer.clear();
+        assertTrue(buffer.copyTo(frame));
+        assertEquals(0, frame.columns);
+    }
+}
@@ -0,0 +1,330 @@
+package com.biosenix.banddebug.session;
+
+import com.biosenix.banddebug.ble.BandGatt;
+import com.biosenix.banddebug.decode.AccelDecoder;
+import com.biosenix.banddebug.decode.DecoderRegistry;
+import com.biosenix.banddebug.decode.PpgBlock;
+import com.biosenix.banddebug.decode.PpgDecoder;
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.decode.StreamDecoder;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+import com.biosenix.banddebug.pipeline.FrameRing;
+import com.biosenix.banddebug.storage.SessionReader;
+import com.biosenix.banddebug.storage.SessionWriter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class SessionManagerTest {
+    private static final int BANDS = 8;
+    private static final int FRAMES_PER_BAND = 100_000;
+
+    // Simulated band, driven from the test thread instead of the Bluetooth stack.
+    private static class FakeBandGatt implements BandGatt {
+        private final String deviceId;
+        private Listener listener;
+
+        FakeBandGatt(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public String getDeviceId() {
+            return deviceId;
+        }
+
+        @Override
+        public void connect(Listener listener) {
+            this.listener = listener;
+            listener.onConnected(this);
+            listener.onStreaming(this);
+        }
+
+        @Override
+        public void disconnect() {
+            listener.onDisconnected(this);
+        }
+
+        void notify(byte[] value) {
+            notify(DecoderRegistry.ACC_CHARACTERISTIC, value);
+        }
+
+        void notify(UUID characteristic, byte[] value) {
+            listener.onNotification(this, characteristic, value);
+        }
+    }
+
+    private static class RecordingListener implements SessionManager.Listener {
+        final Map<String, AtomicLong> samples = new ConcurrentHashMap<>();
+        final AtomicReference<String> crossTalk = new AtomicReference<>();
+        final CountDownLatch closed;
+
+        RecordingListener(int sessions) {
+            closed = new CountDownLatch(sessions);
+        }
+
+        @Override
+        public void onSample(BandSession session, long timestamp, int x, int y, int z) {
+            // x carries the index of the band that sent the sample.
+            if(!session.getDeviceId().equals(deviceId(x))) {
+                crossTalk.set(session.getDeviceId() + " got a sample of " + deviceId(x));
+            }
+            samples.computeIfAbsent(session.getDeviceId(), k -> new AtomicLong()).incrementAndGet();
+        }
+
+        @Override
+        public void onSessionClosed(BandSession session) {
+            closed.countDown();
+        }
+
+        @Override
+        public void onStatus(String deviceId, String message) {
+        }
+
+        @Override
+        public void onConnected(String deviceId) {
+        }
+
+        @Override
+        public void onDisconnected(String deviceId) {
+        }
+    }
+
+    private static String deviceId(int index) {
+        return String.format("%02d", index);
+    }
+
+    private static byte[] frame(int band, int sample) {
+        byte[] data = new byte[AccelDecoder.FRAME_SIZE];
+        short y = (short) sample;
+        data[0] = (byte) band;
+        data[2] = (byte) y;
+        data[3] = (byte) (y >> 8);
+        data[4] = (byte) 0xFF;
+        data[5] = (byte) 0xFF;
+        // 20 ticks (about 20 ms) apart.
+        long ticks = 20L * (sample + 1);
+        for(int i = 0; i < 4; i++) {
+            data[6 + i] = (byte) (ticks >> (8 * i));
+        }
+        return data;
+    }
+
+    private static long countSamples(byte[] segment) throws IOException {
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(segment));
+        SampleBlock block = new SampleBlock(1024);
+        long count = 0;
+        while(reader.nextBlock(block)) {
+            count += block.size();
+        }
+        assertFalse(reader.isTruncated());
+        return count;
+    }
+
+    @Test
+    public void concurrentBands_noLossNoCrossTalk() throws Exception {
+        Map<String, ByteArrayOutputStream> segments = new ConcurrentHashMap<>();
+        RecordingListener listener = new RecordingListener(BANDS);
+        // Rings large enough to hold a whole band's burst, so nothing may be dropped.
+        SessionManager manager = new SessionManager(BANDS, 2, 1 << 17, AccelDecoder.FRAME_SIZE,
+                AccelDecoder.Format.RAW, (deviceId, start) -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    segments.put(deviceId, out);
+                    return new SessionWriter(out, start);
+                }, listener);
+
+        List<FakeBandGatt> bands = new ArrayList<>();
+        for(int band = 0; band < BANDS; band++) {
+            FakeBandGatt gatt = new FakeBandGatt(deviceId(band));
+            bands.add(gatt);
+            assertTrue(manager.addBand(gatt));
+        }
+        assertFalse("Session limit", manager.addBand(new FakeBandGatt("99")));
+        assertEquals(BANDS, manager.getBandCount());
+
+        // Every band streams from its own thread, like separate Bluetooth callbacks.
+        List<Thread> threads = new ArrayList<>();
+        for(int band = 0; band < BANDS; band++) {
+            final int index = band;
+            Thread thread = new Thread(() -> {
+                FakeBandGatt gatt = bands.get(index);
+                for(int i = 0; i < FRAMES_PER_BAND; i++) {
+                    gatt.notify(frame(index, i));
+                }
+            }, "band-" + band);
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        List<BandSession> sessions = new ArrayList<>();
+        for(FakeBandGatt gatt : bands) {
+            sessions.add(manager.getSession(gatt.getDeviceId()));
+        }
+        manager.disconnectAll();
+        assertTrue("Sessions did not close", listener.closed.await(30, TimeUnit.SECONDS));
+        assertEquals(0, manager.getBandCount());
+        assertTrue(manager.getStats().isEmpty());
+
+        assertNull(listener.crossTalk.get(), listener.crossTalk.get());
+        for(BandSession session : sessions) {
+            assertTrue(session.isClosed());
+            BandSession.Stats stats = session.getStats();
+            assertEquals(FRAMES_PER_BAND, stats.notifications);
+            assertEquals(0, stats.ringOverflows);
+            assertEquals(0, stats.duplicates);
+            assertEquals(FRAMES_PER_BAND, stats.samples);
+            assertEquals(FRAMES_PER_BAND, listener.samples.get(stats.deviceId).get());
+            assertEquals(FRAMES_PER_BAND, countSamples(segments.get(stats.deviceId).toByteArray()));
+        }
+        assertTrue(MetricsRegistry.getDefault().getGauges().containsKey("session.count"));
+        manager.shutdown(1000);
+        // A manager that was shut down no longer reports, or keeps its pool reachable.
+        assertFalse(MetricsRegistry.getDefault().getGauges().containsKey("session.count"));
+        assertFalse(MetricsRegistry.getDefault().getGauges().containsKey("session.queued_tasks"));
+    }
+
+    @Test
+    public void tinyRing_dropsAreCounted() throws Exception {
+        Map<String, ByteArrayOutputStream> segments = new ConcurrentHashMap<>();
+        RecordingListener listener = new RecordingListener(2);
+        SessionManager manager = new SessionManager(2, 1, 4, AccelDecoder.FRAME_SIZE,
+                AccelDecoder.Format.RAW, (deviceId, start) -> {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    segments.put(deviceId, out);
+                    return new SessionWriter(out, start);
+                }, listener);
+
+        FakeBandGatt first = new FakeBandGatt(deviceId(0));
+        FakeBandGatt second = new FakeBandGatt(deviceId(1));
+        manager.addBand(first);
+        manager.addBand(second);
+        BandSession firstSession = manager.getSession(first.getDeviceId());
+        BandSession secondSession = manager.getSession(second.getDeviceId());
+        for(int i = 0; i < 50_000; i++) {
+            first.notify(frame(0, i));
+            second.notify(frame(1, i));
+        }
+        manager.disconnectAll();
+        assertTrue("Sessions did not close", listener.closed.await(30, TimeUnit.SECONDS));
+
+        for(BandSession session : new BandSession[]{firstSession, secondSession}) {
+            BandSession.Stats stats = session.getStats();
+            // Every notification was either stored or counted as dropped.
+            assertEquals(stats.notifications, stats.samples + stats.ringOverflows + stats.duplicates);
+            assertEquals(stats.samples, countSamples(segments.get(stats.deviceId).toByteArray()));
+        }
+        assertNull(listener.crossTalk.get(), listener.crossTalk.get());
+        manager.shutdown(1000);
+    }
+
+    @Test
+    public void reconnect_startsNewSegment() throws Exception {
+        List<OutputStream> segments = new ArrayList<>();
+        RecordingListener listener = new RecordingListener(2);
+        SessionManager manager = new SessionManager(1, 1, (deviceId, start) -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            segments.add(out);
+            return new SessionWriter(out, start);
+        }, listener);
+
+        FakeBandGatt gatt = new FakeBandGatt(deviceId(3));
+        manager.addBand(gatt);
+        gatt.notify(frame(3, 0));
+        // Link loss, the band stays known and reconnects on its own.
+        gatt.listener.onDisconnected(gatt);
+        assertTrue(manager.hasBand(gatt.getDeviceId()));
+        gatt.listener.onConnected(gatt);
+        gatt.notify(frame(3, 1));
+        manager.removeBand(gatt.getDeviceId());
+
+        assertTrue("Sessions did not close", listener.closed.await(10, TimeUnit.SECONDS));
+        assertEquals(2, segments.size());
+        assertEquals(2, listener.samples.get(gatt.getDeviceId()).get());
+        manager.shutdown(1000);
+    }
+
+    @Test
+    public void notifications_routedByCharacteristic() throws Exception {
+        List<Long> ppgReadings = new ArrayList<>();
+        RecordingListener listener = new RecordingListener(1) {
+            @Override
+            public void onStreamSamples(BandSession session, int stream, StreamDecoder decoder) {
+                assertEquals(DecoderRegistry.PPG_CHARACTERISTIC, session.getRegistry().getCharacteristic(stream));
+                PpgBlock block = ((PpgDecoder) decoder).getBlock();
+                for(int i = 0; i < block.size(); i++) {
+                    ppgReadings.add((long) block.values[i]);
+                }
+            }
+        };
+        SessionManager manager = new SessionManager(1, 1, (deviceId, start) -> null, listener);
+
+        FakeBandGatt gatt = new FakeBandGatt(deviceId(4));
+        manager.addBand(gatt);
+        BandSession session = manager.getSession(gatt.getDeviceId());
+        gatt.notify(frame(4, 0));
+        byte[] ppg = new byte[2 * PpgDecoder.FRAME_SIZE];
+        ppg[0] = 7;
+        ppg[PpgDecoder.FRAME_SIZE] = 9;
+        gatt.notify(DecoderRegistry.PPG_CHARACTERISTIC, ppg);
+        gatt.notify(DecoderRegistry.PPG_CHARACTERISTIC, new byte[5]);
+        gatt.notify(UUID.fromString("f3641402-00b0-4240-ba50-05ca45bf8abc"), ppg);
+        manager.removeBand(gatt.getDeviceId());
+        assertTrue("Session did not close", listener.closed.await(10, TimeUnit.SECONDS));
+
+        BandSession.Stats stats = session.getStats();
+        assertEquals(4, stats.notifications);
+        assertEquals(1, stats.unknownFrames);
+        assertEquals(1, stats.rejectedFrames);
+        assertEquals(1, stats.samples);
+        assertEquals(1, listener.samples.get(gatt.getDeviceId()).get());
+        assertEquals(2, ppgReadings.size());
+        assertEquals(7L, (long) ppgReadings.get(0));
+        assertEquals(9L, (long) ppgReadings.get(1));
+        manager.shutdown(1000);
+    }
+
+    @Test
+    public void rejectedDrain_isScheduledAgain() throws Exception {
+        RecordingListener listener = new RecordingListener(1);
+        AtomicInteger rejections = new AtomicInteger(1);
+        // Rejects the first drain task, like a pool that is full or shutting down, then runs them inline.
+        Executor workers = task -> {
+            if(rejections.getAndDecrement() > 0) {
+                throw new RejectedExecutionException("full");
+            }
+            task.run();
+        };
+        FrameRing ring = new FrameRing(16, AccelDecoder.FRAME_SIZE, FrameRing.OverflowPolicy.DROP_NEWEST);
+        BandSession session = new BandSession(deviceId(5), ring, DecoderRegistry.createDefault(AccelDecoder.Format.RAW),
+                null, listener, workers);
+
+        session.offer(DecoderRegistry.ACC_CHARACTERISTIC, frame(5, 0));
+        session.offer(DecoderRegistry.ACC_CHARACTERISTIC, frame(5, 1));
+        session.stop();
+
+        assertTrue(session.isClosed());
+        assertEquals(2, session.getStats().samples);
+        assertEquals(2, listener.samples.get(deviceId(5)).get());
+    }
+}
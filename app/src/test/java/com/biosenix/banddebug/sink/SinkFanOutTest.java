@@ -0,0 +1,241 @@
+package com.biosenix.banddebug.sink;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SinkFanOutTest {
+
+    // Keeps the timestamps it got per band, and the session events.
+    private static class RecordingSink implements Sink {
+        final Map<String, List<Long>> timestamps = new ConcurrentHashMap<>();
+        final List<String> events = new ArrayList<>();
+        long bytesPerSample = 0;
+        boolean closed = false;
+
+        @Override
+        public synchronized void open(String deviceId, long startEpochMillis) {
+            events.add("open " + deviceId);
+            timestamps.put(deviceId, new ArrayList<>());
+        }
+
+        @Override
+        public long write(String deviceId, SampleBlock samples) throws IOException {
+            List<Long> received = timestamps.get(deviceId);
+            for(int i = 0; i < samples.size(); i++) {
+                received.add(samples.timestamps[i]);
+            }
+            return samples.size() * bytesPerSample;
+        }
+
+        @Override
+        public synchronized void close(String deviceId) {
+            events.add("close " + deviceId);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static SinkFanOut.Config config(int queueBatches, int batchSamples) {
+        SinkFanOut.Config config = new SinkFanOut.Config();
+        config.queueBatches = queueBatches;
+        config.batchSamples = batchSamples;
+        return config;
+    }
+
+    private static SinkFanOut.Stats stats(SinkFanOut fanOut, String name) {
+        for(SinkFanOut.Stats stats : fanOut.getStats()) {
+            if(stats.name.equals(name)) {
+                return stats;
+            }
+        }
+        throw new AssertionError("No sink " + name);
+    }
+
+    @Test
+    public void everySinkGetsEverySampleInOrder() throws Exception {
+        SinkFanOut fanOut = new SinkFanOut();
+        RecordingSink first = new RecordingSink();
+        RecordingSink second = new RecordingSink();
+        first.bytesPerSample = 10;
+        fanOut.add("test-order-1", first, config(10_000, 64));
+        fanOut.add("test-order-2", second, config(10_000, 7));
+
+        SinkFanOut.Stream a = fanOut.open("01", 0);
+        SinkFanOut.Stream b = fanOut.open("02", 0);
+        for(int i = 0; i < 5000; i++) {
+            a.append(i, i, 0, 0);
+            b.append(2 * i, 0, i, 0);
+        }
+        a.close();
+        b.close();
+        fanOut.close(5000);
+
+        for(RecordingSink sink : new RecordingSink[] { first, second }) {
+            assertTrue(sink.closed);
+            assertEquals(4, sink.events.size());
+            assertTrue(sink.events.indexOf("open 01") < sink.events.indexOf("close 01"));
+            List<Long> received = sink.timestamps.get("02");
+            assertEquals(5000, received.size());
+            for(int i = 0; i < received.size(); i++) {
+                assertEquals(2L * i, (long) received.get(i));
+            }
+            assertEquals(5000, sink.timestamps.get("01").size());
+        }
+        assertEquals(5000, a.getSamplesWritten());
+        // Only the first sink stores bytes.
+        assertEquals(5000 * 10, a.getBytesWritten());
+        assertEquals(10000, MetricsRegistry.getDefault().counter("sink.test-order-2.samples").get());
+    }
+
+    @Test
+    public void slowSinkOnlyDropsItsOwnSamples() throws Exception {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RecordingSink slow = new RecordingSink() {
+            @Override
+            public long write(String deviceId, SampleBlock samples) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                }
+                catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+                return super.write(deviceId, samples);
+            }
+        };
+        RecordingSink fast = new RecordingSink();
+        SinkFanOut fanOut = new SinkFanOut();
+        fanOut.add("test-slow", slow, config(4, 10));
+        fanOut.add("test-fast", fast, config(1000, 10));
+
+        SinkFanOut.Stream stream = fanOut.open("01", 0);
+        for(int i = 0; i < 1000; i++) {
+            stream.append(i, 0, 0, 0);
+            if(i == 9) {
+                assertTrue(writing.await(5, TimeUnit.SECONDS));
+            }
+        }
+        stream.close();
+        release.countDown();
+        fanOut.close(5000);
+
+        assertEquals(1000, fast.timestamps.get("01").size());
+        assertEquals(0, stats(fanOut, "test-fast").droppedSamples);
+        SinkFanOut.Stats slowStats = stats(fanOut, "test-slow");
+        // One batch in the sink's hands plus four queued, the rest was dropped.
+        assertEquals(50, slowStats.samples);
+        assertEquals(950, slowStats.droppedSamples);
+        assertEquals(950, MetricsRegistry.getDefault().counter("sink.test-slow.dropped_samples").get());
+        // Still closed in order after catching up.
+        assertEquals("close 01", slow.events.get(slow.events.size() - 1));
+    }
+
+    @Test
+    public void failingSinkDoesNotStopTheOthers() throws Exception {
+        RecordingSink failing = new RecordingSink() {
+            private int writes = 0;
+
+            @Override
+            public long write(String deviceId, SampleBlock samples) throws IOException {
+                if(writes++ % 2 == 0) {
+                    throw new IOException("Disk full");
+                }
+                return super.write(deviceId, samples);
+            }
+        };
+        RecordingSink healthy = new RecordingSink();
+        SinkFanOut fanOut = new SinkFanOut();
+        fanOut.add("test-failing", failing, config(1000, 10));
+        fanOut.add("test-healthy", healthy, config(1000, 10));
+
+        SinkFanOut.Stream stream = fanOut.open("01", 0);
+        for(int i = 0; i < 100; i++) {
+            stream.append(i, 0, 0, 0);
+        }
+        stream.close();
+        fanOut.close(5000);
+
+        assertEquals(100, healthy.timestamps.get("01").size());
+        SinkFanOut.Stats failingStats = stats(fanOut, "test-failing");
+        assertEquals(5, failingStats.errors);
+        assertEquals(50, failingStats.droppedSamples);
+        assertEquals(50, failing.timestamps.get("01").size());
+        assertEquals(10L, (long) failing.timestamps.get("01").get(0));
+        assertEquals("close 01", failing.events.get(1));
+    }
+
+    @Test
+    public void lingerHandsOverPartialBatches() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        SinkFanOut.Config config = config(1000, 1000);
+        config.lingerMillis = 20;
+        SinkFanOut fanOut = new SinkFanOut();
+        fanOut.add("test-linger", sink, config);
+
+        SinkFanOut.Stream stream = fanOut.open("01", 0);
+        stream.append(0, 0, 0, 0);
+        TimeUnit.MILLISECONDS.sleep(50);
+        // Hands over the batch with the old sample, though it is far from full.
+        stream.append(1, 0, 0, 0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(stats(fanOut, "test-linger").samples < 2 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        assertEquals(2, stats(fanOut, "test-linger").samples);
+        assertTrue(stats(fanOut, "test-linger").lagMillis >= 20);
+        assertEquals(Arrays.asList(0L, 1L), sink.timestamps.get("01"));
+        stream.close();
+        fanOut.close(5000);
+    }
+
+    @Test
+    public void lingerHandsOverBatchOfQuietBand() throws Exception {
+        RecordingSink sink = new RecordingSink();
+        SinkFanOut.Config config = config(1000, 1000);
+        config.lingerMillis = 100;
+        SinkFanOut fanOut = new SinkFanOut();
+        fanOut.add("test-quiet", sink, config);
+
+        // The band stops mid-batch, no sample follows to trigger the hand over.
+        SinkFanOut.Stream stream = fanOut.open("01", 0);
+        long start = System.nanoTime();
+        for(int i = 0; i < 5; i++) {
+            stream.append(i, 0, 0, 0);
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while(stats(fanOut, "test-quiet").samples < 5 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(5);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(5, stats(fanOut, "test-quiet").samples);
+        assertTrue(stats(fanOut, "test-quiet").lagMillis >= 100);
+        // At most one and a half lingers, with slack for a busy machine.
+        assertTrue("Handed over after " + elapsedMillis + " ms", elapsedMillis < 1000);
+        assertEquals(Collections.singletonList("open 01"), sink.events);
+        stream.close();
+        fanOut.close(5000);
+    }
+}
@@ -0,0 +1,169 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class SegmentedSessionWriterTest {
+    private static final long START = 1_650_000_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static SegmentedSessionWriter.Config config() {
+        SegmentedSessionWriter.Config config = new SegmentedSessionWriter.Config();
+        config.samplesPerBlock = 16;
+        return config;
+    }
+
+    // Timestamps of all samples in a segment, checking its header on the way.
+    private static List<Long> timestamps(File file, boolean compressed) throws IOException {
+        List<Long> timestamps = new ArrayList<>();
+        try (InputStream in = compressed ? new GZIPInputStream(new FileInputStream(file)) : new FileInputStream(file)) {
+            SessionReader reader = new SessionReader(in);
+            assertEquals(START, reader.getStartEpochMillis());
+            SampleBlock block = new SampleBlock(SessionFormat.MAX_SAMPLES_PER_BLOCK);
+            while(reader.nextBlock(block)) {
+                for(int i = 0; i < block.size(); i++) {
+                    timestamps.add(block.timestamps[i]);
+                }
+            }
+            assertFalse(reader.isTruncated());
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void rotatesBySizeAndFinalizesSegments() throws IOException {
+        SegmentedSessionWriter.Config config = config();
+        config.maxSegmentBytes = 1000;
+        File directory = folder.getRoot();
+        SegmentedSessionWriter writer = new SegmentedSessionWriter(directory, "session", START, config, Runnable::run);
+        for(int i = 0; i < 2000; i++) {
+            writer.append(20L * i, i, -i, 1000);
+        }
+        writer.close();
+
+        assertTrue(writer.getSegmentCount() > 2);
+        assertEquals(2000, writer.getSamplesWritten());
+        List<Long> all = new ArrayList<>();
+        long bytes = 0;
+        for(int index = 0; index < writer.getSegmentCount(); index++) {
+            File segment = new File(directory, writer.segmentName(index));
+            assertTrue(segment.getName(), segment.exists());
+            assertFalse(new File(segment.getPath() + SegmentedSessionWriter.OPEN_SUFFIX).exists());
+            // A segment ends with the block that pushed it over the limit.
+            assertTrue(segment.length() < config.maxSegmentBytes + 16 * SessionFormat.MAX_SAMPLE_BYTES +
+                    SessionFormat.BLOCK_HEADER_SIZE);
+            all.addAll(timestamps(segment, false));
+            bytes += segment.length();
+        }
+        assertEquals(writer.getBytesWritten(), bytes);
+        assertEquals(2000, all.size());
+        for(int i = 0; i < all.size(); i++) {
+            assertEquals(20L * i, (long) all.get(i));
+        }
+    }
+
+    @Test
+    public void rotatesByAge() throws Exception {
+        SegmentedSessionWriter.Config config = config();
+        config.maxSegmentMillis = 50;
+        SegmentedSessionWriter writer = new SegmentedSessionWriter(folder.getRoot(), "session", START, config, Runnable::run);
+        writer.append(0, 1, 2, 3);
+        Thread.sleep(60);
+        writer.append(20, 1, 2, 3);
+        writer.append(40, 1, 2, 3);
+        writer.close();
+
+        assertEquals(2, writer.getSegmentCount());
+        assertEquals(2, timestamps(new File(folder.getRoot(), writer.segmentName(0)), false).size());
+        assertEquals(1, timestamps(new File(folder.getRoot(), writer.segmentName(1)), false).size());
+    }
+
+    @Test
+    public void commitsPendingSamplesOnInterval() throws Exception {
+        SegmentedSessionWriter.Config config = config();
+        config.samplesPerBlock = SessionFormat.MAX_SAMPLES_PER_BLOCK;
+        config.commitIntervalMillis = 20;
+        SegmentedSessionWriter writer = new SegmentedSessionWriter(folder.getRoot(), "session", START, config, Runnable::run);
+        File open = writer.getSegmentFile();
+        assertTrue(open.getName().endsWith(SessionFormat.FILE_EXTENSION + SegmentedSessionWriter.OPEN_SUFFIX));
+
+        writer.append(0, 1, 2, 3);
+        writer.append(20, 1, 2, 3);
+        // Far from a full block, nothing reached the file yet.
+        assertEquals(0, open.length());
+        Thread.sleep(30);
+        writer.append(40, 1, 2, 3);
+
+        // What a crash right now would leave behind.
+        assertEquals(3, timestamps(open, false).size());
+        writer.close();
+    }
+
+    @Test
+    public void timerCommitsQuietBand() throws Exception {
+        SegmentedSessionWriter.Config config = config();
+        config.samplesPerBlock = SessionFormat.MAX_SAMPLES_PER_BLOCK;
+        config.commitIntervalMillis = 40;
+        ScheduledExecutorService finisher = Executors.newSingleThreadScheduledExecutor();
+        try {
+            SegmentedSessionWriter writer = new SegmentedSessionWriter(folder.getRoot(), "session", START, config, finisher);
+            File open = writer.getSegmentFile();
+            writer.append(0, 1, 2, 3);
+            writer.append(20, 1, 2, 3);
+
+            // No further samples, the timer commits them within 1.25 intervals.
+            long deadline = System.currentTimeMillis() + 2000;
+            while(open.length() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(2, timestamps(open, false).size());
+
+            writer.close();
+            finisher.shutdown();
+            assertTrue(finisher.awaitTermination(1, TimeUnit.SECONDS));
+            assertEquals(2, timestamps(new File(folder.getRoot(), writer.segmentName(0)), false).size());
+        }
+        finally {
+            finisher.shutdownNow();
+        }
+    }
+
+    @Test
+    public void compressesClosedSegments() throws IOException {
+        SegmentedSessionWriter.Config config = config();
+        config.compressClosedSegments = true;
+        File directory = folder.getRoot();
+        SegmentedSessionWriter writer = new SegmentedSessionWriter(directory, "session", START, config, Runnable::run);
+        for(int i = 0; i < 500; i++) {
+            writer.append(20L * i, 0, 0, 1000);
+        }
+        writer.rotate();
+        writer.append(10_000, 0, 0, 1000);
+        writer.close();
+
+        File first = new File(directory, writer.segmentName(0));
+        assertFalse(first.exists());
+        File compressed = new File(first.getPath() + SegmentedSessionWriter.COMPRESSED_SUFFIX);
+        assertTrue(compressed.length() < writer.getBytesWritten());
+        assertEquals(500, timestamps(compressed, true).size());
+        assertEquals(1, timestamps(new File(directory, writer.segmentName(1) + SegmentedSessionWriter.COMPRESSED_SUFFIX), true).size());
+    }
+}
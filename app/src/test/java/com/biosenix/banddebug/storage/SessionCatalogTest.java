@@ -0,0 +1,94 @@
+package com.biosenix.banddebug.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionCatalogTest {
+    private static final long START = 1_650_000_000_000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Writes a band's session of one sample a second for the given hours, one segment per hour.
+    private static SegmentedSessionWriter record(File directory, String deviceId, long start, int hours)
+            throws IOException {
+        SegmentedSessionWriter.Config config = new SegmentedSessionWriter.Config();
+        config.commitIntervalMillis = -1;
+        SegmentedSessionWriter writer = new SegmentedSessionWriter(directory, "2022-04-15-BP" + deviceId, start,
+                config, Runnable::run);
+        for(int hour = 0; hour < hours; hour++) {
+            for(long timestamp = hour * HOUR; timestamp < (hour + 1) * HOUR; timestamp += 1000) {
+                writer.append(timestamp, 1, 2, 3);
+            }
+            writer.rotate();
+        }
+        writer.close();
+        return writer;
+    }
+
+    @Test
+    public void findsSegmentsByTime() throws IOException {
+        File directory = folder.getRoot();
+        SegmentedSessionWriter first = record(directory, "12", START, 5);
+        SegmentedSessionWriter second = record(directory, "34", START + HOUR / 2, 2);
+        // Neither sessions nor indexes.
+        new FileOutputStream(new File(directory, "notes.txt")).close();
+        new FileOutputStream(new File(directory, "2022-04-15-BP56-000.bds")).close();
+
+        SessionCatalog catalog = SessionCatalog.scan(directory);
+        assertEquals(Arrays.asList("12", "34"), Arrays.asList(catalog.getDevices().toArray()));
+        List<SessionCatalog.Entry> entries = catalog.getEntries("12");
+        assertEquals(5, entries.size());
+        for(int hour = 0; hour < 5; hour++) {
+            SessionCatalog.Entry entry = entries.get(hour);
+            assertEquals(first.segmentName(hour), entry.file.getName());
+            assertEquals(START + hour * HOUR, entry.getStartEpochMillis());
+            assertEquals(START + (hour + 1) * HOUR - 1000, entry.getEndEpochMillis());
+        }
+
+        assertSame(entries.get(3), catalog.find("12", START + 3 * HOUR + 1234));
+        assertSame(entries.get(0), catalog.find("12", START));
+        assertEquals(second.segmentName(1),
+                catalog.find("34", START + 2 * HOUR).file.getName());
+        // Between two samples at the end of a segment, before the first and after the last.
+        assertNull(catalog.find("12", START + HOUR - 500));
+        assertNull(catalog.find("12", START - 1));
+        assertNull(catalog.find("12", START + 5 * HOUR));
+        assertNull(catalog.find("56", START));
+
+        assertEquals(entries.subList(1, 3), catalog.find("12", START + HOUR + 1, START + 3 * HOUR));
+        assertEquals(entries.subList(0, 2), catalog.find("12", START + HOUR - 1000, START + HOUR + 1));
+        assertTrue(catalog.find("12", START + 5 * HOUR, START + 6 * HOUR).isEmpty());
+    }
+
+    @Test
+    public void catalogsOpenSegmentsWithoutIndex() throws IOException {
+        File directory = folder.getRoot();
+        SegmentedSessionWriter.Config config = new SegmentedSessionWriter.Config();
+        config.indexIntervalMillis = -1;
+        SegmentedSessionWriter writer = new SegmentedSessionWriter(directory, "2022-04-15-BP7", START,
+                config, Runnable::run);
+        for(long timestamp = 0; timestamp < 100_000; timestamp += 20) {
+            writer.append(timestamp, 1, 2, 3);
+        }
+        writer.flush();
+        assertFalse(SessionIndex.fileFor(writer.getSegmentFile()).exists());
+
+        SessionCatalog catalog = SessionCatalog.scan(directory);
+        SessionCatalog.Entry entry = catalog.find("7", START + 50_000);
+        assertEquals(writer.getSegmentFile(), entry.file);
+        assertEquals(START + 99_980, entry.getEndEpochMillis());
+        assertEquals(50_000, entry.toTimestamp(START + 50_000));
+        writer.close();
+    }
+}
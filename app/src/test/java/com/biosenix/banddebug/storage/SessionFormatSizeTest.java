@@ -0,0 +1,73 @@
+package com.biosenix.banddebug.storage;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Size of the binary session format against the old CSV output on a synthetic 10 minute
+ * recording at 50 Hz. Write throughput is measured by FileWriteBenchmark.
+ */
+public class SessionFormatSizeTest {
+    private static final int SAMPLE_RATE_HZ = 50;
+    private static final int SAMPLES = 10 * 60 * SAMPLE_RATE_HZ;
+
+    // Discards everything but keeps count.
+    private static class CountingOutputStream extends OutputStream {
+        long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    // Synthetic accelerometer: slowly wandering gravity vector plus sensor noise, ~20 ms apart.
+    private static class Recording {
+        final Random random = new Random(7);
+        long timestamp = 0;
+        int x = 0, y = 0, z = 1000;
+
+        void next() {
+            timestamp += 1000 / SAMPLE_RATE_HZ + random.nextInt(3) - 1;
+            x = clamp(x + random.nextInt(21) - 10);
+            y = clamp(y + random.nextInt(21) - 10);
+            z = clamp(z + random.nextInt(21) - 10);
+        }
+
+        static int clamp(int value) {
+            return Math.max(-2048, Math.min(2047, value));
+        }
+    }
+
+    @Test
+    public void binaryIsLessThanFortyPercentOfCsv() throws IOException {
+        long csvBytes = 0;
+        Recording recording = new Recording();
+        for(int i = 0; i < SAMPLES; i++) {
+            recording.next();
+            // "timestamp,x,y,z\n", all ASCII.
+            csvBytes += (recording.timestamp + "," + recording.x + "," + recording.y + "," + recording.z).length() + 1;
+        }
+
+        CountingOutputStream binaryBytes = new CountingOutputStream();
+        try (SessionWriter writer = new SessionWriter(binaryBytes, 0)) {
+            recording = new Recording();
+            for(int i = 0; i < SAMPLES; i++) {
+                recording.next();
+                writer.append(recording.timestamp, recording.x, recording.y, recording.z);
+            }
+        }
+
+        assertTrue(binaryBytes.count + " of " + csvBytes + " bytes", binaryBytes.count < 0.4 * csvBytes);
+    }
+}
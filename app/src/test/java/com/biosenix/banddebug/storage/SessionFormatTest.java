@@ -0,0 +1,129 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SessionFormatTest {
+
+    private static byte[] write(long[] t, int[] x, int[] y, int[] z, int samplesPerBlock) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SessionWriter writer = new SessionWriter(out, 1_650_000_000_000L, samplesPerBlock);
+        for(int i = 0; i < t.length; i++) {
+            writer.append(t[i], x[i], y[i], z[i]);
+        }
+        writer.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void varint_roundTrip() {
+        long[] values = {0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        byte[] buffer = new byte[values.length * Varint.MAX_BYTES];
+        int pos = 0;
+        for(long value : values) {
+            pos = Varint.writeSigned(buffer, pos, value);
+        }
+        int[] cursor = {0};
+        for(long value : values) {
+            assertEquals(value, Varint.readSigned(buffer, cursor));
+        }
+        assertEquals(pos, cursor[0]);
+        // Small magnitudes must stay at one byte.
+        assertEquals(1, Varint.writeSigned(buffer, 0, -64));
+    }
+
+    @Test
+    public void roundTrip_acrossPartialAndFullBlocks() throws IOException {
+        Random random = new Random(42);
+        int n = 1000;
+        long[] t = new long[n];
+        int[] x = new int[n], y = new int[n], z = new int[n];
+        for(int i = 0; i < n; i++) {
+            t[i] = i * 20L + random.nextInt(3);
+            x[i] = random.nextInt(65536) - 32768;
+            y[i] = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            z[i] = -i;
+        }
+        byte[] file = write(t, x, y, z, 64);
+
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(file));
+        assertEquals(1_650_000_000_000L, reader.getStartEpochMillis());
+        SampleBlock block = new SampleBlock(64);
+        int i = 0;
+        int blocks = 0;
+        while(reader.nextBlock(block)) {
+            blocks++;
+            for(int j = 0; j < block.size(); j++, i++) {
+                assertEquals(t[i], block.timestamps[j]);
+                assertEquals(x[i], block.x[j]);
+                assertEquals(y[i], block.y[j]);
+                assertEquals(z[i], block.z[j]);
+            }
+        }
+        assertEquals(n, i);
+        // 15 full blocks of 64 and a partial one of 40.
+        assertEquals(16, blocks);
+        assertFalse(reader.isTruncated());
+    }
+
+    @Test
+    public void truncatedTail_losesOnlyTheLastBlock() throws IOException {
+        long[] t = new long[20];
+        int[] axis = new int[20];
+        for(int i = 0; i < t.length; i++) {
+            t[i] = i;
+            axis[i] = i;
+        }
+        byte[] file = write(t, axis, axis, axis, 10);
+
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(Arrays.copyOf(file, file.length - 3)));
+        SampleBlock block = new SampleBlock(10);
+        assertTrue(reader.nextBlock(block));
+        assertEquals(10, block.size());
+        assertFalse(reader.nextBlock(block));
+        assertTrue(reader.isTruncated());
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptPayload_failsChecksum() throws IOException {
+        byte[] file = write(new long[] {1, 2, 3}, new int[] {4, 5, 6}, new int[] {7, 8, 9}, new int[] {1, 1, 1}, 10);
+        file[file.length - 1] ^= 0x01;
+
+        SessionReader reader = new SessionReader(new ByteArrayInputStream(file));
+        reader.nextBlock(new SampleBlock(10));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        new SessionReader(new ByteArrayInputStream("0,1,2,3\n".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void csvExport_matchesTheOldLineFormat() throws IOException {
+        long[] t = {0, 19, 39, 1234567};
+        int[] x = {0, -1, 255, -32768};
+        int[] y = {5, 6, 7, 32767};
+        int[] z = {-10, 10, 100, -100};
+        byte[] file = write(t, x, y, z, 3);
+
+        ByteArrayOutputStream csv = new ByteArrayOutputStream();
+        assertEquals(4, CsvExport.export(new ByteArrayInputStream(file), csv));
+
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < t.length; i++) {
+            expected.append(String.format("%d,%d,%d,%d\n", t[i], x[i], y[i], z[i]));
+        }
+        assertEquals(expected.toString(), new String(csv.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
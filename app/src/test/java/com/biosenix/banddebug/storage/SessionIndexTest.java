@@ -0,0 +1,168 @@
+package com.biosenix.banddebug.storage;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SessionIndexTest {
+    private static final long START = 1_650_000_000_000L;
+    private static final int SAMPLES = 10_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Writes SAMPLES samples 20 ms apart, in blocks of 16, indexed every intervalMillis.
+    private File write(String name, long intervalMillis) throws IOException {
+        File file = folder.newFile(name);
+        SessionIndex.Writer index = new SessionIndex.Writer(
+                new BufferedOutputStream(new FileOutputStream(SessionIndex.fileFor(file))), intervalMillis);
+        try (SessionWriter writer = new SessionWriter(new BufferedOutputStream(new FileOutputStream(file)),
+                START, 16, index)) {
+            for(int i = 0; i < SAMPLES; i++) {
+                writer.append(20L * i, i, -i, 1000);
+            }
+        }
+        return file;
+    }
+
+    private static List<Long> range(File file, SessionIndex index, long from, long to) throws IOException {
+        List<Long> timestamps = new ArrayList<>();
+        try (SessionRangeReader reader = new SessionRangeReader(file, index, from, to)) {
+            assertEquals(START, reader.getStartEpochMillis());
+            SampleBlock block = new SampleBlock(16);
+            while(reader.nextBlock(block)) {
+                assertFalse(block.isEmpty());
+                for(int i = 0; i < block.size(); i++) {
+                    assertEquals(block.timestamps[i] / 20, block.x[i]);
+                    timestamps.add(block.timestamps[i]);
+                }
+            }
+        }
+        return timestamps;
+    }
+
+    private static void assertRange(List<Long> timestamps, long from, long to) {
+        long first = Math.max(0, (from + 19) / 20 * 20);
+        long end = Math.min(20L * SAMPLES, to);
+        assertEquals(Math.max(0, (end - first + 19) / 20), timestamps.size());
+        for(int i = 0; i < timestamps.size(); i++) {
+            assertEquals(first + 20L * i, (long) timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void indexesBlocksSparsely() throws IOException {
+        File file = write("session.bds", 1000);
+        SessionIndex index = SessionIndex.open(file);
+
+        // A block spans 320 ms, so every fourth block starts an entry.
+        assertEquals(SAMPLES / 16 / 4 + 1, index.size());
+        assertEquals(0, index.getTimestamp(0));
+        assertEquals(SessionFormat.FILE_HEADER_SIZE, index.getOffset(0));
+        for(int i = 1; i < index.size(); i++) {
+            assertTrue(index.getTimestamp(i) - index.getTimestamp(i - 1) >= 1000);
+            assertTrue(index.getOffset(i) > index.getOffset(i - 1));
+        }
+
+        assertEquals(-1, index.floor(-1));
+        assertEquals(0, index.floor(0));
+        assertEquals(0, index.floor(1279));
+        assertEquals(1, index.floor(1280));
+        assertEquals(index.size() - 1, index.floor(Long.MAX_VALUE));
+        assertEquals(SessionFormat.FILE_HEADER_SIZE, index.seekOffset(-5));
+    }
+
+    @Test
+    public void rebuildMatchesWrittenIndex() throws IOException {
+        File file = write("session.bds", 1000);
+        SessionIndex written = SessionIndex.open(file);
+        SessionIndex rebuilt = SessionIndex.rebuild(file, 1000);
+
+        assertEquals(written.size(), rebuilt.size());
+        for(int i = 0; i < written.size(); i++) {
+            assertEquals(written.getTimestamp(i), rebuilt.getTimestamp(i));
+            assertEquals(written.getOffset(i), rebuilt.getOffset(i));
+        }
+
+        // Without its index file the index is rebuilt.
+        assertTrue(SessionIndex.fileFor(file).delete());
+        assertEquals(SessionIndex.rebuild(file, SessionIndex.DEFAULT_INTERVAL_MILLIS).size(),
+                SessionIndex.open(file).size());
+    }
+
+    @Test
+    public void readsTimeRanges() throws IOException {
+        File file = write("session.bds", 1000);
+        SessionIndex index = SessionIndex.open(file);
+
+        long[][] ranges = {
+                {0, 20L * SAMPLES},
+                {-100, 100},
+                {1270, 1290},
+                {5000, 65_432},
+                {33_333, 33_334},
+                {33_341, 33_359},
+                {20L * SAMPLES - 30, Long.MAX_VALUE},
+                {20L * SAMPLES, Long.MAX_VALUE},
+                {500, 500},
+        };
+        for(long[] range : ranges) {
+            assertRange(range(file, index, range[0], range[1]), range[0], range[1]);
+        }
+    }
+
+    @Test
+    public void ignoresIndexEntriesPastTheData() throws IOException {
+        File file = write("session.bds", 0);
+        SessionIndex full = SessionIndex.open(file);
+
+        // As after a crash that kept the index but not the last blocks.
+        long cut = full.getOffset(full.size() / 2) + 5;
+        try (RandomAccessFile data = new RandomAccessFile(file, "rw")) {
+            data.setLength(cut);
+        }
+        SessionIndex index = SessionIndex.open(file);
+        assertEquals(full.size() / 2 + 1, index.size());
+
+        List<Long> timestamps = range(file, index, 0, Long.MAX_VALUE);
+        assertEquals(full.size() / 2 * 16, timestamps.size());
+    }
+
+    @Test
+    public void segmentsAreIndexed() throws IOException {
+        SegmentedSessionWriter.Config config = new SegmentedSessionWriter.Config();
+        config.samplesPerBlock = 16;
+        config.maxSegmentBytes = 20_000;
+        config.indexIntervalMillis = 500;
+        File directory = folder.newFolder();
+        SegmentedSessionWriter writer = new SegmentedSessionWriter(directory, "session", START, config, Runnable::run);
+        for(int i = 0; i < SAMPLES; i++) {
+            writer.append(20L * i, i, -i, 1000);
+        }
+        writer.close();
+
+        assertTrue(writer.getSegmentCount() > 2);
+        long samples = 0;
+        for(int segment = 0; segment < writer.getSegmentCount(); segment++) {
+            File file = new File(directory, writer.segmentName(segment));
+            File indexFile = SessionIndex.fileFor(file);
+            assertTrue(indexFile.getName(), indexFile.exists());
+            SessionIndex index = SessionIndex.read(indexFile, file.length());
+            assertTrue(index.size() > 1);
+            samples += range(file, index, 0, Long.MAX_VALUE).size();
+        }
+        assertEquals(SAMPLES, samples);
+    }
+}
@@ -0,0 +1,51 @@
+package com.biosenix.banddebug.time;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+
+    @Test
+    public void unsynced_isIdentity() {
+        ClockSync sync = new ClockSync();
+        assertFalse(sync.isSynced());
+        assertEquals(1234, sync.toPhoneMillis(1234));
+    }
+
+    @Test
+    public void findsOffsetThroughJitter() {
+        ClockSync sync = new ClockSync();
+        Random random = new Random(3);
+        long epoch = 1_700_000_000_000L;
+        for(long band = 0; band < 5_000; band += 20) {
+            // Transport delay of 5 to 80 ms, never negative.
+            sync.addObservation(band, epoch + band + 5 + random.nextInt(75));
+        }
+        assertTrue(sync.isSynced());
+        long error = sync.toPhoneMillis(2_000) - (epoch + 2_000);
+        assertTrue("Offset error " + error, error >= 0 && error < 10);
+    }
+
+    @Test
+    public void correctsDrift() {
+        ClockSync sync = new ClockSync(10_000, 30);
+        Random random = new Random(4);
+        long epoch = 1_700_000_000_000L;
+        // The phone clock runs 100 ppm faster than the band clock.
+        double drift = 100e-6;
+        for(long band = 0; band < 600_000; band += 20) {
+            long phone = epoch + band + Math.round(band * drift);
+            sync.addObservation(band, phone + 5 + random.nextInt(75));
+        }
+        assertEquals(100, sync.getDriftPpm(), 15);
+
+        // Without drift correction this would be off by 60 ms after 10 minutes.
+        long band = 600_000;
+        long expected = epoch + band + Math.round(band * drift);
+        long error = sync.toPhoneMillis(band) - expected;
+        assertTrue("Error " + error, Math.abs(error) < 10);
+    }
+}
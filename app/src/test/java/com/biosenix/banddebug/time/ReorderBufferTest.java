@@ -0,0 +1,139 @@
+package com.biosenix.banddebug.time;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReorderBufferTest {
+    private final List<Long> out = new ArrayList<>();
+    private final ReorderBuffer.Sink sink = (ticks, x, y, z) -> {
+        // x carries the low bits of the timestamp so samples cannot get mixed up.
+        assertEquals((short) ticks, x);
+        out.add(ticks);
+    };
+
+    private void offer(ReorderBuffer buffer, long ticks) {
+        buffer.offer(ticks, (short) ticks, (short) 0, (short) 0);
+    }
+
+    private void assertIncreasing() {
+        for(int i = 1; i < out.size(); i++) {
+            assertTrue("Out of order at " + i, out.get(i) > out.get(i - 1));
+        }
+    }
+
+    @Test
+    public void inOrder_passesThroughWithDelay() {
+        ReorderBuffer buffer = new ReorderBuffer(100, 1000, sink);
+        for(long t = 0; t <= 1000; t += 20) {
+            offer(buffer, t);
+        }
+        // Everything older than newest - delay has been released.
+        assertEquals(Long.valueOf(900), out.get(out.size() - 1));
+        buffer.flush();
+        assertEquals(51, out.size());
+        assertEquals(0, buffer.getReordered());
+        assertIncreasing();
+    }
+
+    @Test
+    public void shuffledWithinWindow_comesOutSorted() {
+        List<Long> input = new ArrayList<>();
+        for(long t = 0; t < 100_000; t += 20) {
+            input.add(t);
+        }
+        // Shuffle in chunks of 10 samples, well inside a 500 tick window.
+        Random random = new Random(1);
+        for(int i = 0; i < input.size(); i += 10) {
+            Collections.shuffle(input.subList(i, Math.min(i + 10, input.size())), random);
+        }
+
+        ReorderBuffer buffer = new ReorderBuffer(500, 1000, sink);
+        for(long t : input) {
+            offer(buffer, t);
+        }
+        buffer.flush();
+        assertEquals(input.size(), out.size());
+        assertIncreasing();
+        assertTrue(buffer.getReordered() > 0);
+        assertEquals(0, buffer.getLate());
+        assertEquals(0, buffer.getDuplicates());
+    }
+
+    @Test
+    public void duplicateStorm_keepsOneOfEach() {
+        ReorderBuffer buffer = new ReorderBuffer(200, 64, sink);
+        Random random = new Random(2);
+        long expectedDuplicates = 0;
+        for(long t = 0; t < 20_000; t += 20) {
+            offer(buffer, t);
+            // A storm of resends, some right away and some of an earlier sample.
+            int copies = random.nextInt(5);
+            for(int i = 0; i < copies; i++) {
+                offer(buffer, Math.max(0, t - 20 * random.nextInt(3)));
+                expectedDuplicates++;
+            }
+        }
+        buffer.flush();
+        assertEquals(1000, out.size());
+        assertIncreasing();
+        assertEquals(expectedDuplicates, buffer.getDuplicates() + buffer.getLate());
+    }
+
+    @Test
+    public void sampleCountBound_forcesRelease() {
+        ReorderBuffer buffer = new ReorderBuffer(1_000_000, 8, sink);
+        for(long t = 0; t < 100; t++) {
+            offer(buffer, t);
+            assertTrue(buffer.size() <= 8);
+        }
+        assertEquals(92, out.size());
+        assertEquals(92, buffer.getForced());
+
+        // Older than what was already released, it cannot be placed any more.
+        offer(buffer, 50);
+        assertEquals(1, buffer.getLate());
+        buffer.flush();
+        assertEquals(100, out.size());
+        assertIncreasing();
+    }
+
+    @Test
+    public void zeroDelay_onlyDeduplicates() {
+        ReorderBuffer buffer = new ReorderBuffer(0, 4, sink);
+        offer(buffer, 1);
+        offer(buffer, 1);
+        offer(buffer, 3);
+        offer(buffer, 2);
+        assertEquals(2, out.size());
+        assertEquals(1, buffer.getDuplicates());
+        assertEquals(1, buffer.getLate());
+    }
+
+    @Test
+    public void acrossWrap_withUnwrapper() {
+        TickUnwrapper unwrapper = new TickUnwrapper();
+        ReorderBuffer buffer = new ReorderBuffer(200, 256, sink);
+        // Start just before the 32-bit counter wraps, swap neighbours around the wrap.
+        long start = 0xFFFFFFFFL - 20 * 50;
+        List<Long> raw = new ArrayList<>();
+        for(int i = 0; i < 100; i++) {
+            raw.add((start + 20L * i) & 0xFFFFFFFFL);
+        }
+        Collections.swap(raw, 50, 51);
+        Collections.swap(raw, 49, 52);
+        for(long ticks : raw) {
+            offer(buffer, unwrapper.unwrap(ticks));
+        }
+        buffer.flush();
+        assertEquals(100, out.size());
+        assertIncreasing();
+        assertEquals(Long.valueOf(start), out.get(0));
+        assertEquals(Long.valueOf(start + 20L * 99), out.get(99));
+    }
+}
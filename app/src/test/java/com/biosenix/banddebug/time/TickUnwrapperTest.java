@@ -0,0 +1,42 @@
+package com.biosenix.banddebug.time;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TickUnwrapperTest {
+
+    @Test
+    public void extendsAcrossSeveralWraps() {
+        TickUnwrapper unwrapper = new TickUnwrapper();
+        long ticks = 0xFFFF0000L;
+        // Step by about 6 days of ticks, through three wraps.
+        long step = 1L << 29;
+        for(int i = 0; i < 24; i++) {
+            assertEquals(ticks, unwrapper.unwrap(ticks & 0xFFFFFFFFL));
+            ticks += step;
+        }
+        assertTrue(ticks > 3 * (1L << 32));
+    }
+
+    @Test
+    public void lateSampleFromBeforeWrap_staysBeforeWrap() {
+        TickUnwrapper unwrapper = new TickUnwrapper();
+        assertEquals(0xFFFFFFF0L, unwrapper.unwrap(0xFFFFFFF0L));
+        assertEquals(0x100000010L, unwrapper.unwrap(0x10));
+        // Arrives after the wrap but was sampled before it.
+        assertEquals(0xFFFFFFF8L, unwrapper.unwrap(0xFFFFFFF8L));
+        assertEquals(0x100000020L, unwrapper.unwrap(0x20));
+    }
+
+    @Test
+    public void millisDoNotOverflow() {
+        // The old int math went wrong after 2^31 / 1000 ticks, about 35 minutes.
+        long ticks = 40L * 60 * TickUnwrapper.TICKS_PER_SECOND;
+        assertEquals(40L * 60 * 1000, TickUnwrapper.toMillis(ticks));
+
+        long days = 30L * 24 * 3600 * TickUnwrapper.TICKS_PER_SECOND;
+        assertEquals(30L * 24 * 3600 * 1000, TickUnwrapper.toMillis(days));
+        assertEquals(days, TickUnwrapper.toTicks(TickUnwrapper.toMillis(days)));
+    }
+}
@@ -0,0 +1,142 @@
+package com.biosenix.banddebug.ui;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StatusPublisherTest {
+
+    // Collects scheduled tasks so the test decides when the "UI thread" runs them.
+    private static class FakeScheduler implements StatusPublisher.Scheduler {
+        long now = 1000;
+        final List<Runnable> tasks = new ArrayList<>();
+        final List<Long> delays = new ArrayList<>();
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(task);
+            delays.add(delayMillis);
+        }
+
+        void runAll() {
+            List<Runnable> pending = new ArrayList<>(tasks);
+            tasks.clear();
+            for(Runnable task : pending) {
+                task.run();
+            }
+        }
+    }
+
+    private static class RecordingRenderer implements StatusPublisher.Renderer {
+        final List<String> rendered = new ArrayList<>();
+
+        @Override
+        public void renderState(String message) {
+            rendered.add("state:" + message);
+        }
+
+        @Override
+        public void renderStatus(String message) {
+            rendered.add("status:" + message);
+        }
+
+        @Override
+        public void renderSample(long timestamp, int x, int y, int z, long sampleCount) {
+            rendered.add("sample:" + timestamp + "," + x + "," + y + "," + z + "#" + sampleCount);
+        }
+    }
+
+    @Test
+    public void samples_areCoalescedIntoOneRender() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingRenderer renderer = new RecordingRenderer();
+        StatusPublisher publisher = new StatusPublisher(scheduler, renderer, 0);
+
+        for(int i = 0; i < 1000; i++) {
+            publisher.publishSample(i, i, -i, 2 * i);
+        }
+        assertEquals(1, scheduler.tasks.size());
+
+        scheduler.runAll();
+        assertEquals(1, publisher.getRenders());
+        assertEquals(1, renderer.rendered.size());
+        assertEquals("sample:999,999,-999,1998#1000", renderer.rendered.get(0));
+    }
+
+    @Test
+    public void sameRunnableIsReused() {
+        FakeScheduler scheduler = new FakeScheduler();
+        StatusPublisher publisher = new StatusPublisher(scheduler, new RecordingRenderer(), 0);
+
+        publisher.publishStatus("a");
+        Runnable first = scheduler.tasks.get(0);
+        scheduler.runAll();
+        publisher.publishStatus("b");
+        assertSame(first, scheduler.tasks.get(0));
+    }
+
+    @Test
+    public void states_areNeverDropped() {
+        FakeScheduler scheduler = new FakeScheduler();
+        RecordingRenderer renderer = new RecordingRenderer();
+        StatusPublisher publisher = new StatusPublisher(scheduler, renderer, 0);
+
+        publisher.publishStatus("Discovering Services");
+        publisher.publishState("Connected to BP01");
+        publisher.publishSample(1, 2, 3, 4);
+        publisher.publishState("BLE Disconnected");
+        publisher.publishStatus("Looking for BP01");
+        publisher.publishStatus("Still looking");
+        scheduler.runAll();
+
+        assertEquals(4, renderer.rendered.size());
+        assertEquals("state:Connected to BP01", renderer.rendered.get(0));
+        assertEquals("state:BLE Disconnected", renderer.rendered.get(1));
+        // The status published before the state changes is superseded, the later one is kept.
+        assertEquals("status:Still looking", renderer.rendered.get(2));
+        assertEquals("sample:1,2,3,4#1", renderer.rendered.get(3));
+    }
+
+    @Test
+    public void renders_areRateLimited() {
+        FakeScheduler scheduler = new FakeScheduler();
+        StatusPublisher publisher = new StatusPublisher(scheduler, new RecordingRenderer(), 100);
+
+        publisher.publishSample(1, 1, 1, 1);
+        assertEquals(0L, (long) scheduler.delays.get(0));
+        scheduler.runAll();
+
+        scheduler.now += 30;
+        publisher.publishSample(2, 2, 2, 2);
+        // Next render is held back until 100 ms after the last one.
+        assertEquals(70L, (long) scheduler.delays.get(1));
+        publisher.publishSample(3, 3, 3, 3);
+        assertEquals(2, scheduler.delays.size());
+    }
+
+    @Test
+    public void updateDuringRender_schedulesAnotherPass() {
+        FakeScheduler scheduler = new FakeScheduler();
+        StatusPublisher[] holder = new StatusPublisher[1];
+        StatusPublisher.Renderer renderer = new RecordingRenderer() {
+            @Override
+            public void renderState(String message) {
+                super.renderState(message);
+                holder[0].publishSample(5, 5, 5, 5);
+            }
+        };
+        holder[0] = new StatusPublisher(scheduler, renderer, 0);
+
+        holder[0].publishState("Connected");
+        scheduler.runAll();
+        assertEquals(1, scheduler.tasks.size());
+    }
+}
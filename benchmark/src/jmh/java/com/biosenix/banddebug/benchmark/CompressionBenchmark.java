@@ -0,0 +1,141 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.codec.AccelerationCodec;
+import com.biosenix.banddebug.codec.RecordCompressor;
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.models.Acceleration;
+import com.biosenix.banddebug.storage.SessionFormat;
+import com.biosenix.banddebug.storage.SessionReader;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload record size and CPU cost of delta coding alone against delta coding plus Deflate.
+ * Scores are microseconds per 1000 samples. Bytes per sample, against JSON, are printed once
+ * per trial.
+ *
+ * Runs on synthetic samples by default. To use a session recorded by the app:
+ * <pre>
+ *   adb pull /sdcard/Android/data/com.biosenix.banddebug/files/2022-05-04-10:00:00-BP01.bds trace.bds
+ *   ./gradlew :benchmark:jmhJar
+ *   java -jar benchmark/build/libs/benchmark-jmh.jar Compression -prof gc -p trace=trace.bds
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+    private static final int SAMPLES = 50_000;
+
+    @Param({"50", "250", "1000"})
+    public int samplesPerRecord;
+
+    @Param({"1", "6"})
+    public int level;
+
+    // Path of a .bds session file, empty for synthetic samples.
+    @Param({""})
+    public String trace;
+
+    private List<List<Acceleration>> records;
+    private byte[][] encoded;
+    private byte[][] compressed;
+    private RecordCompressor compressor;
+
+    @Setup
+    public void setup() throws IOException {
+        SampleBlock samples = trace.isEmpty() ? new FrameGenerator(42, 0).samples(SAMPLES) : load(trace);
+        compressor = new RecordCompressor(level);
+        records = new ArrayList<>();
+        for(int i = 0; i + samplesPerRecord <= samples.size(); i += samplesPerRecord) {
+            List<Acceleration> record = new ArrayList<>(samplesPerRecord);
+            for(int j = i; j < i + samplesPerRecord; j++) {
+                record.add(new Acceleration("01", samples.x[j], samples.y[j], samples.z[j],
+                        (int) samples.timestamps[j]));
+            }
+            records.add(record);
+        }
+        encoded = new byte[records.size()][];
+        compressed = new byte[records.size()][];
+        long jsonBytes = 0, deltaBytes = 0, compressedBytes = 0;
+        ObjectMapper mapper = new ObjectMapper();
+        for(int i = 0; i < records.size(); i++) {
+            encoded[i] = AccelerationCodec.encode(records.get(i), i);
+            compressed[i] = compressor.compress(encoded[i]);
+            jsonBytes += mapper.writeValueAsBytes(records.get(i)).length;
+            deltaBytes += encoded[i].length;
+            compressedBytes += compressed[i].length;
+        }
+        double count = (double) records.size() * samplesPerRecord;
+        System.out.printf("%n%d samples per record, level %d: JSON %.2f, delta %.2f, delta+deflate %.2f B/sample" +
+                        " (%.1f%% of delta, %.1f%% of JSON)%n",
+                samplesPerRecord, level, jsonBytes / count, deltaBytes / count, compressedBytes / count,
+                100.0 * compressedBytes / deltaBytes, 100.0 * compressedBytes / jsonBytes);
+    }
+
+    @TearDown
+    public void tearDown() {
+        compressor.close();
+    }
+
+    private static SampleBlock load(String path) throws IOException {
+        SampleBlock all = new SampleBlock(SAMPLES);
+        SampleBlock block = new SampleBlock(SessionFormat.MAX_SAMPLES_PER_BLOCK);
+        try (SessionReader reader = new SessionReader(new BufferedInputStream(new FileInputStream(path)))) {
+            while(!all.isFull() && reader.nextBlock(block)) {
+                for(int i = 0; i < block.size() && !all.isFull(); i++) {
+                    all.append(block.timestamps[i], block.x[i], block.y[i], block.z[i]);
+                }
+            }
+        }
+        return all;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES / 1000)
+    public long delta() {
+        long bytes = 0;
+        for(int i = 0; i < records.size(); i++) {
+            bytes += AccelerationCodec.encode(records.get(i), i).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES / 1000)
+    public long deltaDeflate() {
+        long bytes = 0;
+        for(int i = 0; i < records.size(); i++) {
+            bytes += compressor.compress(AccelerationCodec.encode(records.get(i), i)).length;
+        }
+        return bytes;
+    }
+
+    // What a consumer pays to read the records back.
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES / 1000)
+    public long inflateDecode() {
+        long samples = 0;
+        for(byte[] record : compressed) {
+            samples += AccelerationCodec.decode(record).size();
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,92 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.plot.MinMaxDecimator;
+import com.biosenix.banddebug.plot.SampleRing;
+import com.biosenix.banddebug.plot.WaveformBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live plot decimation over multi-minute windows: the cost per sample of keeping the min/max
+ * columns current, the per frame copy of the columns for drawing, and, for comparison, decimating
+ * the whole window from the raw samples, which is what recomputing every frame would cost.
+ *
+ * The plot is {@link #COLUMNS} pixels wide. With the gc profiler, add and frame should show no
+ * allocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DecimationBenchmark {
+    private static final int COLUMNS = 1080;
+    private static final int SAMPLES = 4096;
+
+    @Param({"60", "300", "600"})
+    public int windowSeconds;
+
+    @Param({"50", "1000"})
+    public int sampleRateHz;
+
+    private short[] axes;
+    private WaveformBuffer buffer;
+    private final WaveformBuffer.Frame frame = new WaveformBuffer.Frame();
+    private SampleRing ring;
+    private MinMaxDecimator decimator;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        int window = windowSeconds * sampleRateHz;
+        Random random = new Random(11);
+        axes = new short[SAMPLES * 3];
+        for(int i = 0; i < axes.length; i++) {
+            axes[i] = (short) (random.nextGaussian() * 2000);
+        }
+        buffer = new WaveformBuffer(window);
+        buffer.setColumns(COLUMNS);
+        ring = new SampleRing(window);
+        decimator = new MinMaxDecimator(COLUMNS, (window + COLUMNS - 1) / COLUMNS);
+        // Start with a full window.
+        for(int i = 0; i < window; i++) {
+            int sample = i % SAMPLES * 3;
+            buffer.add(axes[sample], axes[sample + 1], axes[sample + 2]);
+            ring.append(axes[sample], axes[sample + 1], axes[sample + 2]);
+        }
+        buffer.copyTo(frame);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long add() {
+        for(int i = 0; i < SAMPLES * 3; i += 3) {
+            buffer.add(axes[i], axes[i + 1], axes[i + 2]);
+        }
+        return buffer.getVersion();
+    }
+
+    // One frame drawn after a new sample arrived.
+    @Benchmark
+    public int frame() {
+        int sample = next++ % SAMPLES * 3;
+        buffer.add(axes[sample], axes[sample + 1], axes[sample + 2]);
+        buffer.copyTo(frame);
+        return frame.high;
+    }
+
+    @Benchmark
+    public int recomputeWindow() {
+        decimator.rebuild(ring);
+        return decimator.getMax(COLUMNS - 1, 0);
+    }
+}
@@ -0,0 +1,63 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.AccelDecoder;
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one notification into a reused block, for single sample frames and for full
+ * frames at the largest MTU.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DecodeBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"RAW", "PACKED"})
+    public AccelDecoder.Format format;
+
+    @Param({"1", "max"})
+    public String samplesPerFrame;
+
+    private byte[][] frames;
+    private AccelDecoder decoder;
+    private SampleBlock block;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        int payload = AccelDecoder.MAX_MTU - AccelDecoder.ATT_HEADER_SIZE;
+        int samples;
+        if("max".equals(samplesPerFrame)) {
+            samples = format == AccelDecoder.Format.RAW ? payload / AccelDecoder.FRAME_SIZE :
+                    (payload - AccelDecoder.PACKED_HEADER_SIZE) / AccelDecoder.PACKED_SAMPLE_SIZE;
+        }
+        else {
+            // A packed notification carries at least one full sample.
+            samples = Integer.parseInt(samplesPerFrame);
+        }
+        frames = new FrameGenerator(42, 0).frames(FRAMES, format, samples);
+        decoder = new AccelDecoder(format);
+        block = new SampleBlock(AccelDecoder.maxSamplesPerPayload(payload));
+    }
+
+    @Benchmark
+    public int decode() {
+        byte[] frame = frames[next];
+        next = (next + 1) & (FRAMES - 1);
+        block.clear();
+        decoder.decode(frame, frame.length, block);
+        return block.size();
+    }
+}
@@ -0,0 +1,92 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.storage.SessionWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples written through a buffered file stream, CSV lines against the binary session format.
+ * The file is rewound once it reaches {@link #MAX_FILE_BYTES} so long runs do not fill the disk.
+ * Scores are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileWriteBenchmark {
+    private static final int SAMPLES = 1024;
+    private static final long MAX_FILE_BYTES = 64L * 1024 * 1024;
+
+    private SampleBlock samples;
+    private File csvFile, binaryFile;
+    private FileOutputStream csvFileStream, binaryFileStream;
+    private BufferedOutputStream csvOut;
+    private SessionWriter binaryOut;
+    private long csvBytes = 0;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        samples = new FrameGenerator(42, 0).samples(SAMPLES);
+        csvFile = File.createTempFile("bench", ".csv");
+        binaryFile = File.createTempFile("bench", ".bds");
+        csvFileStream = new FileOutputStream(csvFile);
+        csvOut = new BufferedOutputStream(csvFileStream);
+        binaryFileStream = new FileOutputStream(binaryFile);
+        binaryOut = new SessionWriter(new BufferedOutputStream(binaryFileStream), System.currentTimeMillis());
+        csvBytes = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        csvOut.close();
+        binaryOut.close();
+        csvFile.delete();
+        binaryFile.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long csv() throws IOException {
+        for(int i = 0; i < SAMPLES; i++) {
+            String line = String.format("%d,%d,%d,%d\n", samples.timestamps[i], samples.x[i], samples.y[i], samples.z[i]);
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            csvOut.write(bytes);
+            csvBytes += bytes.length;
+        }
+        if(csvBytes >= MAX_FILE_BYTES) {
+            csvOut.flush();
+            csvFileStream.getChannel().position(0);
+            csvBytes = 0;
+        }
+        return csvBytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long binary() throws IOException {
+        for(int i = 0; i < SAMPLES; i++) {
+            binaryOut.append(samples.timestamps[i], samples.x[i], samples.y[i], samples.z[i]);
+        }
+        if(binaryFileStream.getChannel().position() >= MAX_FILE_BYTES) {
+            binaryOut.flush();
+            binaryFileStream.getChannel().position(0);
+        }
+        return binaryOut.getBytesWritten();
+    }
+}
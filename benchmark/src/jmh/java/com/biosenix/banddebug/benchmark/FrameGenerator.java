@@ -0,0 +1,130 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.AccelDecoder;
+import com.biosenix.banddebug.decode.SampleBlock;
+
+import java.util.Random;
+
+/**
+ * Synthetic accelerometer notifications, shaped like what the band sends: a random walk around
+ * 1 g on z, a 50 Hz clock in 1/1024 s ticks and an occasional notification sent twice.
+ *
+ * Seeded, so every benchmark run sees the same data.
+ */
+public class FrameGenerator {
+    // 50 Hz in band clock ticks.
+    public static final int TICKS_PER_SAMPLE = 1024 / 50;
+
+    private final Random random;
+    private final double duplicateRate;
+    private long ticks = 1000;
+    private int x = 0, y = 0, z = 1000;
+
+    /**
+     * @param duplicateRate fraction of notifications that repeat the previous one.
+     */
+    public FrameGenerator(long seed, double duplicateRate) {
+        this.random = new Random(seed);
+        this.duplicateRate = duplicateRate;
+    }
+
+    /**
+     * @return count notifications of the given format, each carrying samplesPerFrame samples.
+     */
+    public byte[][] frames(int count, AccelDecoder.Format format, int samplesPerFrame) {
+        byte[][] frames = new byte[count][];
+        for(int i = 0; i < count; i++) {
+            if(i > 0 && random.nextDouble() < duplicateRate) {
+                frames[i] = frames[i - 1].clone();
+                continue;
+            }
+            frames[i] = format == AccelDecoder.Format.RAW ? rawFrame(samplesPerFrame) : packedFrame(samplesPerFrame);
+        }
+        return frames;
+    }
+
+    /**
+     * @return the timestamps of count consecutive samples with the duplicate rate applied.
+     */
+    public long[] ticks(int count) {
+        long[] ticks = new long[count];
+        for(int i = 0; i < count; i++) {
+            if(i > 0 && random.nextDouble() < duplicateRate) {
+                ticks[i] = ticks[i - 1];
+                continue;
+            }
+            step();
+            ticks[i] = this.ticks;
+        }
+        return ticks;
+    }
+
+    /**
+     * @return count decoded samples, with timestamps already converted to relative milliseconds.
+     */
+    public SampleBlock samples(int count) {
+        SampleBlock block = new SampleBlock(count);
+        long start = -1;
+        for(int i = 0; i < count; i++) {
+            step();
+            long millis = ticks * 1000 / 1024;
+            if(start < 0) {
+                start = millis;
+            }
+            block.append(millis - start, (short) x, (short) y, (short) z);
+        }
+        return block;
+    }
+
+    private byte[] rawFrame(int samples) {
+        byte[] data = new byte[samples * AccelDecoder.FRAME_SIZE];
+        for(int i = 0; i < samples; i++) {
+            step();
+            int offset = i * AccelDecoder.FRAME_SIZE;
+            putShort(data, offset, x);
+            putShort(data, offset + 2, y);
+            putShort(data, offset + 4, z);
+            putInt(data, offset + 6, ticks);
+        }
+        return data;
+    }
+
+    private byte[] packedFrame(int samples) {
+        byte[] data = new byte[AccelDecoder.PACKED_HEADER_SIZE + samples * AccelDecoder.PACKED_SAMPLE_SIZE];
+        long base = ticks + TICKS_PER_SAMPLE;
+        data[0] = (byte) samples;
+        putInt(data, 1, base);
+        for(int i = 0; i < samples; i++) {
+            step();
+            int offset = AccelDecoder.PACKED_HEADER_SIZE + i * AccelDecoder.PACKED_SAMPLE_SIZE;
+            putShort(data, offset, x);
+            putShort(data, offset + 2, y);
+            putShort(data, offset + 4, z);
+            putShort(data, offset + 6, (int) (ticks - base));
+        }
+        return data;
+    }
+
+    private void step() {
+        ticks += TICKS_PER_SAMPLE;
+        x = walk(x);
+        y = walk(y);
+        z = walk(z);
+    }
+
+    private int walk(int value) {
+        value += random.nextInt(41) - 20;
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+    }
+
+    private static void putShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+    }
+
+    private static void putInt(byte[] data, int offset, long value) {
+        for(int i = 0; i < 4; i++) {
+            data[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
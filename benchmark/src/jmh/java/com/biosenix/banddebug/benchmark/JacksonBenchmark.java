@@ -0,0 +1,77 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.models.Acceleration;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON encoding of {@link Acceleration} records for Kinesis, one record per sample as the app
+ * started out with, and one aggregated record per second of samples as the batch producer does.
+ * Scores are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JacksonBenchmark {
+    // One second at 50 Hz.
+    private static final int SAMPLES = 50;
+
+    private Acceleration[] records;
+    private List<Acceleration> aggregate;
+    private ObjectMapper mapper;
+    private ObjectWriter writer;
+
+    @Setup
+    public void setup() {
+        SampleBlock samples = new FrameGenerator(42, 0).samples(SAMPLES);
+        records = new Acceleration[SAMPLES];
+        aggregate = new ArrayList<>(SAMPLES);
+        for(int i = 0; i < SAMPLES; i++) {
+            records[i] = new Acceleration("01", samples.x[i], samples.y[i], samples.z[i], (int) samples.timestamps[i]);
+            aggregate.add(records[i]);
+        }
+        mapper = new ObjectMapper();
+        writer = mapper.writerFor(Acceleration.class);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long perSample() throws JsonProcessingException {
+        long bytes = 0;
+        for(int i = 0; i < SAMPLES; i++) {
+            bytes += mapper.writeValueAsBytes(records[i]).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long perSampleReusedWriter() throws JsonProcessingException {
+        long bytes = 0;
+        for(int i = 0; i < SAMPLES; i++) {
+            bytes += writer.writeValueAsBytes(records[i]).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int aggregated() throws JsonProcessingException {
+        return mapper.writeValueAsBytes(aggregate).length;
+    }
+}
@@ -0,0 +1,164 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.storage.SessionCatalog;
+import com.biosenix.banddebug.storage.SessionFormat;
+import com.biosenix.banddebug.storage.SessionIndex;
+import com.biosenix.banddebug.storage.SessionRangeReader;
+import com.biosenix.banddebug.storage.SessionReader;
+import com.biosenix.banddebug.storage.SessionWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time range queries on a multi-GB synthetic session file: seeking with the session index against
+ * decoding the file from its start, plus the catalog lookup of the file holding a given time.
+ *
+ * The session file is generated once per trial, in java.io.tmpdir, which must have room for it.
+ * It is mostly in the page cache afterwards, so the scan measures decoding more than the disk.
+ * Each query reads a random {@link #WINDOW_MILLIS} window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RangeQueryBenchmark {
+    private static final int GENERATED_SAMPLES = 4096;
+    private static final long SAMPLE_MILLIS = 20;
+    private static final long WINDOW_MILLIS = 60_000;
+
+    @Param({"2048"})
+    public long sessionMegabytes;
+
+    private File directory;
+    private File file;
+    private SessionIndex index;
+    private long lastTimestamp;
+    private final SampleBlock block = new SampleBlock(SessionFormat.DEFAULT_SAMPLES_PER_BLOCK);
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("bench").toFile();
+        file = new File(directory, "bench-BP1-000" + SessionFormat.FILE_EXTENSION);
+        SampleBlock samples = new FrameGenerator(42, 0).samples(GENERATED_SAMPLES);
+        long bytes = sessionMegabytes * 1024 * 1024;
+        long timestamp = 0;
+        SessionIndex.Writer indexWriter = new SessionIndex.Writer(
+                new BufferedOutputStream(new FileOutputStream(SessionIndex.fileFor(file))),
+                SessionIndex.DEFAULT_INTERVAL_MILLIS);
+        try (SessionWriter writer = new SessionWriter(new BufferedOutputStream(new FileOutputStream(file), 1 << 20),
+                System.currentTimeMillis(), SessionFormat.DEFAULT_SAMPLES_PER_BLOCK, indexWriter)) {
+            while(writer.getBytesWritten() < bytes) {
+                for(int i = 0; i < GENERATED_SAMPLES; i++) {
+                    writer.append(timestamp, samples.x[i], samples.y[i], samples.z[i]);
+                    timestamp += SAMPLE_MILLIS;
+                }
+            }
+        }
+        lastTimestamp = timestamp - SAMPLE_MILLIS;
+        index = SessionIndex.open(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SessionIndex.fileFor(file).delete();
+        file.delete();
+        directory.delete();
+    }
+
+    private long randomFrom() {
+        return (long) (random.nextDouble() * (lastTimestamp - WINDOW_MILLIS));
+    }
+
+    @Benchmark
+    public long indexedRange() throws IOException {
+        long from = randomFrom();
+        long samples = 0;
+        try (SessionRangeReader reader = new SessionRangeReader(file, index, from, from + WINDOW_MILLIS)) {
+            while(reader.nextBlock(block)) {
+                samples += block.size();
+            }
+        }
+        return samples;
+    }
+
+    @Benchmark
+    public long scannedRange() throws IOException {
+        long from = randomFrom();
+        long to = from + WINDOW_MILLIS;
+        long samples = 0;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            SessionReader reader = new SessionReader(in);
+            scan:
+            while(reader.nextBlock(block)) {
+                for(int i = 0; i < block.size(); i++) {
+                    if(block.timestamps[i] >= to) {
+                        break scan;
+                    }
+                    if(block.timestamps[i] >= from) {
+                        samples++;
+                    }
+                }
+            }
+        }
+        return samples;
+    }
+
+    @Benchmark
+    public long openIndex() throws IOException {
+        return SessionIndex.open(file).size();
+    }
+
+    /**
+     * Catalog of a year of hourly segments for each of 20 bands.
+     */
+    @State(Scope.Thread)
+    public static class Catalog {
+        private static final long HOUR = 60 * 60 * 1000;
+        private static final int BANDS = 20;
+        private static final int SEGMENTS = 365 * 24;
+
+        final SessionCatalog catalog = new SessionCatalog();
+        final Random random = new Random(42);
+        final long start = 1_650_000_000_000L;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            for(int band = 0; band < BANDS; band++) {
+                String deviceId = Integer.toString(band);
+                for(int segment = 0; segment < SEGMENTS; segment++) {
+                    catalog.add(new SessionCatalog.Entry(deviceId, new File("BP" + band + "-" + segment),
+                            start, segment * HOUR, (segment + 1) * HOUR - SAMPLE_MILLIS));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object catalogFind(Catalog state) {
+        String deviceId = Integer.toString(state.random.nextInt(Catalog.BANDS));
+        long time = state.start + (long) (state.random.nextDouble() * Catalog.SEGMENTS * Catalog.HOUR);
+        return state.catalog.find(deviceId, time);
+    }
+}
@@ -0,0 +1,91 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.codec.AccelerationCodec;
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.models.Acceleration;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kinesis record encoding, Jackson against {@link AccelerationCodec}, for records of one sample
+ * and of one second of samples. Scores are per sample. The bytes per sample of each encoding are
+ * printed once per trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RecordEncodingBenchmark {
+    private static final int SAMPLES = 500;
+
+    @Param({"1", "50"})
+    public int samplesPerRecord;
+
+    private List<List<Acceleration>> records;
+    private SampleBlock block;
+    private byte[] buffer;
+    private ObjectMapper mapper;
+
+    @Setup
+    public void setup() throws JsonProcessingException {
+        block = new FrameGenerator(42, 0).samples(SAMPLES);
+        records = new ArrayList<>();
+        for(int i = 0; i < SAMPLES; i += samplesPerRecord) {
+            List<Acceleration> record = new ArrayList<>(samplesPerRecord);
+            for(int j = i; j < i + samplesPerRecord; j++) {
+                record.add(new Acceleration("01", block.x[j], block.y[j], block.z[j], (int) block.timestamps[j]));
+            }
+            records.add(record);
+        }
+        buffer = new byte[AccelerationCodec.maxEncodedSize("01", samplesPerRecord)];
+        mapper = new ObjectMapper();
+
+        System.out.printf("%n%d samples per record: JSON %.1f B/sample, binary %.1f B/sample%n",
+                samplesPerRecord, (double) json() / SAMPLES, (double) binary() / SAMPLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long json() throws JsonProcessingException {
+        long bytes = 0;
+        for(List<Acceleration> record : records) {
+            bytes += (record.size() == 1 ? mapper.writeValueAsBytes(record.get(0)) : mapper.writeValueAsBytes(record)).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long binary() {
+        long bytes = 0;
+        long sequence = 0;
+        for(List<Acceleration> record : records) {
+            bytes += AccelerationCodec.encode(record, sequence++).length;
+        }
+        return bytes;
+    }
+
+    // Straight from the decoded block into a reused buffer, no objects at all.
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long binaryFromBlock() {
+        long bytes = 0;
+        for(int i = 0; i < SAMPLES; i += samplesPerRecord) {
+            bytes += AccelerationCodec.encode("01", i, block, i, samplesPerRecord, buffer, 0);
+        }
+        return bytes;
+    }
+}
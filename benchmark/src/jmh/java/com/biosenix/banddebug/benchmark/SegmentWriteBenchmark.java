@@ -0,0 +1,86 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.storage.SegmentedSessionWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session write throughput against the durability window: the group commit interval of
+ * {@link SegmentedSessionWriter}, from an fsync per sample (0) to none before close (-1).
+ * Segments rotate at {@link #SEGMENT_BYTES} and are deleted once finalized so long runs do not
+ * fill the disk. Scores are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SegmentWriteBenchmark {
+    private static final int SAMPLES = 1024;
+    private static final long SEGMENT_BYTES = 16L * 1024 * 1024;
+
+    @Param({"0", "10", "100", "1000", "-1"})
+    public long commitIntervalMillis;
+
+    private SampleBlock samples;
+    private File directory;
+    private SegmentedSessionWriter writer;
+    private long timestamp = 0;
+
+    @Setup(Level.Iteration)
+    public void setup() throws IOException {
+        samples = new FrameGenerator(42, 0).samples(SAMPLES);
+        directory = Files.createTempDirectory("bench").toFile();
+        SegmentedSessionWriter.Config config = new SegmentedSessionWriter.Config();
+        config.maxSegmentBytes = SEGMENT_BYTES;
+        config.commitIntervalMillis = commitIntervalMillis;
+        writer = new SegmentedSessionWriter(directory, "bench", System.currentTimeMillis(), config, finish -> {
+            finish.run();
+            deleteFinished();
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException {
+        writer.close();
+        deleteFinished();
+        directory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long append() throws IOException {
+        for(int i = 0; i < SAMPLES; i++) {
+            // Timestamps keep growing like a live session, only the axes repeat.
+            writer.append(timestamp, samples.x[i], samples.y[i], samples.z[i]);
+            timestamp += 20;
+        }
+        return writer.getBytesWritten();
+    }
+
+    private void deleteFinished() {
+        File[] files = directory.listFiles();
+        if(files == null) {
+            return;
+        }
+        for(File file : files) {
+            if(!file.getName().endsWith(SegmentedSessionWriter.OPEN_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.storage.SessionWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding samples for the session file, without any I/O: the CSV lines the app used to write
+ * against the binary session format. Scores are per sample.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SerializationBenchmark {
+    private static final int SAMPLES = 1024;
+
+    // Counts the bytes so the encoding cannot be optimized away.
+    static class CountingOutputStream extends OutputStream {
+        long bytes = 0;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    private SampleBlock samples;
+    private CountingOutputStream out;
+    private SessionWriter writer;
+
+    @Setup
+    public void setup() throws IOException {
+        samples = new FrameGenerator(42, 0).samples(SAMPLES);
+        out = new CountingOutputStream();
+        writer = new SessionWriter(out, System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long csv() throws IOException {
+        for(int i = 0; i < SAMPLES; i++) {
+            String line = String.format("%d,%d,%d,%d\n", samples.timestamps[i], samples.x[i], samples.y[i], samples.z[i]);
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.bytes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long binary() throws IOException {
+        for(int i = 0; i < SAMPLES; i++) {
+            writer.append(samples.timestamps[i], samples.x[i], samples.y[i], samples.z[i]);
+        }
+        return out.bytes;
+    }
+}
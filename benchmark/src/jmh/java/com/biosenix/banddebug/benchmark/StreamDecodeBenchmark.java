@@ -0,0 +1,77 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.decode.AccelDecoder;
+import com.biosenix.banddebug.decode.DecoderRegistry;
+import com.biosenix.banddebug.decode.PpgDecoder;
+import com.biosenix.banddebug.decode.StreamDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding one full notification per stream of the {@link DecoderRegistry}, on its own and with
+ * the characteristic lookup a session does for every notification.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamDecodeBenchmark {
+    private static final int FRAMES = 1024;
+
+    @Param({"acc", "ppg"})
+    public String stream;
+
+    private byte[][] frames;
+    private DecoderRegistry registry;
+    private StreamDecoder[] decoders;
+    private StreamDecoder decoder;
+    // A copy, Android hands out its own UUID instances.
+    private UUID characteristic;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        int payload = AccelDecoder.MAX_MTU - AccelDecoder.ATT_HEADER_SIZE;
+        registry = DecoderRegistry.createDefault(AccelDecoder.Format.RAW);
+        decoders = registry.createDecoders(payload);
+        UUID uuid;
+        if("acc".equals(stream)) {
+            uuid = DecoderRegistry.ACC_CHARACTERISTIC;
+            frames = new FrameGenerator(42, 0).frames(FRAMES, AccelDecoder.Format.RAW, payload / AccelDecoder.FRAME_SIZE);
+        }
+        else {
+            uuid = DecoderRegistry.PPG_CHARACTERISTIC;
+            Random random = new Random(42);
+            frames = new byte[FRAMES][payload / PpgDecoder.FRAME_SIZE * PpgDecoder.FRAME_SIZE];
+            for(byte[] frame : frames) {
+                random.nextBytes(frame);
+            }
+        }
+        characteristic = new UUID(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        decoder = decoders[registry.indexOf(characteristic)];
+    }
+
+    @Benchmark
+    public int decode() {
+        byte[] frame = frames[next];
+        next = (next + 1) & (FRAMES - 1);
+        return decoder.decode(frame, frame.length);
+    }
+
+    @Benchmark
+    public int route() {
+        byte[] frame = frames[next];
+        next = (next + 1) & (FRAMES - 1);
+        return decoders[registry.indexOf(characteristic)].decode(frame, frame.length);
+    }
+}
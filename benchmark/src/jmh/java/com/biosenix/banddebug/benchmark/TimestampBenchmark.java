@@ -0,0 +1,67 @@
+package com.biosenix.banddebug.benchmark;
+
+import com.biosenix.banddebug.time.ReorderBuffer;
+import com.biosenix.banddebug.time.TickUnwrapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timestamp handling per sample: 64-bit reconstruction, the reorder/dedup window and the
+ * conversion to milliseconds, for in order, duplicated and shuffled input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TimestampBenchmark {
+    private static final int SAMPLES = 4096;
+
+    @Param({"0", "0.05"})
+    public double duplicateRate;
+
+    // Swaps this fraction of neighbouring samples.
+    @Param({"0", "0.05"})
+    public double reorderRate;
+
+    private long[] ticks;
+    private final TickUnwrapper unwrapper = new TickUnwrapper();
+    private long sum = 0;
+    private final ReorderBuffer reorder = new ReorderBuffer(TickUnwrapper.toTicks(250), 256,
+            (released, x, y, z) -> sum += TickUnwrapper.toMillis(released));
+
+    @Setup
+    public void setup() {
+        ticks = new FrameGenerator(42, duplicateRate).ticks(SAMPLES);
+        Random random = new Random(7);
+        for(int i = 1; i < SAMPLES; i++) {
+            if(random.nextDouble() < reorderRate) {
+                long tmp = ticks[i];
+                ticks[i] = ticks[i - 1];
+                ticks[i - 1] = tmp;
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long reorder() {
+        unwrapper.reset();
+        reorder.reset();
+        sum = 0;
+        for(int i = 0; i < SAMPLES; i++) {
+            reorder.offer(unwrapper.unwrap(ticks[i]), (short) 0, (short) 0, (short) 0);
+        }
+        reorder.flush();
+        return sum;
+    }
+}
@@ -0,0 +1,290 @@
+package com.biosenix.banddebug.benchmark.load;
+
+import com.biosenix.banddebug.aws.ShardMap;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local HTTP server speaking enough of the Kinesis JSON protocol (PutRecords, PutRecord,
+ * ListShards) for the real KinesisAsyncClient to upload to it, with a configurable response
+ * latency and per shard throughput limits.
+ *
+ * Like Kinesis, records are placed on shards by the MD5 of their partition key, or their explicit
+ * hash key, and a record is throttled with ProvisionedThroughputExceededException when its shard
+ * is out of record or byte budget. Budgets refill continuously.
+ *
+ * The client must use HTTP/1.1 and JSON, not CBOR: build it with the system property
+ * "aws.cborEnabled" set to false.
+ */
+public class KinesisStandIn implements AutoCloseable {
+    private static final String TARGET_PREFIX = "Kinesis_20131202.";
+    private static final String CONTENT_TYPE = "application/x-amz-json-1.1";
+
+    public static class Config {
+        // Time every response is held back, plus a uniformly random jitter.
+        public long latencyMillis = 20;
+        public long latencyJitterMillis = 10;
+        public int shards = 1;
+        // Kinesis limits per shard.
+        public double recordsPerSecondPerShard = 1000;
+        public double bytesPerSecondPerShard = 1024 * 1024;
+    }
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private final Config config;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final ShardMap shardMap;
+    private final ShardBudget[] budgets;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong acceptedRecords = new AtomicLong();
+    private final AtomicLong acceptedBytes = new AtomicLong();
+    private final AtomicLong throttledRecords = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public KinesisStandIn(Config config) throws IOException {
+        this.config = config;
+        this.shardMap = ShardMap.uniform(config.shards);
+        this.budgets = new ShardBudget[config.shards];
+        for(int shard = 0; shard < config.shards; shard++) {
+            budgets[shard] = new ShardBudget(config.recordsPerSecondPerShard, config.bytesPerSecondPerShard);
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        // Responses sleep out their latency, so every request in flight needs a thread.
+        this.handlers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "kinesis-stand-in-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        server.createContext("/", this::handle);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /**
+     * @return the endpoint to point the client's endpointOverride at.
+     */
+    public URI getEndpoint() {
+        return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort());
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getAcceptedRecords() {
+        return acceptedRecords.get();
+    }
+
+    public long getAcceptedBytes() {
+        return acceptedBytes.get();
+    }
+
+    public long getThrottledRecords() {
+        return throttledRecords.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            requests.incrementAndGet();
+            JsonNode request;
+            try (InputStream in = exchange.getRequestBody()) {
+                request = JSON.readTree(in);
+            }
+            String target = exchange.getRequestHeaders().getFirst("X-Amz-Target");
+            String operation = target != null && target.startsWith(TARGET_PREFIX) ?
+                    target.substring(TARGET_PREFIX.length()) : "";
+            delay();
+            switch (operation) {
+                case "PutRecords":
+                    respond(exchange, 200, putRecords(request));
+                    break;
+                case "PutRecord":
+                    putRecord(exchange, request);
+                    break;
+                case "ListShards":
+                    respond(exchange, 200, listShards());
+                    break;
+                default:
+                    respond(exchange, 400, error("UnknownOperationException", "Unsupported operation " + target));
+            }
+        }
+        catch (IOException | RuntimeException ex) {
+            respond(exchange, 500, error("InternalFailure", String.valueOf(ex)));
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, error("ServiceUnavailable", "Shutting down"));
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private ObjectNode putRecords(JsonNode request) {
+        ObjectNode response = JSON.createObjectNode();
+        ArrayNode results = response.putArray("Records");
+        int failed = 0;
+        for(JsonNode record : request.path("Records")) {
+            ObjectNode result = results.addObject();
+            if(!accept(record, result)) {
+                failed++;
+            }
+        }
+        response.put("FailedRecordCount", failed);
+        response.put("EncryptionType", "NONE");
+        return response;
+    }
+
+    private void putRecord(HttpExchange exchange, JsonNode request) throws IOException {
+        ObjectNode result = JSON.createObjectNode();
+        if(accept(request, result)) {
+            result.put("EncryptionType", "NONE");
+            respond(exchange, 200, result);
+        }
+        else {
+            respond(exchange, 400, error(result.get("ErrorCode").asText(), result.get("ErrorMessage").asText()));
+        }
+    }
+
+    // Charges the record to its shard and fills in its result entry. Returns false if throttled.
+    private boolean accept(JsonNode record, ObjectNode result) {
+        String explicitHashKey = record.path("ExplicitHashKey").asText(null);
+        BigInteger hashKey = explicitHashKey != null ? new BigInteger(explicitHashKey) :
+                ShardMap.hashKeyOf(record.path("PartitionKey").asText(""));
+        int shard = shardMap.shardOf(hashKey);
+        long bytes = decodedLength(record.path("Data").asText(""));
+        if(!budgets[shard].take(bytes)) {
+            throttledRecords.incrementAndGet();
+            result.put("ErrorCode", "ProvisionedThroughputExceededException");
+            result.put("ErrorMessage", "Rate exceeded for shard " + shardId(shard));
+            return false;
+        }
+        acceptedRecords.incrementAndGet();
+        acceptedBytes.addAndGet(bytes);
+        result.put("SequenceNumber", Long.toString(sequence.incrementAndGet()));
+        result.put("ShardId", shardId(shard));
+        return true;
+    }
+
+    private ObjectNode listShards() {
+        ObjectNode response = JSON.createObjectNode();
+        ArrayNode shards = response.putArray("Shards");
+        for(int shard = 0; shard < config.shards; shard++) {
+            ObjectNode entry = shards.addObject();
+            entry.put("ShardId", shardId(shard));
+            ObjectNode range = entry.putObject("HashKeyRange");
+            range.put("StartingHashKey", startOf(shard).toString());
+            range.put("EndingHashKey", endOf(shard).toString());
+            entry.putObject("SequenceNumberRange").put("StartingSequenceNumber", "0");
+        }
+        return response;
+    }
+
+    private BigInteger startOf(int shard) {
+        BigInteger size = ShardMap.MAX_HASH_KEY.add(BigInteger.ONE).divide(BigInteger.valueOf(config.shards));
+        return size.multiply(BigInteger.valueOf(shard));
+    }
+
+    private BigInteger endOf(int shard) {
+        return shard + 1 < config.shards ? startOf(shard + 1).subtract(BigInteger.ONE) : ShardMap.MAX_HASH_KEY;
+    }
+
+    private static String shardId(int shard) {
+        return String.format("shardId-%012d", shard);
+    }
+
+    private void delay() throws InterruptedException {
+        long delay = config.latencyMillis;
+        if(config.latencyJitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(config.latencyJitterMillis + 1);
+        }
+        if(delay > 0) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+    }
+
+    private static ObjectNode error(String type, String message) {
+        ObjectNode error = JSON.createObjectNode();
+        error.put("__type", type);
+        error.put("message", message);
+        return error;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        byte[] bytes = JSON.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.getResponseHeaders().set("x-amzn-RequestId", Long.toHexString(System.nanoTime()));
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // Length of base64 encoded data without decoding it.
+    private static long decodedLength(String base64) {
+        int padding = base64.endsWith("==") ? 2 : base64.endsWith("=") ? 1 : 0;
+        return base64.length() / 4 * 3 - padding;
+    }
+
+    /**
+     * Record and byte budgets of a shard, refilled at a fixed rate and holding at most one second
+     * of it.
+     */
+    private static class ShardBudget {
+        private final double recordsPerSecond;
+        private final double bytesPerSecond;
+        private double records;
+        private double bytes;
+        private long lastNanos = System.nanoTime();
+
+        ShardBudget(double recordsPerSecond, double bytesPerSecond) {
+            this.recordsPerSecond = recordsPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.records = recordsPerSecond;
+            this.bytes = bytesPerSecond;
+        }
+
+        // Charges one record of the given size. Returns false, charging nothing, if over budget.
+        synchronized boolean take(long size) {
+            long now = System.nanoTime();
+            double seconds = (now - lastNanos) / 1e9;
+            lastNanos = now;
+            records = Math.min(recordsPerSecond, records + seconds * recordsPerSecond);
+            bytes = Math.min(bytesPerSecond, bytes + seconds * bytesPerSecond);
+            if(records < 1 || bytes < size) {
+                return false;
+            }
+            records -= 1;
+            bytes -= size;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,561 @@
+package com.biosenix.banddebug.benchmark.load;
+
+import com.biosenix.banddebug.aws.Kinesis;
+import com.biosenix.banddebug.aws.KinesisBatchProducer;
+import com.biosenix.banddebug.benchmark.FrameGenerator;
+import com.biosenix.banddebug.decode.SampleBlock;
+import com.biosenix.banddebug.metrics.Histogram;
+import com.biosenix.banddebug.metrics.MetricsRegistry;
+import com.biosenix.banddebug.session.BandSession;
+import com.biosenix.banddebug.session.SessionManager;
+import com.biosenix.banddebug.sink.FileSink;
+import com.biosenix.banddebug.sink.KinesisSink;
+import com.biosenix.banddebug.sink.SinkFanOut;
+import com.biosenix.banddebug.storage.SegmentedSessionWriter;
+import com.biosenix.banddebug.storage.SessionFormat;
+import com.biosenix.banddebug.storage.SessionReader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.Protocol;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.kinesis.KinesisAsyncClient;
+
+/**
+ * Soak and load test of the phone pipeline on the JVM: N virtual bands stream raw ACC frames
+ * through the same path MainActivity uses in raw upload mode (SessionManager, BandSession
+ * decode and reorder, a SinkFanOut feeding a FileSink with SegmentedSessionWriter files and a
+ * KinesisSink with the real KinesisAsyncClient) into a local {@link KinesisStandIn} with
+ * configurable latency and throttling.
+ *
+ * The test runs in stages of fixed load. Each stage reports the offered and sustained sample
+ * rates, the frames, batches and records dropped, the heap growth and the tail latencies of
+ * storing, of the sink queues and of uploading. The load (bands, or sample rate per band) doubles until a stage saturates, then the
+ * saturation point is narrowed down by bisection.
+ * <pre>
+ *   ./gradlew :benchmark:loadTest -PloadArgs="--rate=50 --latency=50 --shards=2"
+ *   java ... LoadTest --ramp=rate --bands=4 --recording=session.bds
+ * </pre>
+ * Options, all --name=value: bands, maxBands, rate (Hz per band), maxRate, samplesPerFrame, ramp
+ * (bands or rate), stageSeconds, warmupSeconds, workers (session worker threads), bisect (steps),
+ * recording (session file whose axes are replayed instead of synthetic ones), latency, jitter
+ * (ms), shards, shardRecords and shardBytes (per second). Run with -Daws.cborEnabled=false.
+ */
+public class LoadTest {
+
+    public static class Config {
+        public int bands = 1;
+        public int maxBands = 512;
+        public double sampleRateHz = 50;
+        public double maxSampleRateHz = 100_000;
+        public int samplesPerFrame = 1;
+        // Ramp the number of bands, or the sample rate of each band.
+        public boolean rampBands = true;
+        public long stageMillis = 15_000;
+        public long warmupMillis = 3_000;
+        // As in MainActivity.
+        public int sessionWorkers = 2;
+        // Bisection steps between the last sustained and the first saturated load.
+        public int bisectSteps = 3;
+        public File recording = null;
+        public KinesisStandIn.Config kinesis = new KinesisStandIn.Config();
+        // As in MainActivity, SPILL into a spool in the stage's directory.
+        public KinesisBatchProducer.Config producer = Kinesis.defaultProducerConfig();
+        public SegmentedSessionWriter.Config segments = new SegmentedSessionWriter.Config();
+        // As in MainActivity, with its FILE_SINK_LINGER_MILLIS.
+        public SinkFanOut.Config fileSink = new SinkFanOut.Config();
+        // As in MainActivity.
+        public SinkFanOut.Config kinesisSink = new SinkFanOut.Config();
+
+        public Config() {
+            fileSink.lingerMillis = 250;
+        }
+
+        // A stage is saturated once any of these is exceeded.
+        public double maxDropRate = 0.001;
+        // Share of the offered samples that must be stored.
+        public double minStoredRatio = 0.98;
+        // From a notification to its samples being in the sinks' batches.
+        public long maxHandoffP99Micros = 500_000;
+        // From a batch's first sample to the file sink having written it, the sink linger included.
+        public long maxStoreP99Millis = 2_000;
+        public long maxUploadP99Millis = 5_000;
+        // Batches wait up to the sink linger before they are queued, beyond that a sink falls behind.
+        public long maxSinkLagP99Millis = 5_000;
+        // Share of the producer buffer that may fill up, beyond it uploads are falling behind.
+        public double maxBufferedShare = 0.5;
+    }
+
+    /**
+     * Measurements of one stage, rates per second over the measured part of the stage.
+     */
+    public static class StageResult {
+        public int bands;
+        public double sampleRateHz;
+        public double offeredSamples;
+        public double storedSamples;
+        public double uploadedRecords;
+        // Frames dropped by the session rings, per frame offered.
+        public double frameDropRate;
+        // Samples dropped by the sink queues, per sample handed to the sinks.
+        public double sinkDropRate;
+        // Records dropped or shed by the producer, per record sealed.
+        public double recordDropRate;
+        public double throttledRecords;
+        public long heapGrowthBytes;
+        public long handoffP99Micros;
+        public long handoffP999Micros;
+        // Disk latency: from a batch's first sample to the file sink having written it.
+        public long storeP99Millis;
+        public long storeP999Millis;
+        // From a batch's first sample to its sink having written it, the slower sink.
+        public long sinkLagP99Millis;
+        public long uploadP99Millis;
+        public long uploadP999Millis;
+        public long bufferedBytes;
+        // Why the stage is saturated, null if the load was sustained.
+        public String limit;
+
+        double load(boolean bands) {
+            return bands ? this.bands : sampleRateHz;
+        }
+    }
+
+    private final Config config;
+    private final SampleBlock axes;
+    private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+
+    public LoadTest(Config config) throws IOException {
+        this.config = config;
+        this.axes = config.recording != null ? loadRecording(config.recording, 1 << 20) :
+                new FrameGenerator(42, 0).samples(1 << 16);
+    }
+
+    /**
+     * Ramps the load up until saturation.
+     * @return every stage run, in order.
+     */
+    public List<StageResult> run() throws IOException, InterruptedException {
+        List<StageResult> results = new ArrayList<>();
+        boolean bands = config.rampBands;
+        double load = bands ? config.bands : config.sampleRateHz;
+        double max = bands ? config.maxBands : config.maxSampleRateHz;
+        StageResult sustained = null;
+        StageResult saturated = null;
+
+        try (KinesisStandIn standIn = new KinesisStandIn(config.kinesis)) {
+            KinesisAsyncClient client = createClient(standIn);
+            try {
+                while(load <= max) {
+                    StageResult result = runStage(client, standIn, stageBands(bands, load), stageRate(bands, load));
+                    results.add(result);
+                    print(result);
+                    if(result.limit != null) {
+                        saturated = result;
+                        break;
+                    }
+                    sustained = result;
+                    load *= 2;
+                }
+                for(int step = 0; saturated != null && step < config.bisectSteps; step++) {
+                    double low = sustained != null ? sustained.load(bands) : 0;
+                    double middle = bands ? Math.floor((low + saturated.load(bands)) / 2) :
+                            (low + saturated.load(bands)) / 2;
+                    if(middle <= low || middle >= saturated.load(bands)) {
+                        break;
+                    }
+                    StageResult result = runStage(client, standIn, stageBands(bands, middle), stageRate(bands, middle));
+                    results.add(result);
+                    print(result);
+                    if(result.limit != null) {
+                        saturated = result;
+                    }
+                    else {
+                        sustained = result;
+                    }
+                }
+            }
+            finally {
+                client.close();
+            }
+        }
+
+        if(sustained == null) {
+            System.out.println("Saturated at the initial load");
+        }
+        else {
+            System.out.println(String.format(Locale.ROOT,
+                    "Saturation point: %d bands x %.0f Hz = %.0f samples/s sustained%s",
+                    sustained.bands, sustained.sampleRateHz, sustained.storedSamples,
+                    saturated != null ? ", next load limited by " + saturated.limit : ", no limit reached"));
+        }
+        return results;
+    }
+
+    private int stageBands(boolean bands, double load) {
+        return bands ? (int) load : config.bands;
+    }
+
+    private double stageRate(boolean bands, double load) {
+        return bands ? config.sampleRateHz : load;
+    }
+
+    /**
+     * Runs one stage of fixed load: warm up, measure, then tear the pipeline down.
+     */
+    public StageResult runStage(KinesisAsyncClient client, KinesisStandIn standIn, int bandCount, double rateHz)
+            throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("load").toFile();
+        ScheduledExecutorService finisher = Executors.newScheduledThreadPool(2);
+        // Uploads through a spool like MainActivity, only the client is the stand-in's.
+        Kinesis kinesis = new Kinesis("acceleration", client, config.producer, new File(directory, "spool"));
+        KinesisBatchProducer producer = kinesis.getProducer();
+
+        // Same sinks as MainActivity in raw upload mode, the samples reach them through the sessions.
+        SinkFanOut sinks = new SinkFanOut();
+        sinks.add("file", new FileSink((deviceId, start) -> new SegmentedSessionWriter(directory,
+                "load-BP" + deviceId, start, config.segments, finisher)), config.fileSink);
+        sinks.add("kinesis", new KinesisSink(kinesis), config.kinesisSink);
+        SessionManager.Listener listener = new SessionManager.Listener() {
+            @Override
+            public void onSample(BandSession session, long timestamp, int x, int y, int z) {
+            }
+
+            @Override
+            public void onSessionClosed(BandSession session) {
+            }
+
+            @Override
+            public void onStatus(String deviceId, String message) {
+            }
+
+            @Override
+            public void onConnected(String deviceId) {
+            }
+
+            @Override
+            public void onDisconnected(String deviceId) {
+            }
+        };
+        SessionManager sessions = new SessionManager(bandCount, config.sessionWorkers, sinks::open, listener);
+
+        List<VirtualBand> bands = new ArrayList<>();
+        for(int i = 0; i < bandCount; i++) {
+            VirtualBand band = new VirtualBand(String.format(Locale.ROOT, "%03d", i), axes, rateHz,
+                    config.samplesPerFrame);
+            bands.add(band);
+            sessions.addBand(band);
+        }
+        Emitters emitters = new Emitters(bands);
+        emitters.start();
+
+        StageResult result = new StageResult();
+        result.bands = bandCount;
+        result.sampleRateHz = rateHz;
+        try {
+            Thread.sleep(config.warmupMillis);
+            Map<String, Long> counters = metrics.getCounters();
+            Map<String, Histogram.Snapshot> histograms = metrics.getHistograms();
+            long throttled = standIn.getThrottledRecords();
+            long heap = usedHeapAfterGc();
+            long start = System.nanoTime();
+
+            Thread.sleep(config.stageMillis);
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            Map<String, Long> endCounters = metrics.getCounters();
+            Map<String, Histogram.Snapshot> endHistograms = metrics.getHistograms();
+            result.bufferedBytes = producer.getBufferedBytes();
+            result.throttledRecords = (standIn.getThrottledRecords() - throttled) / seconds;
+            result.heapGrowthBytes = usedHeapAfterGc() - heap;
+
+            long notifications = delta(counters, endCounters, "ble.notifications");
+            long droppedFrames = delta(counters, endCounters, "ring.dropped_frames");
+            long sent = delta(counters, endCounters, "kinesis.records_sent");
+            long droppedRecords = delta(counters, endCounters, "kinesis.records_dropped") +
+                    delta(counters, endCounters, "kinesis.records_shed");
+            long handedOver = delta(counters, endCounters, "disk.samples_written");
+            long sinkDrops = Math.max(delta(counters, endCounters, "sink.file.dropped_samples"),
+                    delta(counters, endCounters, "sink.kinesis.dropped_samples"));
+            result.offeredSamples = notifications * config.samplesPerFrame / seconds;
+            result.storedSamples = delta(counters, endCounters, "sink.file.samples") / seconds;
+            result.sinkDropRate = handedOver > 0 ? (double) sinkDrops / handedOver : 0;
+            result.uploadedRecords = sent / seconds;
+            result.frameDropRate = notifications > 0 ? (double) droppedFrames / notifications : 0;
+            result.recordDropRate = sent + droppedRecords > 0 ? (double) droppedRecords / (sent + droppedRecords) : 0;
+            Histogram.Snapshot handoff = since(histograms, endHistograms, "session.handoff_latency_us");
+            result.handoffP99Micros = handoff.getPercentile(0.99);
+            result.handoffP999Micros = handoff.getPercentile(0.999);
+            Histogram.Snapshot store = since(histograms, endHistograms, "sink.file.lag_ms");
+            result.storeP99Millis = store.getPercentile(0.99);
+            result.storeP999Millis = store.getPercentile(0.999);
+            result.sinkLagP99Millis = Math.max(
+                    since(histograms, endHistograms, "sink.file.lag_ms").getPercentile(0.99),
+                    since(histograms, endHistograms, "sink.kinesis.lag_ms").getPercentile(0.99));
+            Histogram.Snapshot upload = since(histograms, endHistograms, "kinesis.upload_latency_ms");
+            result.uploadP99Millis = upload.getPercentile(0.99);
+            result.uploadP999Millis = upload.getPercentile(0.999);
+            result.limit = limit(result, bandCount * rateHz);
+        }
+        finally {
+            emitters.stop();
+            sessions.disconnectAll();
+            sessions.shutdown(10_000);
+            sinks.close(10_000);
+            kinesis.close();
+            finisher.shutdown();
+            finisher.awaitTermination(10, TimeUnit.SECONDS);
+            delete(directory);
+        }
+        return result;
+    }
+
+    // Why a stage is saturated, or null.
+    private String limit(StageResult result, double targetSamples) {
+        if(result.offeredSamples < 0.95 * targetSamples) {
+            return "load generator (offered " + Math.round(result.offeredSamples) + " of " +
+                    Math.round(targetSamples) + " samples/s)";
+        }
+        if(result.frameDropRate > config.maxDropRate) {
+            return "session rings dropping frames";
+        }
+        if(result.storedSamples < config.minStoredRatio * result.offeredSamples) {
+            return "decode and storage throughput";
+        }
+        if(result.handoffP99Micros > config.maxHandoffP99Micros) {
+            return "session hand-off latency";
+        }
+        if(result.storeP99Millis > config.maxStoreP99Millis) {
+            return "storage latency";
+        }
+        if(result.sinkDropRate > config.maxDropRate) {
+            return "sink queues dropping samples";
+        }
+        if(result.sinkLagP99Millis > config.maxSinkLagP99Millis) {
+            return "sink lag";
+        }
+        if(result.recordDropRate > config.maxDropRate) {
+            return "upload dropping records";
+        }
+        if(result.bufferedBytes > config.maxBufferedShare * config.producer.maxBufferedBytes) {
+            return "upload backlog";
+        }
+        if(result.uploadP99Millis > config.maxUploadP99Millis) {
+            return "upload latency";
+        }
+        return null;
+    }
+
+    private KinesisAsyncClient createClient(KinesisStandIn standIn) {
+        return KinesisAsyncClient.builder()
+                .endpointOverride(standIn.getEndpoint())
+                .region(Region.US_EAST_1)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("load", "test")))
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .protocol(Protocol.HTTP1_1)
+                        .maxConcurrency(64)
+                        .connectionAcquisitionTimeout(Duration.ofSeconds(30)))
+                .build();
+    }
+
+    private static void print(StageResult result) {
+        System.out.println(String.format(Locale.ROOT,
+                "%4d bands x %7.1f Hz | offered %9.0f/s stored %9.0f/s uploaded %7.0f rec/s throttled %6.0f/s | " +
+                        "drops frames %.4f sinks %.4f records %.4f | heap %+7d KB | hand-off p99 %6d us p999 %6d us | " +
+                        "store p99 %5d ms p999 %5d ms | " +
+                        "sink lag p99 %5d ms | upload p99 %5d ms p999 %5d ms | %s",
+                result.bands, result.sampleRateHz, result.offeredSamples, result.storedSamples,
+                result.uploadedRecords, result.throttledRecords, result.frameDropRate, result.sinkDropRate,
+                result.recordDropRate, result.heapGrowthBytes / 1024, result.handoffP99Micros,
+                result.handoffP999Micros, result.storeP99Millis, result.storeP999Millis, result.sinkLagP99Millis, result.uploadP99Millis, result.uploadP999Millis,
+                result.limit != null ? "SATURATED: " + result.limit : "sustained"));
+    }
+
+    private static long delta(Map<String, Long> before, Map<String, Long> after, String name) {
+        Long start = before.get(name);
+        Long end = after.get(name);
+        return (end != null ? end : 0) - (start != null ? start : 0);
+    }
+
+    private static Histogram.Snapshot since(Map<String, Histogram.Snapshot> before,
+                                            Map<String, Histogram.Snapshot> after, String name) {
+        Histogram.Snapshot end = after.get(name);
+        if(end == null) {
+            return new Histogram().snapshot();
+        }
+        Histogram.Snapshot start = before.get(name);
+        return start != null ? end.since(start) : end;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Reads up to maxSamples samples of a recorded session file, to replay their axes.
+     */
+    public static SampleBlock loadRecording(File file, int maxSamples) throws IOException {
+        SampleBlock samples = new SampleBlock(maxSamples);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            SessionReader reader = new SessionReader(in);
+            SampleBlock block = new SampleBlock(SessionFormat.MAX_SAMPLES_PER_BLOCK);
+            while(!samples.isFull() && reader.nextBlock(block)) {
+                for(int i = 0; i < block.size() && !samples.isFull(); i++) {
+                    samples.append(block.timestamps[i], block.x[i], block.y[i], block.z[i]);
+                }
+            }
+        }
+        if(samples.isEmpty()) {
+            throw new IOException("No samples in " + file);
+        }
+        return samples;
+    }
+
+    /**
+     * Threads that send the frames of the bands at their rate. Each band is paced against the
+     * time since the start, so a late wakeup is caught up on rather than lost.
+     */
+    private static class Emitters {
+        private static final int MAX_THREADS = 4;
+
+        private final List<VirtualBand> bands;
+        private final List<Thread> threads = new ArrayList<>();
+        private volatile boolean running = true;
+
+        Emitters(List<VirtualBand> bands) {
+            this.bands = bands;
+        }
+
+        void start() {
+            int count = Math.min(MAX_THREADS, bands.size());
+            long start = System.nanoTime();
+            for(int t = 0; t < count; t++) {
+                int first = t;
+                Thread thread = new Thread(() -> emit(first, count, start), "band-emitter-" + t);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            for(Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        private void emit(int first, int stride, long start) {
+            while(running) {
+                double seconds = (System.nanoTime() - start) / 1e9;
+                for(int i = first; i < bands.size(); i += stride) {
+                    VirtualBand band = bands.get(i);
+                    long due = (long) (seconds * band.getSampleRateHz() / band.getSamplesPerFrame());
+                    while(band.getFrames() < due && band.send()) {
+                        // Sent.
+                    }
+                }
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = new Config();
+        for(String arg : args) {
+            if(!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            String name = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (name) {
+                case "bands":
+                    config.bands = Integer.parseInt(value);
+                    break;
+                case "maxBands":
+                    config.maxBands = Integer.parseInt(value);
+                    break;
+                case "rate":
+                    config.sampleRateHz = Double.parseDouble(value);
+                    break;
+                case "maxRate":
+                    config.maxSampleRateHz = Double.parseDouble(value);
+                    break;
+                case "samplesPerFrame":
+                    config.samplesPerFrame = Integer.parseInt(value);
+                    break;
+                case "ramp":
+                    config.rampBands = !"rate".equals(value);
+                    break;
+                case "stageSeconds":
+                    config.stageMillis = Long.parseLong(value) * 1000;
+                    break;
+                case "warmupSeconds":
+                    config.warmupMillis = Long.parseLong(value) * 1000;
+                    break;
+                case "workers":
+                    config.sessionWorkers = Integer.parseInt(value);
+                    break;
+                case "bisect":
+                    config.bisectSteps = Integer.parseInt(value);
+                    break;
+                case "recording":
+                    config.recording = new File(value);
+                    break;
+                case "latency":
+                    config.kinesis.latencyMillis = Long.parseLong(value);
+                    break;
+                case "jitter":
+                    config.kinesis.latencyJitterMillis = Long.parseLong(value);
+                    break;
+                case "shards":
+                    config.kinesis.shards = Integer.parseInt(value);
+                    break;
+                case "shardRecords":
+                    config.kinesis.recordsPerSecondPerShard = Double.parseDouble(value);
+                    break;
+                case "shardBytes":
+                    config.kinesis.bytesPerSecondPerShard = Double.parseDouble(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        if(System.getProperty("aws.cborEnabled") == null) {
+            // The stand-in only speaks JSON.
+            System.setProperty("aws.cborEnabled", "false");
+        }
+        new LoadTest(config).run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,112 @@
+package com.biosenix.banddebug.benchmark.load;
+
+import com.biosenix.banddebug.ble.BandGatt;
+import com.biosenix.banddebug.decode.AccelDecoder;
+import com.biosenix.banddebug.decode.DecoderRegistry;
+import com.biosenix.banddebug.decode.SampleBlock;
+
+/**
+ * Simulated band that streams 10-byte raw ACC frames, like AndroidBandGatt delivers them.
+ *
+ * The axes are replayed from a block of samples, looping over it, while the band clock follows
+ * the configured sample rate so timestamps keep increasing across loops. Connects at once.
+ */
+public class VirtualBand implements BandGatt {
+    private static final int TICKS_PER_SECOND = 1024;
+
+    private final String deviceId;
+    private final SampleBlock axes;
+    private final double sampleRateHz;
+    private final byte[] frame;
+    private final int samplesPerFrame;
+
+    private volatile Listener listener = null;
+    private long samples = 0;
+    private long frames = 0;
+    // Arbitrary band clock start, not 0 like a band that just booted.
+    private final long startTicks;
+
+    /**
+     * @param axes samples whose axes are replayed, their timestamps are ignored.
+     * @param samplesPerFrame samples per notification, 1 for the band's own 10-byte frames.
+     */
+    public VirtualBand(String deviceId, SampleBlock axes, double sampleRateHz, int samplesPerFrame) {
+        if(axes.isEmpty()) {
+            throw new IllegalArgumentException("No samples to replay");
+        }
+        this.deviceId = deviceId;
+        this.axes = axes;
+        this.sampleRateHz = sampleRateHz;
+        this.samplesPerFrame = samplesPerFrame;
+        this.frame = new byte[samplesPerFrame * AccelDecoder.FRAME_SIZE];
+        this.startTicks = 1000 + (deviceId.hashCode() & 0xFFFF);
+    }
+
+    @Override
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    @Override
+    public void connect(Listener listener) {
+        this.listener = listener;
+        listener.onConnected(this);
+        listener.onStreaming(this);
+    }
+
+    @Override
+    public void disconnect() {
+        Listener connected = listener;
+        listener = null;
+        if(connected != null) {
+            connected.onDisconnected(this);
+        }
+    }
+
+    public double getSampleRateHz() {
+        return sampleRateHz;
+    }
+
+    public int getSamplesPerFrame() {
+        return samplesPerFrame;
+    }
+
+    /**
+     * @return frames sent so far.
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Sends the next frame. One thread at a time, like a Bluetooth callback thread.
+     * @return false if the band is not connected.
+     */
+    public boolean send() {
+        Listener connected = listener;
+        if(connected == null) {
+            return false;
+        }
+        for(int i = 0; i < samplesPerFrame; i++) {
+            int index = (int) (samples % axes.size());
+            long ticks = startTicks + (long) (samples * TICKS_PER_SECOND / sampleRateHz);
+            int offset = i * AccelDecoder.FRAME_SIZE;
+            putShort(offset, axes.x[index]);
+            putShort(offset + 2, axes.y[index]);
+            putShort(offset + 4, axes.z[index]);
+            // The band clock is 32 bits and wraps, the session unwraps it.
+            for(int b = 0; b < 4; b++) {
+                frame[offset + 6 + b] = (byte) (ticks >> (8 * b));
+            }
+            samples++;
+        }
+        frames++;
+        connected.onNotification(this, DecoderRegistry.ACC_CHARACTERISTIC, frame);
+        return true;
+    }
+
+    private void putShort(int offset, int value) {
+        frame[offset] = (byte) value;
+        frame[offset + 1] = (byte) (value >> 8);
+    }
+}